@@ -72,4 +72,24 @@ public interface MultiversionNavigableMap<K, V> extends ConcurrentNavigableMap<K
 	MultiversionNavigableMap<K,V> descendingMap();
 
 	void put(Batch<K, V> batch);
+
+	/**
+	 * Copies the entries of the given range (intersected with the range of
+	 * this map) into the arrays, in ascending key order, until the arrays are
+	 * full. To continue, call the method again with the last returned key as an
+	 * exclusive lower bound.
+	 *
+	 * @param fromKey low endpoint, or {@code null} for no lower bound
+	 * @param toKey   high endpoint, or {@code null} for no upper bound
+	 * @param values  buffer for values, or {@code null} to copy keys only
+	 * @return the number of entries copied
+	 */
+	int scan(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, K[] keys, V[] values);
+
+	/**
+	 * Same as {@link #scan(Object, boolean, Object, boolean, Object[], Object[])}
+	 * for the range from {@code fromKey}, inclusive, to {@code toKey},
+	 * exclusive.
+	 */
+	int scan(K fromKey, K toKey, K[] keys, V[] values);
 }
@@ -34,11 +34,33 @@
 
 package pl.edu.put.concurrent;
 
+import java.io.IOException;
+import java.nio.file.Path;
+
+import pl.edu.put.concurrent.jiffy.Codec;
+import pl.edu.put.concurrent.jiffy.ImmutableSortedMap;
+
 public interface MultiversionNavigableMapSnapshot<K, V> extends MultiversionNavigableMap<K, V>, AutoCloseable {	
 	@Override
 	void close();
 	
 	void update();
+
+	/**
+	 * Writes the content of the snapshot, in key order, to a sorted block-based
+	 * file with the snapshot version in its header. Writers are not blocked.
+	 * The file can be loaded with {@link pl.edu.put.concurrent.jiffy.Jiffy#load} or
+	 * read in place through {@link pl.edu.put.concurrent.jiffy.MappedSortedMap}.
+	 */
+	void checkpoint(Path path, Codec<K, V> codec) throws IOException;
+
+	/**
+	 * Copies the content of the snapshot, in parallel, into an immutable map
+	 * backed by sorted arrays, for read-only phases in which reads should not
+	 * pay for version lookups in the revisions of the nodes. The frozen map does
+	 * not depend on the snapshot, which can be closed afterwards.
+	 */
+	ImmutableSortedMap<K, V> freeze();
 	
 	class SnapshotClosedException extends RuntimeException {
 		private static final long serialVersionUID = -3250162343190016750L;
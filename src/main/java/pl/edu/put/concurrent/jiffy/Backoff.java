@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Exponential backoff for retry loops of updates whose revisions failed to be
+ * installed, so that threads contending for a node do not all recompute their
+ * multivals at once. The wait is random, up to twice as long after every
+ * failure. After MAX_SPIN_SHIFT failures, the thread gives up its processor
+ * instead of spinning.
+ */
+final class Backoff {
+	static final int MAX_SPIN_SHIFT = 10;
+	// How long a thread parks instead of yielding
+	static final long PARK_NANOS = 1000;
+
+	private Backoff() {
+	}
+
+	/**
+	 * Waits before the retry that follows the given number of consecutive
+	 * failures. If park is set, the thread parks instead of yielding, as for
+	 * maps created for virtual threads.
+	 */
+	static void pause(int failures, boolean park) {
+		int bound = spinBound(failures);
+		if (bound == 0)
+			return;
+		if (bound < 0) {
+			if (park)
+				LockSupport.parkNanos(PARK_NANOS);
+			else
+				Thread.yield();
+			return;
+		}
+		int spins = ThreadLocalRandom.current().nextInt(bound);
+		for (int i = 0; i < spins; i++)
+			Thread.onSpinWait();
+	}
+
+	/**
+	 * Returns the exclusive bound on the random number of spins before the
+	 * retry that follows the given number of consecutive failures: 0 to retry
+	 * at once, or -1 to give up the processor instead.
+	 */
+	static int spinBound(int failures) {
+		if (failures <= 1)
+			return 0;
+		if (failures > MAX_SPIN_SHIFT)
+			return -1;
+		return 1 << failures;
+	}
+}
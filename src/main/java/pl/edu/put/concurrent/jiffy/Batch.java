@@ -35,16 +35,34 @@
 package pl.edu.put.concurrent.jiffy;
 
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 public class Batch<K, V> {
 	private Map<K, V> map = new LinkedHashMap<>();
 	private HashMap<K, V> substitutedValuesMap = new HashMap<>();
+	// the deadlines of the substituted values put with a time to live, kept
+	// for the operands merged into them
+	private HashMap<K, Long> substitutedDeadlines = null;
+	// the operands merged into keys by merge, apart from the map, so that
+	// getMap() only holds the values put and the removals
+	private Map<K, MergeOperands> merges = new LinkedHashMap<>();
+	// the keys a transaction writes back unchanged to validate its reads,
+	// which are installed but not reported as updated, null if none
+	private Set<K> unreported;
+	// the content of a revision the expected values of a conditional batch
+	// were all read from, null if none
+	private MultiVal<K, V> source;
 	
 	private K[] keys;
 	private V[] values;
+	// the order of the keys, null for the natural one
+	private Comparator<? super K> comparator;
 
 	public Batch() {
 	}
@@ -58,15 +76,103 @@ public class Batch<K, V> {
 	}
 	
 	public V put(K key, V value) {
+		merges.remove(key);
 		return map.put(key, value);
 	}
 	
 	public V remove(K key) {
+		merges.remove(key);
 		return map.put(key, null);
 	}
 
+	/**
+	 * Merges the operand into the value of the key by the
+	 * {@link MergeOperator} of the map, after the puts, removes and merges of
+	 * the key preceding it in this batch. The operands are not part of
+	 * {@link #getMap()}.
+	 */
+	public void merge(K key, V operand) {
+		Objects.requireNonNull(operand);
+		MergeOperands merged;
+		if (merges.containsKey(key))
+			merged = MergeOperands.merge(merges.get(key), operand);
+		else if (map.containsKey(key))
+			merged = MergeOperands.merge(map.get(key), operand);
+		else
+			merged = MergeOperands.pending(operand);
+		merges.put(key, merged);
+	}
+
+	boolean hasMergeOperands() {
+		return !merges.isEmpty();
+	}
+
 	public void put(Map<K, V> map) {
 		this.map.putAll(map);
+		if (!merges.isEmpty())
+			merges.keySet().removeAll(map.keySet());
+	}
+
+	/**
+	 * Returns the keys put, removed or merged into by the batch.
+	 */
+	Set<K> keys() {
+		if (merges.isEmpty())
+			return map.keySet();
+		Set<K> ret = new LinkedHashSet<>(map.keySet());
+		ret.addAll(merges.keySet());
+		return ret;
+	}
+
+	/**
+	 * Returns what the batch stores for the key: the value put, null for a
+	 * removal, or the merged operands.
+	 */
+	@SuppressWarnings("unchecked")
+	V stored(K key) {
+		MergeOperands merged = merges.get(key);
+		return merged != null ? (V) merged : map.get(key);
+	}
+
+	/**
+	 * Copies the update of the key, with the operands merged into it, to the
+	 * other batch.
+	 */
+	void copyTo(K key, Batch<K, V> other) {
+		if (map.containsKey(key))
+			other.map.put(key, map.get(key));
+		MergeOperands merged = merges.get(key);
+		if (merged != null)
+			other.merges.put(key, merged);
+	}
+
+	/**
+	 * Marks the keys as written back only to validate a transaction, so that
+	 * listeners of the map are not notified of them. The set must tell the
+	 * keys apart by the comparator of the map.
+	 */
+	void setUnreported(Set<K> keys) {
+		unreported = keys.isEmpty() ? null : keys;
+	}
+
+	boolean hasUnreportedKeys() {
+		return unreported != null;
+	}
+
+	boolean isReported(K key) {
+		return unreported == null || !unreported.contains(key);
+	}
+
+	/**
+	 * Marks the values of an expected batch as read from the given revision
+	 * content, which validates them as long as it is the newest one.
+	 */
+	void setSource(MultiVal<K, V> mval) {
+		source = mval;
+	}
+
+	boolean isSource(MultiVal<K, V> mval) {
+		return source != null && source == mval;
 	}
 
 	public void setSubstitutedValue(K key, V value) {
@@ -77,17 +183,28 @@ public class Batch<K, V> {
 		return substitutedValuesMap;
 	}
 
+	void setSubstitutedDeadline(K key, long deadline) {
+		if (substitutedDeadlines == null)
+			substitutedDeadlines = new HashMap<>();
+		substitutedDeadlines.put(key, deadline);
+	}
+
+	Map<K, Long> getSubstitutedDeadlines() {
+		return substitutedDeadlines != null ? substitutedDeadlines : Map.of();
+	}
+
 	public String toString() {
 //		return "Batch: " + map.toString() + " " + Arrays.toString(keys) + " " + Arrays.toString(values);
-		return String.format("[Batch: %s, keys: %s, values: %s]", map, Arrays.toString(keys), Arrays.toString(values));
+		return String.format("[Batch: %s, merges: %s, keys: %s, values: %s]", map, merges, Arrays.toString(keys),
+				Arrays.toString(values));
 	}
 
 	public int mapSize() {
-		return map.size();
+		return merges.isEmpty() ? map.size() : keys().size();
 	}
 
 	public Map.Entry<K, V> mapOnlyEntry() {
-		assert map.size() == 1;
+		assert map.size() == 1 && merges.isEmpty();
 		return map.entrySet().iterator().next();
 	}
 
@@ -102,7 +219,7 @@ public class Batch<K, V> {
 	}
 
 	public K lowerKey(K key) {
-		int index = Arrays.binarySearch(keys, key);
+		int index = Arrays.binarySearch(keys, key, comparator);
 
 		int insPoint = index >= 0 ? index : -index - 1;
 		if (insPoint > 0)
@@ -119,19 +236,47 @@ public class Batch<K, V> {
 //		return -1;
 //	}
 
-	@SuppressWarnings("unchecked")
 	public void prepare() {
-		keys = (K[]) map.keySet().toArray();
-		Arrays.sort(keys);
-		values = (V[]) (new Object[keys.length]);
-		for (int i = 0; i < keys.length; i++) {
-			K k = keys[i];
-			values[i] = map.get(k);
+		prepare(null);
+	}
+
+	/**
+	 * Sorts the keys of the batch in the order of the given comparator, which
+	 * must be the one of the map the batch is put into, or null for the
+	 * natural order. Keys the comparator finds equal, but the map of the batch
+	 * does not (e.g., byte arrays of the same content), are applied once, with
+	 * the value put last, and the operands merged into any of them on top.
+	 */
+	@SuppressWarnings("unchecked")
+	public void prepare(Comparator<? super K> comparator) {
+		this.comparator = comparator;
+		K[] sorted = (K[]) keys().toArray();
+		// stable, so equal keys stay in the order they were put in, followed
+		// by the ones only merged into
+		Arrays.sort(sorted, comparator);
+		V[] stored = (V[]) (new Object[sorted.length]);
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			V value = stored(sorted[i]);
+			if (n > 0 && compare(sorted[n - 1], sorted[i]) == 0) {
+				if (value instanceof MergeOperands m)
+					value = (V) m.onto(stored[n - 1]);
+				n--;
+			}
+			sorted[n] = sorted[i];
+			stored[n++] = value;
 		}
+		keys = n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+		values = n == stored.length ? stored : Arrays.copyOf(stored, n);
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(K k1, K k2) {
+		return comparator != null ? comparator.compare(k1, k2) : ((Comparable<? super K>) k1).compareTo(k2);
 	}
 
 	public int getKeyIndex(K key) {
-		return Arrays.binarySearch(keys, key);
+		return Arrays.binarySearch(keys, key, comparator);
 	}
 
 	public K getKeyByIndex(int index) {
@@ -143,7 +288,7 @@ public class Batch<K, V> {
 	}
 
 	public int ceilingKeyIndex(K key) {
-		int index = Arrays.binarySearch(keys, key);
+		int index = Arrays.binarySearch(keys, key, comparator);
 		if (index >= 0)
 			return index;
 		return -index - 1;
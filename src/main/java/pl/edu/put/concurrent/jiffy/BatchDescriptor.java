@@ -39,19 +39,47 @@ import java.lang.invoke.VarHandle;
 class BatchDescriptor<K, V> {
 
 	Batch<K, V> batch;
+	final long optimisticVersion;
 	private long version = 0;
 	private boolean finished = false;
 
+	// set if the batch is a part of a multi-map batch, which holds the version
+	final MultiBatchDescriptor multi;
+	final int part;
+	// set for a validating part: the values the keys of the batch had at
+	// readVersion, which have to be current when the batch is installed
+	final Batch<K, V> expected;
+	final long readVersion;
+	// set for a part undoing an aborted validating part, installed only on top
+	// of the revisions of the multi-batch
+	final boolean undo;
+
 	protected BatchDescriptor(Batch<K, V> batch, long optimisticVersion) {
+		this(batch, optimisticVersion, null, -1, null, 0, false);
+	}
+
+	BatchDescriptor(Batch<K, V> batch, long optimisticVersion, MultiBatchDescriptor multi, int part,
+			Batch<K, V> expected, long readVersion, boolean undo) {
 		this.batch = batch;
+		this.optimisticVersion = optimisticVersion;
 		this.version = -optimisticVersion;
+		this.multi = multi;
+		this.part = part;
+		this.expected = expected;
+		this.readVersion = readVersion;
+		this.undo = undo;
 	}
 
 	protected long acquireVersion() {
+		if (multi != null)
+			return multi.acquireVersion();
 		return (long) VERSION.getOpaque(this);
 	}
 
 	protected long trySetVersion(long version) {
+		if (multi != null)
+			return multi.trySetVersion(version);
+
 		long oldVersion = acquireVersion();
 		if (oldVersion > 0)
 			return oldVersion;
@@ -71,7 +99,7 @@ class BatchDescriptor<K, V> {
 	}
 	
 	public String toString() {
-		return String.format("[Descriptor, ver: %d, finished: %s]", version, finished);
+		return String.format("[Descriptor, ver: %d, finished: %s]", acquireVersion(), finished);
 	}
 
 	// VarHandle mechanics
@@ -223,6 +223,10 @@ class BulkMultiVal<K, V> extends SingleMultiVal<K, V> {
 		return totalSize;
 	}
 
+	public long arrayBytes() {
+		return MemoryStats.arrayBytes(multiVals) + MemoryStats.arrayBytes(multiValsCumulSizes);
+	}
+
 	public boolean containsKey(K key) {
 		return indexOfKeyInMultiVal(key) >= 0;
 	}
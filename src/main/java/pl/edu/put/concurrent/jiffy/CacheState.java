@@ -0,0 +1,94 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The state of a {@link Jiffy} running as a bounded cache, see
+ * {@link Jiffy#setCacheCapacity}. The number of entries is tracked
+ * approximately, by the changes of contents of the revisions installed since
+ * the cache mode was turned on.
+ */
+final class CacheState<K> {
+	final long capacity;
+	final LongAdder entries = new LongAdder();
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+
+	// The key of the node the next eviction sample starts from, null for the
+	// first node. Only a hint, as for the expiry sweep.
+	K cursor = null;
+
+	@SuppressWarnings("unused")
+	private int evicting = 0;
+
+	CacheState(long capacity, long entries) {
+		this.capacity = capacity;
+		this.entries.add(entries);
+	}
+
+	boolean overCapacity() {
+		return entries.sum() > capacity;
+	}
+
+	/**
+	 * Makes the calling thread the only one evicting, returns false if
+	 * another thread already is.
+	 */
+	boolean startEvicting() {
+		return EVICTING.compareAndSet(this, 0, 1);
+	}
+
+	void stopEvicting() {
+		EVICTING.setRelease(this, 0);
+	}
+
+	// VarHandle mechanics
+	private static final VarHandle EVICTING;
+
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			EVICTING = l.findVarHandle(CacheState.class, "evicting", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
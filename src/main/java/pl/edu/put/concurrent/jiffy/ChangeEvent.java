@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An update committed to a {@link Jiffy} map, as published by
+ * {@link ChangePublisher}. A single-key update carries one change, a batch
+ * carries all of its keys. A {@code null} value denotes a removal.
+ */
+public final class ChangeEvent<K, V> {
+	private final long version;
+	private final Object[] keys;
+	private final Object[] values;
+	// breaks ties between events with equal versions, in the order of commit
+	long sequence;
+
+	ChangeEvent(long version, Object[] keys, Object[] values) {
+		this.version = version;
+		this.keys = keys;
+		this.values = values;
+	}
+
+	/**
+	 * Returns the version the update committed with.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	public K getKey(int index) {
+		return (K) keys[index];
+	}
+
+	/**
+	 * Returns the new value of the key, or {@code null} if it was removed.
+	 */
+	@SuppressWarnings("unchecked")
+	public V getValue(int index) {
+		return (V) values[index];
+	}
+
+	public boolean isRemoval(int index) {
+		return values[index] == null;
+	}
+
+	/**
+	 * Returns the changes in key order; removals have {@code null} values.
+	 */
+	public List<Map.Entry<K, V>> getChanges() {
+		List<Map.Entry<K, V>> ret = new ArrayList<>(keys.length);
+		for (int i = 0; i < keys.length; i++)
+			ret.add(new AbstractMap.SimpleImmutableEntry<>(getKey(i), getValue(i)));
+		return Collections.unmodifiableList(ret);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("ChangeEvent[version=").append(version).append(", changes={");
+		for (int i = 0; i < keys.length; i++) {
+			if (i > 0)
+				builder.append(", ");
+			builder.append(keys[i]).append('=').append(values[i] == null ? "<removed>" : values[i]);
+		}
+		return builder.append("}]").toString();
+	}
+}
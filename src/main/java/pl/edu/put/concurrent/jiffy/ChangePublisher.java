@@ -0,0 +1,442 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes every update committed to a {@link Jiffy} map as a
+ * {@link ChangeEvent}, in the order of commit versions. A batch is published as
+ * a single event. Updates performed before the publisher was created are not
+ * published, and neither are events committed while there are no subscribers.
+ *
+ * Updates register the clock value they started with in one of a fixed number
+ * of striped slots. Since the final version of an update is never lower than
+ * that value, events with versions below the lowest registered value (and
+ * below the clock) can no longer be preceded by other events, and are
+ * delivered by a dispatcher running on the given executor.
+ *
+ * Committed events wait for delivery in a bounded, lock-free ring. At most
+ * {@code capacity} updates can be either in progress or waiting for delivery,
+ * so writers stall when subscribers do not keep up. All subscribers are
+ * served in lockstep: an event is delivered once every subscriber has
+ * requested it. A subscriber whose onNext throws is cancelled and receives
+ * the exception through onError.
+ *
+ * With a logical clock ({@link Jiffy#USE_TSC} unset) concurrent updates may
+ * commit with equal versions. Such events are delivered in the order in which
+ * they were handed to the publisher, which for updates of the same key
+ * performed by different threads need not match the order of their revisions.
+ */
+public class ChangePublisher<K, V> implements Flow.Publisher<ChangeEvent<K, V>>, AutoCloseable {
+	static final int DEFAULT_CAPACITY = Flow.defaultBufferSize();
+
+	// slots are padded to separate cache lines
+	private static final int SLOT_STRIDE = 8;
+	private static final long FREE = Long.MAX_VALUE;
+	// a slot taken by an update that has not read the clock yet, blocks all
+	// deliveries
+	private static final long CLAIMED = Long.MIN_VALUE;
+	// How long a waiting thread parks, for maps created for virtual threads
+	private static final long BACKOFF_PARK_NANOS = 1000;
+
+	private final Jiffy<K, V> map;
+	private final Executor executor;
+	private final int capacity;
+
+	private final long[] slots;
+	private final int slotMask;
+
+	private final Object[] ring;
+	private final int ringMask;
+	@SuppressWarnings("unused")
+	private long ringTail = 0;
+	// accessed only by the dispatcher
+	private long ringHead = 0;
+	private final PriorityQueue<ChangeEvent<K, V>> pending = new PriorityQueue<>(
+			Comparator.<ChangeEvent<K, V>>comparingLong(ChangeEvent::getVersion).thenComparingLong(e -> e.sequence));
+
+	/** updates in progress plus events not delivered yet */
+	@SuppressWarnings("unused")
+	private long used = 0;
+	@SuppressWarnings("unused")
+	private int wip = 0;
+
+	private final CopyOnWriteArrayList<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<>();
+	private volatile boolean closed = false;
+
+	public ChangePublisher(Jiffy<K, V> map) {
+		this(map, DEFAULT_CAPACITY, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param capacity the maximum number of updates in progress and events
+	 *                 waiting for delivery
+	 * @param executor runs the dispatcher, which calls the subscribers
+	 */
+	public ChangePublisher(Jiffy<K, V> map, int capacity, Executor executor) {
+		if (map == null || executor == null)
+			throw new NullPointerException();
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive.");
+
+		this.map = map;
+		this.executor = executor;
+		this.capacity = capacity;
+
+		int slotCount = powerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+		this.slots = new long[slotCount * SLOT_STRIDE];
+		Arrays.fill(slots, FREE);
+		this.slotMask = slotCount - 1;
+
+		int ringSize = powerOfTwo(capacity + slotCount);
+		this.ring = new Object[ringSize];
+		this.ringMask = ringSize - 1;
+
+		map.attachChangePublisher(this);
+	}
+
+	private static int powerOfTwo(int n) {
+		return Integer.highestOneBit(Math.max(n - 1, 1)) << 1;
+	}
+
+	private void backoff(int spins) {
+		if (spins % 16 != 0)
+			Thread.onSpinWait();
+		else if (map.virtualThreads)
+			LockSupport.parkNanos(BACKOFF_PARK_NANOS);
+		else
+			Thread.yield();
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ChangeEvent<K, V>> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException();
+
+		ChangeSubscription subscription = new ChangeSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		subscriptions.add(subscription);
+		signal();
+	}
+
+	/**
+	 * Stops publishing. Events not delivered yet are dropped and the
+	 * subscribers are completed.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		map.detachChangePublisher(this);
+		signal();
+	}
+
+	/* ---------------- Writer side -------------- */
+
+	/**
+	 * Registers an update that is about to obtain its version. Blocks while
+	 * the publisher is at capacity.
+	 *
+	 * @return the slot to be passed to {@link #exit}
+	 */
+	int enter() {
+		for (int spins = 1;; spins++) {
+			if (closed)
+				return -1;
+			long u = (long) USED.getVolatile(this);
+			if (u < capacity && USED.compareAndSet(this, u, u + 1))
+				break;
+			backoff(spins);
+		}
+
+		int start = (int) Thread.currentThread().getId();
+		for (int spins = 1;; spins++) {
+			for (int i = 0; i <= slotMask; i++) {
+				int slot = ((start + i) & slotMask) * SLOT_STRIDE;
+				if ((long) SLOTS.getVolatile(slots, slot) != FREE
+						|| !SLOTS.compareAndSet(slots, slot, FREE, CLAIMED))
+					continue;
+				// the clock is read only once the slot is taken, so a
+				// dispatcher that misses the slot reads the clock before this
+				// update does, and the final version will not be lower than
+				// the value stored
+				SLOTS.setVolatile(slots, slot, map.getCurrentVersion());
+				return slot;
+			}
+			backoff(spins);
+		}
+	}
+
+	void exit(int slot) {
+		if (slot < 0)
+			return;
+		SLOTS.setVolatile(slots, slot, FREE);
+		USED.getAndAdd(this, -1L);
+		signal();
+	}
+
+	void committed(long version, K key, V value) {
+		offer(new ChangeEvent<>(version, new Object[] { key }, new Object[] { value }));
+	}
+
+	void committed(long version, Batch<K, V> batch) {
+		int size = batch.size();
+		Object[] keys = new Object[size];
+		Object[] values = new Object[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = batch.getKeyByIndex(i);
+			values[i] = batch.getValueByIndex(i);
+		}
+		offer(new ChangeEvent<>(version, keys, values));
+	}
+
+	// Called between enter() and exit(), so the ring always has room: there
+	// are at most capacity events plus one per slot.
+	private void offer(ChangeEvent<K, V> event) {
+		if (closed)
+			return;
+		USED.getAndAdd(this, 1L);
+		long sequence = (long) RING_TAIL.getAndAdd(this, 1L);
+		event.sequence = sequence;
+		int index = (int) (sequence & ringMask);
+		for (int spins = 1; RING.getVolatile(ring, index) != null; spins++)
+			backoff(spins);
+		RING.setRelease(ring, index, event);
+	}
+
+	/* ---------------- Dispatcher -------------- */
+
+	private void signal() {
+		if ((int) WIP.getAndAdd(this, 1) == 0) {
+			try {
+				executor.execute(this::drain);
+			} catch (RejectedExecutionException e) {
+				WIP.setVolatile(this, 0);
+			}
+		}
+	}
+
+	private void drain() {
+		int missed = 1;
+		while (true) {
+			dispatch();
+			missed = (int) WIP.getAndAdd(this, -missed) - missed;
+			if (missed == 0)
+				return;
+		}
+	}
+
+	private long minInProgress() {
+		long ret = FREE;
+		for (int slot = 0; slot < slots.length; slot += SLOT_STRIDE)
+			ret = Math.min(ret, (long) SLOTS.getVolatile(slots, slot));
+		return ret;
+	}
+
+	/**
+	 * Moves the events from the ring to the pending queue, waiting for the ones
+	 * with sequence numbers below the given one to be put into the ring.
+	 */
+	@SuppressWarnings("unchecked")
+	private void pollRing(long until) {
+		for (int spins = 1;; spins++) {
+			int index = (int) (ringHead & ringMask);
+			Object event = RING.getAcquire(ring, index);
+			if (event == null) {
+				if (ringHead >= until)
+					return;
+				backoff(spins);
+				continue;
+			}
+			RING.setRelease(ring, index, null);
+			ringHead++;
+			pending.add((ChangeEvent<K, V>) event);
+		}
+	}
+
+	private void dropPending() {
+		pollRing(0);
+		USED.getAndAdd(this, (long) -pending.size());
+		pending.clear();
+	}
+
+	private void dispatch() {
+		if (closed) {
+			dropPending();
+			for (ChangeSubscription subscription : subscriptions)
+				subscription.complete();
+			subscriptions.clear();
+			return;
+		}
+
+		subscriptions.removeIf(ChangeSubscription::isCancelled);
+
+		boolean boundByClock = false;
+		while (true) {
+			// the order matters: an update that is not seen in its slot either
+			// obtains a version not lower than the clock read before, or has
+			// already put its event into the ring, under a sequence number below
+			// the tail read after the slots; such events may follow an event of
+			// an update still in progress, so they are waited for
+			long clock = boundByClock ? map.advanceVersionBound() : map.getCurrentVersion();
+			long inProgress = minInProgress();
+			long tail = (long) RING_TAIL.getVolatile(this);
+			if (subscriptions.isEmpty()) {
+				dropPending();
+				return;
+			}
+			pollRing(tail);
+
+			long watermark = Math.min(clock, inProgress);
+			long demand = Long.MAX_VALUE;
+			for (ChangeSubscription subscription : subscriptions)
+				demand = Math.min(demand, subscription.demand());
+
+			ChangeEvent<K, V> event;
+			while (demand > 0 && (event = pending.peek()) != null && event.getVersion() < watermark) {
+				pending.poll();
+				for (ChangeSubscription subscription : subscriptions)
+					subscription.deliver(event);
+				USED.getAndAdd(this, -1L);
+				demand--;
+			}
+
+			// retry only if waiting for the clock, in-progress updates signal
+			// on exit and subscribers signal on request
+			event = pending.peek();
+			if (event == null || demand == 0 || event.getVersion() >= inProgress)
+				return;
+			boundByClock = true;
+		}
+	}
+
+	final class ChangeSubscription implements Flow.Subscription {
+		final Flow.Subscriber<? super ChangeEvent<K, V>> subscriber;
+
+		@SuppressWarnings("unused")
+		private long demand = 0;
+		private volatile boolean cancelled = false;
+
+		ChangeSubscription(Flow.Subscriber<? super ChangeEvent<K, V>> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				cancel();
+				subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+				return;
+			}
+			while (true) {
+				long d = (long) DEMAND.getVolatile(this);
+				long updated = d + n < 0 ? Long.MAX_VALUE : d + n;
+				if (DEMAND.compareAndSet(this, d, updated))
+					break;
+			}
+			signal();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			signal();
+		}
+
+		boolean isCancelled() {
+			return cancelled;
+		}
+
+		long demand() {
+			return cancelled ? Long.MAX_VALUE : (long) DEMAND.getVolatile(this);
+		}
+
+		void deliver(ChangeEvent<K, V> event) {
+			if (cancelled)
+				return;
+			DEMAND.getAndAdd(this, -1L);
+			try {
+				subscriber.onNext(event);
+			} catch (Throwable e) {
+				// the subscriber is dropped and told why, but cannot stop the
+				// delivery to the others
+				cancel();
+				try {
+					subscriber.onError(e);
+				} catch (Throwable ignored) {
+				}
+			}
+		}
+
+		void complete() {
+			if (cancelled)
+				return;
+			cancelled = true;
+			subscriber.onComplete();
+		}
+	}
+
+	// VarHandle mechanics
+	private static final VarHandle USED;
+	private static final VarHandle WIP;
+	private static final VarHandle RING_TAIL;
+	private static final VarHandle DEMAND;
+	private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle RING = MethodHandles.arrayElementVarHandle(Object[].class);
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			USED = l.findVarHandle(ChangePublisher.class, "used", long.class);
+			WIP = l.findVarHandle(ChangePublisher.class, "wip", int.class);
+			RING_TAIL = l.findVarHandle(ChangePublisher.class, "ringTail", long.class);
+			DEMAND = l.findVarHandle(ChangePublisher.ChangeSubscription.class, "demand", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+import pl.edu.put.concurrent.MultiversionNavigableMapException;
+import pl.edu.put.concurrent.MultiversionNavigableMapSnapshot;
+
+/**
+ * A sorted, block-based file holding the content of a snapshot, written by
+ * {@link MultiversionNavigableMapSnapshot#checkpoint} and read by
+ * {@link Jiffy#load} and {@link MappedSortedMap}.
+ *
+ * File format (all numbers big-endian):
+ * <ul>
+ * <li>header of {@value #HEADER_SIZE} bytes: {@code int magic, int format,
+ * long snapshotVersion, long entryCount, int blockCount, int reserved,
+ * long indexOffset}, zero-padded,
+ * <li>data blocks: {@code int count, int[count] offsets} of entries relative
+ * to the beginning of the block and {@code count} entries
+ * {@code int keyLength, key, int valueLength, value}, where a value length
+ * of {@value #EXPIRING} denotes an entry with a time to live and is followed
+ * by {@code long deadline} in nanoseconds since the epoch and the value
+ * length and value (since format 2),
+ * <li>sparse index at {@code indexOffset}: {@code blockCount} entries of
+ * {@value #INDEX_ENTRY_SIZE} bytes: {@code long blockOffset, int blockLength,
+ * int blockCrc32, long firstEntryOrdinal, long firstKeyOffset,
+ * int firstKeyLength}, where the first key offset points into the first entry
+ * of the block.
+ * </ul>
+ */
+public final class Checkpoint {
+	static final int MAGIC = 0x4A46434B; // "JFCK"
+	static final int FORMAT = 2;
+	static final int EXPIRING = -2;
+	static final int HEADER_SIZE = 64;
+	static final int INDEX_ENTRY_SIZE = 36;
+	static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+
+	private Checkpoint() {
+	}
+
+	/**
+	 * Streams the snapshot in key order into the file. The file is first
+	 * written under a temporary name and then atomically moved into place, so
+	 * an existing checkpoint is never left half-overwritten.
+	 */
+	public static <K, V> void write(MultiversionNavigableMapSnapshot<K, V> snapshot, Path path, Codec<K, V> codec)
+			throws IOException {
+		write(snapshot, path, codec, DEFAULT_BLOCK_SIZE);
+	}
+
+	public static <K, V> void write(MultiversionNavigableMapSnapshot<K, V> snapshot, Path path, Codec<K, V> codec,
+			int blockSize) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			BlockWriter<K, V> writer = new BlockWriter<>(channel, codec, blockSize);
+			if (snapshot instanceof Jiffy.SubMap<K, V> jiffySnapshot)
+				jiffySnapshot.forEachPersisted(writer::add);
+			else
+				snapshot.forEach(writer::add);
+			writer.finish(snapshot.getSnapshotVersion());
+			channel.force(true);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Returns the version of the snapshot stored in the checkpoint.
+	 */
+	public static long readSnapshotVersion(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return Header.read(channel).snapshotVersion;
+		}
+	}
+
+	private static final class BlockWriter<K, V> {
+		final FileChannel channel;
+		final OutputStream out;
+		final Codec<K, V> codec;
+		final int blockSize;
+
+		final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		final DataOutputStream entriesOut = new DataOutputStream(entries);
+		int[] offsets = new int[64];
+		int count = 0;
+
+		long position = HEADER_SIZE;
+		long entryCount = 0;
+		final ByteArrayOutputStream index = new ByteArrayOutputStream();
+		final DataOutputStream indexOut = new DataOutputStream(index);
+		int blockCount = 0;
+
+		BlockWriter(FileChannel channel, Codec<K, V> codec, int blockSize) throws IOException {
+			this.channel = channel;
+			this.codec = codec;
+			this.blockSize = blockSize;
+			channel.position(HEADER_SIZE);
+			this.out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+		}
+
+		void add(K key, V value) {
+			try {
+				if (count == offsets.length) {
+					int[] larger = new int[2 * offsets.length];
+					System.arraycopy(offsets, 0, larger, 0, count);
+					offsets = larger;
+				}
+				offsets[count++] = entries.size();
+
+				byte[] keyBytes = codec.encodeKey(key);
+				entriesOut.writeInt(keyBytes.length);
+				entriesOut.write(keyBytes);
+				if ((Object) value instanceof ExpiringValue e) {
+					entriesOut.writeInt(EXPIRING);
+					entriesOut.writeLong(e.deadline);
+					value = ExpiringValue.unwrap(e);
+				}
+				byte[] valueBytes = codec.encodeValue(value);
+				entriesOut.writeInt(valueBytes.length);
+				entriesOut.write(valueBytes);
+
+				if (entries.size() >= blockSize)
+					flushBlock();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		void flushBlock() throws IOException {
+			if (count == 0)
+				return;
+
+			int tableSize = 4 + 4 * count;
+			ByteBuffer table = ByteBuffer.allocate(tableSize);
+			table.putInt(count);
+			for (int i = 0; i < count; i++)
+				table.putInt(tableSize + offsets[i]);
+
+			byte[] entryBytes = entries.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(table.array());
+			crc.update(entryBytes);
+
+			int firstKeyLength = ByteBuffer.wrap(entryBytes, 0, 4).getInt();
+
+			indexOut.writeLong(position);
+			indexOut.writeInt(tableSize + entryBytes.length);
+			indexOut.writeInt((int) crc.getValue());
+			indexOut.writeLong(entryCount);
+			indexOut.writeLong(position + tableSize + 4);
+			indexOut.writeInt(firstKeyLength);
+
+			out.write(table.array());
+			out.write(entryBytes);
+
+			position += tableSize + entryBytes.length;
+			entryCount += count;
+			blockCount++;
+			count = 0;
+			entries.reset();
+		}
+
+		void finish(long snapshotVersion) throws IOException {
+			flushBlock();
+
+			long indexOffset = position;
+			out.write(index.toByteArray());
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(FORMAT);
+			header.putLong(snapshotVersion);
+			header.putLong(entryCount);
+			header.putInt(blockCount);
+			header.putInt(0);
+			header.putLong(indexOffset);
+			header.clear();
+			while (header.hasRemaining())
+				channel.write(header, header.position());
+		}
+	}
+
+	static final class Header {
+		final long snapshotVersion;
+		final long entryCount;
+		final int blockCount;
+		final long indexOffset;
+
+		private Header(long snapshotVersion, long entryCount, int blockCount, long indexOffset) {
+			this.snapshotVersion = snapshotVersion;
+			this.entryCount = entryCount;
+			this.blockCount = blockCount;
+			this.indexOffset = indexOffset;
+		}
+
+		static Header read(ByteBuffer buffer, long fileSize) {
+			if (fileSize < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+				throw new MultiversionNavigableMapException("Not a checkpoint file.");
+			if (buffer.getInt(4) < 1 || buffer.getInt(4) > FORMAT)
+				throw new MultiversionNavigableMapException("Unsupported checkpoint format: " + buffer.getInt(4));
+
+			Header header = new Header(buffer.getLong(8), buffer.getLong(16), buffer.getInt(24), buffer.getLong(32));
+			if (header.indexOffset < HEADER_SIZE
+					|| header.indexOffset + (long) header.blockCount * INDEX_ENTRY_SIZE > fileSize)
+				throw new MultiversionNavigableMapException("Corrupted checkpoint header.");
+			return header;
+		}
+
+		static Header read(FileChannel channel) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+			while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0)
+				;
+			return read(buffer, channel.size());
+		}
+	}
+
+	static <K, V> List<Map.Entry<K, V>> readBlock(ByteBuffer block, Codec<K, V> codec) {
+		int count = block.getInt(0);
+		List<Map.Entry<K, V>> ret = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int offset = block.getInt(4 + 4 * i);
+			int keyLength = block.getInt(offset);
+			K key = codec.decodeKey(block.slice(offset + 4, keyLength));
+			ret.add(new AbstractMap.SimpleImmutableEntry<>(key, readValue(block, offset + 4 + keyLength, codec)));
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads the value at the position, with its deadline if it has one.
+	 */
+	@SuppressWarnings("unchecked")
+	static <K, V> V readValue(ByteBuffer block, int position, Codec<K, V> codec) {
+		int valueLength = block.getInt(position);
+		if (valueLength != EXPIRING)
+			return codec.decodeValue(block.slice(position + 4, valueLength));
+		long deadline = block.getLong(position + 4);
+		valueLength = block.getInt(position + 12);
+		V value = codec.decodeValue(block.slice(position + 16, valueLength));
+		return (V) new ExpiringValue(value, deadline);
+	}
+
+	/**
+	 * Reads all entries of the checkpoint sequentially, verifying the checksum
+	 * of every block.
+	 */
+	static final class EntryReader<K, V> implements Iterator<Map.Entry<K, V>>, AutoCloseable {
+		final FileChannel channel;
+		final Codec<K, V> codec;
+		final Header header;
+		final ByteBuffer index;
+
+		int nextBlock = 0;
+		Iterator<Map.Entry<K, V>> current = null;
+
+		EntryReader(Path path, Codec<K, V> codec) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				this.codec = codec;
+				this.header = Header.read(channel);
+				this.index = ByteBuffer.allocate(header.blockCount * INDEX_ENTRY_SIZE);
+				readFully(index, header.indexOffset);
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		private void readFully(ByteBuffer buffer, long position) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new MultiversionNavigableMapException("Truncated checkpoint file.");
+			}
+			buffer.flip();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (current == null || !current.hasNext()) {
+				if (nextBlock == header.blockCount)
+					return false;
+
+				int entry = nextBlock * INDEX_ENTRY_SIZE;
+				long blockOffset = index.getLong(entry);
+				int blockLength = index.getInt(entry + 8);
+				int blockCrc = index.getInt(entry + 12);
+
+				ByteBuffer block = ByteBuffer.allocate(blockLength);
+				try {
+					readFully(block, blockOffset);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+
+				CRC32 crc = new CRC32();
+				crc.update(block.array());
+				if ((int) crc.getValue() != blockCrc)
+					throw new MultiversionNavigableMapException("Corrupted checkpoint block " + nextBlock + ".");
+
+				current = readBlock(block, codec).iterator();
+				nextBlock++;
+			}
+			return true;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return current.next();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+/**
+ * Translates keys and values to and from bytes for the on-disk formats used by
+ * {@link WriteAheadLog} and checkpoints, and for the nodes a {@link Jiffy}
+ * moves off the heap.
+ *
+ * Decoding methods receive a buffer positioned at the first byte of the
+ * encoded object, with its limit set right after the last one.
+ */
+public interface Codec<K, V> {
+	byte[] encodeKey(K key);
+
+	K decodeKey(ByteBuffer buffer);
+
+	byte[] encodeValue(V value);
+
+	V decodeValue(ByteBuffer buffer);
+
+	static <K, V> Codec<K, V> of(Function<? super K, byte[]> keyEncoder, Function<ByteBuffer, ? extends K> keyDecoder,
+			Function<? super V, byte[]> valueEncoder, Function<ByteBuffer, ? extends V> valueDecoder) {
+		return new Codec<>() {
+			@Override
+			public byte[] encodeKey(K key) {
+				return keyEncoder.apply(key);
+			}
+
+			@Override
+			public K decodeKey(ByteBuffer buffer) {
+				return keyDecoder.apply(buffer);
+			}
+
+			@Override
+			public byte[] encodeValue(V value) {
+				return valueEncoder.apply(value);
+			}
+
+			@Override
+			public V decodeValue(ByteBuffer buffer) {
+				return valueDecoder.apply(buffer);
+			}
+		};
+	}
+
+	/**
+	 * Returns a codec of byte array keys and values, which stores them as they
+	 * are. Encoding does not copy the arrays, so they must not be modified
+	 * once put in a map.
+	 */
+	static Codec<byte[], byte[]> byteArrays() {
+		return of(k -> k, Codec::remaining, v -> v, Codec::remaining);
+	}
+
+	private static byte[] remaining(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
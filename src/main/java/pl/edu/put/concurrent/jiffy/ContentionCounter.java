@@ -0,0 +1,117 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Counts the failed revision installs of a node in an array allocated on the
+ * first one and padded to separate cache lines, so that counting does not
+ * write to the cache line holding the revision head the contending threads
+ * are installing on. The count is halved for every half-life since it
+ * started, so only nodes contended at the moment have high counts. Counts are
+ * only hints, and are updated racily.
+ */
+final class ContentionCounter {
+	// the count and the time (System.nanoTime()) counting started, in the
+	// middle of an array of two cache lines
+	private static final int LENGTH = 16;
+	private static final int COUNT = 7;
+	private static final int SINCE = 8;
+
+	private ContentionCounter() {
+	}
+
+	/**
+	 * Counts a failed revision install on the node.
+	 */
+	static void conflict(Node<?, ?> node) {
+		long[] counter = node.conflicts;
+		if (counter == null) {
+			set(node, 1, System.nanoTime());
+			return;
+		}
+		long count = (long) COUNTER.getOpaque(counter, COUNT);
+		if (count == 0)
+			COUNTER.setOpaque(counter, SINCE, System.nanoTime());
+		COUNTER.setOpaque(counter, COUNT, count + 1);
+	}
+
+	/**
+	 * Returns the conflicts of the node, halved for every half-life since they
+	 * started to be counted. The decay is stored back.
+	 */
+	static int get(Node<?, ?> node, long halfLife, long now) {
+		long[] counter = node.conflicts;
+		if (counter == null)
+			return 0;
+		long count = (long) COUNTER.getOpaque(counter, COUNT);
+		if (count == 0)
+			return 0;
+		long since = (long) COUNTER.getOpaque(counter, SINCE);
+		long periods = (now - since) / halfLife;
+		if (periods > 0) {
+			count = periods >= Long.SIZE ? 0 : count >>> periods;
+			COUNTER.setOpaque(counter, COUNT, count);
+			COUNTER.setOpaque(counter, SINCE, since + periods * halfLife);
+		}
+		return (int) Math.min(count, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Sets the conflicts of the node, counted since the given time.
+	 */
+	static void set(Node<?, ?> node, int count, long since) {
+		long[] counter = node.conflicts;
+		if (counter == null) {
+			counter = new long[LENGTH];
+			counter[COUNT] = count;
+			counter[SINCE] = since;
+			node.conflicts = counter;
+			return;
+		}
+		COUNTER.setOpaque(counter, SINCE, since);
+		COUNTER.setOpaque(counter, COUNT, (long) count);
+	}
+
+	static void reset(Node<?, ?> node) {
+		long[] counter = node.conflicts;
+		if (counter != null)
+			COUNTER.setOpaque(counter, COUNT, 0L);
+	}
+
+	private static final VarHandle COUNTER = MethodHandles.arrayElementVarHandle(long[].class);
+}
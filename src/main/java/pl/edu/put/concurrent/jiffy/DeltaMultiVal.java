@@ -0,0 +1,530 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import pl.edu.put.concurrent.MultiversionNavigableMapException;
+import pl.edu.put.concurrent.jiffy.SingleMultiVal.MultiValIndices;
+
+/**
+ * A multival that records a few single-key changes on top of a shared base
+ * {@link SingleMultiVal} instead of copying the base on every write. The
+ * changes are kept in small arrays sorted by key, a {@code null} value
+ * marking a key removed from the base. Once more than {@code maxDeltas}
+ * changes accumulate, the multival is consolidated into a fresh
+ * {@link SingleMultiVal}.
+ *
+ * Indices exposed by this class are logical, i.e., they are the indices the
+ * keys would have in the consolidated multival, so they can be passed to all
+ * the code that uses indices of {@link SingleMultiVal}. Operations that work
+ * on the whole content of the multival (batch updates, splits, merges) are
+ * delegated to the consolidated multival, which is computed lazily and cached.
+ */
+class DeltaMultiVal<K, V> implements MultiVal<K, V> {
+	final SingleMultiVal<K, V> base;
+	final Comparator<? super K> comparator;
+	final int maxDeltas;
+
+	final Object[] deltaKeys;
+	final Object[] deltaValues;
+	// index of the delta key in base, or -(insertion point) - 1 if it is absent
+	final int[] deltaBaseIndices;
+	// shifts[j] - difference between the logical and the base index of keys
+	// preceding the j-th delta key; shifts[deltaKeys.length] is the final one
+	final int[] shifts;
+
+	private volatile SingleMultiVal<K, V> consolidated;
+
+	private DeltaMultiVal(SingleMultiVal<K, V> base, Comparator<? super K> comparator, int maxDeltas,
+			Object[] deltaKeys, Object[] deltaValues, int[] deltaBaseIndices) {
+		this.base = base;
+		this.comparator = comparator;
+		this.maxDeltas = maxDeltas;
+		this.deltaKeys = deltaKeys;
+		this.deltaValues = deltaValues;
+		this.deltaBaseIndices = deltaBaseIndices;
+
+		shifts = new int[deltaKeys.length + 1];
+		for (int j = 0; j < deltaKeys.length; j++) {
+			int shift = shifts[j];
+			if (deltaValues[j] != null && deltaBaseIndices[j] < 0)
+				shift++;
+			else if (deltaValues[j] == null && deltaBaseIndices[j] >= 0)
+				shift--;
+			shifts[j + 1] = shift;
+		}
+	}
+
+	/**
+	 * Returns a multival with the key put on top of the given base.
+	 *
+	 * @param index the index of the key in base, as returned by
+	 *              {@link SingleMultiVal#indexOfKeyInMultiVal(Object)}
+	 */
+	static <K, V> MultiVal<K, V> add(SingleMultiVal<K, V> base, Comparator<? super K> comparator, int maxDeltas,
+			K key, V value, int index) {
+		return new DeltaMultiVal<>(base, comparator, maxDeltas, new Object[] { key }, new Object[] { value },
+				new int[] { index });
+	}
+
+	/**
+	 * Returns a multival with the key removed from the given base.
+	 *
+	 * @param index the index of the key in base, must be non-negative
+	 */
+	static <K, V> MultiVal<K, V> remove(SingleMultiVal<K, V> base, Comparator<? super K> comparator, int maxDeltas,
+			K key, int index) {
+		if (index < 0)
+			return base;
+		return new DeltaMultiVal<>(base, comparator, maxDeltas, new Object[] { key }, new Object[] { null },
+				new int[] { index });
+	}
+
+	/**
+	 * Returns the content of the given multival as a {@link SingleMultiVal},
+	 * consolidating or decoding it if necessary.
+	 */
+	static <K, V> SingleMultiVal<K, V> asSingleMultiVal(MultiVal<K, V> mval) {
+		if (mval instanceof DeltaMultiVal<K, V> delta)
+			return delta.consolidate();
+		if (mval instanceof OffHeapMultiVal<K, V> offHeap)
+			return offHeap.decode();
+		return (SingleMultiVal<K, V>) mval;
+	}
+
+	SingleMultiVal<K, V> consolidate() {
+		SingleMultiVal<K, V> ret = consolidated;
+		if (ret != null)
+			return ret;
+
+		int size = size();
+		Object[] keys = new Object[size];
+		Object[] values = new Object[size];
+		Object[] baseKeys = base.keys;
+		Object[] baseValues = base.values;
+
+		int i = 0;
+		int lastIndex = 0;
+		for (int j = 0; j < deltaKeys.length; j++) {
+			int baseIndex = deltaBaseIndices[j];
+			int absIndex = baseIndex >= 0 ? baseIndex : -baseIndex - 1;
+			int elementsToCopy = absIndex - lastIndex;
+
+			if (elementsToCopy > 0) {
+				System.arraycopy(baseKeys, lastIndex, keys, i, elementsToCopy);
+				System.arraycopy(baseValues, lastIndex, values, i, elementsToCopy);
+				i += elementsToCopy;
+				lastIndex = absIndex;
+			}
+
+			if (deltaValues[j] != null) {
+				keys[i] = deltaKeys[j];
+				values[i] = deltaValues[j];
+				i++;
+			}
+
+			if (baseIndex >= 0)
+				lastIndex++;
+		}
+
+		if (lastIndex < baseKeys.length)
+			System.arraycopy(baseKeys, lastIndex, keys, i, baseKeys.length - lastIndex);
+		if (lastIndex < baseValues.length)
+			System.arraycopy(baseValues, lastIndex, values, i, baseValues.length - lastIndex);
+
+		ret = SingleMultiVal.fromSortedArrays(comparator, keys, values);
+		consolidated = ret;
+		return ret;
+	}
+
+	private int deltaIndexOf(K key) {
+		int low = 0;
+		int high = deltaKeys.length - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = SingleMultiVal.cpr(comparator, key, deltaKeys[mid]);
+			if (cmp > 0)
+				low = mid + 1;
+			else if (cmp < 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+
+		return -(low + 1);
+	}
+
+	private int logicalIndexOfDelta(int j) {
+		int baseIndex = deltaBaseIndices[j];
+		return (baseIndex >= 0 ? baseIndex : -baseIndex - 1) + shifts[j];
+	}
+
+	// index >= 0 - index in base
+	// index < 0 - -(index of the delta key) - 1
+	private int locate(int index) {
+		for (int j = 0; j < deltaKeys.length; j++) {
+			int logicalIndex = logicalIndexOfDelta(j);
+			if (index < logicalIndex)
+				return index - shifts[j];
+			if (index == logicalIndex && deltaValues[j] != null)
+				return -j - 1;
+		}
+		return index - shifts[deltaKeys.length];
+	}
+
+	@Override
+	public SingleMultiVal<K, V> clone() {
+		return consolidate().clone();
+	}
+
+	@Override
+	public K firstKey() {
+		if (size() == 0)
+			return null;
+		return getKeyByIndex(0);
+	}
+
+	@Override
+	public K lastKey() {
+		int size = size();
+		if (size == 0)
+			return null;
+		return getKeyByIndex(size - 1);
+	}
+
+	@Override
+	public V firstValue() {
+		if (size() == 0)
+			return null;
+		return getValueByIndex(0);
+	}
+
+	@Override
+	public V lastValue() {
+		int size = size();
+		if (size == 0)
+			return null;
+		return getValueByIndex(size - 1);
+	}
+
+	@Override
+	public int size() {
+		return base.size() + shifts[deltaKeys.length];
+	}
+
+	@Override
+	public long arrayBytes() {
+		SingleMultiVal<K, V> consolidated = this.consolidated;
+		return MemoryStats.arrayBytes(deltaKeys) + MemoryStats.arrayBytes(deltaValues)
+				+ MemoryStats.arrayBytes(deltaBaseIndices) + MemoryStats.arrayBytes(shifts)
+				+ (consolidated == null ? 0 : consolidated.arrayBytes());
+	}
+
+	@Override
+	public int indexOfKeyInMultiVal(K key) {
+		int j = deltaIndexOf(key);
+		if (j >= 0) {
+			int logicalIndex = logicalIndexOfDelta(j);
+			return deltaValues[j] != null ? logicalIndex : -logicalIndex - 1;
+		}
+
+		int shift = shifts[-j - 1];
+		int index = base.indexOfKeyInMultiVal(key);
+		if (index >= 0)
+			return index + shift;
+		return -((-index - 1) + shift) - 1;
+	}
+
+	@Override
+	public int indexOfKeyInMultiVal(K key, boolean fastPath) {
+		return indexOfKeyInMultiVal(key);
+	}
+
+	@Override
+	public int indexOfKeyInMultiVal(K key, int rel) {
+		int index = indexOfKeyInMultiVal(key);
+		int insPoint = 0;
+		if (index < 0)
+			insPoint = -index - 1;
+
+		switch (rel) {
+		case Jiffy.LT:
+			if (index >= 0)
+				return index == 0 ? -1 : index - 1;
+			return insPoint == 0 ? -1 : insPoint - 1;
+		case Jiffy.LT | Jiffy.EQ:
+			if (index >= 0)
+				return index;
+			return insPoint == 0 ? -1 : insPoint - 1;
+		case Jiffy.GT | Jiffy.EQ:
+			if (index >= 0)
+				return index;
+			return insPoint == size() ? -1 : insPoint;
+		case Jiffy.GT:
+			if (index >= 0)
+				return index == size() - 1 ? -1 : index + 1;
+			return insPoint == size() ? -1 : insPoint;
+		default:
+			throw new MultiversionNavigableMapException("Invalid argument.");
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(K key) {
+		int j = deltaIndexOf(key);
+		if (j >= 0)
+			return (V) deltaValues[j];
+		return base.get(key);
+	}
+
+	@Override
+	public Map.Entry<K, V> getByIndex(int index) {
+		if (index < 0 || index >= size())
+			return null;
+		return new AbstractMap.SimpleImmutableEntry<>(getKeyByIndex(index), getValueByIndex(index));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public K getKeyByIndex(Integer index) {
+		int pos = locate(index);
+		return (K) (pos >= 0 ? base.keys[pos] : deltaKeys[-pos - 1]);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V getValueByIndex(int index) {
+		int pos = locate(index);
+		return (V) (pos >= 0 ? base.values[pos] : deltaValues[-pos - 1]);
+	}
+
+	@Override
+	public MultiVal<K, V> add(K key, V value) {
+		return add(key, value, indexOfKeyInMultiVal(key));
+	}
+
+	@Override
+	public MultiVal<K, V> add(K key, V value, int index) {
+		int j = deltaIndexOf(key);
+		if (j >= 0)
+			return withDelta(j, true, key, value, deltaBaseIndices[j]);
+		return withDelta(-j - 1, false, key, value, base.indexOfKeyInMultiVal(key));
+	}
+
+	@Override
+	public MultiVal<K, V> remove(K key) {
+		return remove(key, indexOfKeyInMultiVal(key));
+	}
+
+	@Override
+	public MultiVal<K, V> remove(K key, int index) {
+		if (index < 0)
+			return this;
+
+		int j = deltaIndexOf(key);
+		if (j >= 0) {
+			if (deltaBaseIndices[j] >= 0)
+				return withDelta(j, true, key, null, deltaBaseIndices[j]);
+			return withoutDelta(j);
+		}
+		return withDelta(-j - 1, false, key, null, base.indexOfKeyInMultiVal(key));
+	}
+
+	private MultiVal<K, V> withDelta(int pos, boolean replace, K key, V value, int baseIndex) {
+		int length = deltaKeys.length + (replace ? 0 : 1);
+		Object[] newKeys = new Object[length];
+		Object[] newValues = new Object[length];
+		int[] newBaseIndices = new int[length];
+
+		int tail = replace ? pos + 1 : pos;
+		System.arraycopy(deltaKeys, 0, newKeys, 0, pos);
+		System.arraycopy(deltaValues, 0, newValues, 0, pos);
+		System.arraycopy(deltaBaseIndices, 0, newBaseIndices, 0, pos);
+		newKeys[pos] = key;
+		newValues[pos] = value;
+		newBaseIndices[pos] = baseIndex;
+		System.arraycopy(deltaKeys, tail, newKeys, pos + 1, deltaKeys.length - tail);
+		System.arraycopy(deltaValues, tail, newValues, pos + 1, deltaKeys.length - tail);
+		System.arraycopy(deltaBaseIndices, tail, newBaseIndices, pos + 1, deltaKeys.length - tail);
+
+		DeltaMultiVal<K, V> ret = new DeltaMultiVal<>(base, comparator, maxDeltas, newKeys, newValues, newBaseIndices);
+		if (length > maxDeltas)
+			return ret.consolidate();
+		return ret;
+	}
+
+	private MultiVal<K, V> withoutDelta(int pos) {
+		int length = deltaKeys.length - 1;
+		if (length == 0)
+			return base;
+
+		Object[] newKeys = new Object[length];
+		Object[] newValues = new Object[length];
+		int[] newBaseIndices = new int[length];
+
+		System.arraycopy(deltaKeys, 0, newKeys, 0, pos);
+		System.arraycopy(deltaValues, 0, newValues, 0, pos);
+		System.arraycopy(deltaBaseIndices, 0, newBaseIndices, 0, pos);
+		System.arraycopy(deltaKeys, pos + 1, newKeys, pos, length - pos);
+		System.arraycopy(deltaValues, pos + 1, newValues, pos, length - pos);
+		System.arraycopy(deltaBaseIndices, pos + 1, newBaseIndices, pos, length - pos);
+
+		return new DeltaMultiVal<>(base, comparator, maxDeltas, newKeys, newValues, newBaseIndices);
+	}
+
+	@Override
+	public boolean containsKey(K key) {
+		int j = deltaIndexOf(key);
+		if (j >= 0)
+			return deltaValues[j] != null;
+		return base.containsKey(key);
+	}
+
+	@Override
+	public Object[] getKeys() {
+		return consolidate().getKeys();
+	}
+
+	@Override
+	public Object[] getValues() {
+		return consolidate().getValues();
+	}
+
+	@Override
+	public boolean containsValue(V value) {
+		int size = size();
+		for (int i = 0; i < size; i++) {
+			if (value.equals(getValueByIndex(i)))
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public DoubleMultiVal<K, V> addAndSplit(K key, V value, int index) {
+		return consolidate().addAndSplit(key, value, index);
+	}
+
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return iterator(0);
+	}
+
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator(int index) {
+		return new AscendingKeyValueIterator(index);
+	}
+
+	@Override
+	public Iterator<Map.Entry<K, V>> descendingIterator() {
+		int size = size();
+		return new DescendingKeyValueIterator(size == 0 ? 0 : size - 1);
+	}
+
+	@Override
+	public Iterator<Map.Entry<K, V>> descendingIterator(int index) {
+		return new DescendingKeyValueIterator(index);
+	}
+
+	@Override
+	public MultiValIndices<K> indexOfKeysInMultiVal(Batch<K, V> batch, int indexOfFirstRelevantBatchKeyFromRight,
+			K nodeKey) {
+		return consolidate().indexOfKeysInMultiVal(batch, indexOfFirstRelevantBatchKeyFromRight, nodeKey);
+	}
+
+	@Override
+	public MultiVal<K, V> add(Batch<K, V> batch, MultiValIndices<K> indices) {
+		return consolidate().add(batch, indices);
+	}
+
+	@Override
+	public DoubleMultiVal<K, V> addAndSplit(Batch<K, V> batch, MultiValIndices<K> indices) {
+		return consolidate().addAndSplit(batch, indices);
+	}
+
+	@Override
+	public String toString() {
+		return consolidate().toString();
+	}
+
+	final class AscendingKeyValueIterator implements Iterator<Map.Entry<K, V>> {
+		int index;
+		final int size = size();
+
+		AscendingKeyValueIterator(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < size;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (index >= size)
+				throw new NoSuchElementException();
+			return getByIndex(index++);
+		}
+	}
+
+	final class DescendingKeyValueIterator implements Iterator<Map.Entry<K, V>> {
+		int index;
+		final int size = size();
+
+		DescendingKeyValueIterator(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < size && index >= 0;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (index >= size || index < 0)
+				throw new NoSuchElementException();
+			return getByIndex(index--);
+		}
+	}
+}
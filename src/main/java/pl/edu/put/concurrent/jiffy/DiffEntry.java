@@ -0,0 +1,94 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+/**
+ * A difference in the mapping of a single key between two snapshots, as
+ * returned by {@link Jiffy#diff}.
+ */
+public final class DiffEntry<K, V> {
+	public enum Type {
+		/** the key is present only in the target snapshot */
+		INSERT,
+		/** the key is mapped to different values */
+		UPDATE,
+		/** the key is present only in the source snapshot */
+		DELETE
+	}
+
+	private final Type type;
+	private final K key;
+	private final V oldValue;
+	private final V newValue;
+
+	DiffEntry(Type type, K key, V oldValue, V newValue) {
+		this.type = type;
+		this.key = key;
+		this.oldValue = oldValue;
+		this.newValue = newValue;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public K getKey() {
+		return key;
+	}
+
+	/**
+	 * Returns the value in the source snapshot, or {@code null} for an insert.
+	 */
+	public V getOldValue() {
+		return oldValue;
+	}
+
+	/**
+	 * Returns the value in the target snapshot, or {@code null} for a delete.
+	 */
+	public V getNewValue() {
+		return newValue;
+	}
+
+	@Override
+	public String toString() {
+		return switch (type) {
+			case INSERT -> "INSERT " + key + "=" + newValue;
+			case UPDATE -> "UPDATE " + key + "=" + oldValue + "->" + newValue;
+			case DELETE -> "DELETE " + key + "=" + oldValue;
+		};
+	}
+}
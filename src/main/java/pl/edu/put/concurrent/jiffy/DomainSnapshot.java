@@ -0,0 +1,79 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import pl.edu.put.concurrent.MultiversionNavigableMapSnapshot;
+
+/**
+ * Snapshots of all maps of a {@link VersionDomain} taken at the same version.
+ * Closing it closes the snapshots of all the maps.
+ */
+public class DomainSnapshot implements AutoCloseable {
+	private final Jiffy<?, ?>[] maps;
+	private final Jiffy.SubMap<?, ?>[] snapshots;
+	private final long version;
+
+	DomainSnapshot(Jiffy<?, ?>[] maps, Jiffy.SubMap<?, ?>[] snapshots, long version) {
+		this.maps = maps;
+		this.snapshots = snapshots;
+		this.version = version;
+	}
+
+	public long getSnapshotVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the snapshot of the given map.
+	 *
+	 * @throws IllegalArgumentException if the map did not belong to the domain
+	 *                                  when the snapshot was taken
+	 */
+	@SuppressWarnings("unchecked")
+	public <K, V> MultiversionNavigableMapSnapshot<K, V> get(Jiffy<K, V> map) {
+		for (int i = 0; i < maps.length; i++) {
+			if (maps[i] == map)
+				return (MultiversionNavigableMapSnapshot<K, V>) snapshots[i];
+		}
+		throw new IllegalArgumentException("The map is not a part of the snapshot.");
+	}
+
+	@Override
+	public void close() {
+		for (var snapshot : snapshots)
+			snapshot.close();
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.time.Instant;
+
+/**
+ * A value put with a time to live, stored in place of the value in the
+ * contents of revisions. The deadline is given in nanoseconds of the clock of
+ * the {@link VersionDomain}, which with {@link Jiffy#USE_TSC} is also the clock
+ * of versions. An entry is treated as absent by reads at or after its
+ * deadline.
+ * <p>
+ * Write-ahead logs and checkpoints outlive the clock, so the values passed to
+ * them carry deadlines converted to nanoseconds since the epoch.
+ */
+final class ExpiringValue {
+	final Object value;
+	final long deadline;
+
+	ExpiringValue(Object value, long deadline) {
+		this.value = value;
+		this.deadline = deadline;
+	}
+
+	static boolean isExpired(Object stored, long clock) {
+		return stored instanceof ExpiringValue e && e.deadline <= clock;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <V> V unwrap(Object stored) {
+		if (stored instanceof ExpiringValue e)
+			return (V) e.value;
+		return (V) stored;
+	}
+
+	/**
+	 * Converts the deadline to nanoseconds since the epoch, given the current
+	 * time of its clock.
+	 */
+	static long toEpochNanos(long deadline, long clock) {
+		return saturatedAdd(epochNanos(), deadline - clock);
+	}
+
+	/**
+	 * Converts the deadline from nanoseconds since the epoch to the clock,
+	 * given its current time.
+	 */
+	static long fromEpochNanos(long epochDeadline, long clock) {
+		return saturatedAdd(clock, epochDeadline - epochNanos());
+	}
+
+	private static long epochNanos() {
+		Instant now = Instant.now();
+		return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+	}
+
+	private static long saturatedAdd(long a, long b) {
+		long sum = a + b;
+		if (((a ^ sum) & (b ^ sum)) < 0)
+			return b > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		return value + " (until " + deadline + ")";
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The lowest level of the index flattened into arrays of keys, their prefixes
+ * (see {@link KeyNormalizer}) and entries, so that a descent can start with a
+ * binary search over contiguous memory instead of chasing index and node
+ * references level by level. It is built together with a balanced index by
+ * {@link Jiffy#rebuildIndex()} and not updated afterwards: nodes inserted
+ * later are found by moving right from the entry returned by
+ * {@link #lower}, and entries of terminated nodes are skipped by the caller.
+ * Splits and merges are counted instead, and once there are about as many as
+ * entries, the index is stale and the map rebuilds it.
+ */
+final class FlatIndex<K, V> {
+	final Object[] keys;
+	final long[] prefixes;
+	final Index<K, V>[] entries;
+
+	@SuppressWarnings("unused")
+	private int changes = 0;
+	@SuppressWarnings("unused")
+	private int rebuilding = 0;
+
+	@SuppressWarnings("unchecked")
+	FlatIndex(List<Index<K, V>> level) {
+		int size = level.size();
+		keys = new Object[size];
+		prefixes = new long[size];
+		entries = (Index<K, V>[]) new Index<?, ?>[size];
+		for (int i = 0; i < size; i++) {
+			Index<K, V> entry = level.get(i);
+			keys[i] = entry.key;
+			prefixes[i] = entry.keyPrefix;
+			entries[i] = entry;
+		}
+	}
+
+	/**
+	 * Returns the last entry with a key strictly less than the given key, or
+	 * null if there is none.
+	 */
+	Index<K, V> lower(Comparator<?> cmp, long keyPrefix, Object key) {
+		int low = 0;
+		int high = keys.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (Jiffy.cpr(cmp, keyPrefix, key, prefixes[mid], keys[mid]) > 0)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return low == 0 ? null : entries[low - 1];
+	}
+
+	int size() {
+		return keys.length;
+	}
+
+	/**
+	 * Counts a split or a merge of a node since the index was built.
+	 */
+	void countChange() {
+		CHANGES.getAndAdd(this, 1);
+	}
+
+	boolean isStale() {
+		return (int) CHANGES.getOpaque(this) >= Math.max(keys.length, Jiffy.MIN_CHECKED_LEVEL_SIZE);
+	}
+
+	/**
+	 * Makes the calling thread the only one rebuilding the stale index, returns
+	 * false if another thread already is.
+	 */
+	boolean startRebuilding() {
+		return REBUILDING.compareAndSet(this, 0, 1);
+	}
+
+	void stopRebuilding() {
+		REBUILDING.setRelease(this, 0);
+	}
+
+	// VarHandle mechanics
+	private static final VarHandle CHANGES;
+	private static final VarHandle REBUILDING;
+
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			CHANGES = l.findVarHandle(FlatIndex.class, "changes", int.class);
+			REBUILDING = l.findVarHandle(FlatIndex.class, "rebuilding", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.Comparator;
+
+/**
+ * Entries of a frozen snapshot (see
+ * {@link pl.edu.put.concurrent.MultiversionNavigableMapSnapshot#freeze()}) in
+ * contiguous sorted arrays. Keys are searched by {@code long} search keys when
+ * there are any: their prefixes if the map has a {@link KeyNormalizer}, or the
+ * keys themselves if they are all {@link Long}s or all {@link Integer}s in
+ * natural order. A sparse array of every {@code 1 << SAMPLE_SHIFT}-th search
+ * key narrows the search down to a block before the full array is touched.
+ */
+final class FrozenData<K, V> implements ImmutableSortedMap.Data<K, V> {
+	private static final int SAMPLE_SHIFT = 5;
+
+	// the comparator of the map, which may carry a normalizer
+	private final Comparator<? super K> comparator;
+	private final Object[] keys;
+	private final Object[] values;
+	// search keys, compared as unsigned, or null if there are none
+	private final long[] searchKeys;
+	private final long[] samples;
+	// the class of all keys if the search keys are the keys themselves, so that
+	// equal search keys mean equal keys; null otherwise
+	private final Class<?> exactClass;
+
+	FrozenData(Comparator<? super K> comparator, Object[] keys, Object[] values) {
+		this.comparator = comparator;
+		this.keys = keys;
+		this.values = values;
+		this.exactClass = exactClass(comparator, keys);
+
+		if (comparator instanceof NormalizedComparator || exactClass != null) {
+			searchKeys = new long[keys.length];
+			for (int i = 0; i < keys.length; i++)
+				searchKeys[i] = searchKey(keys[i]);
+			samples = new long[(keys.length + (1 << SAMPLE_SHIFT) - 1) >>> SAMPLE_SHIFT];
+			for (int i = 0; i < samples.length; i++)
+				samples[i] = searchKeys[i << SAMPLE_SHIFT];
+		} else {
+			searchKeys = null;
+			samples = null;
+		}
+	}
+
+	private static Class<?> exactClass(Comparator<?> comparator, Object[] keys) {
+		if (comparator != null || keys.length == 0)
+			return null;
+		Class<?> ret = keys[0].getClass();
+		if (ret != Long.class && ret != Integer.class)
+			return null;
+		for (Object key : keys)
+			if (key.getClass() != ret)
+				return null;
+		return ret;
+	}
+
+	private long searchKey(Object key) {
+		if (exactClass != null)
+			return ((Number) key).longValue() ^ Long.MIN_VALUE;
+		return ((NormalizedComparator<?>) comparator).prefix(key);
+	}
+
+	@Override
+	public int size() {
+		return keys.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public K keyAt(int index) {
+		return (K) keys[index];
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V valueAt(int index) {
+		return (V) values[index];
+	}
+
+	@Override
+	public int search(K key) {
+		if (searchKeys == null || (exactClass != null && key.getClass() != exactClass))
+			return search(key, 0, keys.length - 1);
+
+		long searchKey = searchKey(key);
+		// keys of the blocks whose first search key is smaller precede the key,
+		// and keys from the first block whose first search key is greater follow it
+		int low = 0;
+		int high = samples.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (Long.compareUnsigned(samples[mid], searchKey) < 0)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		int from = Math.max(low - 1, 0) << SAMPLE_SHIFT;
+		while (low < samples.length && samples[low] == searchKey)
+			low++;
+		int to = Math.min(low << SAMPLE_SHIFT, keys.length) - 1;
+
+		while (from <= to) {
+			int mid = (from + to) >>> 1;
+			long midKey = searchKeys[mid];
+			int c;
+			if (midKey != searchKey)
+				c = Long.compareUnsigned(searchKey, midKey);
+			else if (exactClass != null)
+				return mid;
+			else
+				c = Jiffy.cpr(comparator, key, keys[mid]);
+			if (c > 0)
+				from = mid + 1;
+			else if (c < 0)
+				to = mid - 1;
+			else
+				return mid;
+		}
+		return -(from + 1);
+	}
+
+	private int search(K key, int low, int high) {
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = Jiffy.cpr(comparator, key, keys[mid]);
+			if (c > 0)
+				low = mid + 1;
+			else if (c < 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+}
@@ -0,0 +1,575 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * A read-only {@link NavigableMap} over entries that can be addressed by their
+ * position in key order. Views ({@code subMap}, {@code headMap},
+ * {@code tailMap}, {@code descendingMap}) are ranges of positions over the
+ * same data and are created in logarithmic time. All mutating operations throw
+ * {@link UnsupportedOperationException}.
+ */
+public class ImmutableSortedMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+	/**
+	 * Entries sorted in ascending key order.
+	 */
+	interface Data<K, V> {
+		int size();
+
+		K keyAt(int index);
+
+		V valueAt(int index);
+
+		/**
+		 * @return the index of the key, or {@code -(insertion point) - 1}
+		 */
+		int search(K key);
+	}
+
+	final Data<K, V> data;
+	final Comparator<? super K> comparator;
+	/** first index of the range, inclusive */
+	final int lo;
+	/** last index of the range, exclusive */
+	final int hi;
+	final boolean isDescending;
+
+	private transient KeySet<K, V> keySetView;
+	private transient EntrySet entrySetView;
+	private transient Values valuesView;
+
+	ImmutableSortedMap(Data<K, V> data, Comparator<? super K> comparator, int lo, int hi, boolean isDescending) {
+		this.data = data;
+		this.comparator = comparator;
+		this.lo = lo;
+		this.hi = hi;
+		this.isDescending = isDescending;
+	}
+
+	ImmutableSortedMap<K, V> newView(int lo, int hi, boolean isDescending) {
+		return new ImmutableSortedMap<>(data, comparator, lo, hi, isDescending);
+	}
+
+	/* ---------------- Index arithmetic -------------- */
+
+	@SuppressWarnings("unchecked")
+	private int search(Object key) {
+		if (key == null)
+			throw new NullPointerException();
+		return data.search((K) key);
+	}
+
+	// indices in ascending order, -1 if there is no such entry in the range
+
+	private int ceilingIndex(Object key) {
+		int index = search(key);
+		int ret = Math.max(index >= 0 ? index : -index - 1, lo);
+		return ret < hi ? ret : -1;
+	}
+
+	private int higherIndex(Object key) {
+		int index = search(key);
+		int ret = Math.max(index >= 0 ? index + 1 : -index - 1, lo);
+		return ret < hi ? ret : -1;
+	}
+
+	private int floorIndex(Object key) {
+		int index = search(key);
+		int ret = Math.min(index >= 0 ? index : -index - 2, hi - 1);
+		return ret >= lo ? ret : -1;
+	}
+
+	private int lowerIndex(Object key) {
+		int index = search(key);
+		int ret = Math.min(index >= 0 ? index - 1 : -index - 2, hi - 1);
+		return ret >= lo ? ret : -1;
+	}
+
+	// the first index of the range of keys greater (or equal, if inclusive)
+	// than the key, clamped to the current range
+	private int lowBound(Object key, boolean inclusive) {
+		int index = search(key);
+		int ret = index >= 0 ? (inclusive ? index : index + 1) : -index - 1;
+		return Math.min(Math.max(ret, lo), hi);
+	}
+
+	// the index following the last key smaller (or equal, if inclusive) than
+	// the key, clamped to the current range
+	private int highBound(Object key, boolean inclusive) {
+		int index = search(key);
+		int ret = index >= 0 ? (inclusive ? index + 1 : index) : -index - 1;
+		return Math.min(Math.max(ret, lo), hi);
+	}
+
+	private Map.Entry<K, V> entryAt(int index) {
+		if (index < 0)
+			return null;
+		return new AbstractMap.SimpleImmutableEntry<>(data.keyAt(index), data.valueAt(index));
+	}
+
+	private K keyAt(int index) {
+		return index < 0 ? null : data.keyAt(index);
+	}
+
+	private int firstIndex() {
+		if (lo >= hi)
+			return -1;
+		return isDescending ? hi - 1 : lo;
+	}
+
+	private int lastIndex() {
+		if (lo >= hi)
+			return -1;
+		return isDescending ? lo : hi - 1;
+	}
+
+	/* ---------------- Map API -------------- */
+
+	@Override
+	public int size() {
+		return hi - lo;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return lo >= hi;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		int index = search(key);
+		return index >= lo && index < hi;
+	}
+
+	@Override
+	public V get(Object key) {
+		int index = search(key);
+		return index >= lo && index < hi ? data.valueAt(index) : null;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public V remove(Object key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException();
+	}
+
+	/* ---------------- SortedMap API -------------- */
+
+	@Override
+	public Comparator<? super K> comparator() {
+		if (!isDescending)
+			return comparator;
+		if (comparator == null)
+			return Collections.reverseOrder();
+		return Collections.reverseOrder(comparator);
+	}
+
+	@Override
+	public K firstKey() {
+		int index = firstIndex();
+		if (index < 0)
+			throw new NoSuchElementException();
+		return data.keyAt(index);
+	}
+
+	@Override
+	public K lastKey() {
+		int index = lastIndex();
+		if (index < 0)
+			throw new NoSuchElementException();
+		return data.keyAt(index);
+	}
+
+	/* ---------------- NavigableMap API -------------- */
+
+	@Override
+	public Map.Entry<K, V> lowerEntry(K key) {
+		return entryAt(isDescending ? higherIndex(key) : lowerIndex(key));
+	}
+
+	@Override
+	public K lowerKey(K key) {
+		return keyAt(isDescending ? higherIndex(key) : lowerIndex(key));
+	}
+
+	@Override
+	public Map.Entry<K, V> floorEntry(K key) {
+		return entryAt(isDescending ? ceilingIndex(key) : floorIndex(key));
+	}
+
+	@Override
+	public K floorKey(K key) {
+		return keyAt(isDescending ? ceilingIndex(key) : floorIndex(key));
+	}
+
+	@Override
+	public Map.Entry<K, V> ceilingEntry(K key) {
+		return entryAt(isDescending ? floorIndex(key) : ceilingIndex(key));
+	}
+
+	@Override
+	public K ceilingKey(K key) {
+		return keyAt(isDescending ? floorIndex(key) : ceilingIndex(key));
+	}
+
+	@Override
+	public Map.Entry<K, V> higherEntry(K key) {
+		return entryAt(isDescending ? lowerIndex(key) : higherIndex(key));
+	}
+
+	@Override
+	public K higherKey(K key) {
+		return keyAt(isDescending ? lowerIndex(key) : higherIndex(key));
+	}
+
+	@Override
+	public Map.Entry<K, V> firstEntry() {
+		return entryAt(firstIndex());
+	}
+
+	@Override
+	public Map.Entry<K, V> lastEntry() {
+		return entryAt(lastIndex());
+	}
+
+	@Override
+	public Map.Entry<K, V> pollFirstEntry() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Map.Entry<K, V> pollLastEntry() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public NavigableMap<K, V> descendingMap() {
+		return newView(lo, hi, !isDescending);
+	}
+
+	@Override
+	public NavigableSet<K> navigableKeySet() {
+		KeySet<K, V> ks = keySetView;
+		return (ks != null) ? ks : (keySetView = new KeySet<>(this));
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		EntrySet es = entrySetView;
+		return (es != null) ? es : (entrySetView = new EntrySet());
+	}
+
+	@Override
+	public Collection<V> values() {
+		Values vs = valuesView;
+		return (vs != null) ? vs : (valuesView = new Values());
+	}
+
+	@Override
+	public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		if (fromKey == null || toKey == null)
+			throw new NullPointerException();
+		int c = Jiffy.cpr(comparator, fromKey, toKey);
+		if (isDescending ? c < 0 : c > 0)
+			throw new IllegalArgumentException("inconsistent range");
+
+		if (isDescending)
+			return newView(lowBound(toKey, toInclusive), Math.max(lowBound(toKey, toInclusive),
+					highBound(fromKey, fromInclusive)), true);
+		int newLo = lowBound(fromKey, fromInclusive);
+		return newView(newLo, Math.max(newLo, highBound(toKey, toInclusive)), false);
+	}
+
+	@Override
+	public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+		if (isDescending)
+			return newView(lowBound(toKey, inclusive), hi, true);
+		return newView(lo, highBound(toKey, inclusive), false);
+	}
+
+	@Override
+	public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+		if (isDescending)
+			return newView(lo, highBound(fromKey, inclusive), true);
+		return newView(lowBound(fromKey, inclusive), hi, false);
+	}
+
+	@Override
+	public SortedMap<K, V> subMap(K fromKey, K toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public SortedMap<K, V> headMap(K toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public SortedMap<K, V> tailMap(K fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	/* ---------------- Iterators and views -------------- */
+
+	abstract class RangeIterator<T> implements Iterator<T> {
+		int next = firstIndex();
+		final int last = lastIndex();
+
+		@Override
+		public boolean hasNext() {
+			return next >= 0;
+		}
+
+		int advance() {
+			if (next < 0)
+				throw new NoSuchElementException();
+			int ret = next;
+			if (ret == last)
+				next = -1;
+			else
+				next = isDescending ? ret - 1 : ret + 1;
+			return ret;
+		}
+	}
+
+	final class KeyIterator extends RangeIterator<K> {
+		@Override
+		public K next() {
+			return data.keyAt(advance());
+		}
+	}
+
+	final class ValueIterator extends RangeIterator<V> {
+		@Override
+		public V next() {
+			return data.valueAt(advance());
+		}
+	}
+
+	final class EntryIterator extends RangeIterator<Map.Entry<K, V>> {
+		@Override
+		public Map.Entry<K, V> next() {
+			return entryAt(advance());
+		}
+	}
+
+	final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+		@Override
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return new EntryIterator();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Map.Entry<?, ?> e))
+				return false;
+			Object key = e.getKey();
+			if (key == null)
+				return false;
+			V v = ImmutableSortedMap.this.get(key);
+			return v != null && v.equals(e.getValue());
+		}
+
+		@Override
+		public int size() {
+			return ImmutableSortedMap.this.size();
+		}
+	}
+
+	final class Values extends AbstractCollection<V> {
+		@Override
+		public Iterator<V> iterator() {
+			return new ValueIterator();
+		}
+
+		@Override
+		public int size() {
+			return ImmutableSortedMap.this.size();
+		}
+	}
+
+	static final class KeySet<K, V> extends AbstractSet<K> implements NavigableSet<K> {
+		final ImmutableSortedMap<K, V> m;
+
+		KeySet(ImmutableSortedMap<K, V> map) {
+			m = map;
+		}
+
+		@Override
+		public int size() {
+			return m.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return m.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return m.containsKey(o);
+		}
+
+		@Override
+		public K lower(K e) {
+			return m.lowerKey(e);
+		}
+
+		@Override
+		public K floor(K e) {
+			return m.floorKey(e);
+		}
+
+		@Override
+		public K ceiling(K e) {
+			return m.ceilingKey(e);
+		}
+
+		@Override
+		public K higher(K e) {
+			return m.higherKey(e);
+		}
+
+		@Override
+		public Comparator<? super K> comparator() {
+			return m.comparator();
+		}
+
+		@Override
+		public K first() {
+			return m.firstKey();
+		}
+
+		@Override
+		public K last() {
+			return m.lastKey();
+		}
+
+		@Override
+		public K pollFirst() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public K pollLast() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Iterator<K> iterator() {
+			return m.new KeyIterator();
+		}
+
+		@Override
+		public NavigableSet<K> descendingSet() {
+			return m.descendingMap().navigableKeySet();
+		}
+
+		@Override
+		public Iterator<K> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		@Override
+		public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+			return m.subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+			return m.headMap(toElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+			return m.tailMap(fromElement, inclusive).navigableKeySet();
+		}
+
+		@Override
+		public SortedSet<K> subSet(K fromElement, K toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> headSet(K toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public SortedSet<K> tailSet(K fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+}
@@ -38,11 +38,17 @@ package pl.edu.put.concurrent.jiffy;
  */
 class Index<K, V> {
 	final Node<K, V> node; // currently, never detached
+	// the key of the node and its prefix (see KeyNormalizer), copied so that
+	// a descent compares keys without loading the nodes
+	final K key;
+	final long keyPrefix;
 	final Index<K, V> down;
 	Index<K, V> right;
 
 	Index(Node<K, V> node, Index<K, V> down, Index<K, V> right) {
 		this.node = node;
+		this.key = node.key;
+		this.keyPrefix = node.keyPrefix;
 		this.down = down;
 		this.right = right;
 	}
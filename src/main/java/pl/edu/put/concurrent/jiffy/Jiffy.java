@@ -36,14 +36,22 @@ package pl.edu.put.concurrent.jiffy;
 
 import pl.edu.put.concurrent.MultiversionNavigableMap;
 import pl.edu.put.concurrent.MultiversionNavigableMapSnapshot;
+import pl.edu.put.concurrent.jiffy.MultiBatchDescriptor.Part;
 import pl.edu.put.concurrent.jiffy.SingleMultiVal.MultiValIndices;
 import pl.edu.put.utils.Pair;
 
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.function.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNavigableMap<K, V> {
 	/*
@@ -91,6 +99,55 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 	volatile NodeAutoScaleConfiguration AUTOSCALE_CONFIGURATION = new NodeAutoScaleConfiguration();
 
+	// Single-key writes to nodes of at least MIN_DELTA_BASE_SIZE keys record
+	// the change on top of the previous multival instead of copying it; after
+	// MAX_DELTA_REVISIONS such changes the multival is consolidated.
+	// MAX_DELTA_REVISIONS = 0 disables delta revisions.
+	volatile int MAX_DELTA_REVISIONS = 8;
+	volatile int MIN_DELTA_BASE_SIZE = 64;
+
+	// Number of most recent versions whose history is kept regardless of snapshots
+	volatile long RETENTION = 0;
+
+	// Set by the first put with a time to live. Until then, reads and writes
+	// skip looking for expired entries. It is written before the revision
+	// holding the entry is installed, so it is visible to whoever reads the
+	// revision.
+	boolean expiringEntries = false;
+
+	// Folds the operands merged into entries, see MergeOperator. Like
+	// expiringEntries, mergeOperands is set by the first merge, so that splits
+	// and merges of nodes skip looking for operands until then.
+	volatile MergeOperator<V> mergeOperator = null;
+	boolean mergeOperands = false;
+
+	// Number of operands of an entry at which a merge folds them
+	static final int MAX_MERGE_OPERANDS = 16;
+
+	// The key of the node the expiry sweep continues from, null for the first
+	// node. Only a hint, concurrent sweeps may overwrite each other's progress.
+	private K sweepCursor = null;
+	private volatile Thread sweeper = null;
+	private volatile Thread indexRebuilder = null;
+
+	// Serializes the contents of the nodes moved off the heap by moveOffHeap,
+	// null if the nodes are not moved. The cursor is a hint, as for sweeps.
+	private volatile Codec<K, V> offHeapCodec = null;
+	private K offHeapCursor = null;
+
+	// The lowest index level flattened by rebuildIndex, if enabled with
+	// setFlatIndex; gets and findPredecessor start their descents from it
+	private volatile boolean flatIndexEnabled = false;
+	private volatile FlatIndex<K, V> flatIndex = null;
+
+	// Set when the map runs as a bounded cache, see setCacheCapacity
+	volatile CacheState<K> cache = null;
+
+	// Number of nodes compared to pick the coldest one to evict
+	static final int EVICTION_SAMPLES = 8;
+	// Bounds the work of evictions a single write has to do
+	static final int MAX_EVICTIONS_PER_WRITE = 4;
+
 	// Should be false by default, as adds an overhead
 	public static boolean STATISTICS = false;
 
@@ -101,16 +158,16 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 	ThreadLocal<RuntimeStatistics> stats = ThreadLocal.withInitial(RuntimeStatistics::new);
 
-	ThreadLocal<Long> splitCounter = ThreadLocal.withInitial(() -> 0L);
-
-	ThreadLocal<Long> mergeCounter = ThreadLocal.withInitial(() -> 0L);
-
+	/**
+	 * Returns the number of splits performed by the calling thread, or by all
+	 * threads if the map was created for virtual threads.
+	 */
 	public long getSplitCount() {
-		return splitCounter.get();
+		return threadCells.splits();
 	}
 
 	public long getMergeCount() {
-		return mergeCounter.get();
+		return threadCells.merges();
 	}
 
 	public long[] getBloomCounterStats() {
@@ -122,6 +179,720 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		this.MIN_MULTIVAL_SIZE = minNodeSize;
 	}
 
+	public void setDeltaRevisions(int maxDeltaRevisions, int minDeltaBaseSize) {
+		this.MAX_DELTA_REVISIONS = maxDeltaRevisions;
+		this.MIN_DELTA_BASE_SIZE = minDeltaBaseSize;
+	}
+
+	/**
+	 * Returns the keys of up to the given number of nodes with the highest
+	 * contention, mapped to it, highest first. A node counts a conflict
+	 * whenever a revision fails to be installed on it, and the count is halved
+	 * every half-life set in {@link NodeAutoScaleConfiguration}, so only nodes
+	 * contended at the moment have high counts. The first node has the key
+	 * {@code null}.
+	 */
+	public Map<K, Integer> getContendedNodes(int maxNodes) {
+		if (maxNodes <= 0)
+			throw new IllegalArgumentException("Non-positive number of nodes: " + maxNodes);
+		long halfLife = AUTOSCALE_CONFIGURATION.contentionHalfLife;
+		long now = System.nanoTime();
+		PriorityQueue<Map.Entry<Node<K, V>, Integer>> hottest = new PriorityQueue<>(Map.Entry.comparingByValue());
+		for (Node<K, V> n = baseHead(); n != null; n = n.acquireNext()) {
+			int c = ContentionCounter.get(n, halfLife, now);
+			if (c == 0 || !isLiveNode(n))
+				continue;
+			hottest.add(new AbstractMap.SimpleImmutableEntry<>(n, c));
+			if (hottest.size() > maxNodes)
+				hottest.poll();
+		}
+
+		List<Map.Entry<Node<K, V>, Integer>> nodes = new ArrayList<>(hottest);
+		nodes.sort(Map.Entry.<Node<K, V>, Integer>comparingByValue().reversed());
+		Map<K, Integer> ret = new LinkedHashMap<>();
+		for (Map.Entry<Node<K, V>, Integer> e : nodes)
+			ret.put(e.getKey().key, e.getValue());
+		return ret;
+	}
+
+	/**
+	 * Installs the revision on the node, unless its revision head has changed,
+	 * counting a conflict if it has.
+	 */
+	private boolean tryPutRevisionSingle(Node<K, V> node, Revision<K, V> revision) {
+		if (node.tryPutRevisionSingle(revision))
+			return true;
+		ContentionCounter.conflict(node);
+		return false;
+	}
+
+	/**
+	 * Returns true if the node is contended enough to be split into halves of
+	 * the given total size, or to not be merged into a node of that size.
+	 */
+	private boolean isContended(Node<K, V> node, int size) {
+		NodeAutoScaleConfiguration conf = AUTOSCALE_CONFIGURATION;
+		int threshold = conf.contentionSplitThreshold;
+		return threshold > 0 && size >= 2 * Math.max(1, MIN_MULTIVAL_SIZE)
+				&& ContentionCounter.get(node, conf.contentionHalfLife, System.nanoTime()) >= threshold;
+	}
+
+	/**
+	 * Returns true if the node was split because of contention which has
+	 * faded since, so that it can be merged back into its predecessor, as long
+	 * as it is left with fewer than half of MAX_MULTIVAL_SIZE keys.
+	 */
+	private boolean isContentionFaded(Node<K, V> node, int size) {
+		if (!node.splitByContention || size >= MAX_MULTIVAL_SIZE / 2)
+			return false;
+		NodeAutoScaleConfiguration conf = AUTOSCALE_CONFIGURATION;
+		return ContentionCounter.get(node, conf.contentionHalfLife, System.nanoTime()) <= conf.contentionMergeThreshold;
+	}
+
+	/**
+	 * Keeps the history of the given number of most recent versions, so that
+	 * {@link #getAsOf}, {@link #historyOf} and {@link #snapshot(long)} can
+	 * reach back that far even if no snapshot is open. Old revisions are
+	 * reclaimed lazily, when a node is updated.
+	 */
+	public void setRetention(long versions) {
+		if (versions < 0)
+			throw new IllegalArgumentException("Negative retention: " + versions);
+		this.RETENTION = versions;
+	}
+
+	/**
+	 * Keeps the history of the given time window. Requires versions to be
+	 * derived from the clock ({@link #USE_TSC}), in which they are measured in
+	 * nanoseconds.
+	 */
+	public void setRetention(Duration window) {
+		if (!USE_TSC)
+			throw new UnsupportedOperationException("Time-based retention requires USE_TSC.");
+		setRetention(window.toNanos());
+	}
+
+	/**
+	 * Removes the expired entries of up to the given number of nodes, starting
+	 * from the node the previous sweep stopped at. A sweep stops at the end of
+	 * the map, so that the next one starts over from the first node. An entry
+	 * is removed only if it has not been overwritten in the meantime, without
+	 * notifying the listeners of the map. Returns the number of expired entries
+	 * found.
+	 */
+	@SuppressWarnings("unchecked")
+	public int sweepExpired(int maxNodes) {
+		if (maxNodes <= 0)
+			throw new IllegalArgumentException("Non-positive number of nodes: " + maxNodes);
+		if (!expiringEntries)
+			return 0;
+
+		int found = 0;
+		K cursor = sweepCursor;
+		for (int i = 0; i < maxNodes; i++) {
+			Node<K, V> node = findNodeForKey(cursor);
+			Revision<K, V> revision = retrieveRevision(node, null, NEWEST_VERSION, node.acquireRevisionHead());
+			if (revision != null && revision.getValue().size() > 0) {
+				MultiVal<K, V> mval = revision.getValue();
+				Object[] keys = mval.getKeys();
+				Object[] values = mval.getValues();
+				long clock = domain.clock();
+				for (int j = 0; j < keys.length; j++) {
+					if (ExpiringValue.isExpired(values[j], clock)) {
+						removeSingle((K) keys[j], values[j], null);
+						found++;
+					}
+				}
+			}
+
+			Node<K, V> next = node.acquireNext();
+			cursor = next == null ? null : next.key;
+			if (cursor == null)
+				break;
+		}
+		sweepCursor = cursor;
+		return found;
+	}
+
+	/**
+	 * Starts a daemon thread that sweeps the given number of nodes for expired
+	 * entries (see {@link #sweepExpired}) once per period. The thread keeps the
+	 * map reachable until it is stopped with {@link #stopExpirySweeper}.
+	 *
+	 * @throws IllegalStateException if a sweeper is already running
+	 */
+	public void startExpirySweeper(Duration period, int nodesPerRound) {
+		if (nodesPerRound <= 0)
+			throw new IllegalArgumentException("Non-positive number of nodes: " + nodesPerRound);
+		long periodMillis = Math.max(1, period.toMillis());
+		Thread thread = new Thread(() -> sweepPeriodically(periodMillis, nodesPerRound), "jiffy-expiry-sweeper");
+		thread.setDaemon(true);
+		if (!SWEEPER.compareAndSet(this, null, thread))
+			throw new IllegalStateException("An expiry sweeper is already running.");
+		thread.start();
+	}
+
+	public void stopExpirySweeper() {
+		Thread thread = (Thread) SWEEPER.getAndSet(this, null);
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	private void sweepPeriodically(long periodMillis, int nodesPerRound) {
+		Thread self = Thread.currentThread();
+		try {
+			while (sweeper == self) {
+				Thread.sleep(periodMillis);
+				sweepExpired(nodesPerRound);
+			}
+		} catch (InterruptedException e) {
+			// the sweeper is being stopped
+		}
+	}
+
+	/**
+	 * Sets the codec with which {@link #moveOffHeap} serializes the contents of
+	 * cold nodes, or null to stop moving them. Nodes already moved stay off the
+	 * heap until they are written to.
+	 */
+	public void setOffHeapStorage(Codec<K, V> codec) {
+		this.offHeapCodec = codec;
+	}
+
+	/**
+	 * Moves the contents of up to the given number of nodes off the heap,
+	 * starting from the node the previous call stopped at, like
+	 * {@link #sweepExpired}. A node is moved if its newest revision is at least
+	 * minAge versions old, and none of its entries expires. The keys and values
+	 * of a moved node are serialized into a single direct buffer and decoded on
+	 * every access, which trades the speed of reads for fewer objects for the
+	 * garbage collector to trace. The first write to a moved node brings it
+	 * back to the heap. The buffer is released once older snapshots no longer
+	 * need the revision that holds it. Returns the number of entries moved.
+	 *
+	 * @throws IllegalStateException if no codec is set
+	 */
+	public int moveOffHeap(int maxNodes, long minAge) {
+		if (maxNodes <= 0)
+			throw new IllegalArgumentException("Non-positive number of nodes: " + maxNodes);
+		if (minAge < 0)
+			throw new IllegalArgumentException("Negative age: " + minAge);
+		Codec<K, V> codec = offHeapCodec;
+		if (codec == null)
+			throw new IllegalStateException("No off-heap codec is set.");
+
+		int moved = 0;
+		long bound = getCurrentVersion() - minAge;
+		K cursor = offHeapCursor;
+		for (int i = 0; i < maxNodes; i++) {
+			Node<K, V> node = findNodeForKey(cursor);
+			Revision<K, V> revision = newestRevisionUnsampled(node);
+			if (revision != null) {
+				// the older revisions would keep the entries on the heap
+				Revision<K, V> older = revision.acquireNext();
+				if (older != null)
+					doGc(revision, older, getGcNum(), true);
+				moved += moveOffHeap(revision, codec, bound);
+			}
+
+			Node<K, V> next = node.acquireNext();
+			cursor = next == null ? null : next.key;
+			if (cursor == null)
+				break;
+		}
+		offHeapCursor = cursor;
+		return moved;
+	}
+
+	/**
+	 * Replaces the multival of the revision with an off-heap copy. Readers and
+	 * writers holding the original one are unaffected, as the content and
+	 * hence the indices of the keys are the same. Merged operands are folded
+	 * first, which leaves the content as it is seen by reads.
+	 */
+	private int moveOffHeap(Revision<K, V> revision, Codec<K, V> codec, long bound) {
+		MultiVal<K, V> mval = revision.getValue();
+		long version = revision.effectiveVersion();
+		if (revision.getType() == Revision.MERGE_TERMINATOR || mval instanceof OffHeapMultiVal || mval.size() == 0
+				|| version <= 0 || version > bound
+				|| (revision.descriptor != null && !revision.descriptor.isFinished()))
+			return 0;
+		if (expiringEntries) {
+			for (Object value : mval.getValues()) {
+				if (value instanceof ExpiringValue)
+					return 0;
+			}
+		}
+
+		if (!revision.replaceValue(mval, OffHeapMultiVal.encode(foldOperands(mval), comparator, codec)))
+			return 0;
+		return mval.size();
+	}
+
+	/**
+	 * Bounds the map to about the given number of entries. Whenever a write
+	 * leaves more entries in the map, whole nodes are evicted, the least
+	 * recently accessed first. Accesses are sampled, as for autoscaling, so
+	 * the order is only approximately LRU. An eviction removes the keys of the
+	 * node by a batch, so it is observed by listeners, and open snapshots
+	 * still see the evicted entries. The batch is aborted if one of the keys
+	 * is updated after the node was sampled, so a concurrent write is never
+	 * evicted before it is read. The capacity counts entries, not bytes, and
+	 * the number of entries is tracked approximately from the moment the
+	 * capacity is set.
+	 *
+	 * @throws IllegalArgumentException if the capacity is not positive
+	 */
+	public void setCacheCapacity(long maxEntries) {
+		if (maxEntries <= 0)
+			throw new IllegalArgumentException("Non-positive capacity: " + maxEntries);
+		cache = new CacheState<>(maxEntries, size());
+		evictIfOverCapacity();
+	}
+
+	/**
+	 * Returns the number of reads by {@link #get} that found the key since the
+	 * capacity was set, 0 if the map is not a bounded cache.
+	 */
+	public long getCacheHitCount() {
+		CacheState<K> cache = this.cache;
+		return cache == null ? 0 : cache.hits.sum();
+	}
+
+	public long getCacheMissCount() {
+		CacheState<K> cache = this.cache;
+		return cache == null ? 0 : cache.misses.sum();
+	}
+
+	/**
+	 * Returns the number of entries evicted since the capacity was set.
+	 */
+	public long getEvictionCount() {
+		CacheState<K> cache = this.cache;
+		return cache == null ? 0 : cache.evictions.sum();
+	}
+
+	/**
+	 * Returns the approximate number of entries counted against the capacity.
+	 */
+	public long getCacheEntryCount() {
+		CacheState<K> cache = this.cache;
+		return cache == null ? 0 : cache.entries.sum();
+	}
+
+	/**
+	 * Accounts a revision installed on the node, which changes the number of
+	 * entries by delta, as an access at the given version.
+	 */
+	private void recordUpdate(Node<K, V> node, int delta, long version) {
+		CacheState<K> cache = this.cache;
+		if (cache == null)
+			return;
+		node.lastAccess = version;
+		if (delta != 0)
+			cache.entries.add(delta);
+	}
+
+	private void countEntries(int delta) {
+		CacheState<K> cache = this.cache;
+		if (cache != null && delta != 0)
+			cache.entries.add(delta);
+	}
+
+	private void evictIfOverCapacity() {
+		CacheState<K> cache = this.cache;
+		if (cache == null || !cache.overCapacity() || !cache.startEvicting())
+			return;
+		try {
+			for (int i = 0; i < MAX_EVICTIONS_PER_WRITE && cache.overCapacity(); i++)
+				if (!evictColdNode(cache))
+					break;
+		} finally {
+			cache.stopEvicting();
+		}
+	}
+
+	/**
+	 * Removes the keys of the least recently accessed among the next
+	 * {@link #EVICTION_SAMPLES} nonempty nodes, unless they were updated in
+	 * the meantime. A node not accessed since the
+	 * capacity was set counts as accessed now. Returns false if no nonempty
+	 * node was found.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean evictColdNode(CacheState<K> cache) {
+		long now = getCurrentVersion();
+		K cursor = cache.cursor;
+		Node<K, V> coldest = null;
+		long coldestAccess = Long.MAX_VALUE;
+		for (int i = 0; i < EVICTION_SAMPLES; i++) {
+			Node<K, V> node = findNodeForKey(cursor);
+			long access = node.lastAccess;
+			if (access == 0)
+				node.lastAccess = access = now;
+			Revision<K, V> revision;
+			if (access < coldestAccess && (revision = newestRevisionUnsampled(node)) != null
+					&& revision.getValue().size() > 0) {
+				coldest = node;
+				coldestAccess = access;
+			}
+
+			Node<K, V> next = node.acquireNext();
+			cursor = next == null ? null : next.key;
+			if (cursor == null)
+				break;
+		}
+		cache.cursor = cursor;
+		if (coldest == null)
+			return false;
+
+		Revision<K, V> revision = newestRevisionUnsampled(coldest);
+		MultiVal<K, V> mval = revision == null ? null : revision.getValue();
+		if (mval == null || mval.size() == 0)
+			return true;
+		Object[] keys = mval.getKeys();
+		Object[] values = mval.getValues();
+		Batch<K, V> expected = new Batch<>();
+		Batch<K, V> batch = new Batch<>();
+		for (int i = 0; i < keys.length; i++) {
+			expected.put((K) keys[i], (V) values[i]);
+			batch.remove((K) keys[i]);
+		}
+		// the keys are removed only if the sampled content is still the newest
+		// or they still map to the same values, so that no write racing with
+		// the eviction is lost
+		expected.setSource(mval);
+		expected.prepare(comparator);
+		batch.prepare(comparator);
+		if (putIfUnchanged(batch, expected, 0) >= 0)
+			cache.evictions.add(keys.length);
+		return true;
+	}
+
+	/**
+	 * Returns the newest revision of the node, like {@link #retrieveRevision},
+	 * but without counting as an access.
+	 */
+	private Revision<K, V> newestRevisionUnsampled(Node<K, V> node) {
+		return node.getNewestRevision(null, node.acquireRevisionHead(), this, STATISTICS ? new long[3] : null);
+	}
+
+	/**
+	 * Returns the time against which the deadlines of entries are compared by
+	 * a read of the given version. With {@link #USE_TSC}, versions are taken
+	 * from the same clock, so snapshots observe the entries that expired before
+	 * their version. Otherwise, every read compares with the current time.
+	 */
+	long expiryClock(long version) {
+		if (USE_TSC && version != NEWEST_VERSION)
+			return version;
+		return domain.clock();
+	}
+
+	/**
+	 * Returns the value stored in the contents of a revision as seen by a read
+	 * of the given version, or null if the entry has expired.
+	 */
+	V liveValue(Object stored, long version) {
+		if (stored instanceof ExpiringValue e) {
+			if (e.deadline <= expiryClock(version))
+				return null;
+			stored = e.value;
+		}
+		if (stored instanceof MergeOperands m)
+			return m.fold(mergeOperator);
+		@SuppressWarnings("unchecked")
+		V value = (V) stored;
+		return value;
+	}
+
+	/**
+	 * Returns the value stored in the contents of a revision, without its
+	 * deadline and with the merged operands folded.
+	 */
+	V unwrap(Object stored) {
+		Object value = ExpiringValue.unwrap(stored);
+		if (value instanceof MergeOperands m)
+			return m.fold(mergeOperator);
+		@SuppressWarnings("unchecked")
+		V ret = (V) value;
+		return ret;
+	}
+
+	/**
+	 * Returns the multival with the operands merged into its entries folded,
+	 * or the multival itself if there are none. The keys keep their indices.
+	 */
+	@SuppressWarnings("unchecked")
+	private MultiVal<K, V> foldOperands(MultiVal<K, V> mval) {
+		if (!mergeOperands)
+			return mval;
+
+		int size = mval.size();
+		int i = 0;
+		while (i < size && !MergeOperands.isStacked(mval.getValueByIndex(i)))
+			i++;
+		if (i == size)
+			return mval;
+
+		Object[] values = mval.getValues().clone();
+		for (; i < size; i++)
+			values[i] = foldOperands(values[i]);
+		return SingleMultiVal.fromSortedArrays(comparator, mval.getKeys(), values);
+	}
+
+	private Object foldOperands(Object stored) {
+		if (stored instanceof ExpiringValue e && e.value instanceof MergeOperands m)
+			return new ExpiringValue(m.fold(mergeOperator), e.deadline);
+		if (stored instanceof MergeOperands m)
+			return m.fold(mergeOperator);
+		return stored;
+	}
+
+	/**
+	 * Returns the multival without the entries that have expired, except for
+	 * the one at the given index, or the multival itself if none has. If all
+	 * entries have expired and the node must not become empty, the multival is
+	 * left as it is; the entries are invisible to reads anyway.
+	 */
+	@SuppressWarnings("unchecked")
+	private MultiVal<K, V> dropExpired(MultiVal<K, V> mval, int keep, boolean mayBecomeEmpty) {
+		if (!expiringEntries)
+			return mval;
+
+		int size = mval.size();
+		long clock = domain.clock();
+		int expired = 0;
+		for (int i = 0; i < size; i++) {
+			if (i != keep && ExpiringValue.isExpired(mval.getValueByIndex(i), clock))
+				expired++;
+		}
+		if (expired == 0 || (expired == size && !mayBecomeEmpty))
+			return mval;
+
+		Object[] keys = mval.getKeys();
+		Object[] values = mval.getValues();
+		Object[] liveKeys = new Object[size - expired];
+		Object[] liveValues = new Object[size - expired];
+		int j = 0;
+		for (int i = 0; i < size; i++) {
+			if (i == keep || !ExpiringValue.isExpired(values[i], clock)) {
+				liveKeys[j] = keys[i];
+				liveValues[j++] = values[i];
+			}
+		}
+		return SingleMultiVal.fromSortedArrays(comparator, liveKeys, liveValues);
+	}
+
+	/**
+	 * Attaches a write-ahead log, which from now on records every committed
+	 * update, in place of the one attached before, if any. A null log
+	 * detaches the current one. To restore the map, replay the log with
+	 * {@link WriteAheadLog#recover} before attaching it. While a closed or
+	 * failed log is attached, updates fail before they are committed; only the
+	 * updates in progress when the log fails are committed without being
+	 * durable. Must not be called concurrently with itself.
+	 */
+	public void setWriteAheadLog(WriteAheadLog<K, V> log) {
+		WriteAheadLog<K, V> previous = writeAheadLog;
+		if (previous == log)
+			return;
+		if (log != null)
+			addCommitListener(log);
+		writeAheadLog = log;
+		if (previous != null)
+			removeCommitListener(previous);
+	}
+
+	/**
+	 * Called before an update is installed, so that it is not committed in
+	 * memory if it cannot be logged.
+	 *
+	 * @throws IllegalStateException if the attached write-ahead log is closed
+	 *                               or failed
+	 */
+	void checkWriteAheadLog() {
+		WriteAheadLog<K, V> log = writeAheadLog;
+		if (log == null)
+			return;
+		if (log.isClosed())
+			throw new IllegalStateException("The write-ahead log of the map is closed.");
+		IOException failure = log.getFailure();
+		if (failure != null)
+			throw new IllegalStateException("The write-ahead log of the map failed.", failure);
+	}
+
+	@SuppressWarnings("unchecked")
+	void addCommitListener(CommitListener<K, V> listener) {
+		while (true) {
+			var expected = (CommitListener<K, V>[]) COMMIT_LISTENERS.getAcquire(this);
+			CommitListener<K, V>[] listeners;
+			if (expected == null) {
+				listeners = (CommitListener<K, V>[]) new CommitListener<?, ?>[] { listener };
+			} else {
+				listeners = Arrays.copyOf(expected, expected.length + 1);
+				listeners[expected.length] = listener;
+			}
+			if (COMMIT_LISTENERS.compareAndSet(this, expected, listeners))
+				return;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	void removeCommitListener(CommitListener<K, V> listener) {
+		while (true) {
+			var expected = (CommitListener<K, V>[]) COMMIT_LISTENERS.getAcquire(this);
+			if (expected == null)
+				return;
+			var listeners = (CommitListener<K, V>[]) Arrays.stream(expected).filter(l -> l != listener)
+					.toArray(CommitListener<?, ?>[]::new);
+			if (listeners.length == expected.length)
+				return;
+			if (COMMIT_LISTENERS.compareAndSet(this, expected, listeners.length == 0 ? null : listeners))
+				return;
+		}
+	}
+
+	void attachChangePublisher(ChangePublisher<K, V> publisher) {
+		if (!CHANGE_PUBLISHER.compareAndSet(this, null, publisher))
+			throw new IllegalStateException("A change publisher is already attached to the map.");
+	}
+
+	void detachChangePublisher(ChangePublisher<K, V> publisher) {
+		CHANGE_PUBLISHER.compareAndSet(this, publisher, null);
+	}
+
+	/**
+	 * Returns a version such that every update that is not in progress at the
+	 * time of the call commits with a greater or equal version. With a logical
+	 * clock, the clock is advanced, so that updates already committed with the
+	 * current version can be told apart from future ones.
+	 */
+	long advanceVersionBound() {
+		return domain.advanceVersionBound();
+	}
+
+	ChangePublisher<K, V> getChangePublisher() {
+		return changePublisher;
+	}
+
+	// The publisher is passed explicitly, so that it only sees updates that
+	// were registered with it before they obtained their versions.
+	// The listeners get the value with its deadline, if any, see
+	// persistentValue.
+	private void notifyCommitted(long version, K key, V value, V logged, ChangePublisher<K, V> publisher) {
+		CommitListener<K, V>[] listeners = commitListeners;
+		if (listeners != null) {
+			for (CommitListener<K, V> listener : listeners)
+				listener.committed(version, key, logged);
+		}
+		if (publisher != null)
+			publisher.committed(version, key, value);
+	}
+
+	private void notifyCommitted(long version, Batch<K, V> batch, ChangePublisher<K, V> publisher) {
+		CommitListener<K, V>[] listeners = commitListeners;
+		if (listeners == null && publisher == null)
+			return;
+		if (expiringEntries || mergeOperands || batch.hasUnreportedKeys()) {
+			batch = reportedBatch(batch, listeners != null);
+			if (batch.size() == 0)
+				return;
+		}
+		if (listeners != null) {
+			for (CommitListener<K, V> listener : listeners)
+				listener.committed(version, batch);
+			if (expiringEntries)
+				batch = withoutDeadlines(batch);
+		}
+		if (publisher != null)
+			publisher.committed(version, batch);
+	}
+
+	/**
+	 * Returns the batch as reported to the listeners: without the keys a
+	 * transaction wrote back only to validate its reads, and with the values
+	 * as read after it, if it holds values stored with their deadlines or
+	 * merged operands. The operands are folded over the values the batch
+	 * replaced, so the batch has to be committed. The values of entries with a
+	 * time to live keep their deadlines, see {@link #persistentValue}, if
+	 * requested.
+	 */
+	private Batch<K, V> reportedBatch(Batch<K, V> batch, boolean deadlines) {
+		int size = batch.size();
+		int i = 0;
+		while (i < size && batch.isReported(batch.getKeyByIndex(i))
+				&& !(batch.getValueByIndex(i) instanceof ExpiringValue)
+				&& !(batch.getValueByIndex(i) instanceof MergeOperands))
+			i++;
+		if (i == size)
+			return batch;
+
+		Batch<K, V> reported = new Batch<>();
+		Map<K, V> replaced = batch.getSubstitutedValues();
+		Map<K, Long> replacedDeadlines = batch.getSubstitutedDeadlines();
+		for (i = 0; i < size; i++) {
+			K key = batch.getKeyByIndex(i);
+			if (!batch.isReported(key))
+				continue;
+			Object stored = batch.getValueByIndex(i);
+			Object value = ExpiringValue.unwrap(stored);
+			Long deadline = stored instanceof ExpiringValue e ? e.deadline : null;
+			if (value instanceof MergeOperands m) {
+				if (m.base == MergeOperands.UNRESOLVED)
+					deadline = replacedDeadlines.get(key);
+				value = ((MergeOperands) m.onto(replaced.get(key))).fold(mergeOperator);
+			}
+			@SuppressWarnings("unchecked")
+			V plainValue = (V) value;
+			reported.put(key, deadlines && deadline != null ? persistentValue(plainValue, deadline) : plainValue);
+		}
+		reported.prepare(comparator);
+		return reported;
+	}
+
+	private Batch<K, V> withoutDeadlines(Batch<K, V> batch) {
+		int size = batch.size();
+		int i = 0;
+		while (i < size && !(batch.getValueByIndex(i) instanceof ExpiringValue))
+			i++;
+		if (i == size)
+			return batch;
+
+		Batch<K, V> plain = new Batch<>();
+		for (i = 0; i < size; i++)
+			plain.put(batch.getKeyByIndex(i), ExpiringValue.unwrap(batch.getValueByIndex(i)));
+		plain.prepare(comparator);
+		return plain;
+	}
+
+	/**
+	 * Returns the value wrapped with its deadline, converted to nanoseconds
+	 * since the epoch, as passed to the commit listeners and written to
+	 * checkpoints, so that the entry keeps its time to live across restarts.
+	 */
+	@SuppressWarnings("unchecked")
+	V persistentValue(V value, long deadline) {
+		return (V) new ExpiringValue(value, ExpiringValue.toEpochNanos(deadline, domain.clock()));
+	}
+
+	/**
+	 * Returns what to store for a value read from a write-ahead log or a
+	 * checkpoint, i.e., converts back the deadline of a value returned by
+	 * {@link #persistentValue}, or null if the entry has expired since.
+	 */
+	@SuppressWarnings("unchecked")
+	V restoredValue(V value) {
+		if (!((Object) value instanceof ExpiringValue e))
+			return value;
+		long clock = domain.clock();
+		long deadline = ExpiringValue.fromEpochNanos(e.deadline, clock);
+		if (deadline <= clock)
+			return null;
+		expiringEntries = true;
+		return (V) new ExpiringValue(e.value, deadline);
+	}
+
 	public void setNodeScalingMode(int mode) {
 		this.NODE_SCALING_MODE = ScalingMode.getMode(mode);
 	}
@@ -161,11 +932,149 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		return new Pair<>(indexHeight, levelCountArray);
 	}
 
-	ThreadLocal<Integer> currentReadOpAutoscalerSkip = ThreadLocal.withInitial(() -> 0);
+	// Number of nodes whose revisions memoryStats() inspects
+	static final int MEMORY_STATS_SAMPLES = 1024;
+
+	/**
+	 * Estimates the memory occupied by the map, inspecting the revisions of up
+	 * to {@link #MEMORY_STATS_SAMPLES} nodes.
+	 */
+	public MemoryStats memoryStats() {
+		return memoryStats(MEMORY_STATS_SAMPLES);
+	}
+
+	/**
+	 * Estimates the memory occupied by the map. Nodes and index entries are
+	 * counted exactly, by a walk over the node list and the index, which does
+	 * not look into revisions. The remaining figures are extrapolated from the
+	 * revision chains of up to the given number of nodes, spread evenly over
+	 * the map. Concurrent updates may make the figures inconsistent with each
+	 * other.
+	 *
+	 * @throws IllegalArgumentException if the number of nodes is not positive
+	 */
+	public MemoryStats memoryStats(int maxSampledNodes) {
+		if (maxSampledNodes <= 0)
+			throw new IllegalArgumentException("Non-positive number of nodes: " + maxSampledNodes);
+
+		long nodes = 0;
+		for (Node<K, V> n = baseHead(); n != null; n = n.acquireNext())
+			if (isLiveNode(n))
+				nodes++;
+
+		long indexEntries = 0;
+		VarHandle.acquireFence();
+		for (Index<K, V> q = head; q != null; q = q.down)
+			for (Index<K, V> r = q; r != null; r = r.right)
+				indexEntries++;
+
+		long[] snapshotVersions = openSnapshotVersions();
+		long[] exclusiveBytes = new long[snapshotVersions.length];
+		// revisions, live bytes, history bytes, snapshot bytes
+		long[] totals = new long[4];
+		long stride = Math.max(1, (nodes + maxSampledNodes - 1) / maxSampledNodes);
+		long sampled = 0;
+		long i = 0;
+		for (Node<K, V> n = baseHead(); n != null && sampled < maxSampledNodes; n = n.acquireNext()) {
+			if (!isLiveNode(n) || i++ % stride != 0)
+				continue;
+			measureRevisions(n.acquireRevisionHead(), Long.MAX_VALUE, snapshotVersions, totals, exclusiveBytes);
+			sampled++;
+		}
+
+		double scale = sampled == 0 ? 0 : (double) nodes / sampled;
+		SortedMap<Long, Long> bytesBySnapshot = new TreeMap<>();
+		for (int j = 0; j < snapshotVersions.length; j++)
+			bytesBySnapshot.put(snapshotVersions[j], Math.round(exclusiveBytes[j] * scale));
+		return new MemoryStats(nodes, indexEntries, sampled, Math.round(totals[0] * scale),
+				Math.round(totals[1] * scale), Math.round(totals[2] * scale), Math.round(totals[3] * scale),
+				bytesBySnapshot);
+	}
+
+	private static boolean isLiveNode(Node<?, ?> node) {
+		if (node.isTerminated())
+			return false;
+		Revision<?, ?> head = node.acquireRevisionHead();
+		return head != null && head.getType() != Revision.MERGE_TERMINATOR;
+	}
+
+	/**
+	 * Accounts the revisions of a chain in totals (see {@link #memoryStats}).
+	 * Revisions up to the first committed one are live, older ones are history.
+	 * A historical revision is visible to the snapshots of versions from its
+	 * own up to, but excluding, the version of the revision succeeding it. If
+	 * there is exactly one such snapshot version, the bytes of the revision are
+	 * also accounted to it in exclusiveBytes.
+	 *
+	 * @param successor the version of the revision succeeding the chain, or
+	 *                  Long.MAX_VALUE if the chain starts with live revisions
+	 */
+	private void measureRevisions(Revision<K, V> revision, long successor, long[] snapshotVersions, long[] totals,
+			long[] exclusiveBytes) {
+		for (; revision != null; revision = revision.acquireNext()) {
+			totals[0]++;
+			MultiVal<K, V> mval = revision.getValue();
+			long bytes = mval == null ? 0 : mval.arrayBytes();
+			long version = revision.effectiveVersion();
+			if (successor == Long.MAX_VALUE) {
+				totals[1] += bytes;
+				if (version > 0)
+					successor = version;
+			} else {
+				totals[2] += bytes;
+				if (version > 0) {
+					int from = lowerBound(snapshotVersions, version);
+					int to = lowerBound(snapshotVersions, successor);
+					if (to > from)
+						totals[3] += bytes;
+					if (to - from == 1)
+						exclusiveBytes[from] += bytes;
+					successor = version;
+				}
+			}
+
+			if (revision.getType() == Revision.MERGE)
+				measureRevisions(((MergeRevision<K, V>) revision).acquireRightNext(), successor, snapshotVersions,
+						totals, exclusiveBytes);
+			// the right sibling of a split shares the older revisions with the left one
+			else if (revision.getType() == Revision.SPLIT && !((SplitRevision<K, V>) revision).left)
+				break;
+		}
+	}
+
+	/**
+	 * Returns the distinct versions of the open snapshots, ascending.
+	 */
+	@SuppressWarnings("resource")
+	private long[] openSnapshotVersions() {
+		TreeSet<Long> versions = new TreeSet<>();
+		SubMap<K, V> current = (SubMap<K, V>) SNAPSHOTS.getAcquire(this);
+		while (current != null) {
+			long version = current.acquireVersion();
+			if (version != Long.MAX_VALUE)
+				versions.add(version);
+			current = current.acquireNextSnapshot();
+		}
+		return versions.stream().mapToLong(Long::longValue).toArray();
+	}
+
+	/**
+	 * Returns the index of the first element not less than the key.
+	 */
+	private static int lowerBound(long[] sorted, long key) {
+		int index = Arrays.binarySearch(sorted, key);
+		return index >= 0 ? index : -index - 1;
+	}
 
-	ThreadLocal<Integer> lastReadOpAutoscalerSkip = ThreadLocal.withInitial(() -> 0);
+	/**
+	 * Whether the map is accessed by many, e.g., virtual, threads. If so, the
+	 * per-thread state is kept in a fixed number of shared cells instead of
+	 * thread locals, and threads waiting for other updates park instead of
+	 * yielding.
+	 */
+	final boolean virtualThreads;
 
-	ThreadLocal<Long> autoscalingLastTimeSet = ThreadLocal.withInitial(this::getCurrentVersion);
+	final ThreadCells threadCells;
 
 	/**
 	 * The comparator used to maintain order in this map, or null if using natural
@@ -178,10 +1087,25 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	/** Lazily initialized topmost index of the skiplist. */
 	private transient Index<K, V> head;
 
-	@SuppressWarnings("unused")
-	private long currentVersion = 0;
+	/** The source of versions, possibly shared with other maps. */
+	final VersionDomain domain;
+
+	/** The position of the map among the maps of its domain. */
+	final int domainIndex;
+
 	@SuppressWarnings("unused")
 	private SubMap<K, V> snapshots = null;
+
+	/** Notified about every committed update, null if there are none. */
+	private volatile CommitListener<K, V>[] commitListeners = null;
+	// also one of the commit listeners
+	private volatile WriteAheadLog<K, V> writeAheadLog = null;
+
+	/** Combines the puts of putAsync into batches. */
+	private final WriteCombiner<K, V> writeCombiner = new WriteCombiner<>(this);
+
+	/** Tracks updates in progress on behalf of a change stream, if any. */
+	private volatile ChangePublisher<K, V> changePublisher = null;
 	
 	/* ---------------- Utilities -------------- */
 
@@ -196,6 +1120,19 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		return (c != null) ? c.compare(x, y) : ((Comparable<Object>) x).compareTo(y);
 	}
 
+	/**
+	 * Compares as above, unless the prefixes of the keys differ, see
+	 * {@link KeyNormalizer}. Without a normalizer all prefixes are 0.
+	 */
+	static int cpr(Comparator<?> c, long xPrefix, Object x, long yPrefix, Object y) {
+		if (xPrefix != yPrefix)
+			return Long.compareUnsigned(xPrefix, yPrefix);
+		// the prefixes are known to be equal, no need to compute them again
+		if (c instanceof NormalizedComparator<?> n)
+			c = n.comparator;
+		return cpr(c, x, y);
+	}
+
 	/**
 	 * Returns the header for base node list, or null if uninitialized
 	 */
@@ -212,8 +1149,8 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			return;
 
 		long finalVersion = 1; // currentVersion == 0;
-		Node<K, V> base = new Node<>(null, null, null, null);
-		MultiVal<K, V> mval = new SingleMultiVal<>(true);
+		Node<K, V> base = new Node<>(null, null, null, comparator);
+		MultiVal<K, V> mval = SingleMultiVal.empty(comparator);
 		base.revisionHead = new Revision<>(mval, finalVersion, null, null, -1, -1, null, null, null);
 		Index<K, V> h = new Index<>(base, null, null);
 		HEAD.compareAndSet(this, null, h);
@@ -251,15 +1188,16 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		VarHandle.acquireFence();
 		if (key == null)
 			return null;
+		long keyPrefix = NormalizedComparator.prefix(cmp, key);
 
-		q = head;
+		q = descentStart(key, keyPrefix, cmp);
 		for (Index<K, V> r, d;;) {
 			while ((r = q.right) != null) {
 				Node<K, V> p = r.node;
-				K k = p != null ? p.key : null;
+				K k = r.key; // cached, so that the comparison does not wait for p
 				if (p == null || p.isTerminated()) // unlink index to deleted node
 					RIGHT.compareAndSet(q, r, r.right);
-				else if (cpr(cmp, key, k) > 0)
+				else if (cpr(cmp, keyPrefix, key, r.keyPrefix, k) > 0)
 					q = r;
 				else // the key of current node is greater or equal 'key', we've gone too far
 					break;
@@ -271,14 +1209,96 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		}
 	}
 
+	/**
+	 * Returns the index entry to descend from in search of the predecessor of
+	 * the key: the entry of the flat index preceding the key if there is one
+	 * and its node is live, or the head otherwise.
+	 */
+	private Index<K, V> descentStart(Object key, long keyPrefix, Comparator<? super K> cmp) {
+		FlatIndex<K, V> flat = flatIndex;
+		if (flat != null) {
+			Index<K, V> q = flat.lower(cmp, keyPrefix, key);
+			if (q != null && !q.node.isTerminated())
+				return q;
+		}
+		return head;
+	}
+
+	/**
+	 * Returns a node with key strictly less than given key, like
+	 * {@link #findPredecessor(Object, Comparator)}. The descent starts from the
+	 * lowest index of the recorded path that precedes the key and belongs to a
+	 * live node, or from the head if there is none, and the path is updated on
+	 * the way down.
+	 */
+	private Node<K, V> findPredecessor(Object key, Comparator<? super K> cmp, IndexPath<K, V> path) {
+		Index<K, V> q = null;
+		int level = 0;
+		VarHandle.acquireFence();
+		if (key == null)
+			return null;
+		long keyPrefix = NormalizedComparator.prefix(cmp, key);
+
+		for (; level < path.height; level++) {
+			Index<K, V> p = path.levels[level];
+			Node<K, V> node = p.node;
+			if (node != null && !node.isTerminated()
+					&& (node.key == null || cpr(cmp, keyPrefix, key, p.keyPrefix, node.key) > 0)) {
+				q = p;
+				break;
+			}
+		}
+		if (q == null) {
+			q = head;
+			level = 0;
+			for (Index<K, V> d = q.down; d != null; d = d.down)
+				level++;
+			if (level >= path.levels.length)
+				path.levels = Arrays.copyOf(path.levels, level + 1);
+			path.height = level + 1;
+		}
+
+		for (Index<K, V> r, d;;) {
+			while ((r = q.right) != null) {
+				Node<K, V> p = r.node;
+				K k = r.key;
+				if (p == null || p.isTerminated()) // unlink index to deleted node
+					RIGHT.compareAndSet(q, r, r.right);
+				else if (cpr(cmp, keyPrefix, key, r.keyPrefix, k) > 0)
+					q = r;
+				else
+					break;
+			}
+			path.levels[level] = q;
+			if ((d = q.down) != null) {
+				q = d;
+				level--;
+			} else
+				return q.node;
+		}
+	}
+
 	/**
 	 * Gets value for key.
 	 *
 	 * @param key the key
 	 * @return the value, or null if absent
 	 */
-	@SuppressWarnings("unchecked")
 	private V doGet(Object key, long version) {
+		return liveValue(doGetStored(key, version), version);
+	}
+
+	/**
+	 * Gets the value for key as stored in the revision, or null if absent or
+	 * expired.
+	 */
+	Object getStored(Object key, long version) {
+		Object stored = doGetStored(key, version);
+		return ExpiringValue.isExpired(stored, expiryClock(version)) ? null : stored;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object doGetStored(Object key, long version) {
 		if (key == null)
 			throw new NullPointerException();
 
@@ -287,20 +1307,21 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		Node<K, V> ret;
 		Revision<K, V> retHead;
 		Comparator<? super K> cmp = comparator;
+		long keyPrefix = NormalizedComparator.prefix(cmp, key);
 		outer: for (;;) {
 			if (STATISTICS)
 				statsArray[0]++;
 			Index<K, V> h;
 			Node<K, V> b;
 			VarHandle.acquireFence();
-			h = head;
+			h = descentStart(key, keyPrefix, cmp);
 			for (Index<K, V> q = h, r, d;;) { // count while descending
 				while ((r = q.right) != null) {
 					Node<K, V> p = r.node;
-					K k = p != null ? p.key : null;
+					K k = r.key;
 					if (p == null || p.isTerminated())
 						RIGHT.compareAndSet(q, r, r.right);
-					else if (cpr(cmp, key, k) > 0)
+					else if (cpr(cmp, keyPrefix, key, r.keyPrefix, k) > 0)
 						q = r;
 					else
 						break;
@@ -329,7 +1350,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 				} else if (n.isTerminated()) {
 					unlinkNode(b, n);
 					c = 1;
-				} else if ((c = cpr(cmp, key, k)) >= 0)
+				} else if ((c = cpr(cmp, keyPrefix, key, n.keyPrefix, k)) >= 0)
 					b = n;
 
 				if (c < 0) {
@@ -375,26 +1396,29 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		if (STATISTICS)
 			stats.get().updateDoGet(statsArray);
 
-		return getProperValue((K) key, ret, retHead, version);
+		return getProperStored((K) key, ret, retHead, version);
 	}
 
 	private Revision<K, V> retrieveRevision(Node<K, V> node, K key, long version, Revision<K, V> head) {
-		int skip = currentReadOpAutoscalerSkip.get();
+		ThreadCells.Cell cell = threadCells.current();
+		int skip = cell.readSkip;
 
 		if (skip == 0) {
 			double[] autoscaleParam = head.getAutoscaleParam();
 
-			long lastSetTime = autoscalingLastTimeSet.get();
+			long lastSetTime = cell.autoscalingLastTimeSet;
 			long currentTime = getCurrentVersion();
-			autoscalingLastTimeSet.set(currentTime);
+			cell.autoscalingLastTimeSet = currentTime;
 
 			head.setAutoscaleParam(newAutoscaleParamForReads(autoscaleParam, currentTime - lastSetTime));
+			if (cache != null)
+				node.lastAccess = currentTime;
 
 			skip = AUTOSCALE_CONFIGURATION.readOpMaxSkip;
-			currentReadOpAutoscalerSkip.set(skip);
-			lastReadOpAutoscalerSkip.set(skip);
+			cell.readSkip = skip;
+			cell.lastReadSkip = skip;
 		} else {
-			currentReadOpAutoscalerSkip.set(skip - 1);
+			cell.readSkip = skip - 1;
 		}
 
 		Revision<K, V> revision;
@@ -438,7 +1462,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		return revision;
 	}
 
-	private V getProperValue(K key, Node<K, V> node, Revision<K, V> head, long version) {
+	private Object getProperStored(K key, Node<K, V> node, Revision<K, V> head, long version) {
 		Revision<K, V> revision = retrieveRevision(node, key, version, head);
 		return revision == null ? null : revision.getValue().get(key);
 	}
@@ -454,13 +1478,12 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 	/**
 	 * Added to replace the nextSecondarySeed from the internal java.util.concurrent
-	 * threadLocal.
+	 * threadLocal. The generator of java.util.concurrent.ThreadLocalRandom is kept
+	 * in the thread itself, so it costs no thread local.
 	 **/
 	static class ThreadLocalRandom {
-		static ThreadLocal<Random> tlr = ThreadLocal.withInitial(Random::new);
-
 		static int nextSecondarySeed() {
-			return tlr.get().nextInt();
+			return java.util.concurrent.ThreadLocalRandom.current().nextInt();
 		}
 	}
 
@@ -539,7 +1562,9 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			statsArray = new long[9];
 
 		Comparator<? super K> cmp = comparator;
+		long keyPrefix = NormalizedComparator.prefix(cmp, key);
 		Revision<K, V> revision = new Revision<>(null, -optimisticVersion, null);
+		int failures = 0; // failed revision installs, to back off from contended nodes
 
 		outer: for (;;) {
 			if (STATISTICS)
@@ -552,10 +1577,10 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			for (Index<K, V> q = h, r, d;;) { // count while descending
 				while ((r = q.right) != null) {
 					Node<K, V> p = r.node;
-					K k = p != null ? p.key : null;
+					K k = r.key;
 					if (p == null || p.isTerminated())
 						RIGHT.compareAndSet(q, r, r.right);
-					else if (cpr(cmp, key, k) > 0)
+					else if (cpr(cmp, keyPrefix, key, r.keyPrefix, k) > 0)
 						q = r;
 					else
 						break;
@@ -584,7 +1609,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 				} else if (n.isTerminated()) {
 					unlinkNode(b, n);
 					c = 1;
-				} else if ((c = cpr(cmp, key, k)) >= 0)
+				} else if ((c = cpr(cmp, keyPrefix, key, n.keyPrefix, k)) >= 0)
 					b = n;
 
 				if (c < 0) {
@@ -619,24 +1644,30 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 					MultiVal<K, V> headMval = head.getValue();
 					int index = headMval.indexOfKeyInMultiVal(key);
+					V stored = value instanceof MergeOperands m
+							? mergeOnto(m, index >= 0 ? headMval.getValueByIndex(index) : null)
+							: value;
 
-					long delta = optimisticVersion - autoscalingLastTimeSet.get();
+					long delta = optimisticVersion - threadCells.current().autoscalingLastTimeSet;
 					double[] newAutoscaleParam = newAutoscaleParamForUpdates(head.getAutoscaleParam(), delta);
 
 					int endSize = headMval.size() + (index >= 0 ? 0 : 1);
-					if (whatUpdate(endSize, newAutoscaleParam) != 1) {
+					if (whatUpdate(endSize, newAutoscaleParam) != 1 && !isContended(b, endSize)) {
 						if (STATISTICS)
 							statsArray[6]++;
-						MultiVal<K, V> mval = headMval.add(key, value, index);
+						MultiVal<K, V> mval = addToMultiVal(headMval, key, stored, index);
+						mval = dropExpired(mval, index >= 0 ? index : -index - 1, false);
 						revision.value = null;
 						revision.setValue(mval, null);
 						revision.next = head;
 						revision.setAutoscaleParam(newAutoscaleParam);
 
-						if (b.tryPutRevisionSingle(revision)) {
+						if (tryPutRevisionSingle(b, revision)) {
+							recordUpdate(b, mval.size() - headMval.size(), optimisticVersion);
 							ret = new NewRevisionWithContext<>(revision, head, index);
 							break outer;
 						}
+						Backoff.pause(++failures, virtualThreads);
 					} else {
 						if (STATISTICS)
 							statsArray[7]++;
@@ -652,11 +1683,15 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 								continue;
 						}
 
-						DoubleMultiVal<K, V> mvalPair = head.getValue().addAndSplit(key, value, index);
-						SplitRevision<K, V> leftRevision = new SplitRevision<>(mvalPair.left, revision.version, head,
-								true);
-						SplitRevision<K, V> rightRevision = new SplitRevision<>(mvalPair.right, revision.version, head,
+						DoubleMultiVal<K, V> mvalPair = head.getValue().addAndSplit(key, stored, index);
+						MultiVal<K, V> left = dropExpired(mvalPair.left, mvalPair.left.indexOfKeyInMultiVal(key),
+								false);
+						MultiVal<K, V> right = dropExpired(mvalPair.right, mvalPair.right.indexOfKeyInMultiVal(key),
 								false);
+						left = foldOperands(left);
+						right = foldOperands(right);
+						SplitRevision<K, V> leftRevision = new SplitRevision<>(left, revision.version, head, true);
+						SplitRevision<K, V> rightRevision = new SplitRevision<>(right, revision.version, head, false);
 						leftRevision.sibling = rightRevision;
 						rightRevision.sibling = leftRevision;
 
@@ -665,13 +1700,23 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 						leftRevision.node = b;
 						leftRevision.levels = levels;
+						boolean contended = whatUpdate(endSize, newAutoscaleParam) != 1;
+						leftRevision.contended = contended;
+						rightRevision.contended = contended;
 
-						if (!b.tryPutRevisionSingle(leftRevision)) {
+						if (!tryPutRevisionSingle(b, leftRevision)) {
+							Backoff.pause(++failures, virtualThreads);
 							continue; // retry
 						}
+						if (contended) {
+							ContentionCounter.reset(b);
+							b.splitByContention = true;
+						}
+						recordUpdate(b, left.size() + right.size() - head.getValue().size(), optimisticVersion);
 
 						if (SPLIT_MERGE_STATISTICS)
-							splitCounter.set(splitCounter.get() + 1);
+							threadCells.current().splits++;
+						countNodeChange();
 
 						revision = cpr(comparator, key, rightRevision.getValue().firstKey()) < 0 ? leftRevision
 								: rightRevision;
@@ -685,7 +1730,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			}
 		}
 
-		autoscalingLastTimeSet.set(optimisticVersion);
+		threadCells.current().autoscalingLastTimeSet = optimisticVersion;
 
 		if (STATISTICS)
 			stats.get().updateDoPutSingle(statsArray);
@@ -693,6 +1738,33 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		return ret;
 	}
 
+	/**
+	 * Returns the pending operands put on top of the stored value, folded if
+	 * there are too many of them.
+	 */
+	@SuppressWarnings("unchecked")
+	private V mergeOnto(MergeOperands pending, Object stored) {
+		if (expiringEntries)
+			pending = pending.at(expiryClock(NEWEST_VERSION));
+		Object merged = pending.onto(stored);
+		MergeOperands m = ExpiringValue.unwrap(merged);
+		return (V) (m.operands.length < MAX_MERGE_OPERANDS ? merged : foldOperands(merged));
+	}
+
+	private MultiVal<K, V> addToMultiVal(MultiVal<K, V> mval, K key, V value, int index) {
+		int maxDeltas = MAX_DELTA_REVISIONS;
+		if (maxDeltas > 0 && mval instanceof SingleMultiVal<K, V> single && mval.size() >= MIN_DELTA_BASE_SIZE)
+			return DeltaMultiVal.add(single, comparator, maxDeltas, key, value, index);
+		return mval.add(key, value, index);
+	}
+
+	private MultiVal<K, V> removeFromMultiVal(MultiVal<K, V> mval, K key, int index) {
+		int maxDeltas = MAX_DELTA_REVISIONS;
+		if (maxDeltas > 0 && mval instanceof SingleMultiVal<K, V> single && mval.size() >= MIN_DELTA_BASE_SIZE)
+			return DeltaMultiVal.remove(single, comparator, maxDeltas, key, index);
+		return mval.remove(key, index);
+	}
+
 	// TODO find uses, maybe avoid if
 	private void helpTempSplitNode(TempSplitNode<K, V> tempSplitNode, Node<K, V> previous) {
 		if (tempSplitNode.leftRevision.descriptor == null)
@@ -843,7 +1915,8 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 					}
 
 					if (s == null)
-						s = new TempSplitNode<>(rightRevision.getValue().firstKey(), revision, n);
+						s = new TempSplitNode<>(rightRevision.getValue().firstKey(),
+								NormalizedComparator.prefix(comparator, rightRevision.getValue().firstKey()), revision, n);
 					else
 						s.next = n;
 
@@ -872,6 +1945,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 				}
 
 				Node<K, V> p = new Node<>(rightRevision.getValue().firstKey(), rightRevision, s.next, comparator);
+				p.splitByContention = rightRevision.contended;
 
 				if (!NEXT.compareAndSet(b, s, p))
 					continue; // p = null;
@@ -1005,7 +2079,8 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 					}
 
 					if (s == null)
-						s = new TempSplitNode<>(rightRevision.getValue().firstKey(), revision, n);
+						s = new TempSplitNode<>(rightRevision.getValue().firstKey(),
+								NormalizedComparator.prefix(comparator, rightRevision.getValue().firstKey()), revision, n);
 					else
 						s.next = n;
 
@@ -1034,6 +2109,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 				}
 
 				Node<K, V> p = new Node<>(rightRevision.getValue().firstKey(), rightRevision, s.next, comparator);
+				p.splitByContention = rightRevision.contended;
 
 				if (!NEXT.compareAndSet(b, s, p))
 					continue; // p = null;
@@ -1329,13 +2405,15 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 			MultiVal<K, V> mval = new SingleMultiVal<>(comparator, head.getValue(), terminator.next.getValue(),
 					terminator.indexOfKeyInNextMultiVal);
+			mval = foldOperands(dropExpired(mval, -1, bb.key == null));
 
 			MergeRevision<K, V> mergeRevision = new MergeRevision<>(mval, terminator.version, head, terminator.next,
 					nb, terminator);
 
 			mergeRevision.setAutoscaleParam(terminator.getAutoscaleParam());
 
-			if (bb.tryPutRevisionSingle(mergeRevision)) {
+			if (tryPutRevisionSingle(bb, mergeRevision)) {
+				countEntries(mval.size() - head.getValue().size() - terminator.next.getValue().size());
 				if (STATISTICS)
 					statsArray[14]++;
 
@@ -1524,8 +2602,8 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			MultiValIndices<K> headIndices = head.getValue().indexOfKeysInMultiVal(batch,
 					indexOfRightmostRelevantBatchKey, bb.key);
 
-			MultiVal<K, V> mval = new SingleMultiVal<>(comparator, batch, head.getValue(),
-					terminator.next.getValue(), headIndices, terminatorIndices);
+			MultiVal<K, V> mval = foldOperands(new SingleMultiVal<>(comparator, batch, head.getValue(),
+					terminator.next.getValue(), headIndices, terminatorIndices));
 
 			assert version < 0;
 
@@ -1541,7 +2619,8 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 			mergeRevision.setAutoscaleParam(terminator.getAutoscaleParam());
 
-			if (bb.tryPutRevisionSingle(mergeRevision)) {
+			if (tryPutRevisionSingle(bb, mergeRevision)) {
+				countEntries(mval.size() - head.getValue().size() - terminator.next.getValue().size());
 				if (STATISTICS)
 					statsArray[16]++;
 
@@ -1797,6 +2876,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		K key = firstKeyFromRight;
 
 		Comparator<? super K> cmp = comparator;
+		long keyPrefix = NormalizedComparator.prefix(cmp, key);
 		Revision<K, V> revision = new Revision<>(null, -optimisticVersion, descriptor, null, -1,
 				indexOfFirstKeyFromRight, firstKeyFromRight, null, null);
 
@@ -1804,6 +2884,9 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			if (!primaryRun && descriptor.acquireVersion() > 0)
 				break;
 
+			if (descriptor.expected != null && descriptor.multi.isAborted())
+				break;
+
 			if (STATISTICS)
 				statsArray[0]++;
 
@@ -1815,10 +2898,10 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			for (Index<K, V> q = h, r, d;;) { // count while descending
 				while ((r = q.right) != null) {
 					Node<K, V> p = r.node;
-					K k = p != null ? p.key : null;
+					K k = r.key;
 					if (p == null || p.isTerminated())
 						RIGHT.compareAndSet(q, r, r.right);
-					else if (cpr(cmp, key, k) > 0)
+					else if (cpr(cmp, keyPrefix, key, r.keyPrefix, k) > 0)
 						q = r;
 					else
 						break;
@@ -1848,7 +2931,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 				} else if (n.isTerminated()) {
 					unlinkNode(b, n);
 					c = 1;
-				} else if ((c = cpr(cmp, key, k)) >= 0)
+				} else if ((c = cpr(cmp, keyPrefix, key, n.keyPrefix, k)) >= 0)
 					b = n;
 
 				if (c < 0) {
@@ -1856,6 +2939,13 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 						if (STATISTICS)
 							statsArray[2]++;
 
+						if (descriptor.undo) {
+							// the splits of the multi-batch are complete by now
+							revision.indexOfLeftmostRelevantBatchKey = indexOfFirstKeyFromRight;
+							ret = revision;
+							break outer;
+						}
+
 						helpTempSplitNode((TempSplitNode<K, V>) b, null);
 						continue outer;
 					}
@@ -1889,7 +2979,30 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 						break outer;
 					}
 
-					if (head.effectiveVersion() < 0 && currentVersion < 0) {
+					// a pending revision of another part of the same multi-batch
+					boolean onSucceedingPart = false;
+					if (descriptor.multi != null && head.descriptor != null && head.descriptor.multi == descriptor.multi
+							&& head.effectiveVersion() < 0) {
+						if (head.descriptor.part < descriptor.part)
+							break outer; // this part is complete, a preceding one is being installed
+
+						// the revision of a succeeding part is built upon rather than helped,
+						// as helping it would require this part to complete
+						if (head.getType() != Revision.REGULAR) {
+							helpBatchRevision(head, false);
+							if (b.isTerminated())
+								continue outer;
+							if (b.acquireNext() != n || b.acquireRevisionHead() != head)
+								continue;
+						}
+						onSucceedingPart = true;
+					} else if (descriptor.undo) {
+						// the key has not been installed by the multi-batch, so it is skipped,
+						// without helping anyone, which could require the multi-batch to complete
+						revision.indexOfLeftmostRelevantBatchKey = indexOfFirstKeyFromRight;
+						ret = revision;
+						break outer;
+					} else if (head.effectiveVersion() < 0 && currentVersion < 0) {
 						if (STATISTICS)
 							statsArray[6]++;
 
@@ -1922,13 +3035,24 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 					MultiValIndices<K> indicesAndEndSize = headMval.indexOfKeysInMultiVal(batch,
 							indexOfFirstKeyFromRight, b.key);
 
-					long delta = (long) (1.0 * (optimisticVersion - autoscalingLastTimeSet.get())
+					if (descriptor.expected != null && head.effectiveVersion() > descriptor.readVersion
+							&& !valuesUnchanged(descriptor.expected, headMval, indicesAndEndSize)) {
+						if (descriptor.multi.abort())
+							break outer;
+						continue outer; // validated by another thread, retry
+					}
+
+					long delta = (long) (1.0 * (optimisticVersion - threadCells.current().autoscalingLastTimeSet)
 							* indicesAndEndSize.indices.length / batch.size());
 					double[] newAutoscaleParam = newAutoscaleParamForUpdates(head.getAutoscaleParam(), delta);
 
 					int updateType = whatUpdate(indicesAndEndSize.endSize, newAutoscaleParam);
 					if (updateType == -1 && b.key == null)
 						updateType = 0;
+					// a split or a merge would have to help the pending revisions it
+					// replaces or merges with, which belong to this multi-batch
+					if (onSucceedingPart)
+						updateType = 0;
 
 					if (updateType == 0) {
 						if (STATISTICS)
@@ -1943,7 +3067,8 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 						revision.indexOfLeftmostRelevantBatchKey = indicesAndEndSize.indexOfFirstRelevantKeyInBatch;
 
 
-						if (b.tryPutRevisionSingle(revision)) {
+						if (tryPutRevisionSingle(b, revision)) {
+							recordUpdate(b, mval.size() - headMval.size(), optimisticVersion);
 							ret = revision;
 							break outer;
 						}
@@ -1952,6 +3077,8 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 							statsArray[10]++;
 
 						DoubleMultiVal<K, V> mvalPair = head.getValue().addAndSplit(batch, indicesAndEndSize);
+						mvalPair.left = foldOperands(mvalPair.left);
+						mvalPair.right = foldOperands(mvalPair.right);
 						SplitRevision<K, V> leftRevision = new SplitRevision<>(mvalPair.left, revision.version,
 								descriptor, b.key, indicesAndEndSize.indexOfFirstRelevantKeyInBatch,
 								indexOfFirstKeyFromRight, null, // revision.rightmostRelevantBatchKey,
@@ -1970,11 +3097,14 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 						leftRevision.levels = levels;
 
 
-						if (!b.tryPutRevisionSingle(leftRevision))
+						if (!tryPutRevisionSingle(b, leftRevision))
 							continue; // retry
+						recordUpdate(b, mvalPair.left.size() + mvalPair.right.size() - headMval.size(),
+								optimisticVersion);
 
 						if (SPLIT_MERGE_STATISTICS)
-							splitCounter.set(splitCounter.get() + 1);
+							threadCells.current().splits++;
+						countNodeChange();
 
 						revision = leftRevision;
 
@@ -1991,9 +3121,10 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 								indexOfFirstKeyFromRight, null,
 								b, head, indicesAndEndSize);
 						mergeTerminator.setAutoscaleParam(newAutoscaleParam);
-						if (b.tryPutRevisionSingle(mergeTerminator)) {
+						if (tryPutRevisionSingle(b, mergeTerminator)) {
 							if (SPLIT_MERGE_STATISTICS)
-								mergeCounter.set(mergeCounter.get() + 1);
+								threadCells.current().merges++;
+							countNodeChange();
 
 							helpMergeTerminator(mergeTerminator);
 							ret = mergeTerminator; // not returning the true merge revision!
@@ -2015,6 +3146,25 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		return ret;
 	}
 
+	/**
+	 * Checks if the relevant keys of a validating batch still map (by
+	 * reference) to the expected values, or the content they were read from is
+	 * still the newest. An expired entry counts as absent.
+	 */
+	private boolean valuesUnchanged(Batch<K, V> batch, MultiVal<K, V> mval, MultiValIndices<K> indices) {
+		if (batch.isSource(mval))
+			return true;
+		for (int j = 0; j < indices.indices.length; j++) {
+			int index = indices.indices[j];
+			V current = index < 0 ? null : mval.getValueByIndex(index);
+			V expected = batch.getValueByIndex(indices.indexOfFirstRelevantKeyInBatch + j);
+			if (current != expected
+					&& (expected != null || !ExpiringValue.isExpired(current, expiryClock(NEWEST_VERSION))))
+				return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Add indices after an insertion. Descends iteratively to the highest level of
 	 * insertion, then recursively, to chain index nodes to lower ones. Returns null
@@ -2041,7 +3191,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 					if ((p = r.node) == null || (k = p.key) == null || p.isTerminated()) {
 						RIGHT.compareAndSet(q, r, r.right);
 						c = 0;
-					} else if ((c = cpr(cmp, key, k)) > 0)
+					} else if ((c = cpr(cmp, x.keyPrefix, key, r.keyPrefix, k)) > 0)
 						q = r;
 					else if (c == 0)
 						break; // stale
@@ -2106,16 +3256,202 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	 * CAS, in which case it is very unlikely to stall again immediately afterwards,
 	 * so will recover.)
 	 *
-	 * We put up with all this rather than just let levels grow because otherwise,
-	 * even a small map that has undergone a large number of insertions and removals
-	 * will have a lot of levels, slowing down access more than would an occasional
-	 * unwanted reduction.
+	 * We put up with all this rather than just let levels grow because otherwise,
+	 * even a small map that has undergone a large number of insertions and removals
+	 * will have a lot of levels, slowing down access more than would an occasional
+	 * unwanted reduction.
+	 */
+	private void tryReduceLevel() {
+		Index<K, V> h, d, e;
+		if ((h = head) != null && h.right == null && (d = h.down) != null && d.right == null && (e = d.down) != null
+				&& e.right == null && HEAD.compareAndSet(this, h, d) && h.right != null) // recheck
+			HEAD.compareAndSet(this, d, h); // try to backout
+	}
+
+	// An index level counts as skewed if it has INDEX_SKEW_FACTOR times more or
+	// fewer entries than expected; levels expected to have fewer than
+	// MIN_CHECKED_LEVEL_SIZE entries are not checked
+	static final int INDEX_SKEW_FACTOR = 2;
+	static final int MIN_CHECKED_LEVEL_SIZE = 16;
+
+	// Number of nodes per chunk copied in parallel by SubMap.freeze
+	static final int FREEZE_CHUNK_NODES = 64;
+
+	/**
+	 * Replaces the index with a balanced one built over the current node list.
+	 * As with random levels, every fourth node is indexed on the lowest level,
+	 * and every second entry of a level on the level above. Nodes inserted while
+	 * the index is built stay reachable through the node list, and entries added
+	 * to the old index in the meantime are dropped. Returns false if the number
+	 * of levels changed concurrently, in which case the index is left as is.
+	 */
+	public boolean rebuildIndex() {
+		VarHandle.acquireFence();
+		Index<K, V> h = head;
+		if (h == null)
+			return false;
+
+		Node<K, V> base = h.node;
+		List<Index<K, V>> level = new ArrayList<>();
+		int position = 0;
+		for (Node<K, V> n = base.acquireNext(); n != null; n = n.acquireNext())
+			if (n.key != null && isLiveNode(n) && position++ % 4 == 0)
+				level.add(new Index<>(n, null, null));
+
+		Index<K, V> nh = linkLevel(base, null, level);
+		FlatIndex<K, V> flat = flatIndexEnabled ? new FlatIndex<>(level) : null;
+		while (level.size() > 1) {
+			List<Index<K, V>> upper = new ArrayList<>(level.size() / 2);
+			for (int i = 1; i < level.size(); i += 2)
+				upper.add(new Index<>(level.get(i).node, level.get(i), null));
+			nh = linkLevel(base, nh, upper);
+			level = upper;
+		}
+		if (!HEAD.compareAndSet(this, h, nh))
+			return false;
+		if (flatIndexEnabled)
+			flatIndex = flat;
+		return true;
+	}
+
+	/**
+	 * Enables or disables the flat index. When enabled, every rebuild of the
+	 * index (see {@link #rebuildIndex}) also stores its lowest level in sorted
+	 * arrays, which gets and other searches binary search before descending
+	 * the few remaining steps through the linked index. The flat index is not
+	 * updated by writes, but splits and merges of nodes are counted, and the
+	 * write that finds about a quarter of the nodes changed rebuilds the
+	 * index, which takes time linear in the size of the map. The flat index is
+	 * thus most useful for large maps that are read much more often than
+	 * their nodes are split or merged. Enabling it rebuilds the index.
+	 */
+	public void setFlatIndex(boolean enabled) {
+		flatIndexEnabled = enabled;
+		if (enabled)
+			rebuildIndex();
+		else
+			flatIndex = null;
+	}
+
+	/**
+	 * Returns the number of entries of the flat index, or 0 if there is none.
+	 */
+	public int getFlatIndexSize() {
+		FlatIndex<K, V> flat = flatIndex;
+		return flat == null ? 0 : flat.size();
+	}
+
+	private void countNodeChange() {
+		FlatIndex<K, V> flat = flatIndex;
+		if (flat != null)
+			flat.countChange();
+	}
+
+	/**
+	 * Rebuilds the index in the calling thread if the flat index is stale,
+	 * unless another thread already is.
+	 */
+	private void rebuildFlatIndexIfStale() {
+		FlatIndex<K, V> flat = flatIndex;
+		if (flat == null || !flat.isStale() || !flat.startRebuilding())
+			return;
+		try {
+			rebuildIndex();
+		} finally {
+			flat.stopRebuilding();
+		}
+	}
+
+	/**
+	 * Links the entries of a new index level and returns its head.
+	 */
+	private static <K, V> Index<K, V> linkLevel(Node<K, V> base, Index<K, V> down, List<Index<K, V>> entries) {
+		for (int i = entries.size() - 1; i > 0; i--)
+			entries.get(i - 1).right = entries.get(i);
+		return new Index<>(base, down, entries.isEmpty() ? null : entries.get(0));
+	}
+
+	/**
+	 * Rebuilds the index (see {@link #rebuildIndex}) if it is too tall, or the
+	 * number of entries of some level is far from the one expected for the
+	 * current number of nodes, e.g., after many merges or removals, or if the
+	 * flat index is stale (see {@link #setFlatIndex}). Returns true if the
+	 * index was rebuilt.
+	 */
+	public boolean rebuildIndexIfSkewed() {
+		VarHandle.acquireFence();
+		Index<K, V> h = head;
+		if (h == null)
+			return false;
+
+		long nodes = 0;
+		for (Node<K, V> n = h.node.acquireNext(); n != null; n = n.acquireNext())
+			if (n.key != null && isLiveNode(n))
+				nodes++;
+
+		List<Long> levelSizes = new ArrayList<>(); // topmost first
+		for (Index<K, V> q = h; q != null; q = q.down) {
+			long size = 0;
+			for (Index<K, V> r = q.right; r != null; r = r.right)
+				size++;
+			levelSizes.add(size);
+		}
+
+		FlatIndex<K, V> flat = flatIndex;
+		if (!isSkewed(nodes, levelSizes) && (flat == null || !flat.isStale()))
+			return false;
+		return rebuildIndex();
+	}
+
+	private static boolean isSkewed(long nodes, List<Long> levelSizes) {
+		int idealHeight = 1;
+		for (long size = nodes / 4; size > 1; size /= 2)
+			idealHeight++;
+		if (levelSizes.size() > idealHeight + 2)
+			return true;
+
+		long expected = nodes / 4;
+		for (int i = levelSizes.size() - 1; i >= 0 && expected >= MIN_CHECKED_LEVEL_SIZE; i--, expected /= 2) {
+			long size = levelSizes.get(i);
+			if (size * INDEX_SKEW_FACTOR < expected || size > expected * INDEX_SKEW_FACTOR)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Starts a daemon thread that checks the index once per period, and
+	 * rebuilds it if it is skewed (see {@link #rebuildIndexIfSkewed}). The
+	 * thread keeps the map reachable until it is stopped with
+	 * {@link #stopIndexRebuilder}.
+	 *
+	 * @throws IllegalStateException if a rebuilder is already running
 	 */
-	private void tryReduceLevel() {
-		Index<K, V> h, d, e;
-		if ((h = head) != null && h.right == null && (d = h.down) != null && d.right == null && (e = d.down) != null
-				&& e.right == null && HEAD.compareAndSet(this, h, d) && h.right != null) // recheck
-			HEAD.compareAndSet(this, d, h); // try to backout
+	public void startIndexRebuilder(Duration period) {
+		long periodMillis = Math.max(1, period.toMillis());
+		Thread thread = new Thread(() -> rebuildIndexPeriodically(periodMillis), "jiffy-index-rebuilder");
+		thread.setDaemon(true);
+		if (!INDEX_REBUILDER.compareAndSet(this, null, thread))
+			throw new IllegalStateException("An index rebuilder is already running.");
+		thread.start();
+	}
+
+	public void stopIndexRebuilder() {
+		Thread thread = (Thread) INDEX_REBUILDER.getAndSet(this, null);
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	private void rebuildIndexPeriodically(long periodMillis) {
+		Thread self = Thread.currentThread();
+		try {
+			while (indexRebuilder == self) {
+				Thread.sleep(periodMillis);
+				rebuildIndexIfSkewed();
+			}
+		} catch (InterruptedException e) {
+			// the rebuilder is being stopped
+		}
 	}
 
 	/* ---------------- Finding and removing first element -------------- */
@@ -2130,6 +3466,13 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	}
 
 	final NodeWithContext<K,V> findFirst(long version) {
+		NodeWithContext<K, V> t = findFirstAny(version);
+		if (!expiringEntries)
+			return t;
+		return skipExpired(t, false, version, null);
+	}
+
+	private NodeWithContext<K,V> findFirstAny(long version) {
 		Node<K, V> n = baseHead();
 		while (true) {
 			if (n == null)
@@ -2231,6 +3574,13 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	}
 
 	final NodeWithContext<K,V> findLast(long version) {
+		NodeWithContext<K, V> t = findLastAny(version);
+		if (!expiringEntries)
+			return t;
+		return skipExpired(t, true, version, null);
+	}
+
+	private NodeWithContext<K,V> findLastAny(long version) {
 		Node<K, V> b = baseHead();
 		Node<K, V> bNext = null;
 		Revision<K, V> bHead = null;
@@ -2418,6 +3768,48 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	 */
 	final NodeWithContext<K,V> findNear(K key, int rel, Comparator<? super K> cmp,
 			long version) {
+		return findNear(key, rel, cmp, version, null);
+	}
+
+	/**
+	 * Like {@link #findNear(Object, int, Comparator, long)}, but descends from
+	 * the lowest applicable index of the path recorded by a previous search (if
+	 * given), and records the new path.
+	 */
+	final NodeWithContext<K,V> findNear(K key, int rel, Comparator<? super K> cmp,
+			long version, IndexPath<K, V> path) {
+		NodeWithContext<K, V> t = findNearAny(key, rel, cmp, version, path);
+		if (!expiringEntries)
+			return t;
+		return skipExpired(t, (rel & LT) != 0, version, path);
+	}
+
+	/**
+	 * Moves the position past the entries that have expired, in the given
+	 * direction, continuing in the following nodes if needed.
+	 */
+	private NodeWithContext<K, V> skipExpired(NodeWithContext<K, V> t, boolean descending, long version,
+			IndexPath<K, V> path) {
+		long clock = expiryClock(version);
+		int step = descending ? -1 : 1;
+		while (t != null) {
+			MultiVal<K, V> mval = t.revision.getValue();
+			int size = mval.size();
+			int i = t.index;
+			for (; i >= 0 && i < size; i += step) {
+				if (!ExpiringValue.isExpired(mval.getValueByIndex(i), clock)) {
+					t.index = i;
+					return t;
+				}
+			}
+			K lastExpired = mval.getKeyByIndex(i - step);
+			t = findNearAny(lastExpired, descending ? LT : GT, comparator, version, path);
+		}
+		return null;
+	}
+
+	private NodeWithContext<K,V> findNearAny(K key, int rel, Comparator<? super K> cmp,
+			long version, IndexPath<K, V> path) {
 		if (key == null)
 			throw new NullPointerException();
 
@@ -2430,7 +3822,8 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		Node<K, V> b, n, bb, nNext;
 		K searchKey = key;
 		K doNotExceedKey = null;
-		outer: while ((b = findPredecessor(searchKey, cmp)) != null) {
+		outer: while ((b = path == null ? findPredecessor(searchKey, cmp)
+				: findPredecessor(searchKey, cmp, path)) != null) {
 			if (STATISTICS)
 				statsArray[0]++;
 			bb = b;
@@ -2586,30 +3979,48 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 				return null;
 			if (t.node.isTerminated())
 				continue;
-			return t.revision.getValue().getByIndex(t.index);
+			return entryAt(t);
 		}
 	}
 
-	/* ---------------- Constructors -------------- */
+	/**
+	 * Returns the entry at the position, with the value as put.
+	 */
+	final Map.Entry<K, V> entryAt(NodeWithContext<K, V> t) {
+		Map.Entry<K, V> entry = t.revision.getValue().getByIndex(t.index);
+		if (entry.getValue() instanceof ExpiringValue || entry.getValue() instanceof MergeOperands)
+			return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), unwrap(entry.getValue()));
+		return entry;
+	}
 
-	final long startTime;
+	/* ---------------- Constructors -------------- */
 
 	/**
 	 * Constructs a new, empty map, sorted according to the {@linkplain Comparable
 	 * natural ordering} of the keys.
 	 */
 	public Jiffy() {
-		startTime = System.nanoTime();
-		this.comparator = null;
-		initializeHead();
+		this((Comparator<? super K>) null);
+	}
+
+	/**
+	 * Constructs a new, empty map, sorted according to the {@linkplain Comparable
+	 * natural ordering} of the keys, which takes its versions from the given
+	 * domain.
+	 */
+	public Jiffy(VersionDomain domain) {
+		this(null, domain);
 	}
 
 	public Jiffy(int maxMultivalSize, int minMultivalSize) {
-		startTime = System.nanoTime();
 		this.MAX_MULTIVAL_SIZE = maxMultivalSize;
 		this.MIN_MULTIVAL_SIZE = minMultivalSize;
 		this.comparator = null;
+		this.domain = new VersionDomain();
+		this.virtualThreads = false;
+		this.threadCells = new ThreadCells(false, this::getCurrentVersion);
 		initializeHead();
+		domainIndex = domain.join(this);
 		System.err.format("Jiffy(%d, %d)%n", MAX_MULTIVAL_SIZE, MIN_MULTIVAL_SIZE);
 	}
 
@@ -2621,9 +4032,53 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	 *                   of the keys will be used.
 	 */
 	public Jiffy(Comparator<? super K> comparator) {
-		startTime = System.nanoTime();
+		this(comparator, new VersionDomain());
+	}
+
+	/**
+	 * Constructs a new, empty map, sorted according to the specified comparator,
+	 * which takes its versions from the given domain.
+	 */
+	public Jiffy(Comparator<? super K> comparator, VersionDomain domain) {
+		this(comparator, domain, false);
+	}
+
+	/**
+	 * Constructs a new, empty map, sorted according to the specified comparator,
+	 * which takes its versions from the given domain. If virtualThreads is
+	 * set, the map is tuned for being accessed by many, e.g., virtual, threads:
+	 * the per-thread state is shared by a fixed number of cells, and threads
+	 * waiting for other updates park instead of yielding.
+	 */
+	public Jiffy(Comparator<? super K> comparator, VersionDomain domain, boolean virtualThreads) {
 		this.comparator = comparator;
+		this.domain = Objects.requireNonNull(domain);
+		this.virtualThreads = virtualThreads;
+		this.threadCells = new ThreadCells(virtualThreads, this::getCurrentVersion);
 		initializeHead();
+		domainIndex = domain.join(this);
+	}
+
+	/**
+	 * Constructs a new, empty map, sorted according to the specified comparator,
+	 * which compares the keys by the prefixes computed by the given normalizer
+	 * first, and by the comparator only when their prefixes are equal.
+	 *
+	 * @param comparator the comparator that will be used to order this map. If
+	 *                   {@code null}, the {@linkplain Comparable natural ordering}
+	 *                   of the keys will be used.
+	 * @param normalizer the normalizer consistent with the ordering of the map
+	 */
+	public Jiffy(Comparator<? super K> comparator, KeyNormalizer<? super K> normalizer) {
+		this(comparator, normalizer, new VersionDomain());
+	}
+
+	/**
+	 * Constructs a new, empty map as {@link #Jiffy(Comparator, KeyNormalizer)},
+	 * which takes its versions from the given domain.
+	 */
+	public Jiffy(Comparator<? super K> comparator, KeyNormalizer<? super K> normalizer, VersionDomain domain) {
+		this(new NormalizedComparator<>(comparator, Objects.requireNonNull(normalizer)), domain);
 	}
 
 	/**
@@ -2638,9 +4093,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	 *                              values are null
 	 */
 	public Jiffy(Map<? extends K, ? extends V> m) {
-		startTime = System.nanoTime();
-		this.comparator = null;
-		initializeHead();
+		this((Comparator<? super K>) null);
 		putAll(m);
 	}
 
@@ -2654,9 +4107,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	 *                              or values are null
 	 */
 	public Jiffy(SortedMap<K, ? extends V> m) {
-		startTime = System.nanoTime();
-		this.comparator = m.comparator();
-		initializeHead();
+		this(m.comparator());
 		buildFromSorted(m); // initializes transients
 	}
 
@@ -2689,54 +4140,120 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	 * Call only from constructor or clone method.
 	 */
 	private void buildFromSorted(SortedMap<K, ? extends V> map) {
-		throw new UnsupportedOperationException();
-//        if (map == null)
-//            throw new NullPointerException();
-//        Iterator<? extends Map.Entry<? extends K, ? extends V>> it =
-//            map.entrySet().iterator();
-//
-//        /*
-//         * Add equally spaced indices at log intervals, using the bits
-//         * of count during insertion. The maximum possible resulting
-//         * level is less than the number of bits in a long (64). The
-//         * preds array tracks the current rightmost node at each
-//         * level.
-//         */
-//        @SuppressWarnings("unchecked")
-//        Index<K,V>[] preds = (Index<K,V>[])new Index<?,?>[64];
-//        Node<K,V> bp = new Node<K,V>(null, null, null);
-//        Index<K,V> h = preds[0] = new Index<K,V>(bp, null, null);
-//        long count = 0;
-//
-//        while (it.hasNext()) {
-//            Map.Entry<? extends K, ? extends V> e = it.next();
-//            K k = e.getKey();
-//            V v = e.getValue();
-//            if (k == null || v == null)
-//                throw new NullPointerException();
-//            Node<K,V> z = new Node<K,V>(k, v, null);
-//            bp = bp.next = z;
-//            if ((++count & 3L) == 0L) {
-//                long m = count >>> 2;
-//                int i = 0;
-//                Index<K,V> idx = null, q;
-//                do {
-//                    idx = new Index<K,V>(z, idx, null);
-//                    if ((q = preds[i]) == null)
-//                        preds[i] = h = new Index<K,V>(h.node, h, idx);
-//                    else
-//                        preds[i] = q.right = idx;
-//                } while (++i < preds.length && ((m >>>= 1) & 1L) != 0L);
-//            }
-//        }
-//        if (count != 0L) {
-//            VarHandle.releaseFence(); // emulate volatile stores
-//            addCount(count);
-//            head = h;
-//            VarHandle.fullFence();
-//        }
+		if (map == null)
+			throw new NullPointerException();
+		buildFromSorted(map.entrySet().iterator());
+	}
+
+	/**
+	 * Builds the skiplist bottom-up from entries in ascending key order instead
+	 * of inserting them one by one. Keys are packed into nodes of the size
+	 * halfway between the minimal and the maximal one, and equally spaced
+	 * indices are added at log intervals, using the bits of the node count, as
+	 * in ConcurrentSkipListMap. Must be called on an empty map before it is
+	 * shared with other threads.
+	 */
+	private void buildFromSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> it) {
+		Node<K, V> base = baseHead();
+		if (base.next != null || base.revisionHead.getValue().size() != 0)
+			throw new IllegalStateException("The map is not empty.");
+
+		Comparator<? super K> cmp = comparator;
+		int nodeSize = Math.max(1, (MAX_MULTIVAL_SIZE + MIN_MULTIVAL_SIZE) / 2);
+
+		/*
+		 * The preds array tracks the current rightmost index at each level.
+		 */
+		@SuppressWarnings("unchecked")
+		Index<K, V>[] preds = (Index<K, V>[]) new Index<?, ?>[64];
+		Index<K, V> h = preds[0] = head;
+		Node<K, V> bp = base;
+		long count = 0;
+
+		Object[] keys = new Object[nodeSize];
+		Object[] values = new Object[nodeSize];
+		int size = 0;
+		K lastKey = null;
+
+		while (true) {
+			boolean hasNext = it.hasNext();
+			if (hasNext) {
+				Map.Entry<? extends K, ? extends V> e = it.next();
+				K k = e.getKey();
+				V v = e.getValue();
+				if (k == null || v == null)
+					throw new NullPointerException();
+				if ((Object) v instanceof ExpiringValue) {
+					v = restoredValue(v);
+					if (v == null)
+						continue;
+				}
+				if (lastKey != null && cpr(cmp, lastKey, k) >= 0)
+					throw new IllegalArgumentException("Keys are not in ascending order.");
+				lastKey = k;
+				keys[size] = k;
+				values[size] = v;
+				size++;
+			}
+
+			if (size == nodeSize || (!hasNext && size > 0)) {
+				MultiVal<K, V> mval = SingleMultiVal.fromSortedArrays(cmp, Arrays.copyOf(keys, size),
+						Arrays.copyOf(values, size));
+				Revision<K, V> revision = new Revision<>(mval, 1, null);
+
+				if (bp == base && base.revisionHead.getValue().size() == 0) {
+					base.revisionHead = revision;
+				} else {
+					@SuppressWarnings("unchecked")
+					Node<K, V> z = new Node<>((K) keys[0], revision, null, cmp);
+					bp = bp.next = z;
+					if ((++count & 3L) == 0L) {
+						long m = count >>> 2;
+						int i = 0;
+						Index<K, V> idx = null, q;
+						do {
+							idx = new Index<K, V>(z, idx, null);
+							if ((q = preds[i]) == null)
+								preds[i] = h = new Index<K, V>(h.node, h, idx);
+							else
+								preds[i] = q.right = idx;
+						} while (++i < preds.length && ((m >>>= 1) & 1L) != 0L);
+					}
+				}
+				size = 0;
+			}
+
+			if (!hasNext)
+				break;
+		}
+
+		VarHandle.releaseFence(); // emulate volatile stores
+		head = h;
+		VarHandle.fullFence();
+	}
+
+	/**
+	 * Creates a map holding the content of a checkpoint written by
+	 * {@link MultiversionNavigableMapSnapshot#checkpoint}, built bottom-up.
+	 */
+	public static <K, V> Jiffy<K, V> load(Path path, Codec<K, V> codec) throws IOException {
+		return load(path, codec, new Jiffy<>());
 	}
 
+	/**
+	 * Fills an empty map, possibly configured with custom node sizes or a
+	 * comparator, with the content of a checkpoint.
+	 *
+	 * @return the given map
+	 */
+	public static <K, V> Jiffy<K, V> load(Path path, Codec<K, V> codec, Jiffy<K, V> map) throws IOException {
+		try (var reader = new Checkpoint.EntryReader<>(path, codec)) {
+			map.buildFromSorted(reader);
+		}
+		return map;
+	}
+
+
 	/* ---------------- Serialization -------------- */
 
 	// removed
@@ -2775,13 +4292,177 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	 * @throws NullPointerException if the specified key is null
 	 */
 	public V get(Object key) {
-		return doGet(key, NEWEST_VERSION);
+		V value = doGet(key, NEWEST_VERSION);
+		CacheState<K> cache = this.cache;
+		if (cache != null)
+			(value != null ? cache.hits : cache.misses).increment();
+		return value;
 	}
 
 	private V get(Object key, long version) {
 		return doGet(key, version);
 	}
 
+	/**
+	 * Returns the value the key was mapped to at the given version. The version
+	 * has to be covered by the retention window (see {@link #setRetention}) or
+	 * by an open snapshot, and is pinned for the duration of the read, like the
+	 * version of a snapshot.
+	 *
+	 * @throws IllegalArgumentException if the history of the version may have
+	 *                                  been discarded, or the version is in the
+	 *                                  future
+	 */
+	public V getAsOf(K key, long version) {
+		if (key == null)
+			throw new NullPointerException();
+		SubMap<K, V> pin = openSnapshot(version);
+		try {
+			checkRetained(version, pin);
+			return doGet(key, version);
+		} finally {
+			unregister(pin);
+		}
+	}
+
+	/**
+	 * Returns the history of the key since the given version, oldest first. The
+	 * first pair holds {@code fromVersion} and the value visible at that
+	 * version; every next pair holds the version of a change and the new value.
+	 * Removals are represented by {@code null} values, as are expiries of
+	 * entries put with a time to live if versions are taken from the clock
+	 * ({@link #USE_TSC}). The revision chain of the node holding the key is
+	 * walked directly, with {@code fromVersion} pinned as in
+	 * {@link #getAsOf}.
+	 *
+	 * @throws IllegalArgumentException if the history of the version may have
+	 *                                  been discarded, or the version is in the
+	 *                                  future
+	 */
+	public List<Pair<Long, V>> historyOf(K key, long fromVersion) {
+		if (key == null)
+			throw new NullPointerException();
+		SubMap<K, V> pin = openSnapshot(fromVersion);
+		try {
+			checkRetained(fromVersion, pin);
+			return history(key, fromVersion);
+		} finally {
+			unregister(pin);
+		}
+	}
+
+	private List<Pair<Long, V>> history(K key, long fromVersion) {
+		Node<K, V> node = findNodeForKey(key);
+		List<Pair<Long, V>> newestFirst = new ArrayList<>();
+		Revision<K, V> revision = node.acquireRevisionHead();
+		while (revision != null) {
+			long version = revision.effectiveVersion();
+			if (version > 0) { // skip an update still in progress
+				Revision<K, V> source = revision;
+				if (revision.getType() == Revision.SPLIT) {
+					SplitRevision<K, V> splitRevision = (SplitRevision<K, V>) revision;
+					if (splitRevision.left && cpr(comparator, key, splitRevision.getValue().lastKey()) > 0)
+						source = splitRevision.sibling;
+				}
+				newestFirst.add(new Pair<>(version, source.getValue().get(key)));
+				if (version <= fromVersion)
+					break;
+			}
+
+			if (revision.getType() == Revision.MERGE) {
+				MergeRevision<K, V> mergeRevision = (MergeRevision<K, V>) revision;
+				if (cpr(comparator, key, mergeRevision.keyOfRightNode) < 0)
+					revision = mergeRevision.acquireNext();
+				else
+					revision = mergeRevision.acquireRightNext();
+			} else {
+				revision = revision.acquireNext();
+			}
+		}
+
+		// oldest first, with the expiries of entries, which can be placed among
+		// versions only if these are taken from the clock
+		List<Pair<Long, V>> changes = new ArrayList<>();
+		long now = expiryClock(NEWEST_VERSION);
+		for (int i = newestFirst.size() - 1; i >= 0; i--) {
+			Pair<Long, V> change = newestFirst.get(i);
+			changes.add(new Pair<>(change.first, unwrap(change.second)));
+			if (USE_TSC && change.second instanceof ExpiringValue e) {
+				long until = i > 0 ? newestFirst.get(i - 1).first : now + 1;
+				if (e.deadline < until)
+					changes.add(new Pair<>(Math.max(e.deadline, change.first), null));
+			}
+		}
+
+		List<Pair<Long, V>> ret = new ArrayList<>();
+		ret.add(new Pair<>(fromVersion, null));
+		for (Pair<Long, V> change : changes) {
+			long version = Math.max(change.first, fromVersion);
+			Pair<Long, V> last = ret.get(ret.size() - 1);
+			if (last.second == change.second || (last.second != null && last.second.equals(change.second)))
+				continue;
+			if (last.first == version)
+				ret.set(ret.size() - 1, new Pair<>(version, change.second));
+			else
+				ret.add(new Pair<>(version, change.second));
+		}
+		return ret;
+	}
+
+	/**
+	 * Checks that the history of the version is retained, once the version is
+	 * pinned by the given snapshot. Garbage collections that computed their
+	 * watermarks before the pin did so with an older clock, i.e., with a lower
+	 * bound of the retention window than the one checked here, and later ones
+	 * take the pin into account.
+	 */
+	private void checkRetained(long version, SubMap<K, V> pin) {
+		if (version > getCurrentVersion())
+			throw new IllegalArgumentException("Version " + version + " is in the future.");
+		if (version < computeMinSnapshotVersion(getCurrentVersion(), pin))
+			throw new IllegalArgumentException("Version " + version + " is outside of the retention window.");
+	}
+
+	/**
+	 * Returns the node whose key range holds the key, helping splits and merges
+	 * in progress on the way.
+	 */
+	private Node<K, V> findNodeForKey(K key) {
+		for (;;) {
+			Node<K, V> b = key == null ? baseHead() : findPredecessor(key, comparator);
+			if (key != null) {
+				for (Node<K, V> n; (n = b.acquireNext()) != null;) {
+					if (n.isTerminated()) {
+						unlinkNode(b, n);
+						continue;
+					}
+					if (cpr(comparator, n.key, key) > 0)
+						break;
+					if (n.getType() == Node.TEMP_SPLIT) {
+						Revision<K, V> leftRevision = ((TempSplitNode<K, V>) n).leftRevision;
+						if (leftRevision.effectiveVersion() < 0) {
+							helpPut(leftRevision);
+						} else if (b.acquireNext() == n) {
+							// a faulty TempSplitNode introduced through ABA
+							n.terminate();
+							unlinkNode(b, n);
+						}
+						continue;
+					}
+					b = n;
+				}
+			}
+
+			Revision<K, V> head = b.acquireRevisionHead();
+			if (head.getType() == Revision.MERGE_TERMINATOR) {
+				helpMergeTerminator((MergeTerminatorRevision<K, V>) head);
+				cleanTerminatedNode(b.key);
+				continue;
+			}
+			return b;
+		}
+	}
+
 	/**
 	 * Returns the value to which the specified key is mapped, or the given
 	 * defaultValue if this map contains no mapping for the key.
@@ -2818,16 +4499,150 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		if (key == null || value == null)
 			throw new NullPointerException();
 
+		return putStored(key, value, value);
+	}
+
+	/**
+	 * Associates the specified value with the specified key for the given
+	 * time. Afterwards, the entry is treated as absent. Expired entries are
+	 * dropped when their node is next updated, split or merged, or by
+	 * {@link #sweepExpired}. Write-ahead logs and checkpoints record the
+	 * deadline as wall-clock time, so an entry restored from them expires at
+	 * the same time, or is left out if it has expired already.
+	 *
+	 * @return the previous value associated with the specified key, or
+	 *         {@code null} if there was no mapping for the key
+	 * @throws IllegalArgumentException if the time to live is not positive
+	 * @throws NullPointerException     if any of the arguments is null
+	 */
+	public V put(K key, V value, Duration ttl) {
+		if (key == null || value == null)
+			throw new NullPointerException();
+		if (ttl.isNegative() || ttl.isZero())
+			throw new IllegalArgumentException("Non-positive time to live: " + ttl);
+
+		long clock = domain.clock();
+		long nanos = ttl.compareTo(Duration.ofNanos(Long.MAX_VALUE - clock)) < 0 ? ttl.toNanos()
+				: Long.MAX_VALUE - clock;
+		expiringEntries = true;
+		return putStored(key, value, new ExpiringValue(value, clock + nanos));
+	}
+
+	/**
+	 * Sets the operator that folds the operands merged by {@link #mergeValue}
+	 * and {@link Batch#merge} over the values of keys. Has to be set before
+	 * the first merge. The operator may be replaced only by an equivalent one,
+	 * as the operands already merged are folded by the one set at the time.
+	 */
+	public void setMergeOperator(MergeOperator<V> operator) {
+		this.mergeOperator = Objects.requireNonNull(operator);
+	}
+
+	/**
+	 * Merges the operand into the value of the key, see {@link MergeOperator}.
+	 * Unlike a read followed by a put, the merge neither reads the value, nor
+	 * has to be retried if the key is updated in the meantime. Listeners and
+	 * write-ahead logs are notified of the value resulting from the merge.
+	 *
+	 * @throws IllegalStateException if no merge operator is set
+	 * @throws NullPointerException  if any of the arguments is null
+	 */
+	public void mergeValue(K key, V operand) {
+		if (key == null || operand == null)
+			throw new NullPointerException();
+		checkMergeOperator();
+		putStored(key, operand, MergeOperands.pending(operand));
+	}
+
+	void checkMergeOperator() {
+		if (mergeOperator == null)
+			throw new IllegalStateException("No merge operator is set.");
+		mergeOperands = true;
+	}
+
+	/**
+	 * Sets the expiry clock of the pending operands of a prepared batch, so
+	 * that they are not merged into entries that have expired.
+	 */
+	void prepareMergeOperands(Batch<K, V> batch) {
+		if (!expiringEntries || !batch.hasMergeOperands())
+			return;
+		long clock = expiryClock(NEWEST_VERSION);
+		Object[] values = batch.getValues();
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] instanceof MergeOperands m)
+				values[i] = m.at(clock);
+		}
+	}
+
+	/**
+	 * Associates the specified value with the specified key asynchronously.
+	 * Puts issued concurrently are combined into batches, each of which pays
+	 * for a single traversal and version publication per node. The put is
+	 * applied either by the calling thread, which then applies the pending
+	 * puts of other threads as well, for a bounded number of rounds, or by the
+	 * thread already doing so, in which case the method returns before the
+	 * put is applied. Puts of the
+	 * same thread are applied in the order they were issued. The returned
+	 * future completes, possibly on another thread, with the previous value
+	 * associated with the key, or {@code null} if there was none.
+	 *
+	 * @throws NullPointerException if the specified key or value is null
+	 */
+	public CompletableFuture<V> putAsync(K key, V value) {
+		if (key == null || value == null)
+			throw new NullPointerException();
+		return writeCombiner.put(key, value);
+	}
+
+	private V putStored(K key, V value, Object stored) {
+		ChangePublisher<K, V> publisher = changePublisher;
+		V ret;
+		if (publisher == null) {
+			ret = putSingle(key, value, stored, null);
+		} else {
+			int slot = publisher.enter();
+			try {
+				ret = putSingle(key, value, stored, publisher);
+			} finally {
+				publisher.exit(slot);
+			}
+		}
+		if (cache != null)
+			evictIfOverCapacity();
+		if (flatIndex != null)
+			rebuildFlatIndexIfStale();
+		return ret;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V putSingle(K key, V value, Object stored, ChangePublisher<K, V> publisher) {
+		checkWriteAheadLog();
 		long optimisticVersion = getCurrentVersion() + 1;
-		NewRevisionWithContext<K,V> revisionWithContext = doPutSingle(key, value, optimisticVersion);
+		NewRevisionWithContext<K,V> revisionWithContext = doPutSingle(key, (V) stored, optimisticVersion);
 
 		Revision<K, V> revision = revisionWithContext.revision;
 		Revision<K, V> next = revisionWithContext.head;
 		int indexInNext = revisionWithContext.index;
 
-		V ret = (next != null && indexInNext >= 0) ? next.getValue().getValueByIndex(indexInNext) : null;
+		V ret = (next != null && indexInNext >= 0)
+				? liveValue(next.getValue().getValueByIndex(indexInNext), NEWEST_VERSION)
+				: null;
 
 		long finalVersion = helpSingle(revision);
+
+		if (stored instanceof MergeOperands m && (commitListeners != null || publisher != null))
+			value = ((MergeOperands) m.onto(ret)).fold(mergeOperator);
+		V logged = value;
+		if (expiringEntries && commitListeners != null) {
+			// operands merged into a live entry keep its deadline
+			Object previous = ret != null ? next.getValue().getValueByIndex(indexInNext) : null;
+			if (stored instanceof ExpiringValue e)
+				logged = persistentValue(value, e.deadline);
+			else if (stored instanceof MergeOperands && previous instanceof ExpiringValue e)
+				logged = persistentValue(value, e.deadline);
+		}
+		notifyCommitted(finalVersion, key, value, logged, publisher);
 		
 		if (next != null) {
 			long gcNum = getGcNum(finalVersion);
@@ -2939,10 +4754,13 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			throw new NullPointerException();
 
 		int size = batch.mapSize();
+		if (batch.hasMergeOperands())
+			checkMergeOperator();
 		if (size == 0)
 			return;
 
-		if (size == 1) {
+		// a merge goes through the batch path, which resolves its operands
+		if (size == 1 && !batch.hasMergeOperands()) {
 			Entry<K, V> first = batch.mapOnlyEntry();
 
 			K key = first.getKey();
@@ -2954,19 +4772,107 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 				ret = remove(key);
 			batch.setSubstitutedValue(key, ret);
 
-			return;
-		}
+			return;
+		}
+
+		batch.prepare(comparator);
+		prepareMergeOperands(batch);
+
+		ChangePublisher<K, V> publisher = changePublisher;
+		if (publisher == null) {
+			putBatch(batch, null);
+		} else {
+			int slot = publisher.enter();
+			try {
+				putBatch(batch, publisher);
+			} finally {
+				publisher.exit(slot);
+			}
+		}
+		if (cache != null)
+			evictIfOverCapacity();
+		if (flatIndex != null)
+			rebuildFlatIndexIfStale();
+	}
+
+	/**
+	 * Installs the batch only if the keys of the expected batch still map (by
+	 * reference) to its values, or have not been updated since the read
+	 * version. Both batches must be prepared. Returns the version of the
+	 * batch, or -1 if it was aborted, in which case the expected values are
+	 * written back before the batch is finished, without notifying the
+	 * listeners.
+	 */
+	long putIfUnchanged(Batch<K, V> batch, Batch<K, V> expected, long readVersion) {
+		var undo = new Part<>(this, expected, null, 0, true);
+		var main = new Part<>(this, batch, expected, readVersion, false);
+		Part<?, ?>[] parts = { undo, main };
+
+		main.enter();
+		try {
+			long optimisticVersion = getCurrentVersion() + 1;
+			var descriptor = new MultiBatchDescriptor(parts, optimisticVersion);
+
+			main.install();
+			boolean committed = descriptor.validate();
+			if (!committed)
+				undo.install();
+
+			long currentVersion = getCurrentVersion();
+			if (currentVersion < optimisticVersion)
+				publishVersion(currentVersion);
+			long finalVersion = descriptor.trySetVersion(currentVersion);
+
+			if (committed)
+				main.finish(finalVersion);
+			else
+				main.finishQuietly();
+			undo.finishQuietly();
+			return committed ? finalVersion : -1;
+		} finally {
+			main.exit();
+		}
+	}
+
+	private void putBatch(Batch<K, V> batch, ChangePublisher<K, V> publisher) {
+		checkWriteAheadLog();
+		List<Revision<K, V>> revisions = new ArrayList<>();
+
+		long optimisticVersion = getCurrentVersion() + 1;
+		BatchDescriptor<K, V> descriptor = new BatchDescriptor<>(batch, optimisticVersion);
+
+		installBatchPrimaryRun(descriptor, revisions);
+
+		long currentVersion = getCurrentVersion();
+		if (currentVersion < optimisticVersion)
+			publishVersion(currentVersion);
+		long finalVersion = descriptor.trySetVersion(currentVersion);
+
+		finishBatchPrimaryRun(descriptor, revisions, finalVersion, publisher);
+	}
 
-		batch.prepare();
+	/**
+	 * Completes the primary run of a batch whose final version is already set:
+	 * collects the values substituted by the batch, notifies the listeners and
+	 * garbage collects the revisions the batch replaced.
+	 */
+	void finishBatchPrimaryRun(BatchDescriptor<K, V> descriptor, List<Revision<K, V>> revisions, long finalVersion,
+			ChangePublisher<K, V> publisher) {
+		Batch<K, V> batch = descriptor.batch;
 
-		List<Revision<K, V>> revisions = new ArrayList<>();
+		for (var r : revisions) {
+			if (r.getType() == Revision.SPLIT && !((SplitRevision<K, V>) r).left)
+				continue;
 
-		long optimisticVersion = getCurrentVersion() + 1;
-		BatchDescriptor<K, V> descriptor = new BatchDescriptor<>(batch, optimisticVersion);
+			retrieveBatchReturnValues2(descriptor, r);
+		}
+
+		threadCells.current().autoscalingLastTimeSet = descriptor.optimisticVersion;
 
-		long finalVersion = helpBatchPrimaryRun(descriptor, revisions);
 		descriptor.finish();
 
+		notifyCommitted(finalVersion, batch, publisher);
+
 		descriptor.batch = null;
 
 
@@ -2990,24 +4896,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	}
 
 	void publishVersion(long finalVersion) {
-		if (USE_TSC) {
-			int counter = 0;
-			while (finalVersion > getCurrentVersion()) {
-				counter++;
-				if (counter % 5 == 0)
-					Thread.yield();
-			}
-		} else {
-
-			int i;
-			for (i = 0; i < 5; i++) {
-				if (finalVersion <= getCurrentVersion()) {
-					break;
-				}
-			}
-			if (i == 5)
-				CURRENT_VERSION.getAndAdd(this, 1);
-		}
+		domain.publishVersion(finalVersion, virtualThreads);
 	}
 
 	public String debugAll() {
@@ -3092,8 +4981,11 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			K key = batch.getKeyByIndex(revision.indexOfLeftmostRelevantBatchKey + j);
 
 			int index = indices.indices[j];
-			V value = index < 0 ? null : nextMval.getByIndex(index).getValue();
+			Object stored = index < 0 ? null : nextMval.getValueByIndex(index);
+			V value = liveValue(stored, NEWEST_VERSION);
 			batch.setSubstitutedValue(key, value);
+			if (value != null && stored instanceof ExpiringValue e)
+				batch.setSubstitutedDeadline(key, e.deadline);
 		}
 	}
 
@@ -3133,10 +5025,11 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		}
 	}
 
-	private long helpBatchPrimaryRun(BatchDescriptor<K, V> descriptor, List<Revision<K, V>> revisions) {
-
-		long optimisticVersion = -1 * descriptor.acquireVersion();
-
+	/**
+	 * Installs the revisions of a batch, from its last key to its first one,
+	 * without setting the final version of the batch.
+	 */
+	void installBatchPrimaryRun(BatchDescriptor<K, V> descriptor, List<Revision<K, V>> revisions) {
 		long[] statsArray = null;
 		if (STATISTICS)
 			statsArray = new long[1];
@@ -3148,6 +5041,10 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 			Revision<K, V> currentRevision = doPutBatch(descriptor, nextKeyIndex, true);
 
+			// the part of a multi-batch got aborted or completed by other threads
+			if (currentRevision == null)
+				break;
+
 			if (currentRevision.getType() == Revision.MERGE_TERMINATOR)
 				currentRevision = helpBatchRevision(currentRevision, true);
 
@@ -3163,24 +5060,8 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			nextKeyIndex = currentRevision.indexOfLeftmostRelevantBatchKey - 1;
 		}
 
-		long currentVersion = getCurrentVersion();
-		if (currentVersion < optimisticVersion)
-			publishVersion(currentVersion);
-		long finalVersion = descriptor.trySetVersion(currentVersion);
-
-		for (var r : revisions) {
-			if (r.getType() == Revision.SPLIT && !((SplitRevision<K, V>) r).left)
-				continue;
-
-			retrieveBatchReturnValues2(descriptor, r);
-		}
-
 		if (STATISTICS)
 			stats.get().updateHelpBatchPrimaryRun(statsArray);
-
-		autoscalingLastTimeSet.set(optimisticVersion);
-
-		return finalVersion;
 	}
 
 	private long helpBatch(Revision<K, V> revision) {
@@ -3210,42 +5091,12 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			// could be null if we helped a terminator revision but
 			// we haven't found the merge revision because it's been already GCd
 			
-			int nextKeyIndex = revision.indexOfLeftmostRelevantBatchKey - 1;
-
-			while (nextKeyIndex >= 0) {
-				version = descriptor.acquireVersion();
-				if (version > 0) {
-					setFinalVersion = false;
-					break;
-				}
-
-				if (STATISTICS)
-					statsArray[0]++;
-
-				Revision<K, V> currentRevision = doPutBatch(descriptor, nextKeyIndex, false);
-
-				if (currentRevision == null) {
-					setFinalVersion = false;
-					descriptor.acquireVersion();
-					break;
-				}
-
-				if (currentRevision.getType() == Revision.MERGE_TERMINATOR) {
-					if (descriptor.acquireVersion() > 0) {
-						setFinalVersion = false;
-						break;
-					}
-
-					currentRevision = helpBatchRevision(currentRevision, false);
-
-					if (currentRevision == null) {
-						setFinalVersion = false;
-						break;
-					}
-				}
+			setFinalVersion = helpBatchFrom(descriptor, revision.indexOfLeftmostRelevantBatchKey - 1, statsArray);
 
-				nextKeyIndex = currentRevision.indexOfLeftmostRelevantBatchKey - 1;
-			}
+			// the parts of a multi-map batch are installed in the reverse order,
+			// so the parts preceding this one may still be missing
+			if (setFinalVersion && descriptor.multi != null)
+				setFinalVersion = descriptor.multi.helpPartsBefore(descriptor.part);
 
 			if (setFinalVersion) {
 				long currentVersion = getCurrentVersion();
@@ -3263,11 +5114,65 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			stats.get().updateHelpBatch(statsArray);
 
 		if (optimisticVersion != 0)
-			autoscalingLastTimeSet.set(optimisticVersion);
+			threadCells.current().autoscalingLastTimeSet = optimisticVersion;
 
 		return version;
 	}
 
+	/**
+	 * Helps to install the revisions of a batch, from the given key index down
+	 * to the first key of the batch. Returns false if the final version of the
+	 * batch turned out to be already set.
+	 */
+	private boolean helpBatchFrom(BatchDescriptor<K, V> descriptor, int nextKeyIndex, long[] statsArray) {
+		while (nextKeyIndex >= 0) {
+			if (descriptor.acquireVersion() > 0)
+				return false;
+
+			if (STATISTICS)
+				statsArray[0]++;
+
+			Revision<K, V> currentRevision = doPutBatch(descriptor, nextKeyIndex, false);
+
+			// for a part of a multi-batch, the remaining parts may still need help
+			if (currentRevision == null)
+				return descriptor.multi != null && descriptor.acquireVersion() < 0;
+
+			if (currentRevision.getType() == Revision.MERGE_TERMINATOR) {
+				if (descriptor.acquireVersion() > 0)
+					return false;
+
+				currentRevision = helpBatchRevision(currentRevision, false);
+
+				if (currentRevision == null)
+					return false;
+			}
+
+			nextKeyIndex = currentRevision.indexOfLeftmostRelevantBatchKey - 1;
+		}
+		return true;
+	}
+
+	/**
+	 * Helps to install all revisions of a part of a multi-map batch. Returns
+	 * false if the final version of the batch turned out to be already set.
+	 */
+	boolean helpBatchPart(BatchDescriptor<K, V> descriptor) {
+		long[] statsArray = null;
+		if (STATISTICS)
+			statsArray = new long[1];
+
+		Batch<K, V> batch = descriptor.batch;
+		if (batch == null)
+			return false;
+		boolean ret = helpBatchFrom(descriptor, batch.size() - 1, statsArray);
+
+		if (STATISTICS)
+			stats.get().updateHelpBatch(statsArray);
+
+		return ret;
+	}
+
 	private Revision<K, V> helpBatchRevision(Revision<K, V> revision, boolean primaryRun) {
 		Revision<K, V> ret = null;
 
@@ -3303,7 +5208,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 	/******/
 
-	private NewRevisionWithContext<K, V> doRemoveSingle(K key, long optimisticVersion) {
+	private NewRevisionWithContext<K, V> doRemoveSingle(K key, Object expected, long optimisticVersion) {
 		if (head != null && key == null) {
 			throw new NullPointerException();
 		}
@@ -3315,7 +5220,9 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			statsArray = new long[10];
 
 		Comparator<? super K> cmp = comparator;
+		long keyPrefix = NormalizedComparator.prefix(cmp, key);
 		Revision<K, V> revision = new Revision<>(null, -optimisticVersion, null);
+		int failures = 0; // failed revision installs, to back off from contended nodes
 
 		outer: for (;;) {
 			if (STATISTICS)
@@ -3327,10 +5234,10 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			for (Index<K, V> q = h, r, d;;) { // count while descending
 				while ((r = q.right) != null) {
 					Node<K, V> p = r.node;
-					K k = p != null ? p.key : null;
+					K k = r.key;
 					if (p == null || p.isTerminated())
 						RIGHT.compareAndSet(q, r, r.right);
-					else if (cpr(cmp, key, k) > 0)
+					else if (cpr(cmp, keyPrefix, key, r.keyPrefix, k) > 0)
 						q = r;
 					else
 						break;
@@ -3359,7 +5266,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 				else if (n.isTerminated()) {
 					unlinkNode(b, n);
 					c = 1;
-				} else if ((c = cpr(cmp, key, k)) >= 0)
+				} else if ((c = cpr(cmp, keyPrefix, key, n.keyPrefix, k)) >= 0)
 					b = n;
 
 				if (c < 0) {
@@ -3395,6 +5302,8 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 					MultiVal<K, V> headMval = head.getValue();
 					int index = headMval.indexOfKeyInMultiVal(key, true);
+					if (index >= 0 && expected != null && headMval.getValueByIndex(index) != expected)
+						index = -index - 1;
 					if (index < 0) {
 						if (STATISTICS)
 							statsArray[6]++;
@@ -3402,25 +5311,29 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 						break outer;
 					}
 
-					long delta = optimisticVersion - autoscalingLastTimeSet.get();
+					long delta = optimisticVersion - threadCells.current().autoscalingLastTimeSet;
 					double[] newAutoscaleParam = newAutoscaleParamForUpdates(head.getAutoscaleParam(), delta);
 
 					int endSize = headMval.size() - 1;
-					if (b == h.node || whatUpdate(endSize, newAutoscaleParam) != -1) {
+					if (b == h.node || (whatUpdate(endSize, newAutoscaleParam) != -1 && !isContentionFaded(b, endSize))
+							|| isContended(b, 2 * endSize)) {
 						if (STATISTICS)
 							statsArray[7]++;
 						// TODO if base node we sometimes can unnecessarily put a new empty revision
-						MultiVal<K, V> mval = headMval.remove(key, index);
+						MultiVal<K, V> mval = removeFromMultiVal(headMval, key, index);
+						mval = dropExpired(mval, -1, b.key == null);
 						revision.value = null;
 						revision.setValue(mval, null);
 						revision.next = head;
 
 						revision.setAutoscaleParam(newAutoscaleParam);
 
-						if (b.tryPutRevisionSingle(revision)) {
+						if (tryPutRevisionSingle(b, revision)) {
+							recordUpdate(b, mval.size() - headMval.size(), optimisticVersion);
 							ret = new NewRevisionWithContext<>(revision, head, index);
 							break outer;
 						}
+						Backoff.pause(++failures, virtualThreads);
 						continue insertionPoint;
 					} else {
 						if (STATISTICS)
@@ -3440,21 +5353,23 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 								b, head, index);
 						mergeTerminator.setAutoscaleParam(newAutoscaleParam);
 
-						if (b.tryPutRevisionSingle(mergeTerminator)) {
+						if (tryPutRevisionSingle(b, mergeTerminator)) {
 							if (SPLIT_MERGE_STATISTICS)
-								mergeCounter.set(mergeCounter.get() + 1);
+								threadCells.current().merges++;
+							countNodeChange();
 
 							helpMergeTerminator(mergeTerminator);
 							ret = new NewRevisionWithContext<>(mergeTerminator, head, index); // not returning the true merge revision!
 							break outer;
 						}
+						Backoff.pause(++failures, virtualThreads);
 						// carries on, i.e., continue insertionPoint
 					}
 				}
 			}
 		}
 
-		autoscalingLastTimeSet.set(optimisticVersion);
+		threadCells.current().autoscalingLastTimeSet = optimisticVersion;
 
 		if (STATISTICS)
 			stats.get().updateDoRemoveSingle(statsArray);
@@ -3481,15 +5396,34 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 		K cKey = (K) key;
 
+		ChangePublisher<K, V> publisher = changePublisher;
+		if (publisher == null)
+			return removeSingle(cKey, null, null);
+		int slot = publisher.enter();
+		try {
+			return removeSingle(cKey, null, publisher);
+		} finally {
+			publisher.exit(slot);
+		}
+	}
+
+	/**
+	 * Removes the key. If the expected value is given, the key is removed only
+	 * if it is still mapped to it (by reference).
+	 */
+	private V removeSingle(K cKey, Object expected, ChangePublisher<K, V> publisher) {
+		checkWriteAheadLog();
 		long optimisticVersion = getCurrentVersion() + 1;
 
-		NewRevisionWithContext<K,V> revisionWithContext = doRemoveSingle(cKey, optimisticVersion);
+		NewRevisionWithContext<K,V> revisionWithContext = doRemoveSingle(cKey, expected, optimisticVersion);
 
 		Revision<K, V> revision = revisionWithContext.revision;
 		Revision<K, V> next = revisionWithContext.head;
 		int indexInNext = revisionWithContext.index;
 
-		V ret = (next != null && indexInNext >= 0) ? next.getValue().getValueByIndex(indexInNext) : null;
+		V ret = (next != null && indexInNext >= 0)
+				? liveValue(next.getValue().getValueByIndex(indexInNext), NEWEST_VERSION)
+				: null;
 
 		long finalVersion;
 		if (revision == null) {
@@ -3513,6 +5447,9 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 			finalVersion = mergeRevision.acquireVersion();
 
+			if (ret != null)
+				notifyCommitted(finalVersion, cKey, null, null, publisher);
+
 			assert next != null;
 			if (next.descriptor != null && !next.descriptor.isFinished()) {
 				return ret;
@@ -3524,6 +5461,9 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		} else { // a tombstone or a just reduced mval was created
 			finalVersion = helpSingle(revision);
 
+			if (ret != null)
+				notifyCommitted(finalVersion, cKey, null, null, publisher);
+
 			long gcNum = getGcNum(finalVersion);
 			doGc(revision, next, gcNum, true);
 		}
@@ -3994,7 +5934,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	/* ------ SortedMap API methods ------ */
 
 	public Comparator<? super K> comparator() {
-		return comparator;
+		return NormalizedComparator.unwrap(comparator);
 	}
 
 	/**
@@ -4008,7 +5948,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		NodeWithContext<K,V> t = findFirst(version);
 		if (t == null)
 			throw new NoSuchElementException();
-		return t.revision.getValue().firstKey();
+		return t.revision.getValue().getKeyByIndex(t.index);
 	}
 
 	/**
@@ -4022,7 +5962,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		NodeWithContext<K,V> t = findLast(version);
 		if (t == null)
 			throw new NoSuchElementException();
-		return t.revision.getValue().lastKey();
+		return t.revision.getValue().getKeyByIndex(t.index);
 	}
 
 	public MultiversionNavigableMap<K, V> subMap() {
@@ -4895,7 +6835,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			if ((n = loNode(cmp)) == null || !isBeforeEnd(n, cmp))
 				return null;
 			else
-				return n.revision.getValue().getByIndex(n.index);
+				return m.entryAt(n);
 		}
 
 		Map.Entry<K, V> highestEntry() {
@@ -4904,7 +6844,7 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			if ((n = hiNode(cmp)) == null || !inBounds(n.revision.getValue().getKeyByIndex(n.index), cmp))
 				return null;
 			else
-				return n.revision.getValue().getByIndex(n.index);
+				return m.entryAt(n);
 		}
 
 		Map.Entry<K, V> removeLowest() {
@@ -5019,6 +6959,17 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 			return m.get(key, effectiveVersion());
 		}
 
+		/**
+		 * Returns the value of the key as stored in the revision, see
+		 * {@link Jiffy#getStored}.
+		 */
+		Object getStored(Object key) {
+			checkSnapshot();
+			if (!inBounds(key, m.comparator))
+				return null;
+			return m.getStored(key, effectiveVersion());
+		}
+
 		@Override
 		public V put(K key, V value) {
 			throw new UnsupportedOperationException();
@@ -5073,12 +7024,143 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 		@Override
 		public void forEach(BiConsumer<? super K, ? super V> action) {
+			Objects.requireNonNull(action);
+			checkSnapshot();
+
+			forEachChunk((mval, from, to) -> {
+				@SuppressWarnings("unchecked")
+				var keys = (K[]) mval.getKeys();
+				@SuppressWarnings("unchecked")
+				var values = (V[]) mval.getValues();
+				for (int i = from; i < to; i++)
+					action.accept(keys[i], values[i]);
+				return to - from;
+			});
+		}
+
+		/**
+		 * Like {@link #forEach}, but passes the values of entries with a time to
+		 * live as {@link Jiffy#persistentValue}, for {@link Checkpoint}.
+		 */
+		void forEachPersisted(BiConsumer<? super K, ? super V> action) {
+			checkSnapshot();
+
+			forEachChunk((mval, from, to) -> {
+				@SuppressWarnings("unchecked")
+				var keys = (K[]) mval.getKeys();
+				Object[] values = mval.getValues();
+				long clock = m.expiryClock(effectiveVersion());
+				for (int i = from; i < to; i++) {
+					if (values[i] instanceof ExpiringValue e) {
+						if (e.deadline > clock)
+							action.accept(keys[i], m.persistentValue(m.unwrap(e), e.deadline));
+					} else {
+						action.accept(keys[i], m.unwrap(values[i]));
+					}
+				}
+				return to - from;
+			}, false);
+		}
+
+		/**
+		 * Revision contents are copied in slices with
+		 * {@link System#arraycopy}, without allocating an entry per element.
+		 */
+		@Override
+		public int scan(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, K[] keys, V[] values) {
+			Objects.requireNonNull(keys);
+			checkSnapshot();
+			Comparator<? super K> cmp = m.comparator;
+
+			int c;
+			if (fromKey == null || (lo != null && ((c = cpr(cmp, fromKey, lo)) < 0 || (c == 0 && loInclusive)))) {
+				fromKey = lo;
+				fromInclusive = loInclusive;
+			}
+			if (toKey == null || (hi != null && ((c = cpr(cmp, toKey, hi)) > 0 || (c == 0 && hiInclusive)))) {
+				toKey = hi;
+				toInclusive = hiInclusive;
+			}
+			if (fromKey != null && toKey != null && cpr(cmp, fromKey, toKey) > 0)
+				return 0;
+
+			int capacity = values == null ? keys.length : Math.min(keys.length, values.length);
+			if (capacity == 0)
+				return 0;
+
+			var range = new SubMap<>(m, fromKey, fromInclusive, toKey, toInclusive, false, mySnapshot);
+			int[] count = new int[1];
+			range.forEachChunk((mval, from, to) -> {
+				int n = Math.min(to - from, capacity - count[0]);
+				System.arraycopy(mval.getKeys(), from, keys, count[0], n);
+				if (values != null)
+					System.arraycopy(mval.getValues(), from, values, count[0], n);
+				count[0] += n;
+				return n;
+			});
+			return count[0];
+		}
+
+		@Override
+		public int scan(K fromKey, K toKey, K[] keys, V[] values) {
+			return scan(fromKey, true, toKey, false, keys, values);
+		}
+
+		/**
+		 * Consumes the slice {@code [from, to)} of a revision content, returning
+		 * the number of entries consumed. Consuming fewer than offered stops the
+		 * traversal.
+		 */
+		interface ChunkConsumer<K, V> {
+			int accept(MultiVal<K, V> mval, int from, int to);
+		}
+
+		/**
+		 * Passes the slice to the consumer without the entries that have expired,
+		 * copying it if it holds any entries put with a time to live or merged
+		 * operands, which are folded. Returns the number of entries of the
+		 * original slice consumed.
+		 */
+		private int acceptLive(ChunkConsumer<K, V> consumer, MultiVal<K, V> mval, int from, int to) {
+			Object[] keys = mval.getKeys();
+			Object[] values = mval.getValues();
+			int i = from;
+			while (i < to && !(values[i] instanceof ExpiringValue) && !(values[i] instanceof MergeOperands))
+				i++;
+			if (i == to)
+				return consumer.accept(mval, from, to);
+
+			long clock = m.expiryClock(effectiveVersion());
+			Object[] liveKeys = new Object[to - from];
+			Object[] liveValues = new Object[to - from];
+			int n = 0;
+			for (i = from; i < to; i++) {
+				if (!ExpiringValue.isExpired(values[i], clock)) {
+					liveKeys[n] = keys[i];
+					liveValues[n++] = m.unwrap(values[i]);
+				}
+			}
+			if (n == 0)
+				return to - from;
+			var live = SingleMultiVal.<K, V>fromSortedArrays(m.comparator, Arrays.copyOf(liveKeys, n),
+					Arrays.copyOf(liveValues, n));
+			return consumer.accept(live, 0, n) < n ? 0 : to - from;
+		}
+
+		private void forEachChunk(ChunkConsumer<K, V> consumer) {
+			forEachChunk(consumer, true);
+		}
+
+		/**
+		 * Passes the content of the range, in ascending key order, to the consumer
+		 * in slices of revision contents, with the expired entries left out and
+		 * the values as read if live is set, or as stored otherwise.
+		 */
+		private void forEachChunk(ChunkConsumer<K, V> consumer, boolean live) {
 			long[] statsArray = null;
 			if (STATISTICS)
 				statsArray = new long[9];
 
-			Objects.requireNonNull(action);
-			checkSnapshot();
 			VarHandle.acquireFence();
 
 			NodeWithContext<K,V> t = loNode(m.comparator);
@@ -5132,13 +7214,14 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 					if (STATISTICS)
 						statsArray[4]++;
 
+					int consumed = live && (m.expiringEntries || m.mergeOperands)
+							? acceptLive(consumer, currentMVal, currentIndex, toIndex)
+							: consumer.accept(currentMVal, currentIndex, toIndex);
+					if (consumed < toIndex - currentIndex)
+						break;
 					@SuppressWarnings("unchecked")
-					var keys = (K[]) currentMVal.getKeys();
-					@SuppressWarnings("unchecked")
-					var values = (V[]) currentMVal.getValues();
-					for (int i = currentIndex; i < toIndex; i++)
-						action.accept(keys[i], values[i]);
-					refKey = keys[toIndex - 1];
+					var lastKey = (K) currentMVal.getKeys()[toIndex - 1];
+					refKey = lastKey;
 				}
 
 				if (!more)
@@ -5476,6 +7559,9 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 			Map.Entry<K, V> nextEntry;
 
+			// the search path of the last predecessor step, only for descending iterator
+			IndexPath<K, V> path;
+
 			public List<Node<K, V>> debugNodes = null;
 			public List<Revision<K, V>> debugRevisions = null;
 			public List<Integer> debugIndices = null;
@@ -5567,9 +7653,16 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 				if (currentIterator == null)
 					return false;
 
-				if (currentIterator.hasNext()) {
+				while (currentIterator.hasNext()) {
 					nextEntry = currentIterator.next();
 					refKey = nextEntry.getKey();
+					if (nextEntry.getValue() instanceof ExpiringValue e) {
+						if (e.deadline <= m.expiryClock(effectiveVersion()))
+							continue;
+						nextEntry = new AbstractMap.SimpleImmutableEntry<>(refKey, m.unwrap(e));
+					} else if (nextEntry.getValue() instanceof MergeOperands) {
+						nextEntry = new AbstractMap.SimpleImmutableEntry<>(refKey, m.unwrap(nextEntry.getValue()));
+					}
 					return true;
 				}
 
@@ -5687,7 +7780,9 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 							statsArray[1]++;
 
 						K keyToSearch = currentRevision.getValue().firstKey();
-						var t = m.findNear(keyToSearch, LT, m.comparator, effectiveVersion());
+						if (path == null)
+							path = new IndexPath<>();
+						var t = m.findNear(keyToSearch, LT, m.comparator, effectiveVersion(), path);
 
 						if (t == null) {
 							currentIterator = null;
@@ -5869,6 +7964,66 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		public void put(Batch<K, V> batch) {
 			throw new UnsupportedOperationException();
 		}
+
+		@Override
+		public void checkpoint(Path path, Codec<K, V> codec) throws IOException {
+			checkSnapshot();
+			if (mySnapshot != null) {
+				Checkpoint.write(this, path, codec);
+			} else {
+				try (var snapshot = snapshot()) {
+					Checkpoint.write(snapshot, path, codec);
+				}
+			}
+		}
+
+		@Override
+		public ImmutableSortedMap<K, V> freeze() {
+			checkSnapshot();
+			if (mySnapshot == null) {
+				try (var snapshot = snapshot()) {
+					return snapshot.freeze();
+				}
+			}
+
+			// the range is divided into chunks by the keys of every
+			// FREEZE_CHUNK_NODES-th node, and the chunks are copied in parallel
+			// through views of the snapshot
+			Comparator<? super K> cmp = m.comparator;
+			List<K> bounds = new ArrayList<>();
+			int position = 0;
+			for (Node<K, V> n = m.baseHead(); n != null; n = n.acquireNext())
+				if (n.key != null && isLiveNode(n) && inBounds(n.key, cmp) && ++position % FREEZE_CHUNK_NODES == 0)
+					bounds.add(n.key);
+
+			Object[][][] chunks = IntStream.rangeClosed(0, bounds.size()).parallel().mapToObj(i -> {
+				K from = i == 0 ? lo : bounds.get(i - 1);
+				K to = i == bounds.size() ? hi : bounds.get(i);
+				var view = new SubMap<>(m, from, i == 0 ? loInclusive : true, to, i == bounds.size() ? hiInclusive : false,
+						false, mySnapshot);
+				List<Object> keys = new ArrayList<>();
+				List<Object> values = new ArrayList<>();
+				for (Map.Entry<K, V> e : view.entrySet()) {
+					keys.add(e.getKey());
+					values.add(e.getValue());
+				}
+				return new Object[][] { keys.toArray(), values.toArray() };
+			}).toArray(Object[][][]::new);
+
+			int size = 0;
+			for (Object[][] chunk : chunks)
+				size += chunk[0].length;
+			Object[] keys = new Object[size];
+			Object[] values = new Object[size];
+			int offset = 0;
+			for (Object[][] chunk : chunks) {
+				System.arraycopy(chunk[0], 0, keys, offset, chunk[0].length);
+				System.arraycopy(chunk[1], 0, values, offset, chunk[1].length);
+				offset += chunk[0].length;
+			}
+			return new ImmutableSortedMap<>(new FrozenData<>(cmp, keys, values), m.comparator(), 0, size,
+					isDescending);
+		}
 	}
 
 	
@@ -6253,16 +8408,22 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 	private static final VarHandle HEAD;
 	private static final VarHandle NEXT;
 	private static final VarHandle RIGHT;
-	private static final VarHandle CURRENT_VERSION;
 	private static final VarHandle SNAPSHOTS;
+	private static final VarHandle COMMIT_LISTENERS;
+	private static final VarHandle CHANGE_PUBLISHER;
+	private static final VarHandle SWEEPER;
+	private static final VarHandle INDEX_REBUILDER;
 	static {
 		try {
 			MethodHandles.Lookup l = MethodHandles.lookup();
 			HEAD = l.findVarHandle(Jiffy.class, "head", Index.class);
 			NEXT = l.findVarHandle(Node.class, "next", Node.class);
 			RIGHT = l.findVarHandle(Index.class, "right", Index.class);
-			CURRENT_VERSION = l.findVarHandle(Jiffy.class, "currentVersion", long.class);
 			SNAPSHOTS = l.findVarHandle(Jiffy.class, "snapshots", SubMap.class);
+			COMMIT_LISTENERS = l.findVarHandle(Jiffy.class, "commitListeners", CommitListener[].class);
+			CHANGE_PUBLISHER = l.findVarHandle(Jiffy.class, "changePublisher", ChangePublisher.class);
+			SWEEPER = l.findVarHandle(Jiffy.class, "sweeper", Thread.class);
+			INDEX_REBUILDER = l.findVarHandle(Jiffy.class, "indexRebuilder", Thread.class);
 		} catch (ReflectiveOperationException e) {
 			throw new ExceptionInInitializerError(e);
 		}
@@ -6277,11 +8438,35 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 
 	@Override
 	public long getCurrentVersion() {
-		if (USE_TSC) {
-			return System.nanoTime() - startTime;
-		} else {
-			return (long) CURRENT_VERSION.getAcquire(this);
-		}
+		return domain.getCurrentVersion();
+	}
+
+	@Override
+	public int scan(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, K[] keys, V[] values) {
+		return new SubMap<>(this, null, false, null, false, false).scan(fromKey, fromInclusive, toKey, toInclusive,
+				keys, values);
+	}
+
+	@Override
+	public int scan(K fromKey, K toKey, K[] keys, V[] values) {
+		return scan(fromKey, true, toKey, false, keys, values);
+	}
+
+	/**
+	 * Starts an optimistic transaction reading from a snapshot of this map.
+	 */
+	public Transaction<K, V> beginTransaction() {
+		return new Transaction<>(this);
+	}
+
+	/**
+	 * Registers a snapshot at the given version, which the caller raises to the
+	 * current version once the snapshot is registered.
+	 */
+	SubMap<K, V> openSnapshot(long version) {
+		var subMap = new SubMap<>(this, null, false, null, false, false, version);
+		register(subMap, false);
+		return subMap;
 	}
 
 	@Override
@@ -6298,6 +8483,166 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		return subMap;
 	}
 
+	/**
+	 * Returns the keys whose mappings differ between two snapshots of this map,
+	 * in ascending key order, restricted to the key ranges of both snapshots.
+	 * Nodes whose newest revision is not newer than the older of the two
+	 * versions are skipped without inspecting their content, so apart from a
+	 * walk over the node list, the cost depends on the amount of change rather
+	 * than on the size of the map. The stream is lazy and requires both
+	 * snapshots to stay open until it is consumed.
+	 *
+	 * @throws IllegalArgumentException if either argument is not a snapshot of
+	 *                                  this map
+	 */
+	public Stream<DiffEntry<K, V>> diff(MultiversionNavigableMapSnapshot<K, V> from,
+			MultiversionNavigableMapSnapshot<K, V> to) {
+		return StreamSupport.stream(new DiffSpliterator(ownSnapshot(from), ownSnapshot(to)), false);
+	}
+
+	private SubMap<K, V> ownSnapshot(MultiversionNavigableMapSnapshot<K, V> snapshot) {
+		if (!(snapshot instanceof SubMap<K, V> subMap) || subMap.m != this || subMap.mySnapshot == null)
+			throw new IllegalArgumentException("Not a snapshot of this map.");
+		subMap.checkSnapshot();
+		return subMap;
+	}
+
+	private final class DiffSpliterator extends Spliterators.AbstractSpliterator<DiffEntry<K, V>> {
+		final SubMap<K, V> from;
+		final SubMap<K, V> to;
+		final long fromVersion;
+		final long toVersion;
+
+		// the node holding the first key that has not been compared yet
+		Node<K, V> current;
+		// the first key that has not been compared yet, null at the beginning
+		K done = null;
+		final ArrayDeque<DiffEntry<K, V>> buffer = new ArrayDeque<>();
+
+		DiffSpliterator(SubMap<K, V> from, SubMap<K, V> to) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+			this.from = from;
+			this.to = to;
+			this.fromVersion = from.effectiveVersion();
+			this.toVersion = to.effectiveVersion();
+			this.current = baseHead();
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super DiffEntry<K, V>> action) {
+			while (buffer.isEmpty()) {
+				if (current == null)
+					return false;
+				from.checkSnapshot();
+				to.checkSnapshot();
+				compareNode();
+			}
+			action.accept(buffer.poll());
+			return true;
+		}
+
+		private void compareNode() {
+			Node<K, V> node = current;
+			Revision<K, V> head = node.acquireRevisionHead();
+			if (head.getType() == Revision.MERGE_TERMINATOR) {
+				helpMergeTerminator((MergeTerminatorRevision<K, V>) head);
+				cleanTerminatedNode(node.key);
+				current = findNodeForKey(done);
+				return;
+			}
+
+			// the range of the node ends at the next node, finish any split or
+			// merge in progress first
+			Node<K, V> next = node.acquireNext();
+			if (next != null && next.getType() == Node.TEMP_SPLIT) {
+				Revision<K, V> leftRevision = ((TempSplitNode<K, V>) next).leftRevision;
+				if (leftRevision.effectiveVersion() < 0) {
+					helpPut(leftRevision);
+				} else if (node.acquireNext() == next) {
+					// a faulty TempSplitNode introduced through ABA
+					next.terminate();
+					unlinkNode(node, next);
+				}
+				return;
+			}
+			if (next != null && next.acquireRevisionHead().getType() == Revision.MERGE_TERMINATOR) {
+				// being merged into this node, finish the merge first
+				helpMergeTerminator((MergeTerminatorRevision<K, V>) next.acquireRevisionHead());
+				cleanTerminatedNode(next.key);
+				return;
+			}
+			K upper = next != null ? next.key : null;
+
+			// entries may expire between the versions without a new revision
+			boolean expiring = expiringEntries;
+			long headVersion = head.effectiveVersion();
+			if (expiring || headVersion < 0 || headVersion > Math.min(fromVersion, toVersion)) {
+				Revision<K, V> fromRevision = retrieveRevision(node, null, fromVersion, head);
+				Revision<K, V> toRevision = retrieveRevision(node, null, toVersion, head);
+				if (expiring || fromRevision != toRevision)
+					compare(fromRevision, toRevision, done, upper);
+			}
+
+			if (done == null || upper == null || cpr(comparator, upper, done) > 0)
+				done = upper;
+			current = next;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void compare(Revision<K, V> fromRevision, Revision<K, V> toRevision, K lower, K upper) {
+			MultiVal<K, V> fromMVal = fromRevision != null ? fromRevision.getValue() : null;
+			MultiVal<K, V> toMVal = toRevision != null ? toRevision.getValue() : null;
+			K[] fromKeys = fromMVal != null ? (K[]) fromMVal.getKeys() : null;
+			V[] fromValues = fromMVal != null ? (V[]) fromMVal.getValues() : null;
+			K[] toKeys = toMVal != null ? (K[]) toMVal.getKeys() : null;
+			V[] toValues = toMVal != null ? (V[]) toMVal.getValues() : null;
+
+			int i = lowerIndex(fromMVal, lower);
+			int iEnd = upperIndex(fromMVal, upper);
+			int j = lowerIndex(toMVal, lower);
+			int jEnd = upperIndex(toMVal, upper);
+
+			while (i < iEnd || j < jEnd) {
+				int c = i == iEnd ? 1 : j == jEnd ? -1 : cpr(comparator, fromKeys[i], toKeys[j]);
+				V fromValue = c <= 0 ? liveValue(fromValues[i], fromVersion) : null;
+				V toValue = c >= 0 ? liveValue(toValues[j], toVersion) : null;
+				if (fromValue == null) {
+					if (toValue != null)
+						emit(DiffEntry.Type.INSERT, toKeys[j], null, toValue);
+				} else if (toValue == null) {
+					emit(DiffEntry.Type.DELETE, fromKeys[i], fromValue, null);
+				} else if (fromValue != toValue && !fromValue.equals(toValue)) {
+					emit(DiffEntry.Type.UPDATE, toKeys[j], fromValue, toValue);
+				}
+				if (c <= 0)
+					i++;
+				if (c >= 0)
+					j++;
+			}
+		}
+
+		private int lowerIndex(MultiVal<K, V> mval, K lower) {
+			if (mval == null || lower == null)
+				return 0;
+			int index = mval.indexOfKeyInMultiVal(lower);
+			return index >= 0 ? index : -index - 1;
+		}
+
+		private int upperIndex(MultiVal<K, V> mval, K upper) {
+			if (mval == null)
+				return 0;
+			if (upper == null)
+				return mval.size();
+			int index = mval.indexOfKeyInMultiVal(upper);
+			return index >= 0 ? index : -index - 1;
+		}
+
+		private void emit(DiffEntry.Type type, K key, V oldValue, V newValue) {
+			if (from.inBounds(key, comparator) && to.inBounds(key, comparator))
+				buffer.add(new DiffEntry<>(type, key, oldValue, newValue));
+		}
+	}
+
 	/* ---------------- GC -------------- */
 
 	void register(SubMap<K, V> snapshot, boolean update) {
@@ -6364,12 +8709,24 @@ public class Jiffy<K, V> extends AbstractMap<K, V> implements MultiversionNaviga
 		}
 	}
 
-	@SuppressWarnings("resource")
 	private long computeMinSnapshotVersion(long upperBound) {
+		return computeMinSnapshotVersion(upperBound, null);
+	}
+
+	/**
+	 * Returns the version below which revisions may be discarded, ignoring the
+	 * given snapshot.
+	 */
+	@SuppressWarnings("resource")
+	private long computeMinSnapshotVersion(long upperBound, SubMap<K, V> except) {
 		long curMin = upperBound;
+		long retention = RETENTION;
+		if (retention > 0)
+			curMin = Long.min(curMin, getCurrentVersion() - retention);
 		SubMap<K, V> current = (SubMap<K, V>) SNAPSHOTS.getAcquire(this);
 		while (current != null) {
-			curMin = Long.min(curMin, current.acquireVersion());
+			if (current != except)
+				curMin = Long.min(curMin, current.acquireVersion());
 			current = current.acquireNextSnapshot();
 		}
 		return curMin;
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+/**
+ * Maps keys to {@code long} prefixes which preserve their order, so that most
+ * comparisons made by a {@link Jiffy} resolve on primitives. Prefixes are
+ * compared as unsigned numbers, and a key whose prefix is smaller must be
+ * ordered before a key whose prefix is greater. Keys with equal prefixes are
+ * compared by the comparator of the map.
+ * <p>
+ * Prefixes are computed once per key inserted, and kept in nodes, index
+ * entries and multivals alongside the keys.
+ *
+ * @see Jiffy#Jiffy(java.util.Comparator, KeyNormalizer)
+ */
+@FunctionalInterface
+public interface KeyNormalizer<K> {
+	long prefix(K key);
+
+	/**
+	 * Returns a normalizer of strings in their natural order, taking the first
+	 * four chars.
+	 */
+	static KeyNormalizer<String> strings() {
+		return key -> {
+			long prefix = 0;
+			int length = Math.min(key.length(), Long.BYTES / Character.BYTES);
+			for (int i = 0; i < length; i++)
+				prefix |= (long) key.charAt(i) << (Long.SIZE - Character.SIZE * (i + 1));
+			return prefix;
+		};
+	}
+
+	/**
+	 * Returns a normalizer of byte arrays ordered as by
+	 * {@link java.util.Arrays#compareUnsigned(byte[], byte[])}, taking the
+	 * first eight bytes.
+	 */
+	static KeyNormalizer<byte[]> byteArrays() {
+		return key -> {
+			long prefix = 0;
+			int length = Math.min(key.length, Long.BYTES);
+			for (int i = 0; i < length; i++)
+				prefix |= (key[i] & 0xffL) << (Long.SIZE - Byte.SIZE * (i + 1));
+			return prefix;
+		};
+	}
+}
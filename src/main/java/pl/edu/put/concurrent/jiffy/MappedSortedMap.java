@@ -0,0 +1,303 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import pl.edu.put.concurrent.MultiversionNavigableMapException;
+
+/**
+ * A read-only {@link java.util.NavigableMap} over a checkpoint file (see
+ * {@link Checkpoint}) that is memory-mapped rather than loaded. Lookups
+ * binary-search the sparse block index by the first keys of the blocks and
+ * then the offset table of a single block, so only the touched pages of the
+ * file are brought into memory and the heap footprint does not depend on the
+ * number of entries. Keys and values are decoded on access using the supplied
+ * {@link Codec}. Like the snapshot it was written from, the map holds the
+ * entries with a time to live regardless of their deadlines.
+ *
+ * The file is mapped in regions of at most {@value #MAX_REGION_SIZE} bytes, so
+ * files larger than 2GB are supported. The file channel is closed right after
+ * mapping; the mapping itself is released when the map and all its views
+ * become unreachable.
+ */
+public class MappedSortedMap<K, V> extends ImmutableSortedMap<K, V> {
+	static final int MAX_REGION_SIZE = 1 << 30;
+
+	private final long snapshotVersion;
+
+	private MappedSortedMap(MappedData<K, V> data, Comparator<? super K> comparator) {
+		super(data, comparator, 0, data.size(), false);
+		this.snapshotVersion = data.snapshotVersion;
+	}
+
+	/**
+	 * Maps the checkpoint file. Keys are compared using their natural ordering.
+	 */
+	public static <K, V> MappedSortedMap<K, V> open(Path path, Codec<K, V> codec) throws IOException {
+		return open(path, codec, null);
+	}
+
+	/**
+	 * Maps the checkpoint file. The comparator has to be consistent with the
+	 * order in which the keys were written.
+	 */
+	public static <K, V> MappedSortedMap<K, V> open(Path path, Codec<K, V> codec, Comparator<? super K> comparator)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return new MappedSortedMap<>(new MappedData<>(channel, codec, comparator), comparator);
+		}
+	}
+
+	/**
+	 * Returns the version of the snapshot stored in the file.
+	 */
+	public long getSnapshotVersion() {
+		return snapshotVersion;
+	}
+
+	/**
+	 * Verifies the checksums of all blocks, touching the whole file.
+	 *
+	 * @throws MultiversionNavigableMapException if a block is corrupted
+	 */
+	public void verify() {
+		MappedData<K, V> d = (MappedData<K, V>) data;
+		for (int b = 0; b < d.blockCount; b++)
+			d.verifyBlock(b);
+	}
+
+	static final class MappedData<K, V> implements Data<K, V> {
+		final Codec<K, V> codec;
+		final Comparator<? super K> comparator;
+		final long snapshotVersion;
+		final int blockCount;
+		final int entryCount;
+
+		final MappedByteBuffer index;
+		final MappedByteBuffer[] regions;
+		// file offset of the beginning of each region
+		final long[] regionOffsets;
+		// index of the first block of each region
+		final int[] regionFirstBlocks;
+
+		MappedData(FileChannel channel, Codec<K, V> codec, Comparator<? super K> comparator) throws IOException {
+			this.codec = codec;
+			this.comparator = comparator;
+
+			long fileSize = channel.size();
+			if (fileSize < Checkpoint.HEADER_SIZE)
+				throw new MultiversionNavigableMapException("Not a checkpoint file.");
+			Checkpoint.Header header = Checkpoint.Header.read(
+					channel.map(FileChannel.MapMode.READ_ONLY, 0, Checkpoint.HEADER_SIZE), fileSize);
+			if (header.entryCount > Integer.MAX_VALUE)
+				throw new MultiversionNavigableMapException(
+						"Checkpoint holds too many entries to be mapped: " + header.entryCount);
+			this.snapshotVersion = header.snapshotVersion;
+			this.blockCount = header.blockCount;
+			this.entryCount = (int) header.entryCount;
+
+			long indexSize = (long) blockCount * Checkpoint.INDEX_ENTRY_SIZE;
+			if (indexSize > Integer.MAX_VALUE)
+				throw new MultiversionNavigableMapException("Checkpoint index is too large to be mapped.");
+			this.index = channel.map(FileChannel.MapMode.READ_ONLY, header.indexOffset, indexSize);
+
+			// group consecutive blocks into regions, so that no block crosses a
+			// region boundary
+			List<Long> offsets = new ArrayList<>();
+			List<Integer> firstBlocks = new ArrayList<>();
+			List<MappedByteBuffer> mapped = new ArrayList<>();
+			long regionStart = Checkpoint.HEADER_SIZE;
+			int regionFirstBlock = 0;
+			for (int b = 0; b <= blockCount; b++) {
+				long blockEnd = b < blockCount ? blockOffset(b) + blockLength(b) : regionStart;
+				if (b < blockCount && (blockOffset(b) < regionStart || blockEnd > header.indexOffset))
+					throw new MultiversionNavigableMapException("Corrupted checkpoint index entry " + b + ".");
+				if (b == blockCount || blockEnd - regionStart > MAX_REGION_SIZE) {
+					if (b > regionFirstBlock) {
+						long regionEnd = blockOffset(b - 1) + blockLength(b - 1);
+						offsets.add(regionStart);
+						firstBlocks.add(regionFirstBlock);
+						mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart));
+					}
+					if (b < blockCount) {
+						if (blockLength(b) > MAX_REGION_SIZE)
+							throw new MultiversionNavigableMapException("Checkpoint block " + b + " is too large.");
+						regionStart = blockOffset(b);
+						regionFirstBlock = b;
+					}
+				}
+			}
+			this.regions = mapped.toArray(new MappedByteBuffer[0]);
+			this.regionOffsets = offsets.stream().mapToLong(Long::longValue).toArray();
+			this.regionFirstBlocks = firstBlocks.stream().mapToInt(Integer::intValue).toArray();
+		}
+
+		/* ---------------- Index entries -------------- */
+
+		long blockOffset(int block) {
+			return index.getLong(block * Checkpoint.INDEX_ENTRY_SIZE);
+		}
+
+		int blockLength(int block) {
+			return index.getInt(block * Checkpoint.INDEX_ENTRY_SIZE + 8);
+		}
+
+		int blockCrc(int block) {
+			return index.getInt(block * Checkpoint.INDEX_ENTRY_SIZE + 12);
+		}
+
+		int firstOrdinal(int block) {
+			return (int) index.getLong(block * Checkpoint.INDEX_ENTRY_SIZE + 16);
+		}
+
+		K firstKey(int block) {
+			int region = regionOf(block);
+			long offset = index.getLong(block * Checkpoint.INDEX_ENTRY_SIZE + 24);
+			int length = index.getInt(block * Checkpoint.INDEX_ENTRY_SIZE + 32);
+			return codec.decodeKey(regions[region].slice((int) (offset - regionOffsets[region]), length));
+		}
+
+		/* ---------------- Blocks -------------- */
+
+		int regionOf(int block) {
+			int r = Arrays.binarySearch(regionFirstBlocks, block);
+			return r >= 0 ? r : -r - 2;
+		}
+
+		ByteBuffer block(int block) {
+			int region = regionOf(block);
+			return regions[region].slice((int) (blockOffset(block) - regionOffsets[region]), blockLength(block));
+		}
+
+		void verifyBlock(int block) {
+			CRC32 crc = new CRC32();
+			crc.update(block(block));
+			if ((int) crc.getValue() != blockCrc(block))
+				throw new MultiversionNavigableMapException("Corrupted checkpoint block " + block + ".");
+		}
+
+		// the block holding the entry with the given ordinal
+		int blockOfOrdinal(int ordinal) {
+			int low = 0;
+			int high = blockCount - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (firstOrdinal(mid) <= ordinal)
+					low = mid;
+				else
+					high = mid - 1;
+			}
+			return low;
+		}
+
+		static <K> K keyInBlock(ByteBuffer block, int entry, Codec<K, ?> codec) {
+			int offset = block.getInt(4 + 4 * entry);
+			return codec.decodeKey(block.slice(offset + 4, block.getInt(offset)));
+		}
+
+		/* ---------------- Data -------------- */
+
+		@Override
+		public int size() {
+			return entryCount;
+		}
+
+		@Override
+		public K keyAt(int ordinal) {
+			int block = blockOfOrdinal(ordinal);
+			return keyInBlock(block(block), ordinal - firstOrdinal(block), codec);
+		}
+
+		@Override
+		public V valueAt(int ordinal) {
+			int block = blockOfOrdinal(ordinal);
+			ByteBuffer buffer = block(block);
+			int offset = buffer.getInt(4 + 4 * (ordinal - firstOrdinal(block)));
+			int keyLength = buffer.getInt(offset);
+			return ExpiringValue.unwrap(Checkpoint.readValue(buffer, offset + 4 + keyLength, codec));
+		}
+
+		@Override
+		public int search(K key) {
+			if (blockCount == 0)
+				return -1;
+
+			// the last block whose first key is not greater than the key
+			int low = 0;
+			int high = blockCount - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int c = Jiffy.cpr(comparator, firstKey(mid), key);
+				if (c < 0)
+					low = mid + 1;
+				else if (c > 0)
+					high = mid - 1;
+				else
+					return firstOrdinal(mid);
+			}
+			if (high < 0)
+				return -1;
+
+			int block = high;
+			int base = firstOrdinal(block);
+			ByteBuffer buffer = block(block);
+			low = 1;
+			high = buffer.getInt(0) - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int c = Jiffy.cpr(comparator, keyInBlock(buffer, mid, codec), key);
+				if (c < 0)
+					low = mid + 1;
+				else if (c > 0)
+					high = mid - 1;
+				else
+					return base + mid;
+			}
+			return -(base + low) - 1;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * An estimate of the memory occupied by a {@link Jiffy}, as returned by
+ * {@link Jiffy#memoryStats}. Bytes are counted only for the arrays of the
+ * multivals held by revisions, assuming compressed references. Apart from the
+ * numbers of nodes and index entries, the figures are extrapolated from the
+ * sampled nodes.
+ */
+public final class MemoryStats {
+	// Assumes a 64-bit JVM with compressed references
+	static final int ARRAY_HEADER_BYTES = 16;
+	static final int REFERENCE_BYTES = 4;
+
+	private final long nodes;
+	private final long indexEntries;
+	private final long sampledNodes;
+	private final long revisions;
+	private final long liveBytes;
+	private final long historyBytes;
+	private final long snapshotBytes;
+	private final SortedMap<Long, Long> bytesBySnapshot;
+
+	MemoryStats(long nodes, long indexEntries, long sampledNodes, long revisions, long liveBytes,
+			long historyBytes, long snapshotBytes, SortedMap<Long, Long> bytesBySnapshot) {
+		this.nodes = nodes;
+		this.indexEntries = indexEntries;
+		this.sampledNodes = sampledNodes;
+		this.revisions = revisions;
+		this.liveBytes = liveBytes;
+		this.historyBytes = historyBytes;
+		this.snapshotBytes = snapshotBytes;
+		this.bytesBySnapshot = Collections.unmodifiableSortedMap(bytesBySnapshot);
+	}
+
+	public long getNodeCount() {
+		return nodes;
+	}
+
+	public long getIndexEntryCount() {
+		return indexEntries;
+	}
+
+	/**
+	 * Returns the number of nodes whose revisions were inspected.
+	 */
+	public long getSampledNodeCount() {
+		return sampledNodes;
+	}
+
+	/**
+	 * Returns the number of revisions in the revision chains of all nodes.
+	 */
+	public long getRevisionCount() {
+		return revisions;
+	}
+
+	/**
+	 * Returns the bytes held by the newest revisions of the nodes, as well as
+	 * by the revisions of updates in progress.
+	 */
+	public long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * Returns the bytes held by older revisions, which are retained for open
+	 * snapshots, for the retention window, or until the next update of their
+	 * node reclaims them.
+	 */
+	public long getHistoryBytes() {
+		return historyBytes;
+	}
+
+	/**
+	 * Returns the part of {@link #getHistoryBytes} held by revisions visible
+	 * to at least one open snapshot.
+	 */
+	public long getSnapshotBytes() {
+		return snapshotBytes;
+	}
+
+	/**
+	 * Returns, by snapshot version, the bytes held by revisions visible to no
+	 * other open snapshot, that is the memory closing the snapshot would
+	 * release once the revisions are reclaimed. Snapshots of equal versions
+	 * are accounted together.
+	 */
+	public Map<Long, Long> getBytesBySnapshot() {
+		return bytesBySnapshot;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"MemoryStats[nodes: %d, index entries: %d, sampled: %d, revisions: %d, live: %d B, history: %d B, snapshots: %d B %s]",
+				nodes, indexEntries, sampledNodes, revisions, liveBytes, historyBytes, snapshotBytes,
+				bytesBySnapshot);
+	}
+
+	static long arrayBytes(Object[] array) {
+		return array == null ? 0 : align(ARRAY_HEADER_BYTES + (long) REFERENCE_BYTES * array.length);
+	}
+
+	static long arrayBytes(short[] array) {
+		return array == null ? 0 : align(ARRAY_HEADER_BYTES + (long) Short.BYTES * array.length);
+	}
+
+	static long arrayBytes(int[] array) {
+		return array == null ? 0 : align(ARRAY_HEADER_BYTES + (long) Integer.BYTES * array.length);
+	}
+
+	static long arrayBytes(long[] array) {
+		return array == null ? 0 : align(ARRAY_HEADER_BYTES + (long) Long.BYTES * array.length);
+	}
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+}
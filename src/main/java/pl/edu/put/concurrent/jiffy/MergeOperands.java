@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.Arrays;
+
+/**
+ * The operands merged into an entry (see {@link MergeOperator}), stored in
+ * place of the value in the contents of revisions. The operands apply, oldest
+ * first, to the base, which is the value stored before the first of them, or
+ * null if the key had none. An entry put with a time to live keeps its
+ * deadline, i.e., the operands are wrapped in an {@link ExpiringValue} and
+ * expire with the value.
+ * <p>
+ * The base of operands merged by a batch, or by a single write in progress, is
+ * unresolved until they are put on top of the entry of a multival. If the
+ * batch puts or removes the key first, the base is known right away. An entry
+ * that has expired by the clock of unresolved operands counts as absent.
+ */
+final class MergeOperands {
+	static final Object UNRESOLVED = new Object();
+
+	final Object base;
+	final Object[] operands;
+	private final long clock;
+
+	private MergeOperands(Object base, Object[] operands, long clock) {
+		this.base = base;
+		this.operands = operands;
+		this.clock = clock;
+	}
+
+	private MergeOperands(Object base, Object[] operands) {
+		this(base, operands, Long.MIN_VALUE);
+	}
+
+	static MergeOperands pending(Object operand) {
+		return new MergeOperands(UNRESOLVED, new Object[] { operand });
+	}
+
+	/**
+	 * Returns the operands with the given expiry clock, if unresolved.
+	 */
+	MergeOperands at(long clock) {
+		if (base != UNRESOLVED)
+			return this;
+		return new MergeOperands(base, operands, clock);
+	}
+
+	/**
+	 * Returns the value of a batch after the operand is merged into it; the
+	 * value is null if the batch removes the key.
+	 */
+	static MergeOperands merge(Object batched, Object operand) {
+		if (batched instanceof MergeOperands m)
+			return m.push(operand);
+		return new MergeOperands(batched, new Object[] { operand });
+	}
+
+	private MergeOperands push(Object operand) {
+		Object[] pushed = Arrays.copyOf(operands, operands.length + 1);
+		pushed[operands.length] = operand;
+		return new MergeOperands(base, pushed, clock);
+	}
+
+	/**
+	 * Returns what to store in place of the given stored value, which is null
+	 * if the key is absent.
+	 */
+	Object onto(Object stored) {
+		if (base != UNRESOLVED)
+			return this;
+		if (stored instanceof ExpiringValue e) {
+			if (e.deadline <= clock)
+				return new MergeOperands(null, operands);
+			return new ExpiringValue(onto(e.value), e.deadline);
+		}
+		if (stored instanceof MergeOperands m) {
+			Object[] pushed = Arrays.copyOf(m.operands, m.operands.length + operands.length);
+			System.arraycopy(operands, 0, pushed, m.operands.length, operands.length);
+			return new MergeOperands(m.base, pushed);
+		}
+		return new MergeOperands(stored, operands);
+	}
+
+	/**
+	 * Returns what to store for a key of a batch, given the index of the key
+	 * in the values of the multival the batch is applied to.
+	 */
+	static Object resolve(Object value, Object[] values, int index) {
+		if (value instanceof MergeOperands m)
+			return m.onto(index >= 0 ? values[index] : null);
+		return value;
+	}
+
+	static boolean isStacked(Object stored) {
+		return stored instanceof MergeOperands
+				|| (stored instanceof ExpiringValue e && e.value instanceof MergeOperands);
+	}
+
+	@SuppressWarnings("unchecked")
+	<V> V fold(MergeOperator<V> operator) {
+		assert base != UNRESOLVED;
+		V value = (V) base;
+		for (Object operand : operands)
+			value = operator.merge(value, (V) operand);
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return base + " + " + Arrays.toString(operands);
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+/**
+ * Combines the value of a key with the operands merged into it by
+ * {@link Jiffy#mergeValue} or {@link Batch#merge}, e.g., adds increments to a
+ * counter. A merge appends the operand to the entry of the key without reading
+ * its value, so concurrent merges of a hot key do not have to retry on each
+ * other's results. The operands are folded over the value, oldest first,
+ * whenever the entry is read, and for good when its node is split or merged,
+ * or once a number of operands piles up.
+ * <p>
+ * An entry may thus be folded many times, also concurrently, so the operator
+ * must be a pure function. It must not return {@code null}.
+ *
+ * @see Jiffy#setMergeOperator(MergeOperator)
+ */
+@FunctionalInterface
+public interface MergeOperator<V> {
+	/**
+	 * Returns the value resulting from applying the operand to the value,
+	 * which is {@code null} if the key has no value.
+	 */
+	V merge(V value, V operand);
+}
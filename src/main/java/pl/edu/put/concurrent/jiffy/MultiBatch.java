@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+import pl.edu.put.concurrent.jiffy.MultiBatchDescriptor.Part;
+
+/**
+ * A set of batches for several {@link Jiffy} maps sharing a
+ * {@link VersionDomain}, committed atomically, under a single version, by
+ * {@link VersionDomain#put(MultiBatch)}. After the commit, the values replaced
+ * in each map are available through the batch of that map.
+ */
+public class MultiBatch {
+	private final List<Part<?, ?>> parts = new ArrayList<>();
+
+	public MultiBatch() {
+	}
+
+	/**
+	 * Returns the batch for the given map, creating an empty one if needed.
+	 */
+	@SuppressWarnings("unchecked")
+	public <K, V> Batch<K, V> batchFor(Jiffy<K, V> map) {
+		Objects.requireNonNull(map);
+		for (Part<?, ?> part : parts) {
+			if (part.map == map)
+				return (Batch<K, V>) part.batch;
+		}
+		var batch = new Batch<K, V>();
+		parts.add(new Part<>(map, batch));
+		return batch;
+	}
+
+	/**
+	 * Adds the given batch for the given map.
+	 *
+	 * @throws IllegalArgumentException if there already is a batch for the map
+	 */
+	public <K, V> MultiBatch add(Jiffy<K, V> map, Batch<K, V> batch) {
+		Objects.requireNonNull(map);
+		Objects.requireNonNull(batch);
+		for (Part<?, ?> part : parts) {
+			if (part.map == map)
+				throw new IllegalArgumentException("The multi-batch already contains a batch for the map.");
+		}
+		parts.add(new Part<>(map, batch));
+		return this;
+	}
+
+	public <K, V> MultiBatch put(Jiffy<K, V> map, K key, V value) {
+		batchFor(map).put(Objects.requireNonNull(key), Objects.requireNonNull(value));
+		return this;
+	}
+
+	public <K, V> MultiBatch remove(Jiffy<K, V> map, K key) {
+		batchFor(map).remove(Objects.requireNonNull(key));
+		return this;
+	}
+
+	public <K, V> MultiBatch merge(Jiffy<K, V> map, K key, V operand) {
+		batchFor(map).merge(Objects.requireNonNull(key), operand);
+		return this;
+	}
+
+	/**
+	 * Returns the non-empty parts with their batches prepared.
+	 */
+	Part<?, ?>[] prepare(VersionDomain domain) {
+		List<Part<?, ?>> ret = new ArrayList<>(parts.size());
+		for (Part<?, ?> part : parts) {
+			if (part.map.domain != domain)
+				throw new IllegalArgumentException("The map does not belong to the version domain.");
+			if (part.batch.mapSize() == 0)
+				continue;
+			if (part.batch.hasMergeOperands())
+				part.map.checkMergeOperator();
+			ret.add(part);
+		}
+		if (ret.size() > 1) {
+			// the parts are installed in the same order by all multi-batches,
+			// so that two of them never wait for each other to help
+			ret.sort(Comparator.comparingInt(part -> part.map.domainIndex));
+			for (Part<?, ?> part : ret)
+				part.prepare();
+		}
+		return ret.toArray(Part<?, ?>[]::new);
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the version shared by the parts of a {@link MultiBatch}, one
+ * {@link BatchDescriptor} per map. The parts are installed from the last one to
+ * the first one, so a thread that encounters a revision of some part helps the
+ * remainder of that part and then all the preceding parts, before it sets the
+ * version.
+ * <p>
+ * A validating part (see {@link Transaction}) checks, node by node, that its
+ * keys still have the expected values. If a conflict is found, the multi-batch
+ * is aborted and, instead of the version being set right away, the preceding
+ * part, which maps the keys back to the expected values, is installed on top
+ * of the revisions installed so far. Both commit with the same version, so the
+ * aborted revisions never become visible.
+ */
+class MultiBatchDescriptor {
+	static final int INSTALLING = 0;
+	static final int VALIDATED = 1;
+	static final int ABORTED = 2;
+
+	private long version;
+	private int state = INSTALLING;
+	private final Part<?, ?>[] parts;
+	private final boolean conditional;
+
+	MultiBatchDescriptor(Part<?, ?>[] parts, long optimisticVersion) {
+		this.parts = parts;
+		this.version = -optimisticVersion;
+		boolean conditional = false;
+		for (int i = 0; i < parts.length; i++) {
+			parts[i].bind(this, i, optimisticVersion);
+			conditional |= parts[i].expected != null;
+		}
+		this.conditional = conditional;
+	}
+
+	/**
+	 * Called once the validating part is installed or aborted. Returns true
+	 * unless the multi-batch has been aborted.
+	 */
+	boolean validate() {
+		STATE.compareAndSet(this, INSTALLING, VALIDATED);
+		return (int) STATE.getAcquire(this) == VALIDATED;
+	}
+
+	/**
+	 * Returns true if the multi-batch is aborted, false if it has been validated
+	 * in the meantime.
+	 */
+	boolean abort() {
+		STATE.compareAndSet(this, INSTALLING, ABORTED);
+		return (int) STATE.getAcquire(this) == ABORTED;
+	}
+
+	boolean isAborted() {
+		return (int) STATE.getAcquire(this) == ABORTED;
+	}
+
+	long acquireVersion() {
+		return (long) VERSION.getOpaque(this);
+	}
+
+	long trySetVersion(long version) {
+		long oldVersion = acquireVersion();
+		if (oldVersion > 0)
+			return oldVersion;
+
+		long witness = (long) VERSION.compareAndExchange(this, oldVersion, version);
+		if (witness == oldVersion)
+			return version;
+		return witness;
+	}
+
+	/**
+	 * Helps to install the parts preceding the given one. Returns false if the
+	 * version turned out to be already set. The parts preceding a validating
+	 * one are installed only if the multi-batch is aborted.
+	 */
+	boolean helpPartsBefore(int part) {
+		if (conditional && validate())
+			return true;
+		for (int i = part - 1; i >= 0; i--) {
+			if (!parts[i].help())
+				return false;
+		}
+		return true;
+	}
+
+	/** The batch for one map, together with the state of its primary run. */
+	static final class Part<K, V> {
+		final Jiffy<K, V> map;
+		final Batch<K, V> batch;
+		final Batch<K, V> expected;
+		final long readVersion;
+		final boolean undo;
+		private BatchDescriptor<K, V> descriptor;
+		private final List<Revision<K, V>> revisions = new ArrayList<>();
+		private ChangePublisher<K, V> publisher;
+		private int slot;
+
+		Part(Jiffy<K, V> map, Batch<K, V> batch) {
+			this(map, batch, null, 0, false);
+		}
+
+		Part(Jiffy<K, V> map, Batch<K, V> batch, Batch<K, V> expected, long readVersion, boolean undo) {
+			this.map = map;
+			this.batch = batch;
+			this.expected = expected;
+			this.readVersion = readVersion;
+			this.undo = undo;
+		}
+
+		private void bind(MultiBatchDescriptor multi, int index, long optimisticVersion) {
+			descriptor = new BatchDescriptor<>(batch, optimisticVersion, multi, index, expected, readVersion,
+					undo);
+		}
+
+		void prepare() {
+			batch.prepare(map.comparator);
+			map.prepareMergeOperands(batch);
+		}
+
+		void putAlone() {
+			map.put(batch);
+		}
+
+		void enter() {
+			map.checkWriteAheadLog();
+			publisher = map.getChangePublisher();
+			if (publisher != null)
+				slot = publisher.enter();
+		}
+
+		void exit() {
+			if (publisher != null)
+				publisher.exit(slot);
+		}
+
+		void install() {
+			map.installBatchPrimaryRun(descriptor, revisions);
+		}
+
+		void finish(long finalVersion) {
+			map.finishBatchPrimaryRun(descriptor, revisions, finalVersion, publisher);
+		}
+
+		/** Finishes a part without reporting it to the listeners. */
+		void finishQuietly() {
+			descriptor.finish();
+			descriptor.batch = null;
+		}
+
+		private boolean help() {
+			return map.helpBatchPart(descriptor);
+		}
+	}
+
+	// VarHandle mechanics
+	private static final VarHandle VERSION;
+	private static final VarHandle STATE;
+
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			VERSION = l.findVarHandle(MultiBatchDescriptor.class, "version", long.class);
+			STATE = l.findVarHandle(MultiBatchDescriptor.class, "state", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
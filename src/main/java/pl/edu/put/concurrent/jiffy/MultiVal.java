@@ -62,16 +62,23 @@ interface MultiVal<K, V> {
 	
 	V getValueByIndex(int index);
 
-	SingleMultiVal<K, V> add(K key, V value);
+	MultiVal<K, V> add(K key, V value);
 
-	SingleMultiVal<K, V> add(K key, V value, int index);
+	MultiVal<K, V> add(K key, V value, int index);
 
-	SingleMultiVal<K, V> remove(K key);
+	MultiVal<K, V> remove(K key);
 
-	SingleMultiVal<K, V> remove(K key, int index);
+	MultiVal<K, V> remove(K key, int index);
 
 	int size();
 
+	/**
+	 * Returns the estimated number of bytes of the arrays held by this
+	 * multival, excluding the ones it shares with the multival it was derived
+	 * from.
+	 */
+	long arrayBytes();
+
 	boolean containsKey(K key);
 
 	Object[] getKeys();
@@ -50,10 +50,21 @@ public class Node<K, V> {
 	final static int MARKER = 2;
 
 	public final K key;
+	// See KeyNormalizer, 0 without one
+	final long keyPrefix;
 	Revision<K, V> revisionHead = null;
 	Node<K, V> next;
 	final Comparator<? super K> comparator;
 	boolean readyToUnlink = false;
+	// The version of the last sampled access, 0 if not known yet; read by
+	// cache eviction to tell cold nodes
+	long lastAccess = 0;
+	// Failed revision installs, in a padded array allocated on the first one,
+	// see ContentionCounter; read by the scaling logic
+	volatile long[] conflicts = null;
+	// Set on both halves of a split caused by contention, which are merged
+	// back once the contention fades
+	boolean splitByContention = false;
 
 	protected int type;
 
@@ -62,8 +73,13 @@ public class Node<K, V> {
 	public MergeRevision<K, V> debugMergeRev = null;
 
 	Node(K key, Revision<K, V> revision, Node<K, V> next, Comparator<? super K> comparator) {
+		this(key, revision, next, comparator, NormalizedComparator.prefix(comparator, key));
+	}
+
+	Node(K key, Revision<K, V> revision, Node<K, V> next, Comparator<? super K> comparator, long keyPrefix) {
 		this.type = REGULAR;
 		this.key = key;
+		this.keyPrefix = keyPrefix;
 		this.revisionHead = revision;
 		this.next = next;
 		this.comparator = comparator;
@@ -73,6 +89,7 @@ public class Node<K, V> {
 	Node(Node<K, V> next) {
 		this.type = MARKER;
 		this.key = null;
+		this.keyPrefix = 0;
 		this.revisionHead = null;
 		this.next = next;
 		this.comparator = null;
@@ -34,18 +34,77 @@
 
 package pl.edu.put.concurrent.jiffy;
 
+import java.time.Duration;
+
+/**
+ * Parameters of node autoscaling. Besides the read skip used by
+ * {@link ScalingMode#FullAutoscaling}, it holds the contention policy, which
+ * applies in every scaling mode: a node whose contention reaches
+ * {@code contentionSplitThreshold} is split by single-key puts regardless of
+ * its size, and such a node is merged back by single-key removes only once its
+ * contention decays to {@code contentionMergeThreshold}. Contention counts the
+ * revisions that failed to be installed on a node, halved every
+ * {@code contentionHalfLife} nanoseconds, so it follows the recent rate of
+ * conflicts.
+ */
 public class NodeAutoScaleConfiguration {
 	int readOpMaxSkip = 100;
+	// 0 disables contention-driven splits
+	int contentionSplitThreshold = 8;
+	int contentionMergeThreshold = 1;
+	long contentionHalfLife = 1_000_000;
 
 	public NodeAutoScaleConfiguration() {
 	}
 
 	public NodeAutoScaleConfiguration(NodeAutoScaleConfiguration other) {
 		this.readOpMaxSkip = other.readOpMaxSkip;
+		this.contentionSplitThreshold = other.contentionSplitThreshold;
+		this.contentionMergeThreshold = other.contentionMergeThreshold;
+		this.contentionHalfLife = other.contentionHalfLife;
+	}
+
+	/**
+	 * Sets the hysteresis of contention-driven scaling: nodes are split at
+	 * {@code splitThreshold} conflicts and merged back at
+	 * {@code mergeThreshold}, with conflicts halved every {@code halfLife}.
+	 *
+	 * @throws IllegalArgumentException if a threshold is negative, the merge
+	 *                                  threshold is not below a non-zero split
+	 *                                  threshold or the half-life is not
+	 *                                  positive
+	 */
+	public NodeAutoScaleConfiguration setContentionScaling(int splitThreshold, int mergeThreshold, Duration halfLife) {
+		if (splitThreshold < 0 || mergeThreshold < 0)
+			throw new IllegalArgumentException("Negative threshold: " + Math.min(splitThreshold, mergeThreshold));
+		if (splitThreshold > 0 && mergeThreshold >= splitThreshold)
+			throw new IllegalArgumentException(
+					"Merge threshold " + mergeThreshold + " not below split threshold " + splitThreshold);
+		long nanos = halfLife.toNanos();
+		if (nanos <= 0)
+			throw new IllegalArgumentException("Non-positive half-life: " + halfLife);
+		this.contentionSplitThreshold = splitThreshold;
+		this.contentionMergeThreshold = mergeThreshold;
+		this.contentionHalfLife = nanos;
+		return this;
+	}
+
+	public int getContentionSplitThreshold() {
+		return contentionSplitThreshold;
+	}
+
+	public int getContentionMergeThreshold() {
+		return contentionMergeThreshold;
+	}
+
+	public Duration getContentionHalfLife() {
+		return Duration.ofNanos(contentionHalfLife);
 	}
 
 	@Override
 	public String toString() {
-		return String.format("[NodeAutoScaleConfiguration, readOpMaxSkip %d]", readOpMaxSkip);
+		return String.format(
+				"[NodeAutoScaleConfiguration, readOpMaxSkip %d, contentionSplitThreshold %d, contentionMergeThreshold %d, contentionHalfLife %d]",
+				readOpMaxSkip, contentionSplitThreshold, contentionMergeThreshold, contentionHalfLife);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.Comparator;
+
+/**
+ * The comparator of a {@link Jiffy} created with a {@link KeyNormalizer}.
+ * It orders keys as the comparator given by the user, or naturally if there
+ * was none, and gives nodes, index entries and multivals access to the
+ * normalizer.
+ */
+final class NormalizedComparator<K> implements Comparator<K> {
+	final Comparator<? super K> comparator;
+	final KeyNormalizer<? super K> normalizer;
+
+	NormalizedComparator(Comparator<? super K> comparator, KeyNormalizer<? super K> normalizer) {
+		this.comparator = comparator;
+		this.normalizer = normalizer;
+	}
+
+	/**
+	 * Compares the prefixes of the keys first, so that callers that do not
+	 * keep the prefixes, e.g., a batch being sorted, also call the comparator
+	 * only on prefix ties.
+	 */
+	@Override
+	public int compare(K x, K y) {
+		return Jiffy.cpr(comparator, prefix(x), x, prefix(y), y);
+	}
+
+	@SuppressWarnings("unchecked")
+	long prefix(Object key) {
+		return key == null ? 0 : normalizer.prefix((K) key);
+	}
+
+	/**
+	 * Returns the prefix of the key if the comparator has a normalizer, or 0.
+	 * The null key of the first node has the smallest prefix.
+	 */
+	static long prefix(Comparator<?> comparator, Object key) {
+		return comparator instanceof NormalizedComparator ? ((NormalizedComparator<?>) comparator).prefix(key) : 0;
+	}
+
+	/**
+	 * Returns the comparator given by the user.
+	 */
+	@SuppressWarnings("unchecked")
+	static <K> Comparator<? super K> unwrap(Comparator<? super K> comparator) {
+		return comparator instanceof NormalizedComparator
+				? ((NormalizedComparator<K>) comparator).comparator
+				: comparator;
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import pl.edu.put.concurrent.MultiversionNavigableMapException;
+import pl.edu.put.concurrent.jiffy.SingleMultiVal.MultiValIndices;
+
+/**
+ * A multival whose keys and values are serialized by a {@link Codec} into a
+ * single direct buffer, so that the contents of a node cost the garbage
+ * collector two objects instead of two arrays and all the keys and values
+ * they reference. Keys and values are decoded on access. The buffer is
+ * released by its cleaner once the revision holding the multival becomes
+ * unreachable, i.e., after the revision is reclaimed.
+ *
+ * The buffer holds the number of entries, the prefixes of the keys if the
+ * comparator has a {@link KeyNormalizer}, the offsets of the encoded keys and
+ * values, and finally the encoded keys and values, key first. Operations that
+ * derive a new multival decode the whole content into a
+ * {@link SingleMultiVal}, so a node written to returns to the heap.
+ */
+final class OffHeapMultiVal<K, V> implements MultiVal<K, V> {
+	static final int HEADER_SIZE = 8;
+
+	final Comparator<? super K> comparator;
+	final Codec<K, V> codec;
+	final ByteBuffer buffer;
+	final int size;
+	final boolean prefixed;
+	// offset of the table of 2 * size + 1 entry offsets
+	final int offsetsAt;
+
+	private OffHeapMultiVal(Comparator<? super K> comparator, Codec<K, V> codec, ByteBuffer buffer) {
+		this.comparator = comparator;
+		this.codec = codec;
+		this.buffer = buffer;
+		this.size = buffer.getInt(0);
+		this.prefixed = comparator instanceof NormalizedComparator;
+		this.offsetsAt = HEADER_SIZE + (prefixed ? Long.BYTES * size : 0);
+	}
+
+	/**
+	 * Returns the content of the given multival serialized off the heap.
+	 */
+	@SuppressWarnings("unchecked")
+	static <K, V> OffHeapMultiVal<K, V> encode(MultiVal<K, V> mval, Comparator<? super K> comparator,
+			Codec<K, V> codec) {
+		Object[] keys = mval.getKeys();
+		Object[] values = mval.getValues();
+		int size = keys.length;
+		boolean prefixed = comparator instanceof NormalizedComparator;
+
+		byte[][] encoded = new byte[2 * size][];
+		long dataAt = HEADER_SIZE + (prefixed ? (long) Long.BYTES * size : 0) + (long) Integer.BYTES * (2 * size + 1);
+		long length = dataAt;
+		for (int i = 0; i < size; i++) {
+			encoded[2 * i] = codec.encodeKey((K) keys[i]);
+			encoded[2 * i + 1] = codec.encodeValue((V) values[i]);
+			length += encoded[2 * i].length + encoded[2 * i + 1].length;
+		}
+		if (length > Integer.MAX_VALUE)
+			throw new MultiversionNavigableMapException("Node too large to be moved off the heap: " + length);
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) length).order(ByteOrder.nativeOrder());
+		buffer.putInt(0, size);
+		int offsetsAt = HEADER_SIZE;
+		if (prefixed) {
+			for (int i = 0; i < size; i++)
+				buffer.putLong(HEADER_SIZE + Long.BYTES * i, NormalizedComparator.prefix(comparator, keys[i]));
+			offsetsAt += Long.BYTES * size;
+		}
+		int offset = (int) dataAt;
+		for (int i = 0; i < encoded.length; i++) {
+			buffer.putInt(offsetsAt + Integer.BYTES * i, offset);
+			buffer.put(offset, encoded[i]);
+			offset += encoded[i].length;
+		}
+		buffer.putInt(offsetsAt + Integer.BYTES * encoded.length, offset);
+
+		return new OffHeapMultiVal<>(comparator, codec, buffer);
+	}
+
+	/**
+	 * Returns the content decoded into a {@link SingleMultiVal}.
+	 */
+	SingleMultiVal<K, V> decode() {
+		return SingleMultiVal.fromSortedArrays(comparator, getKeys(), getValues());
+	}
+
+	/**
+	 * Returns the number of bytes held off the heap.
+	 */
+	int offHeapBytes() {
+		return buffer.capacity();
+	}
+
+	// the encoded i-th key (even) or value (odd)
+	private ByteBuffer slice(int i) {
+		int from = buffer.getInt(offsetsAt + Integer.BYTES * i);
+		int to = buffer.getInt(offsetsAt + Integer.BYTES * (i + 1));
+		return buffer.slice(from, to - from);
+	}
+
+	private K keyAt(int index) {
+		return codec.decodeKey(slice(2 * index));
+	}
+
+	private V valueAt(int index) {
+		return codec.decodeValue(slice(2 * index + 1));
+	}
+
+	@Override
+	public SingleMultiVal<K, V> clone() {
+		return decode().clone();
+	}
+
+	@Override
+	public K firstKey() {
+		return size == 0 ? null : keyAt(0);
+	}
+
+	@Override
+	public K lastKey() {
+		return size == 0 ? null : keyAt(size - 1);
+	}
+
+	@Override
+	public V firstValue() {
+		return size == 0 ? null : valueAt(0);
+	}
+
+	@Override
+	public V lastValue() {
+		return size == 0 ? null : valueAt(size - 1);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long arrayBytes() {
+		return 0;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public int indexOfKeyInMultiVal(K key) {
+		long prefix = prefixed ? ((NormalizedComparator<? super K>) comparator).prefix(key) : 0;
+		int low = 0;
+		int high = size - 1;
+
+		// keys are decoded only on equal prefixes
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = 0;
+			if (prefixed)
+				cmp = Long.compareUnsigned(prefix, buffer.getLong(HEADER_SIZE + Long.BYTES * mid));
+			if (cmp == 0)
+				cmp = SingleMultiVal.cpr(comparator, key, keyAt(mid));
+			if (cmp > 0)
+				low = mid + 1;
+			else if (cmp < 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+
+		return -(low + 1);
+	}
+
+	@Override
+	public int indexOfKeyInMultiVal(K key, boolean fastPath) {
+		return indexOfKeyInMultiVal(key);
+	}
+
+	@Override
+	public int indexOfKeyInMultiVal(K key, int rel) {
+		int index = indexOfKeyInMultiVal(key);
+		int insPoint = 0;
+		if (index < 0)
+			insPoint = -index - 1;
+
+		switch (rel) {
+		case Jiffy.LT:
+			if (index >= 0)
+				return index == 0 ? -1 : index - 1;
+			return insPoint == 0 ? -1 : insPoint - 1;
+		case Jiffy.LT | Jiffy.EQ:
+			if (index >= 0)
+				return index;
+			return insPoint == 0 ? -1 : insPoint - 1;
+		case Jiffy.GT | Jiffy.EQ:
+			if (index >= 0)
+				return index;
+			return insPoint == size ? -1 : insPoint;
+		case Jiffy.GT:
+			if (index >= 0)
+				return index == size - 1 ? -1 : index + 1;
+			return insPoint == size ? -1 : insPoint;
+		default:
+			throw new MultiversionNavigableMapException("Invalid argument.");
+		}
+	}
+
+	@Override
+	public V get(K key) {
+		int index = indexOfKeyInMultiVal(key);
+		return index < 0 ? null : valueAt(index);
+	}
+
+	@Override
+	public Map.Entry<K, V> getByIndex(int index) {
+		if (index < 0 || index >= size)
+			return null;
+		return new AbstractMap.SimpleImmutableEntry<>(keyAt(index), valueAt(index));
+	}
+
+	@Override
+	public K getKeyByIndex(Integer index) {
+		return keyAt(index);
+	}
+
+	@Override
+	public V getValueByIndex(int index) {
+		return valueAt(index);
+	}
+
+	@Override
+	public MultiVal<K, V> add(K key, V value) {
+		return decode().add(key, value);
+	}
+
+	@Override
+	public MultiVal<K, V> add(K key, V value, int index) {
+		return decode().add(key, value, index);
+	}
+
+	@Override
+	public MultiVal<K, V> remove(K key) {
+		return decode().remove(key);
+	}
+
+	@Override
+	public MultiVal<K, V> remove(K key, int index) {
+		return decode().remove(key, index);
+	}
+
+	@Override
+	public boolean containsKey(K key) {
+		return indexOfKeyInMultiVal(key) >= 0;
+	}
+
+	@Override
+	public Object[] getKeys() {
+		Object[] keys = new Object[size];
+		for (int i = 0; i < size; i++)
+			keys[i] = keyAt(i);
+		return keys;
+	}
+
+	@Override
+	public Object[] getValues() {
+		Object[] values = new Object[size];
+		for (int i = 0; i < size; i++)
+			values[i] = valueAt(i);
+		return values;
+	}
+
+	@Override
+	public boolean containsValue(V value) {
+		for (int i = 0; i < size; i++) {
+			if (value.equals(valueAt(i)))
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public DoubleMultiVal<K, V> addAndSplit(K key, V value, int index) {
+		return decode().addAndSplit(key, value, index);
+	}
+
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return iterator(0);
+	}
+
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator(int index) {
+		return new KeyValueIterator(index, 1);
+	}
+
+	@Override
+	public Iterator<Map.Entry<K, V>> descendingIterator() {
+		return new KeyValueIterator(size == 0 ? 0 : size - 1, -1);
+	}
+
+	@Override
+	public Iterator<Map.Entry<K, V>> descendingIterator(int index) {
+		return new KeyValueIterator(index, -1);
+	}
+
+	@Override
+	public MultiValIndices<K> indexOfKeysInMultiVal(Batch<K, V> batch, int indexOfFirstRelevantBatchKeyFromRight,
+			K nodeKey) {
+		return decode().indexOfKeysInMultiVal(batch, indexOfFirstRelevantBatchKeyFromRight, nodeKey);
+	}
+
+	@Override
+	public MultiVal<K, V> add(Batch<K, V> batch, MultiValIndices<K> indices) {
+		return decode().add(batch, indices);
+	}
+
+	@Override
+	public DoubleMultiVal<K, V> addAndSplit(Batch<K, V> batch, MultiValIndices<K> indices) {
+		return decode().addAndSplit(batch, indices);
+	}
+
+	@Override
+	public String toString() {
+		return decode().toString();
+	}
+
+	final class KeyValueIterator implements Iterator<Map.Entry<K, V>> {
+		int index;
+		final int step;
+
+		KeyValueIterator(int index, int step) {
+			this.index = index;
+			this.step = step;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index >= 0 && index < size;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Map.Entry<K, V> ret = getByIndex(index);
+			index += step;
+			return ret;
+		}
+	}
+}
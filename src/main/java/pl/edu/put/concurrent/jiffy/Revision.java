@@ -99,6 +99,14 @@ public class Revision<K, V> {
 		this.nextIndices = nextIndices;
 	}
 
+	/**
+	 * Replaces the value with one of the same content, unless it has been
+	 * replaced in the meantime.
+	 */
+	boolean replaceValue(MultiVal<K, V> expected, MultiVal<K, V> value) {
+		return VALUE.compareAndSet(this, expected, value);
+	}
+
 	public int size() {
 		if (value == null)
 			throw new MultiversionNavigableMapException("Should not happen.");
@@ -178,6 +186,7 @@ public class Revision<K, V> {
 	}
 
 	// VarHandle mechanics
+	private static final VarHandle VALUE;
 	private static final VarHandle NEXT;
 	private static final VarHandle VERSION;
 	private static final VarHandle AUTOSCALE_PARAM_FOR_READS;
@@ -186,6 +195,7 @@ public class Revision<K, V> {
 	static {
 		try {
 			MethodHandles.Lookup l = MethodHandles.lookup();
+			VALUE = l.findVarHandle(Revision.class, "value", MultiVal.class);
 			NEXT = l.findVarHandle(Revision.class, "next", Revision.class);
 			VERSION = l.findVarHandle(Revision.class, "version", long.class);
 			AUTOSCALE_PARAM_FOR_READS = l.findVarHandle(Revision.class, "autoscaleParamForReads", double.class);
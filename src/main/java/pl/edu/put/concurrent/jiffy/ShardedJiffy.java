@@ -0,0 +1,400 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * A map range-partitioned over several {@link Jiffy} shards, so that threads
+ * updating different key ranges do not contend on the head and the upper
+ * index levels of a single skip list. Shard {@code i} holds the keys from
+ * split key {@code i - 1}, inclusive, to split key {@code i}, exclusive; the
+ * first and the last shard are unbounded below and above, respectively. The
+ * split keys are fixed when the map is created, e.g. with
+ * {@link #splitKeys(List, int, Comparator)} over a sample of keys.
+ * <p>
+ * All shards share one {@link VersionDomain}: {@link #snapshot()} reads all of
+ * them at a single version, and a batch spanning several shards commits
+ * atomically, under one version. Iteration visits the shards in key order.
+ * Outside of snapshots, {@link #size()} and iteration are weakly consistent,
+ * as in {@link Jiffy}. The conditional updates, such as
+ * {@link #putIfAbsent}, run as {@link Transaction}s on the shard of the key.
+ */
+public class ShardedJiffy<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+	private final VersionDomain domain = new VersionDomain();
+	private final Comparator<? super K> comparator;
+	private final Object[] splitKeys;
+	private final List<Jiffy<K, V>> shards;
+
+	/**
+	 * Constructs a new, empty map with {@code splitKeys.size() + 1} shards,
+	 * sorted according to the {@linkplain Comparable natural ordering} of the
+	 * keys.
+	 *
+	 * @throws IllegalArgumentException if the split keys are not strictly
+	 *                                  increasing
+	 */
+	public ShardedJiffy(List<? extends K> splitKeys) {
+		this(null, splitKeys);
+	}
+
+	/**
+	 * Constructs a new, empty map with {@code splitKeys.size() + 1} shards,
+	 * sorted according to the specified comparator, or naturally if it is
+	 * {@code null}.
+	 *
+	 * @throws IllegalArgumentException if the split keys are not strictly
+	 *                                  increasing
+	 */
+	public ShardedJiffy(Comparator<? super K> comparator, List<? extends K> splitKeys) {
+		this.comparator = comparator;
+		this.splitKeys = splitKeys.toArray();
+		for (int i = 0; i < this.splitKeys.length; i++) {
+			Objects.requireNonNull(this.splitKeys[i]);
+			if (i > 0 && Jiffy.cpr(comparator, this.splitKeys[i - 1], this.splitKeys[i]) >= 0)
+				throw new IllegalArgumentException("Split keys not strictly increasing at index " + i);
+		}
+
+		List<Jiffy<K, V>> shards = new ArrayList<>(this.splitKeys.length + 1);
+		for (int i = 0; i <= this.splitKeys.length; i++)
+			shards.add(new Jiffy<>(comparator, domain));
+		this.shards = Collections.unmodifiableList(shards);
+	}
+
+	/**
+	 * Returns split keys dividing the given sample of keys into the given
+	 * number of ranges of equal size, or fewer if the sample has too few
+	 * distinct keys.
+	 */
+	public static <K> List<K> splitKeys(List<? extends K> sample, int shards, Comparator<? super K> comparator) {
+		if (shards <= 0)
+			throw new IllegalArgumentException("Non-positive number of shards: " + shards);
+		List<K> sorted = new ArrayList<>(sample);
+		sorted.sort(comparator);
+		List<K> ret = new ArrayList<>(shards - 1);
+		for (int i = 1; i < shards; i++) {
+			K key = sorted.get((int) ((long) i * sorted.size() / shards));
+			if (ret.isEmpty() || Jiffy.cpr(comparator, ret.get(ret.size() - 1), key) < 0)
+				ret.add(key);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the shards, in key order. They can be tuned, e.g., with
+	 * {@link Jiffy#setNodeSizes}, but must not be updated directly.
+	 */
+	public List<Jiffy<K, V>> getShards() {
+		return shards;
+	}
+
+	public VersionDomain getDomain() {
+		return domain;
+	}
+
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	/**
+	 * Returns the index of the shard holding the key.
+	 */
+	int shardIndex(Object key) {
+		Objects.requireNonNull(key);
+		int low = 0;
+		int high = splitKeys.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (Jiffy.cpr(comparator, key, splitKeys[mid]) >= 0)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	private Jiffy<K, V> shardFor(Object key) {
+		return shards.get(shardIndex(key));
+	}
+
+	@Override
+	public V get(Object key) {
+		return shardFor(key).get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return shardFor(key).containsKey(key);
+	}
+
+	@Override
+	public V put(K key, V value) {
+		return shardFor(key).put(key, value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		return shardFor(key).remove(key);
+	}
+
+	@Override
+	public V putIfAbsent(K key, V value) {
+		Objects.requireNonNull(value);
+		return atomically(key, tx -> {
+			V current = tx.get(key);
+			if (current == null)
+				tx.put(key, value);
+			return current;
+		});
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean remove(Object key, Object value) {
+		Objects.requireNonNull(key);
+		if (value == null)
+			return false;
+		return atomically((K) key, tx -> {
+			if (!value.equals(tx.get((K) key)))
+				return false;
+			tx.remove((K) key);
+			return true;
+		});
+	}
+
+	@Override
+	public boolean replace(K key, V oldValue, V newValue) {
+		Objects.requireNonNull(oldValue);
+		Objects.requireNonNull(newValue);
+		return atomically(key, tx -> {
+			if (!oldValue.equals(tx.get(key)))
+				return false;
+			tx.put(key, newValue);
+			return true;
+		});
+	}
+
+	@Override
+	public V replace(K key, V value) {
+		Objects.requireNonNull(value);
+		return atomically(key, tx -> {
+			V current = tx.get(key);
+			if (current != null)
+				tx.put(key, value);
+			return current;
+		});
+	}
+
+	/**
+	 * Runs the conditional update of the key in a transaction on its shard,
+	 * retried until it commits, and returns its result. The update only reads
+	 * and writes the key.
+	 */
+	private <R> R atomically(K key, Function<Transaction<K, V>, R> update) {
+		Jiffy<K, V> shard = shardFor(key);
+		for (int failures = 0;; Backoff.pause(++failures, shard.virtualThreads)) {
+			try (Transaction<K, V> tx = shard.beginTransaction()) {
+				R result = update.apply(tx);
+				if (tx.commit())
+					return result;
+			}
+		}
+	}
+
+	/**
+	 * Merges the operand into the value of the key, as in
+	 * {@link Jiffy#mergeValue(Object, Object)}.
+	 */
+	public void mergeValue(K key, V operand) {
+		shardFor(key).mergeValue(key, operand);
+	}
+
+	/**
+	 * Sets the merge operator of all shards.
+	 */
+	public void setMergeOperator(MergeOperator<V> mergeOperator) {
+		for (Jiffy<K, V> shard : shards)
+			shard.setMergeOperator(mergeOperator);
+	}
+
+	/**
+	 * Applies the batch atomically. A batch spanning several shards is split
+	 * into a {@link MultiBatch} committed under a single version. Afterwards,
+	 * the replaced values are available through the batch, as with
+	 * {@link Jiffy#put(Batch)}.
+	 */
+	public void put(Batch<K, V> batch) {
+		Set<K> keys = batch.keys();
+		if (keys.isEmpty())
+			return;
+
+		int first = shardIndex(keys.iterator().next());
+		boolean spanning = false;
+		for (K key : keys) {
+			if (shardIndex(key) != first) {
+				spanning = true;
+				break;
+			}
+		}
+		if (!spanning) {
+			shards.get(first).put(batch);
+			return;
+		}
+
+		List<Batch<K, V>> parts = new ArrayList<>(Collections.nCopies(shards.size(), null));
+		for (K key : keys) {
+			int shard = shardIndex(key);
+			if (parts.get(shard) == null)
+				parts.set(shard, new Batch<>());
+			batch.copyTo(key, parts.get(shard));
+		}
+		MultiBatch multiBatch = new MultiBatch();
+		for (int i = 0; i < parts.size(); i++)
+			if (parts.get(i) != null)
+				multiBatch.add(shards.get(i), parts.get(i));
+		domain.put(multiBatch);
+
+		for (Batch<K, V> part : parts)
+			if (part != null)
+				for (Map.Entry<K, V> e : part.getSubstitutedValues().entrySet())
+					batch.setSubstitutedValue(e.getKey(), e.getValue());
+	}
+
+	/**
+	 * Returns a snapshot of all shards at a single version. It must be closed.
+	 */
+	public ShardedSnapshot<K, V> snapshot() {
+		DomainSnapshot snapshot = domain.snapshot();
+		List<NavigableMap<K, V>> views = new ArrayList<>(shards.size());
+		for (Jiffy<K, V> shard : shards)
+			views.add(snapshot.get(shard));
+		return new ShardedSnapshot<>(this, snapshot, views);
+	}
+
+	/**
+	 * Returns the sum of the sizes of the shards.
+	 */
+	@Override
+	public int size() {
+		long size = 0;
+		for (Jiffy<K, V> shard : shards)
+			size += shard.size();
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (Jiffy<K, V> shard : shards)
+			if (!shard.isEmpty())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns an iterator over the entries of the given range in key order,
+	 * visiting only the shards overlapping the range. A {@code null} bound
+	 * leaves the range unbounded on that side.
+	 */
+	public Iterator<Map.Entry<K, V>> iterator(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		return iterator(shards, fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	Iterator<Map.Entry<K, V>> iterator(List<? extends NavigableMap<K, V>> maps, K fromKey, boolean fromInclusive,
+			K toKey, boolean toInclusive) {
+		if (fromKey != null && toKey != null && Jiffy.cpr(comparator, fromKey, toKey) > 0)
+			throw new IllegalArgumentException("inconsistent range");
+		int first = fromKey == null ? 0 : shardIndex(fromKey);
+		int last = toKey == null ? maps.size() - 1 : shardIndex(toKey);
+		return new Iterator<>() {
+			int shard = first;
+			Iterator<Map.Entry<K, V>> current = range(maps.get(first));
+
+			private Iterator<Map.Entry<K, V>> range(NavigableMap<K, V> map) {
+				if (fromKey != null && toKey != null)
+					return map.subMap(fromKey, fromInclusive, toKey, toInclusive).entrySet().iterator();
+				if (fromKey != null)
+					return map.tailMap(fromKey, fromInclusive).entrySet().iterator();
+				if (toKey != null)
+					return map.headMap(toKey, toInclusive).entrySet().iterator();
+				return map.entrySet().iterator();
+			}
+
+			@Override
+			public boolean hasNext() {
+				while (!current.hasNext()) {
+					if (shard == last)
+						return false;
+					current = range(maps.get(++shard));
+				}
+				return true;
+			}
+
+			@Override
+			public Map.Entry<K, V> next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return current.next();
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<>() {
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return ShardedJiffy.this.iterator(null, false, null, false);
+			}
+
+			@Override
+			public int size() {
+				return ShardedJiffy.this.size();
+			}
+		};
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * A read-only view of all shards of a {@link ShardedJiffy} at a single
+ * version. Closing it closes the snapshots of all the shards.
+ */
+public class ShardedSnapshot<K, V> extends AbstractMap<K, V> implements AutoCloseable {
+	private final ShardedJiffy<K, V> map;
+	private final DomainSnapshot snapshot;
+	private final List<NavigableMap<K, V>> shards;
+
+	ShardedSnapshot(ShardedJiffy<K, V> map, DomainSnapshot snapshot, List<NavigableMap<K, V>> shards) {
+		this.map = map;
+		this.snapshot = snapshot;
+		this.shards = shards;
+	}
+
+	public long getSnapshotVersion() {
+		return snapshot.getSnapshotVersion();
+	}
+
+	@Override
+	public V get(Object key) {
+		return shards.get(map.shardIndex(key)).get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return shards.get(map.shardIndex(key)).containsKey(key);
+	}
+
+	@Override
+	public int size() {
+		long size = 0;
+		for (NavigableMap<K, V> shard : shards)
+			size += shard.size();
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Same as {@link ShardedJiffy#iterator(Object, boolean, Object, boolean)}
+	 * at the version of the snapshot.
+	 */
+	public Iterator<Map.Entry<K, V>> iterator(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		return map.iterator(shards, fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<>() {
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return ShardedSnapshot.this.iterator(null, false, null, false);
+			}
+
+			@Override
+			public int size() {
+				return ShardedSnapshot.this.size();
+			}
+		};
+	}
+
+	@Override
+	public V put(K key, V value) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public V remove(Object key) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		snapshot.close();
+	}
+}
@@ -34,6 +34,8 @@
 
 package pl.edu.put.concurrent.jiffy;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.AbstractMap;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -75,6 +77,9 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 	Object[] values = null;
 	short[] hashes = null;
 	short[] indices = null;
+	// Prefixes of the keys, see KeyNormalizer; built on the first search, or
+	// carried over from the multival this one is derived from
+	private long[] prefixes = null;
 
 	public SingleMultiVal(boolean initializeArrays) {
 		if (initializeArrays) {
@@ -124,9 +129,58 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 		mergeAndAdd(comparator, batch, leftMval, rightMval, leftIndices, rightIndices);
 	}
 
+	static <K, V> SingleMultiVal<K, V> fromSortedArrays(Comparator<? super K> comparator, Object[] keys,
+			Object[] values) {
+		SingleMultiVal<K, V> mval = new SingleMultiVal<>(false);
+		mval.comparator = comparator;
+		mval.keys = keys;
+		mval.values = values;
+
+		if (USE_FINGERPRINTS) {
+			mval.hashes = new short[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				@SuppressWarnings("unchecked")
+				K key = (K) keys[i];
+				mval.hashes[i] = mval.getHash(key);
+			}
+			mval.recalculateIndices();
+		}
+
+		return mval;
+	}
+
+	// an instance ordered by the same comparator
+	private SingleMultiVal<K, V> derive(boolean initializeArrays) {
+		SingleMultiVal<K, V> mval = new SingleMultiVal<>(initializeArrays);
+		mval.comparator = comparator;
+		return mval;
+	}
+
+	static <K, V> SingleMultiVal<K, V> empty(Comparator<? super K> comparator) {
+		SingleMultiVal<K, V> mval = new SingleMultiVal<>(true);
+		mval.comparator = comparator;
+		return mval;
+	}
+
+	/**
+	 * Returns the prefixes of the keys if the comparator has a normalizer,
+	 * building them if needed, or null.
+	 */
+	private long[] prefixes() {
+		long[] ret = (long[]) PREFIXES.getAcquire(this);
+		if (ret == null && comparator instanceof NormalizedComparator) {
+			NormalizedComparator<? super K> normalized = (NormalizedComparator<? super K>) comparator;
+			ret = new long[keys.length];
+			for (int i = 0; i < keys.length; i++)
+				ret[i] = normalized.prefix(keys[i]);
+			PREFIXES.setRelease(this, ret);
+		}
+		return ret;
+	}
+
 	@Override
 	public SingleMultiVal<K, V> clone() {
-		SingleMultiVal<K, V> clone = new SingleMultiVal<>(false);
+		SingleMultiVal<K, V> clone = derive(false);
 
 		if (keys.length == 0) {
 			clone.keys = new Object[0];
@@ -209,6 +263,12 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 		return keys.length;
 	}
 
+	@Override
+	public long arrayBytes() {
+		return MemoryStats.arrayBytes(keys) + MemoryStats.arrayBytes(values) + MemoryStats.arrayBytes(hashes)
+				+ MemoryStats.arrayBytes(indices) + MemoryStats.arrayBytes((long[]) PREFIXES.getAcquire(this));
+	}
+
 	@Override
 	public boolean containsKey(K key) {
 		if (USE_FINGERPRINTS) {
@@ -251,8 +311,11 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 		return ret;
 	}
 
+	// byte arrays, unlike other keys, are hashed by content to agree with
+	// comparators that order them by content
 	private short getHash(K key) {
-		return (short) (key.hashCode() % ((1 << Short.SIZE) - 1));
+		int hash = key instanceof byte[] bytes ? Arrays.hashCode(bytes) : key.hashCode();
+		return (short) (hash % ((1 << Short.SIZE) - 1));
 	}
 
 	private short getMicroHash(K key) {
@@ -288,9 +351,10 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 
 	// Based on open JDK 8 code Arrays.binarySearch
 	public int binarySearchKey(K key) {
-		int low = 0;
-		int high = keys.length - 1;
+		return indexOfKeyInMultiVal(key, 0, keys.length - 1);
+	}
 
+	private int binarySearchKey(K key, int low, int high) {
 		while (low <= high) {
 			int mid = (low + high) >>> 1;
 			Object midVal = keys[mid];
@@ -329,11 +393,16 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 	}
 
 	public int indexOfKeyInMultiVal(K key, int low, int high) {
+		long[] prefixes = prefixes();
+		if (prefixes == null)
+			return binarySearchKey(key, low, high);
+
+		// the same search, comparing keys only on equal prefixes
+		long prefix = ((NormalizedComparator<? super K>) comparator).prefix(key);
 		while (low <= high) {
 			int mid = (low + high) >>> 1;
-			Object midVal = keys[mid];
-			@SuppressWarnings("unchecked")
-			int cmp = cpr(comparator, key, (K) midVal);
+			long midPrefix = prefixes[mid];
+			int cmp = prefix != midPrefix ? Long.compareUnsigned(prefix, midPrefix) : cpr(comparator, key, keys[mid]);
 			if (cmp > 0)
 				low = mid + 1;
 			else if (cmp < 0)
@@ -578,11 +647,12 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 		if (keys.length == 0)
 			throw new MultiversionNavigableMapException("MultiVal is too small.");
 
-		SingleMultiVal<K, V> newMultiVal = new SingleMultiVal<K, V>(false);
+		SingleMultiVal<K, V> newMultiVal = derive(false);
 
 		newMultiVal.keys = keys; 
 		newMultiVal.values = Arrays.copyOf(values, values.length);
 		newMultiVal.values[pos] = value;
+		newMultiVal.prefixes = (long[]) PREFIXES.getAcquire(this);
 
 		if (USE_FINGERPRINTS) {
 			newMultiVal.hashes = hashes;
@@ -595,9 +665,9 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 	private SingleMultiVal<K, V> removeItemAtPos(int pos) {
 		int oldLength = keys.length;
 		if (oldLength == 1)
-			return new SingleMultiVal<K, V>(true);
+			return derive(true);
 
-		SingleMultiVal<K, V> newMultiVal = new SingleMultiVal<K, V>(false);
+		SingleMultiVal<K, V> newMultiVal = derive(false);
 
 		newMultiVal.keys = new Object[oldLength - 1];
 		newMultiVal.values = new Object[oldLength - 1];
@@ -608,6 +678,13 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 		System.arraycopy(values, 0, newMultiVal.values, 0, pos);
 		System.arraycopy(values, pos + 1, newMultiVal.values, pos, values.length - pos - 1);
 
+		long[] prefixes = (long[]) PREFIXES.getAcquire(this);
+		if (prefixes != null) {
+			newMultiVal.prefixes = new long[oldLength - 1];
+			System.arraycopy(prefixes, 0, newMultiVal.prefixes, 0, pos);
+			System.arraycopy(prefixes, pos + 1, newMultiVal.prefixes, pos, oldLength - pos - 1);
+		}
+
 		if (USE_FINGERPRINTS) {
 			newMultiVal.hashes = new short[oldLength - 1];
 			System.arraycopy(hashes, 0, newMultiVal.hashes, 0, pos);
@@ -628,7 +705,7 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 		if (oldLength == 0)
 			return new SingleMultiVal<K, V>(this.comparator, key, val);
 
-		SingleMultiVal<K, V> newMultiVal = new SingleMultiVal<K, V>(false);
+		SingleMultiVal<K, V> newMultiVal = derive(false);
 
 		newMultiVal.keys = new Object[oldLength + 1];
 		newMultiVal.values = new Object[oldLength + 1];
@@ -641,6 +718,14 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 		newMultiVal.values[insertPos] = val;
 		System.arraycopy(values, insertPos, newMultiVal.values, insertPos + 1, values.length - insertPos);
 
+		long[] prefixes = (long[]) PREFIXES.getAcquire(this);
+		if (prefixes != null) {
+			newMultiVal.prefixes = new long[oldLength + 1];
+			System.arraycopy(prefixes, 0, newMultiVal.prefixes, 0, insertPos);
+			newMultiVal.prefixes[insertPos] = ((NormalizedComparator<? super K>) comparator).prefix(key);
+			System.arraycopy(prefixes, insertPos, newMultiVal.prefixes, insertPos + 1, oldLength - insertPos);
+		}
+
 		if (USE_FINGERPRINTS) {
 			newMultiVal.hashes = new short[oldLength + 1];
 			System.arraycopy(hashes, 0, newMultiVal.hashes, 0, insertPos);
@@ -660,9 +745,9 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 
 	public MultiVal<K, V> add(Batch<K, V> batch, MultiValIndices<K> indices) {
 		if (indices.endSize == 0)
-			return new SingleMultiVal<K, V>(true);
+			return derive(true);
 
-		SingleMultiVal<K, V> newMultiVal = new SingleMultiVal<K, V>(false);
+		SingleMultiVal<K, V> newMultiVal = derive(false);
 		newMultiVal.keys = new Object[indices.endSize];
 		newMultiVal.values = new Object[indices.endSize];
 		if (USE_FINGERPRINTS)
@@ -695,7 +780,7 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 
 			if (value != null) {
 				newMultiVal.keys[i] = key;
-				newMultiVal.values[i] = value;
+				newMultiVal.values[i] = MergeOperands.resolve(value, values, index);
 				if (USE_FINGERPRINTS)
 					newMultiVal.hashes[i] = getHash(key);
 				i++;
@@ -720,8 +805,8 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 
 	@Override
 	public DoubleMultiVal<K,V> addAndSplit(K key, V value, int index) {
-		SingleMultiVal<K, V> leftMultiVal = new SingleMultiVal<K, V>(false);
-		SingleMultiVal<K, V> rightMultiVal = new SingleMultiVal<K, V>(false);
+		SingleMultiVal<K, V> leftMultiVal = derive(false);
+		SingleMultiVal<K, V> rightMultiVal = derive(false);
 
 		if (index < 0) {
 			int insertPos = -index - 1;
@@ -845,14 +930,14 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 	}
 
 	public DoubleMultiVal<K,V> addAndSplit(Batch<K, V> batch, MultiValIndices<K> indices) {
-		SingleMultiVal<K, V> leftMultiVal = new SingleMultiVal<K, V>(false);
+		SingleMultiVal<K, V> leftMultiVal = derive(false);
 		int leftMultiValSize = indices.endSize / 2;
 		leftMultiVal.keys = new Object[leftMultiValSize];
 		leftMultiVal.values = new Object[leftMultiValSize];
 		if (USE_FINGERPRINTS)
 			leftMultiVal.hashes = new short[leftMultiValSize];
 
-		SingleMultiVal<K, V> rightMultiVal = new SingleMultiVal<K, V>(false);
+		SingleMultiVal<K, V> rightMultiVal = derive(false);
 		int rightMultiValSize = indices.endSize - leftMultiValSize;
 		rightMultiVal.keys = new Object[rightMultiValSize];
 		rightMultiVal.values = new Object[rightMultiValSize];
@@ -917,7 +1002,7 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 
 			if (value != null) {
 				currentMultiVal.keys[i] = key;
-				currentMultiVal.values[i] = value;
+				currentMultiVal.values[i] = MergeOperands.resolve(value, values, index);
 				if (USE_FINGERPRINTS)
 					currentMultiVal.hashes[i] = getHash(key);
 				i++;
@@ -973,8 +1058,8 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 	}
 
 	private void mergeAndRemove(MultiVal<K, V> mvalLeft, MultiVal<K, V> mvalRight, int indexOfKeyInNextMultiVal) {
-		SingleMultiVal<K, V> sMvalLeft = (SingleMultiVal<K, V>) mvalLeft;
-		SingleMultiVal<K, V> sMvalRight = (SingleMultiVal<K, V>) mvalRight;
+		SingleMultiVal<K, V> sMvalLeft = DeltaMultiVal.asSingleMultiVal(mvalLeft);
+		SingleMultiVal<K, V> sMvalRight = DeltaMultiVal.asSingleMultiVal(mvalRight);
 
 		int newSize = sMvalLeft.size() + sMvalRight.size() - 1;
 		keys = new Object[newSize];
@@ -1028,6 +1113,9 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 
 		// copying from leftMval
 
+		leftMval = DeltaMultiVal.asSingleMultiVal(leftMval);
+		rightMval = DeltaMultiVal.asSingleMultiVal(rightMval);
+
 		int lastIndex = 0;
 		Object[] currentKeys = leftMval.getKeys();
 		Object[] currentValues = leftMval.getValues();
@@ -1059,7 +1147,7 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 
 			if (value != null) {
 				keys[i] = key;
-				values[i] = value;
+				values[i] = MergeOperands.resolve(value, currentValues, index);
 				if (USE_FINGERPRINTS)
 					hashes[i] = getHash(key);
 				i++;
@@ -1110,7 +1198,7 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 
 			if (value != null) {
 				keys[i] = key;
-				values[i] = value;
+				values[i] = MergeOperands.resolve(value, currentValues, index);
 				hashes[i] = getHash(key);
 				i++;
 			}
@@ -1211,4 +1299,16 @@ class SingleMultiVal<K, V> implements MultiVal<K, V> {
 			return entry;
 		}
 	}
+
+	// VarHandle mechanics
+	private static final VarHandle PREFIXES;
+
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			PREFIXES = l.findVarHandle(SingleMultiVal.class, "prefixes", long[].class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 }
@@ -42,6 +42,8 @@ class SplitRevision<K, V> extends Revision<K, V> {
 	Node<K, V> node;
 	boolean left;
 	int levels = -1;
+	// the split was caused by contention, see Node.splitByContention
+	boolean contended = false;
 
 	public SplitRevision(MultiVal<K, V> value, long version, Revision<K, V> next, boolean left) {
 		super(value, version, next);
@@ -37,8 +37,8 @@ package pl.edu.put.concurrent.jiffy;
 class TempSplitNode<K, V> extends Node<K, V> {
 	SplitRevision<K, V> leftRevision;
 	
-	TempSplitNode(K key, SplitRevision<K,V> leftRevision, Node<K, V> next) {
-		super(key, null, next, null);
+	TempSplitNode(K key, long keyPrefix, SplitRevision<K,V> leftRevision, Node<K, V> next) {
+		super(key, null, next, null, keyPrefix);
 		this.type = TEMP_SPLIT;
 		this.leftRevision = leftRevision;
 	}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.LongSupplier;
+
+/**
+ * The per-thread state of a {@link Jiffy}: the autoscaling bookkeeping and the
+ * split and merge counters. By default, every thread gets its own cell
+ * through a {@link ThreadLocal}. In maps created for virtual threads, threads
+ * share a fixed number of cells, picked by the thread id, so that the state
+ * does not grow with the number of threads. Threads sharing a cell race on
+ * it, which only makes the autoscaling heuristics and counters approximate.
+ */
+final class ThreadCells {
+	static final class Cell {
+		int readSkip = 0;
+		int lastReadSkip = 0;
+		long autoscalingLastTimeSet;
+		long splits = 0;
+		long merges = 0;
+
+		Cell(long autoscalingLastTimeSet) {
+			this.autoscalingLastTimeSet = autoscalingLastTimeSet;
+		}
+	}
+
+	private final LongSupplier clock;
+	private final ThreadLocal<Cell> local;
+	private final Cell[] stripes;
+
+	ThreadCells(boolean striped, LongSupplier clock) {
+		this.clock = clock;
+		if (striped) {
+			local = null;
+			stripes = new Cell[stripeCount()];
+		} else {
+			local = ThreadLocal.withInitial(() -> new Cell(clock.getAsLong()));
+			stripes = null;
+		}
+	}
+
+	private static int stripeCount() {
+		int n = 4 * Runtime.getRuntime().availableProcessors();
+		return Integer.highestOneBit(Math.max(n - 1, 1)) << 1;
+	}
+
+	Cell current() {
+		if (stripes == null)
+			return local.get();
+
+		@SuppressWarnings("deprecation")
+		long id = Thread.currentThread().getId();
+		int i = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (stripes.length - 1);
+		Cell cell = (Cell) STRIPES.getAcquire(stripes, i);
+		if (cell == null) {
+			Cell created = new Cell(clock.getAsLong());
+			cell = (Cell) STRIPES.compareAndExchange(stripes, i, null, created);
+			if (cell == null)
+				cell = created;
+		}
+		return cell;
+	}
+
+	/**
+	 * Returns the splits counted by the calling thread, or by all threads if
+	 * the cells are shared.
+	 */
+	long splits() {
+		if (stripes == null)
+			return local.get().splits;
+		long sum = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			Cell cell = (Cell) STRIPES.getAcquire(stripes, i);
+			if (cell != null)
+				sum += cell.splits;
+		}
+		return sum;
+	}
+
+	long merges() {
+		if (stripes == null)
+			return local.get().merges;
+		long sum = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			Cell cell = (Cell) STRIPES.getAcquire(stripes, i);
+			if (cell != null)
+				sum += cell.merges;
+		}
+		return sum;
+	}
+
+	// VarHandle mechanics
+	private static final VarHandle STRIPES = MethodHandles.arrayElementVarHandle(Cell[].class);
+}
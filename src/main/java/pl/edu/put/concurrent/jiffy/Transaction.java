@@ -0,0 +1,196 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import pl.edu.put.concurrent.MultiversionNavigableMapSnapshot;
+
+/**
+ * An optimistic snapshot-isolation transaction over a {@link Jiffy} map,
+ * obtained with {@link Jiffy#beginTransaction()}. Reads go through a snapshot
+ * taken at the start and writes are buffered until the commit, which
+ * installs them as a {@link Batch} only if none of the keys read through
+ * {@link #get} or written has been changed since the start, so the first
+ * committer wins. Keys are told apart by the comparator of the map, so for
+ * instance byte arrays of the same content are the same key.
+ * <p>
+ * The keys are validated while the batch is installed, without locks: each
+ * node is checked right before the revision of the batch is installed in it.
+ * The keys that were only read are installed with the values read, so that
+ * no conflicting update can commit before the transaction once its revision is
+ * in place. They are not reported to the listeners of the map, e.g. to its
+ * write-ahead log or change publisher, which only see the keys written. If a
+ * conflict is found, the revisions installed so far are covered, under the
+ * same version, with ones restoring the values read, so they never become
+ * visible. A key counts as changed if it maps to a different value (compared
+ * by reference) than at the start; an expired entry counts as absent. Reads
+ * of ranges through {@link #snapshot()} are not validated.
+ */
+public class Transaction<K, V> implements AutoCloseable {
+	private final Jiffy<K, V> map;
+	private final Jiffy.SubMap<K, V> snapshot;
+	private final long startVersion;
+	// the values read as stored, with the deadlines of entries put with a time
+	// to live, so that writing them back keeps the deadlines
+	private final Map<K, V> reads;
+	// null values stand for removals
+	private final Map<K, V> writes;
+	private boolean finished = false;
+	private long commitVersion = 0;
+
+	Transaction(Jiffy<K, V> map) {
+		this.map = map;
+		this.reads = new TreeMap<>(map.comparator);
+		this.writes = new TreeMap<>(map.comparator);
+		var snapshot = map.openSnapshot(map.getCurrentVersion());
+		// no update in progress may commit with the start version unnoticed
+		snapshot.setVersion(map.domain.stableVersion());
+		this.snapshot = snapshot;
+		this.startVersion = snapshot.getSnapshotVersion();
+	}
+
+	public long getStartVersion() {
+		return startVersion;
+	}
+
+	/**
+	 * Returns the version of the commit, or 0 if the transaction has not
+	 * committed.
+	 */
+	public long getCommitVersion() {
+		return commitVersion;
+	}
+
+	/**
+	 * Returns the value of the key, as written by this transaction or as of
+	 * the start of the transaction.
+	 */
+	public V get(K key) {
+		Objects.requireNonNull(key);
+		checkActive();
+		if (writes.containsKey(key))
+			return writes.get(key);
+		if (!reads.containsKey(key))
+			reads.put(key, read(key));
+		return map.unwrap(reads.get(key));
+	}
+
+	public void put(K key, V value) {
+		Objects.requireNonNull(key);
+		Objects.requireNonNull(value);
+		checkActive();
+		writes.put(key, value);
+	}
+
+	public void remove(K key) {
+		Objects.requireNonNull(key);
+		checkActive();
+		writes.put(key, null);
+	}
+
+	/**
+	 * Returns the snapshot the transaction reads from.
+	 */
+	public MultiversionNavigableMapSnapshot<K, V> snapshot() {
+		checkActive();
+		return snapshot;
+	}
+
+	/**
+	 * Commits the transaction. Returns false if it was aborted because of a
+	 * conflicting update committed since the start.
+	 */
+	public boolean commit() {
+		checkActive();
+		finished = true;
+		try {
+			if (writes.isEmpty()) {
+				commitVersion = getStartVersion();
+				return true;
+			}
+
+			for (K key : writes.keySet()) {
+				if (!reads.containsKey(key))
+					reads.put(key, read(key));
+			}
+			Map<K, V> installed = new TreeMap<>(map.comparator);
+			installed.putAll(reads);
+			installed.putAll(writes);
+			Batch<K, V> expected = new Batch<>(reads);
+			Batch<K, V> batch = new Batch<>(installed);
+			Set<K> readOnly = new TreeSet<>(map.comparator);
+			readOnly.addAll(reads.keySet());
+			readOnly.removeAll(writes.keySet());
+			batch.setUnreported(readOnly);
+			expected.prepare(map.comparator);
+			batch.prepare(map.comparator);
+
+			long version = map.putIfUnchanged(batch, expected, getStartVersion());
+			if (version < 0)
+				return false;
+			commitVersion = version;
+			return true;
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Discards the transaction, unless it has been committed.
+	 */
+	@Override
+	public void close() {
+		if (finished)
+			return;
+		finished = true;
+		snapshot.close();
+	}
+
+	@SuppressWarnings("unchecked")
+	private V read(K key) {
+		return (V) snapshot.getStored(key);
+	}
+
+	private void checkActive() {
+		if (finished)
+			throw new IllegalStateException("The transaction has already finished.");
+	}
+}
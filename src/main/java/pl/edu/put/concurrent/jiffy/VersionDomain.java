@@ -0,0 +1,221 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+
+import pl.edu.put.concurrent.jiffy.MultiBatchDescriptor.Part;
+
+/**
+ * The source of versions shared by a group of {@link Jiffy} maps. Maps
+ * created with the same domain order their updates by a single clock, so that
+ * a {@link MultiBatch} can commit in all of them under one version and a
+ * {@link DomainSnapshot} can read all of them at one point. A map created
+ * without a domain has a private one.
+ * <p>
+ * The domain keeps references to its maps for as long as it is reachable.
+ */
+public class VersionDomain {
+	final long startTime;
+	@SuppressWarnings("unused")
+	private long currentVersion = 0;
+	private volatile Jiffy<?, ?>[] maps = new Jiffy<?, ?>[0];
+
+	public VersionDomain() {
+		startTime = System.nanoTime();
+	}
+
+	public long getCurrentVersion() {
+		if (Jiffy.USE_TSC) {
+			return System.nanoTime() - startTime;
+		} else {
+			return (long) CURRENT_VERSION.getAcquire(this);
+		}
+	}
+
+	/**
+	 * Returns the nanoseconds elapsed since the domain was created. With
+	 * {@link Jiffy#USE_TSC} this is the current version.
+	 */
+	long clock() {
+		return System.nanoTime() - startTime;
+	}
+
+	/**
+	 * Makes the version current: with {@link Jiffy#USE_TSC}, waits until the
+	 * clock reaches it, otherwise advances the logical clock if it lags. If
+	 * park is set, a waiting thread parks instead of yielding, as for maps
+	 * created for virtual threads.
+	 */
+	void publishVersion(long finalVersion, boolean park) {
+		if (Jiffy.USE_TSC) {
+			int counter = 0;
+			while (finalVersion > getCurrentVersion()) {
+				counter++;
+				if (counter % 5 != 0)
+					continue;
+				if (park)
+					LockSupport.parkNanos(Math.max(1, finalVersion - getCurrentVersion()));
+				else
+					Thread.yield();
+			}
+		} else {
+
+			int i;
+			for (i = 0; i < 5; i++) {
+				if (finalVersion <= getCurrentVersion()) {
+					break;
+				}
+			}
+			if (i == 5)
+				CURRENT_VERSION.getAndAdd(this, 1);
+		}
+	}
+
+	/**
+	 * Returns a version such that every update that is not in progress at the
+	 * time of the call commits with a greater or equal version. With a logical
+	 * clock, the clock is advanced, so that updates already committed with the
+	 * current version can be told apart from future ones.
+	 */
+	long advanceVersionBound() {
+		if (Jiffy.USE_TSC)
+			return getCurrentVersion();
+		return (long) CURRENT_VERSION.getAndAdd(this, 1) + 1;
+	}
+
+	/**
+	 * Returns the current version, such that no update in progress can still
+	 * commit with it. To this end, a logical clock is advanced.
+	 */
+	long stableVersion() {
+		if (Jiffy.USE_TSC)
+			return getCurrentVersion();
+		return (long) CURRENT_VERSION.getAndAdd(this, 1);
+	}
+
+	/**
+	 * Adds the map to the domain and returns its position, which orders the
+	 * parts of multi-map batches.
+	 */
+	int join(Jiffy<?, ?> map) {
+		while (true) {
+			var expected = (Jiffy<?, ?>[]) MAPS.getAcquire(this);
+			var updated = Arrays.copyOf(expected, expected.length + 1);
+			updated[expected.length] = map;
+			if (MAPS.compareAndSet(this, expected, updated))
+				return expected.length;
+		}
+	}
+
+	/**
+	 * Commits the batches of all maps atomically: a snapshot of the domain, as
+	 * well as a snapshot of any single map, observes either all of them or none.
+	 *
+	 * @throws IllegalArgumentException if a map does not belong to this domain
+	 */
+	public void put(MultiBatch batch) {
+		Objects.requireNonNull(batch);
+		Part<?, ?>[] parts = batch.prepare(this);
+		if (parts.length == 0)
+			return;
+		if (parts.length == 1) {
+			parts[0].putAlone();
+			return;
+		}
+
+		int entered = 0;
+		boolean park = false;
+		try {
+			for (; entered < parts.length; entered++) {
+				parts[entered].enter();
+				park |= parts[entered].map.virtualThreads;
+			}
+
+			long optimisticVersion = getCurrentVersion() + 1;
+			var descriptor = new MultiBatchDescriptor(parts, optimisticVersion);
+
+			for (int i = parts.length - 1; i >= 0; i--)
+				parts[i].install();
+
+			long currentVersion = getCurrentVersion();
+			if (currentVersion < optimisticVersion)
+				publishVersion(currentVersion, park);
+			long finalVersion = descriptor.trySetVersion(currentVersion);
+
+			for (Part<?, ?> part : parts)
+				part.finish(finalVersion);
+		} finally {
+			for (int i = 0; i < entered; i++)
+				parts[i].exit();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of all maps of the domain at the current version.
+	 */
+	public DomainSnapshot snapshot() {
+		Jiffy<?, ?>[] maps = this.maps;
+		var snapshots = new Jiffy.SubMap<?, ?>[maps.length];
+		long version = getCurrentVersion();
+		for (int i = 0; i < maps.length; i++)
+			snapshots[i] = maps[i].openSnapshot(version);
+		// as for a single map, the version is taken after all snapshots are
+		// registered, so that none of them is garbage collected
+		version = stableVersion();
+		for (var snapshot : snapshots)
+			snapshot.setVersion(version);
+		return new DomainSnapshot(maps, snapshots, version);
+	}
+
+	// VarHandle mechanics
+	private static final VarHandle CURRENT_VERSION;
+	private static final VarHandle MAPS;
+
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			CURRENT_VERSION = l.findVarHandle(VersionDomain.class, "currentVersion", long.class);
+			MAPS = l.findVarHandle(VersionDomain.class, "maps", Jiffy[].class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of updates committed to a {@link Jiffy}, attached with
+ * {@link Jiffy#setWriteAheadLog(WriteAheadLog)}. Every committed put, remove and
+ * batch is appended as a single record together with its final version.
+ *
+ * Writers use group commit: a record is copied to a shared buffer and one of
+ * the waiting writers writes (and, depending on the {@link SyncPolicy}, forces)
+ * the whole buffer on behalf of all of them.
+ *
+ * The log is written after the update is committed in memory, so an update
+ * may be observed by other threads before it is durable. The put (remove,
+ * batch) returns only after its record was handled according to the sync
+ * policy. Once the log is closed, it no longer records updates; a map
+ * refuses updates while a closed log is attached to it.
+ *
+ * If writing the log fails, the updates waiting for their records throw an
+ * {@link UncheckedIOException}; they are visible in memory already, but may
+ * not be durable. The log stays failed, and a map it is attached to refuses
+ * later updates before they are committed, with an
+ * {@link IllegalStateException}.
+ *
+ * Record format: {@code int length, int crc32, long version, int count} and
+ * {@code count} entries {@code int keyLength, key, int valueLength, value}, a
+ * value length of -1 denoting a removed key. A value length of -2 denotes an
+ * entry with a time to live and is followed by {@code long deadline} in
+ * nanoseconds since the epoch and the value length and value. Entries that
+ * have expired by the time the log is recovered are replayed as removals.
+ * Versions are offset by the
+ * highest version already present in the log, so that they keep increasing
+ * across restarts.
+ */
+public class WriteAheadLog<K, V> implements CommitListener<K, V>, Closeable {
+	public enum SyncPolicy {
+		// records are written to the file, but the file is forced only on close
+		NONE,
+		// records are forced before the update returns, concurrent writers
+		// share a single force()
+		ON_COMMIT,
+		// records are written before the update returns and forced periodically
+		// by a background thread
+		PERIODIC
+	}
+
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+	private static final int REPLAY_BATCH_SIZE = 4096;
+	// the value length marking an entry with a time to live
+	private static final int EXPIRING = -2;
+
+	private final FileChannel channel;
+	private final Codec<K, V> codec;
+	private final SyncPolicy syncPolicy;
+	private final long versionBase;
+	private final Thread syncThread;
+
+	private final Object lock = new Object();
+	private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private long appended = 0;
+	private long written = 0;
+	private boolean writing = false;
+	private volatile boolean closed = false;
+	// set under the lock, read without it by the map before each update
+	private volatile IOException failure = null;
+
+	private WriteAheadLog(FileChannel channel, Codec<K, V> codec, SyncPolicy syncPolicy, Duration syncInterval,
+			long versionBase) {
+		this.channel = channel;
+		this.codec = codec;
+		this.syncPolicy = syncPolicy;
+		this.versionBase = versionBase;
+
+		if (syncPolicy == SyncPolicy.PERIODIC) {
+			long intervalMillis = Math.max(1, syncInterval.toMillis());
+			syncThread = new Thread(() -> syncPeriodically(intervalMillis), "jiffy-wal-sync");
+			syncThread.setDaemon(true);
+			syncThread.start();
+		} else {
+			syncThread = null;
+		}
+	}
+
+	/**
+	 * Opens (or creates) the log for appending. A torn record at the end of an
+	 * existing log, left by a crash, is truncated.
+	 */
+	public static <K, V> WriteAheadLog<K, V> open(Path path, Codec<K, V> codec, SyncPolicy syncPolicy)
+			throws IOException {
+		return open(path, codec, syncPolicy, Duration.ofMillis(10));
+	}
+
+	public static <K, V> WriteAheadLog<K, V> open(Path path, Codec<K, V> codec, SyncPolicy syncPolicy,
+			Duration syncInterval) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			long[] maxVersion = new long[1];
+			long validLength = readRecords(channel, codec, false, record -> {
+				if (record.version > maxVersion[0])
+					maxVersion[0] = record.version;
+			});
+			channel.truncate(validLength);
+			channel.position(validLength);
+			return new WriteAheadLog<>(channel, codec, syncPolicy, syncInterval, maxVersion[0]);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Replays the log into the given (fresh) map in version order, using
+	 * batches of up to {@value #REPLAY_BATCH_SIZE} keys. The map should not have
+	 * a log attached yet.
+	 *
+	 * @return the number of replayed records
+	 */
+	public static <K, V> long recover(Path path, Codec<K, V> codec, Jiffy<K, V> map) throws IOException {
+		List<Record> records = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			readRecords(channel, codec, true, records::add);
+		}
+
+		records.sort(Comparator.comparingLong(record -> record.version));
+
+		Batch<K, V> batch = new Batch<>();
+		for (Record record : records) {
+			for (int i = 0; i < record.keys.length; i++) {
+				@SuppressWarnings("unchecked")
+				K key = (K) record.keys[i];
+				@SuppressWarnings("unchecked")
+				V value = map.restoredValue((V) record.values[i]);
+				if (value != null)
+					batch.put(key, value);
+				else
+					batch.remove(key);
+			}
+
+			if (batch.mapSize() >= REPLAY_BATCH_SIZE) {
+				map.put(batch);
+				batch = new Batch<>();
+			}
+		}
+		if (batch.mapSize() > 0)
+			map.put(batch);
+
+		return records.size();
+	}
+
+	@Override
+	public void committed(long version, K key, V value) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeLong(versionBase + version);
+			out.writeInt(1);
+			writeEntry(out, key, value);
+			append(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void committed(long version, Batch<K, V> batch) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			int size = batch.size();
+			out.writeLong(versionBase + version);
+			out.writeInt(size);
+			for (int i = 0; i < size; i++)
+				writeEntry(out, batch.getKeyByIndex(i), batch.getValueByIndex(i));
+			append(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeEntry(DataOutputStream out, K key, V value) throws IOException {
+		byte[] keyBytes = codec.encodeKey(key);
+		out.writeInt(keyBytes.length);
+		out.write(keyBytes);
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			if ((Object) value instanceof ExpiringValue e) {
+				out.writeInt(EXPIRING);
+				out.writeLong(e.deadline);
+				value = ExpiringValue.unwrap(e);
+			}
+			byte[] valueBytes = codec.encodeValue(value);
+			out.writeInt(valueBytes.length);
+			out.write(valueBytes);
+		}
+	}
+
+	private void append(byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+
+		long sequenceNumber;
+		synchronized (lock) {
+			// the update is committed already, and is not recorded only if it
+			// raced with closing the log
+			if (closed)
+				return;
+
+			int required = RECORD_HEADER_SIZE + payload.length;
+			if (pending.remaining() < required) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + required));
+				pending.flip();
+				larger.put(pending);
+				pending = larger;
+			}
+
+			pending.putInt(payload.length);
+			pending.putInt((int) crc.getValue());
+			pending.put(payload);
+			sequenceNumber = ++appended;
+		}
+
+		awaitWritten(sequenceNumber);
+	}
+
+	private void awaitWritten(long sequenceNumber) throws IOException {
+		ByteBuffer toWrite;
+		long upTo;
+
+		synchronized (lock) {
+			boolean interrupted = false;
+			try {
+				for (;;) {
+					if (failure != null)
+						throw new IOException("Write-ahead log failed.", failure);
+					if (written >= sequenceNumber)
+						return;
+					if (!writing)
+						break;
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+
+			// become the leader of the group
+			writing = true;
+			toWrite = pending;
+			pending = spare;
+			upTo = appended;
+		}
+
+		IOException exception = null;
+		try {
+			toWrite.flip();
+			while (toWrite.hasRemaining())
+				channel.write(toWrite);
+			if (syncPolicy == SyncPolicy.ON_COMMIT)
+				channel.force(false);
+		} catch (IOException e) {
+			exception = e;
+		} finally {
+			synchronized (lock) {
+				toWrite.clear();
+				spare = toWrite;
+				if (exception == null)
+					written = upTo;
+				else
+					failure = exception;
+				writing = false;
+				lock.notifyAll();
+			}
+		}
+
+		if (exception != null)
+			throw exception;
+	}
+
+	private void syncPeriodically(long intervalMillis) {
+		try {
+			for (;;) {
+				Thread.sleep(intervalMillis);
+				synchronized (lock) {
+					if (closed)
+						return;
+				}
+				channel.force(false);
+			}
+		} catch (InterruptedException | IOException e) {
+			// the log is being closed
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Returns the error writing the log failed with, or null.
+	 */
+	IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Writes and forces all appended records and closes the log. Updates
+	 * committed afterwards are not recorded.
+	 */
+	@Override
+	public void close() throws IOException {
+		long last;
+		synchronized (lock) {
+			if (closed)
+				return;
+			closed = true;
+			last = appended;
+		}
+
+		try {
+			awaitWritten(last);
+			channel.force(false);
+		} finally {
+			if (syncThread != null)
+				syncThread.interrupt();
+			channel.close();
+		}
+	}
+
+	private static final class Record {
+		final long version;
+		final Object[] keys;
+		final Object[] values;
+
+		Record(long version, Object[] keys, Object[] values) {
+			this.version = version;
+			this.keys = keys;
+			this.values = values;
+		}
+	}
+
+	private interface RecordConsumer {
+		void accept(Record record);
+	}
+
+	/**
+	 * Reads records from the beginning of the channel up to the end of the
+	 * file or the first torn or corrupted record.
+	 *
+	 * @return the length of the valid prefix of the log
+	 */
+	private static <K, V> long readRecords(FileChannel channel, Codec<K, V> codec, boolean decode,
+			RecordConsumer consumer) throws IOException {
+		long fileSize = channel.size();
+		long validLength = 0;
+
+		channel.position(0);
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Channels.newInputStream(channel), INITIAL_BUFFER_SIZE));
+
+		while (validLength + RECORD_HEADER_SIZE <= fileSize) {
+			int length;
+			int checksum;
+			byte[] payload;
+			try {
+				length = in.readInt();
+				checksum = in.readInt();
+				if (length < 12 || length > fileSize - validLength - RECORD_HEADER_SIZE)
+					break;
+				payload = new byte[length];
+				in.readFully(payload);
+			} catch (EOFException e) {
+				break;
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if ((int) crc.getValue() != checksum)
+				break;
+
+			ByteBuffer buffer = ByteBuffer.wrap(payload);
+			long version = buffer.getLong();
+			int count = buffer.getInt();
+			Object[] keys = null;
+			Object[] values = null;
+			if (decode) {
+				keys = new Object[count];
+				values = new Object[count];
+				for (int i = 0; i < count; i++) {
+					int keyLength = buffer.getInt();
+					keys[i] = codec.decodeKey(buffer.slice(buffer.position(), keyLength));
+					buffer.position(buffer.position() + keyLength);
+					int valueLength = buffer.getInt();
+					boolean expiring = valueLength == EXPIRING;
+					long deadline = expiring ? buffer.getLong() : 0;
+					if (expiring)
+						valueLength = buffer.getInt();
+					if (valueLength >= 0) {
+						values[i] = codec.decodeValue(buffer.slice(buffer.position(), valueLength));
+						buffer.position(buffer.position() + valueLength);
+					}
+					if (expiring)
+						values[i] = new ExpiringValue(values[i], deadline);
+				}
+			}
+
+			consumer.accept(new Record(version, keys, values));
+			validLength += RECORD_HEADER_SIZE + length;
+		}
+
+		return validLength;
+	}
+}
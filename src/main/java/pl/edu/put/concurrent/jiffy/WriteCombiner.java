@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Combines the puts of {@link Jiffy#putAsync} into batches. A put is pushed on
+ * a stack of pending puts, then its thread tries to become the combiner. The
+ * combiner takes all pending puts and applies them as one batch, or a few if
+ * there are more than {@link #MAX_COMBINED_PUTS}, while the puts arriving in
+ * the meantime pile up for the next round. The batches thus grow with the
+ * load. A thread that finds another one combining returns at once, leaving
+ * its put to the combiner. After {@link #MAX_COMBINING_ROUNDS} rounds the
+ * combiner hands the puts still pending over to the common pool, so that a
+ * steady stream of puts does not keep a caller combining indefinitely.
+ */
+final class WriteCombiner<K, V> {
+	static final int MAX_COMBINED_PUTS = 256;
+	static final int MAX_COMBINING_ROUNDS = 4;
+
+	private static final class PendingPut<K, V> {
+		final K key;
+		final V value;
+		final CompletableFuture<V> future = new CompletableFuture<>();
+		PendingPut<K, V> next;
+		// the put of the same key preceding this one in a batch, if any
+		PendingPut<K, V> previous;
+
+		PendingPut(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private final Jiffy<K, V> map;
+
+	private volatile PendingPut<K, V> pending = null;
+	private volatile int combining = 0;
+
+	WriteCombiner(Jiffy<K, V> map) {
+		this.map = map;
+	}
+
+	CompletableFuture<V> put(K key, V value) {
+		PendingPut<K, V> put = new PendingPut<>(key, value);
+		while (true) {
+			@SuppressWarnings("unchecked")
+			PendingPut<K, V> head = (PendingPut<K, V>) PENDING.getAcquire(this);
+			put.next = head;
+			if (PENDING.compareAndSet(this, head, put))
+				break;
+		}
+
+		combine();
+		return put.future;
+	}
+
+	private void combine() {
+		// Both the flag and the stack are volatile, so either the combiner
+		// rechecks the stack after clearing the flag and sees the put, or we
+		// see the flag cleared
+		for (int round = 0; round < MAX_COMBINING_ROUNDS; round++) {
+			if (pending == null || !COMBINING.compareAndSet(this, 0, 1))
+				return;
+			try {
+				applyPending();
+			} finally {
+				combining = 0;
+			}
+		}
+		if (pending != null)
+			ForkJoinPool.commonPool().execute(this::combine);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void applyPending() {
+		PendingPut<K, V> head = (PendingPut<K, V>) PENDING.getAndSet(this, null);
+		List<PendingPut<K, V>> puts = new ArrayList<>();
+		for (PendingPut<K, V> put = head; put != null; put = put.next)
+			puts.add(put);
+
+		// the stack holds the newest put first
+		for (int end = puts.size(); end > 0; end -= MAX_COMBINED_PUTS)
+			apply(puts.subList(Math.max(0, end - MAX_COMBINED_PUTS), end));
+	}
+
+	/**
+	 * Applies the puts, newest first, as a single batch.
+	 */
+	private void apply(List<PendingPut<K, V>> puts) {
+		int size = puts.size();
+		try {
+			if (size == 1) {
+				PendingPut<K, V> put = puts.get(0);
+				put.future.complete(map.put(put.key, put.value));
+				return;
+			}
+
+			// keys equal by the comparator of the map are the same key, even if
+			// they are not equal objects (e.g., byte arrays)
+			Batch<K, V> batch = new Batch<>();
+			Map<K, PendingPut<K, V>> latest = new TreeMap<>(map.comparator);
+			for (int i = size - 1; i >= 0; i--) {
+				PendingPut<K, V> put = puts.get(i);
+				put.previous = latest.put(put.key, put);
+				batch.put(put.key, put.value);
+			}
+			map.put(batch);
+
+			// the values replaced by the batch are reported under the key of
+			// the newest put of each key
+			Map<K, V> substituted = batch.getSubstitutedValues();
+			for (int i = size - 1; i >= 0; i--) {
+				PendingPut<K, V> put = puts.get(i);
+				put.future.complete(
+						put.previous != null ? put.previous.value : substituted.get(latest.get(put.key).key));
+			}
+		} catch (RuntimeException e) {
+			for (PendingPut<K, V> put : puts)
+				put.future.completeExceptionally(e);
+		}
+	}
+
+	// VarHandle mechanics
+	private static final VarHandle PENDING;
+	private static final VarHandle COMBINING;
+
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			PENDING = l.findVarHandle(WriteCombiner.class, "pending", PendingPut.class);
+			COMBINING = l.findVarHandle(WriteCombiner.class, "combining", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
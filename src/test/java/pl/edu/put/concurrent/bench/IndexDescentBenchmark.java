@@ -0,0 +1,93 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+package pl.edu.put.concurrent.bench;
+
+import java.util.Random;
+
+import pl.edu.put.concurrent.jiffy.Jiffy;
+
+/**
+ * Measures the latency of gets on a large map, where descending the index
+ * dominates, with the index built by random levels, after a rebuild into
+ * balanced levels, and with the lowest level flattened into arrays (see
+ * {@link Jiffy#setFlatIndex}).
+ * <p>
+ * Arguments: {@code [entries] [gets per round] [rounds]}. Keys are longs
+ * spread over twice the number of entries, so that half of the gets miss. The
+ * heap must fit the map, e.g. about 6 GB for 10M entries.
+ */
+public class IndexDescentBenchmark {
+
+	public static void main(String[] args) {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+		int gets = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		Jiffy.SPLIT_MERGE_STATISTICS = false;
+		Jiffy<Long, Long> map = new Jiffy<>();
+		Random random = new Random(1);
+		long start = System.nanoTime();
+		for (int i = 0; i < entries; i++) {
+			long key = random.nextInt(2 * entries);
+			map.put(key, key);
+		}
+		System.out.format("entries: %d, filled in %.1f s%n", entries, (System.nanoTime() - start) / 1e9);
+
+		measure("random levels", map, entries, gets, rounds);
+		map.rebuildIndex();
+		measure("balanced levels", map, entries, gets, rounds);
+		map.setFlatIndex(true);
+		System.out.format("flat index entries: %d%n", map.getFlatIndexSize());
+		measure("flat lowest level", map, entries, gets, rounds);
+	}
+
+	private static void measure(String name, Jiffy<Long, Long> map, int entries, int gets, int rounds) {
+		long[] keys = new long[gets];
+		Random random = new Random(2);
+		for (int i = 0; i < gets; i++)
+			keys[i] = random.nextInt(2 * entries);
+
+		long best = Long.MAX_VALUE;
+		long hits = 0;
+		for (int round = 0; round < rounds; round++) {
+			long start = System.nanoTime();
+			for (long key : keys)
+				if (map.get(key) != null)
+					hits++;
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.format("%-18s best of %d rounds: %6.1f ns/get (hits: %d)%n", name, rounds, (double) best / gets,
+				hits / rounds);
+	}
+}
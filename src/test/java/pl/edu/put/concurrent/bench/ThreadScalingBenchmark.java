@@ -0,0 +1,115 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.bench;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import pl.edu.put.concurrent.jiffy.Jiffy;
+import pl.edu.put.concurrent.jiffy.VersionDomain;
+
+/**
+ * Measures the throughput of Jiffy as the number of concurrently submitted
+ * tasks grows. Each task performs a fixed number of
+ * operations, a quarter of them puts and the rest gets, on random keys.
+ * <p>
+ * Arguments: {@code [platform|virtual] [operations per task] [max tasks]}. In
+ * the virtual mode, which needs JDK 21 or later, the maps are created for
+ * virtual threads and the tasks run on
+ * {@code Executors.newVirtualThreadPerTaskExecutor()}. In the platform mode,
+ * they run on a cached pool of platform threads.
+ */
+public class ThreadScalingBenchmark {
+	private static final int KEY_RANGE = 1 << 20;
+
+	public static void main(String[] args) throws Exception {
+		boolean virtual = args.length > 0 && args[0].equals("virtual");
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int maxTasks = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+
+		if (virtual && Runtime.version().feature() < 21) {
+			System.err.println("virtual threads need JDK 21 or later");
+			System.exit(1);
+		}
+		Jiffy.SPLIT_MERGE_STATISTICS = false;
+		System.out.format("threads: %s, operations per task: %d%n", virtual ? "virtual" : "platform", operations);
+
+		for (int tasks = 1_000; tasks <= maxTasks; tasks *= 10) {
+			Jiffy<Integer, Integer> map = new Jiffy<>(null, new VersionDomain(), virtual);
+			for (int i = 0; i < KEY_RANGE; i += 4)
+				map.put(i, i);
+
+			LongAdder hits = new LongAdder();
+			long start = System.nanoTime();
+			ExecutorService executor = newExecutor(virtual);
+			for (int t = 0; t < tasks; t++)
+				executor.execute(() -> run(map, operations, hits));
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.HOURS);
+			long elapsed = System.nanoTime() - start;
+
+			double opsPerSecond = (double) tasks * operations / elapsed * 1e9;
+			System.out.format("tasks: %9d, time: %8.1f ms, throughput: %12.0f ops/s (hits: %d)%n", tasks,
+					elapsed / 1e6, opsPerSecond, hits.sum());
+		}
+	}
+
+	private static void run(Jiffy<Integer, Integer> map, int operations, LongAdder hits) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int found = 0;
+		for (int i = 0; i < operations; i++) {
+			int key = random.nextInt(KEY_RANGE);
+			if (random.nextInt(4) == 0)
+				map.put(key, i);
+			else if (map.get(key) != null)
+				found++;
+		}
+		hits.add(found);
+	}
+
+	/**
+	 * Returns an executor that runs every task in a new virtual thread, if
+	 * requested, or a pool of platform threads otherwise. The virtual one is
+	 * looked up reflectively, as the sources target JDK 17.
+	 */
+	private static ExecutorService newExecutor(boolean virtual) throws ReflectiveOperationException {
+		if (virtual)
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		return Executors.newCachedThreadPool();
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BackoffTest {
+	@Test
+	public void doublesSpinsUntilGivingUpProcessor() {
+		// the first retry is immediate
+		assertEquals(0, Backoff.spinBound(0));
+		assertEquals(0, Backoff.spinBound(1));
+		assertEquals(4, Backoff.spinBound(2));
+		for (int failures = 3; failures <= Backoff.MAX_SPIN_SHIFT; failures++)
+			assertEquals(2 * Backoff.spinBound(failures - 1), Backoff.spinBound(failures));
+		assertEquals(1 << Backoff.MAX_SPIN_SHIFT, Backoff.spinBound(Backoff.MAX_SPIN_SHIFT));
+		assertEquals(-1, Backoff.spinBound(Backoff.MAX_SPIN_SHIFT + 1));
+		assertEquals(-1, Backoff.spinBound(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void pausesForAnyNumberOfFailures() {
+		for (int failures = 0; failures <= 2 * Backoff.MAX_SPIN_SHIFT; failures++) {
+			Backoff.pause(failures, false);
+			Backoff.pause(failures, true);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.REVERSE;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.bytes;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class BatchTest {
+	@Test
+	public void preparesInComparatorOrder() {
+		var batch = new Batch<Integer, Integer>();
+		for (int i = 0; i < 10; i++)
+			batch.put(i, i);
+		batch.prepare(REVERSE);
+		assertEquals(10, batch.size());
+		for (int i = 0; i < 10; i++)
+			assertEquals(Integer.valueOf(9 - i), batch.getKeyByIndex(i));
+		assertEquals(0, batch.getKeyIndex(9));
+		assertEquals(Integer.valueOf(6), batch.lowerKey(5));
+	}
+
+	@Test
+	public void appliesEqualKeysOnceWithValuePutLast() {
+		var batch = new Batch<byte[], byte[]>();
+		batch.put(bytes(2), bytes(1));
+		batch.put(bytes(1), bytes(1));
+		batch.put(bytes(2), bytes(2));
+		batch.remove(bytes(1));
+		batch.prepare(BYTES);
+		assertEquals(2, batch.size());
+		assertArrayEquals(bytes(1), batch.getKeyByIndex(0));
+		assertNull(batch.getValueByIndex(0));
+		assertArrayEquals(bytes(2), batch.getValueByIndex(1));
+	}
+
+	@Test
+	public void putsBatchesIntoReverseOrderMap() {
+		TreeMap<Integer, Integer> expected = new TreeMap<>(REVERSE);
+		Jiffy<Integer, Integer> map = new Jiffy<>(REVERSE);
+		map.setNodeSizes(8, 2);
+		Random random = new Random(1);
+		for (int i = 0; i < 300; i++) {
+			var batch = new Batch<Integer, Integer>();
+			for (int j = 0; j < 1 + random.nextInt(40); j++) {
+				int key = random.nextInt(1000);
+				if (random.nextInt(3) == 0) {
+					batch.remove(key);
+					expected.remove(key);
+				} else {
+					batch.put(key, i);
+					expected.put(key, i);
+				}
+			}
+			map.put(batch);
+		}
+		assertContent(expected, map);
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class CacheTest {
+	private static final int NODE_SIZE = 16;
+	private static final int CAPACITY = 1000;
+
+	@Test(timeout = 60000)
+	public void boundsEntriesAndKeepsSnapshots() throws InterruptedException {
+		boundEntries(BYTES, TestMaps::bytes);
+	}
+
+	/** Nodes read after every write stay, while the nodes only written are evicted. */
+	@Test(timeout = 60000)
+	public void keepsFrequentlyReadNodes() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(NODE_SIZE, NODE_SIZE / 4);
+		map.setCacheCapacity(CAPACITY);
+		for (int i = 0; i < NODE_SIZE; i++)
+			map.put(i, i);
+		for (int i = NODE_SIZE; i < 5000; i++) {
+			map.put(i, i);
+			for (int j = 0; j < 4 * NODE_SIZE; j++)
+				map.get(j % NODE_SIZE);
+		}
+		for (int i = 0; i < NODE_SIZE; i++)
+			assertEquals(Integer.valueOf(i), map.get(i));
+		assertTrue(map.getEvictionCount() >= 4000 - NODE_SIZE);
+		assertEquals(0, map.getCacheMissCount());
+	}
+
+	private <K> void boundEntries(Comparator<? super K> comparator, IntFunction<K> key) throws InterruptedException {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(NODE_SIZE, NODE_SIZE / 4);
+		TreeMap<K, Integer> initial = new TreeMap<>(comparator);
+		for (int i = 0; i < 500; i++) {
+			map.put(key.apply(i), i);
+			initial.put(key.apply(i), i);
+		}
+		map.setCacheCapacity(CAPACITY);
+		try (var snapshot = map.snapshot()) {
+			for (int i = 500; i < 2000; i++)
+				map.put(key.apply(i), i);
+			assertTrue(map.getEvictionCount() > 0);
+			// evictions are updates like any other
+			assertContent(initial, snapshot);
+		}
+		for (int i = 2000; i < 5000; i++) {
+			map.put(key.apply(i), i);
+			if (i % 7 == 0)
+				map.get(key.apply(i % 100));
+		}
+		int size = map.size();
+		assertTrue("size " + size, size <= CAPACITY + 4 * NODE_SIZE);
+		assertEquals(size, map.getCacheEntryCount());
+		assertTrue(map.getEvictionCount() >= 4000);
+		assertEquals(5000 / 7 - 2000 / 7, map.getCacheHitCount() + map.getCacheMissCount());
+
+		TreeMap<K, Integer> remaining = new TreeMap<>(comparator);
+		for (int i = 0; i < 5000; i++)
+			remaining.put(key.apply(i), i);
+		remaining.keySet().retainAll(map.keySet());
+		assertContent(remaining, map);
+	}
+
+	@Test(timeout = 60000)
+	public void boundsEntriesUnderConcurrentUpdates() throws InterruptedException {
+		boundEntriesConcurrently(BYTES, TestMaps::bytes);
+	}
+
+	private <K> void boundEntriesConcurrently(Comparator<? super K> comparator, IntFunction<K> key)
+			throws InterruptedException {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(NODE_SIZE, NODE_SIZE / 4);
+		map.setCacheCapacity(CAPACITY);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			int id = t;
+			threads.add(new Thread(() -> {
+				Random random = new Random(id);
+				for (int i = 0; i < 20000; i++) {
+					int k = random.nextInt(100000);
+					if (i % 10 == 0) {
+						var batch = new Batch<K, Integer>();
+						batch.put(key.apply(k), k);
+						batch.put(key.apply(k + 1), k + 1);
+						map.put(batch);
+					} else if (i % 3 == 0) {
+						map.remove(key.apply(k));
+					} else {
+						map.put(key.apply(k), k);
+					}
+					map.get(key.apply(random.nextInt(100000)));
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads)
+			thread.join();
+		int size = map.size();
+		// writers racing with an eviction may each leave a few nodes over
+		assertTrue("size " + size, size <= CAPACITY + 8 * 4 * NODE_SIZE);
+		assertEquals(size, map.getCacheEntryCount());
+	}
+
+	@Test
+	public void evictionKeepsInterveningWrites() {
+		Jiffy<Integer, String> map = new Jiffy<>();
+		for (int i = 0; i < 4; i++)
+			map.put(i, "a" + i);
+		// the keys of a node, as sampled by an eviction
+		Batch<Integer, String> expected = new Batch<>();
+		Batch<Integer, String> removals = new Batch<>();
+		for (int i = 0; i < 4; i++) {
+			expected.put(i, map.get(i));
+			removals.remove(i);
+		}
+		expected.prepare(null);
+		removals.prepare(null);
+
+		map.put(2, "b2");
+		assertEquals(-1, map.putIfUnchanged(removals, expected, 0));
+		assertEquals("a0", map.get(0));
+		assertEquals("b2", map.get(2));
+		assertEquals(4, map.size());
+
+		expected = new Batch<>();
+		for (int i = 0; i < 4; i++)
+			expected.put(i, map.get(i));
+		expected.prepare(null);
+		assertTrue(map.putIfUnchanged(removals, expected, 0) >= 0);
+		assertTrue(map.isEmpty());
+	}
+}
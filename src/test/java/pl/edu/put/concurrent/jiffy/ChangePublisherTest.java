@@ -0,0 +1,334 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.bytes;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ChangePublisherTest {
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r);
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Applies the events to a replica, checking that they arrive in the order
+	 * of their versions.
+	 */
+	static final class Replica<K, V> implements Flow.Subscriber<ChangeEvent<K, V>> {
+		final TreeMap<K, V> map;
+		final CountDownLatch completed = new CountDownLatch(1);
+		private Flow.Subscription subscription;
+		private long lastVersion = Long.MIN_VALUE;
+		volatile String error = null;
+
+		Replica(Comparator<? super K> comparator) {
+			this.map = new TreeMap<>(comparator);
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(16);
+		}
+
+		@Override
+		public synchronized void onNext(ChangeEvent<K, V> event) {
+			if (event.getVersion() < lastVersion)
+				error = "version " + event.getVersion() + " after " + lastVersion;
+			lastVersion = event.getVersion();
+			for (Map.Entry<K, V> change : event.getChanges()) {
+				if (change.getValue() == null)
+					map.remove(change.getKey());
+				else
+					map.put(change.getKey(), change.getValue());
+			}
+			subscription.request(1);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable.toString();
+		}
+
+		@Override
+		public void onComplete() {
+			completed.countDown();
+		}
+
+		synchronized TreeMap<K, V> snapshot() {
+			return new TreeMap<>(map);
+		}
+	}
+
+	@Test
+	public void publishesConcurrentUpdatesInVersionOrder() throws InterruptedException {
+		publishConcurrentUpdates(BYTES, TestMaps::bytes);
+	}
+
+	private <K> void publishConcurrentUpdates(Comparator<? super K> comparator, IntFunction<K> key)
+			throws InterruptedException {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(8, 2);
+		ChangePublisher<K, Integer> publisher = new ChangePublisher<>(map, 64, executor);
+		Replica<K, Integer> replica = new Replica<>(comparator);
+		publisher.subscribe(replica);
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			int id = t;
+			threads[t] = new Thread(() -> {
+				// threads update disjoint keys, so the order of updates of a key
+				// does not depend on the clock
+				Random random = new Random(id);
+				for (int i = 0; i < 5000; i++) {
+					int k = id * 1000 + random.nextInt(200);
+					int op = random.nextInt(10);
+					if (op < 5) {
+						map.put(key.apply(k), i);
+					} else if (op < 8) {
+						map.remove(key.apply(k));
+					} else {
+						var batch = new Batch<K, Integer>();
+						for (int j = 0; j < 5; j++) {
+							int bk = id * 1000 + random.nextInt(200);
+							if (random.nextBoolean())
+								batch.put(key.apply(bk), i);
+							else
+								batch.remove(key.apply(bk));
+						}
+						map.put(batch);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+		expected.putAll(map);
+		awaitReplica(expected, replica);
+		assertNull(replica.error);
+
+		publisher.close();
+		assertTrue(replica.completed.await(10, TimeUnit.SECONDS));
+	}
+
+	private static <K, V> void awaitReplica(TreeMap<K, V> expected, Replica<K, V> replica)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (true) {
+			TreeMap<K, V> actual = replica.snapshot();
+			try {
+				assertContent(expected, actual);
+				return;
+			} catch (AssertionError e) {
+				if (System.nanoTime() > deadline)
+					throw e;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * At most capacity updates are in progress or waiting for delivery, so a
+	 * writer stalls until the subscriber requests more events.
+	 */
+	@Test
+	public void writersWaitForSubscribers() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		ChangePublisher<Integer, Integer> publisher = new ChangePublisher<>(map, 4, executor);
+		AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+		CountDownLatch received = new CountDownLatch(20);
+		publisher.subscribe(new Flow.Subscriber<>() {
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription.set(s);
+			}
+
+			@Override
+			public void onNext(ChangeEvent<Integer, Integer> e) {
+				received.countDown();
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				fail(throwable.toString());
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		});
+
+		Thread writer = new Thread(() -> {
+			for (int i = 0; i < 20; i++)
+				map.put(i, i);
+		});
+		writer.start();
+		writer.join(500);
+		assertTrue(writer.isAlive());
+		assertEquals(4, map.size());
+
+		subscription.get().request(Long.MAX_VALUE);
+		writer.join(10000);
+		assertFalse(writer.isAlive());
+		assertTrue(received.await(10, TimeUnit.SECONDS));
+		assertEquals(20, map.size());
+		publisher.close();
+	}
+
+	@Test
+	public void publishesByteArrayBatchAsOneEvent() throws InterruptedException {
+		Jiffy<byte[], byte[]> map = new Jiffy<>(BYTES);
+		ChangePublisher<byte[], byte[]> publisher = new ChangePublisher<>(map, 16, executor);
+		CountDownLatch received = new CountDownLatch(1);
+		ChangeEvent<?, ?>[] event = new ChangeEvent<?, ?>[1];
+		publisher.subscribe(new Flow.Subscriber<>() {
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(ChangeEvent<byte[], byte[]> e) {
+				event[0] = e;
+				received.countDown();
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				fail(throwable.toString());
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		});
+
+		var batch = new Batch<byte[], byte[]>();
+		for (int i = 9; i >= 0; i--)
+			batch.put(bytes(i), bytes(-i));
+		map.put(batch);
+		assertTrue(received.await(10, TimeUnit.SECONDS));
+
+		TreeMap<byte[], byte[]> expected = new TreeMap<>(BYTES);
+		for (int i = 0; i < 10; i++)
+			expected.put(bytes(i), bytes(-i));
+		TreeMap<byte[], byte[]> actual = new TreeMap<>(BYTES);
+		for (int i = 0; i < event[0].size(); i++)
+			actual.put((byte[]) event[0].getKey(i), (byte[]) event[0].getValue(i));
+		assertContent(expected, actual);
+		publisher.close();
+	}
+
+	@Test
+	public void cancelsSubscriberThatThrows() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		ChangePublisher<Integer, Integer> publisher = new ChangePublisher<>(map, 16, executor);
+		CountDownLatch failed = new CountDownLatch(1);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		AtomicInteger delivered = new AtomicInteger();
+		IllegalStateException thrown = new IllegalStateException("onNext");
+		publisher.subscribe(new Flow.Subscriber<>() {
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(ChangeEvent<Integer, Integer> e) {
+				delivered.incrementAndGet();
+				throw thrown;
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				error.set(throwable);
+				failed.countDown();
+			}
+
+			@Override
+			public void onComplete() {
+				fail("completed after an error");
+			}
+		});
+		Replica<Integer, Integer> replica = new Replica<>(null);
+		publisher.subscribe(replica);
+
+		for (int i = 0; i < 100; i++)
+			map.put(i, i);
+		assertTrue(failed.await(10, TimeUnit.SECONDS));
+		assertSame(thrown, error.get());
+
+		// the other subscribers still get every change
+		awaitReplica(new TreeMap<>(map), replica);
+		assertNull(replica.error);
+		assertEquals(1, delivered.get());
+		publisher.close();
+		assertTrue(replica.completed.await(10, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+import static pl.edu.put.concurrent.jiffy.TestMaps.bytes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pl.edu.put.concurrent.MultiversionNavigableMapException;
+
+public class CheckpointTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * A checkpoint holds exactly the content of its snapshot, although writers
+	 * keep splitting and merging the nodes while it is written.
+	 */
+	@Test
+	public void checkpointHoldsSnapshotWhileWritersRun() throws IOException, InterruptedException {
+		Path path = folder.getRoot().toPath().resolve("checkpoint");
+		TreeMap<byte[], byte[]> expected = new TreeMap<>(BYTES);
+		Jiffy<byte[], byte[]> map = new Jiffy<>(BYTES);
+		map.setNodeSizes(8, 2);
+		for (int i = 0; i < 5000; i++) {
+			map.put(bytes(i * 7 % 5003), bytes(i));
+			expected.put(bytes(i * 7 % 5003), bytes(i));
+		}
+
+		AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread(() -> {
+			Random random = new Random(2);
+			for (int i = 0; !done.get(); i++) {
+				int key = random.nextInt(5003);
+				if (random.nextBoolean())
+					map.put(bytes(key), bytes(-i));
+				else
+					map.remove(bytes(key));
+			}
+		});
+		try (var snapshot = map.snapshot()) {
+			writer.start();
+			Checkpoint.write(snapshot, path, Codec.byteArrays(), 256);
+			assertEquals(snapshot.getSnapshotVersion(), Checkpoint.readSnapshotVersion(path));
+		} finally {
+			done.set(true);
+			writer.join();
+		}
+
+		Jiffy<byte[], byte[]> loaded = Jiffy.load(path, Codec.byteArrays(), new Jiffy<>(BYTES));
+		assertContent(expected, loaded);
+		assertEquals(expected.size(), loaded.size());
+
+		// the loaded map takes updates like any other
+		Random random = new Random(3);
+		for (int i = 0; i < 2000; i++) {
+			byte[] key = bytes(random.nextInt(10000));
+			if (random.nextBoolean())
+				assertEqual(expected.put(key, bytes(i)), loaded.put(key, bytes(i)));
+			else
+				assertEqual(expected.remove(key), loaded.remove(key));
+		}
+		assertContent(expected, loaded);
+	}
+
+	@Test
+	public void failedWriteKeepsPreviousCheckpoint() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("checkpoint");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		for (int i = 0; i < 100; i++)
+			map.put(i, i);
+		try (var snapshot = map.snapshot()) {
+			snapshot.checkpoint(path, TestMaps.ints());
+		}
+
+		map.put(1000, 1000);
+		Codec<Integer, Integer> failing = Codec.of(key -> {
+			if (key == 1000)
+				throw new IllegalStateException("cannot encode");
+			return bytes(key);
+		}, ByteBuffer::getInt, TestMaps::bytes, ByteBuffer::getInt);
+		try (var snapshot = map.snapshot()) {
+			Checkpoint.write(snapshot, path, failing);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		try (var files = Files.list(folder.getRoot().toPath())) {
+			assertEquals(List.of(path), files.collect(Collectors.toList()));
+		}
+		Jiffy<Integer, Integer> loaded = Jiffy.load(path, TestMaps.ints());
+		assertEquals(100, loaded.size());
+		assertNull(loaded.get(1000));
+	}
+
+	@Test
+	public void corruptedBlockIsDetected() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("checkpoint");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		for (int i = 0; i < 1000; i++)
+			map.put(i, i);
+		try (var snapshot = map.snapshot()) {
+			Checkpoint.write(snapshot, path, TestMaps.ints(), 256);
+		}
+		try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			// a value in the second block
+			channel.write(ByteBuffer.wrap(new byte[] { 0x7F }), Checkpoint.HEADER_SIZE + 300);
+		}
+
+		try {
+			Jiffy.load(path, TestMaps.ints());
+			fail();
+		} catch (MultiversionNavigableMapException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Loaded entries keep their deadlines, including the ones merged into, and
+	 * the ones that have expired by the time of loading are left out. A mapped
+	 * checkpoint shows the entries as of its snapshot.
+	 */
+	@Test
+	public void loadsTimeToLive() throws IOException, InterruptedException {
+		Path path = folder.getRoot().toPath().resolve("checkpoint");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setMergeOperator((value, operand) -> (value == null ? 0 : value) + operand);
+		map.put(1, 1, Duration.ofHours(1));
+		map.put(2, 2, Duration.ofSeconds(2));
+		map.mergeValue(2, 10);
+		map.put(3, 3, Duration.ofMillis(100));
+		map.put(4, 4);
+		try (var snapshot = map.snapshot()) {
+			snapshot.checkpoint(path, TestMaps.ints());
+		}
+		Thread.sleep(200);
+
+		Jiffy<Integer, Integer> loaded = Jiffy.load(path, TestMaps.ints());
+		assertEquals(Integer.valueOf(1), loaded.get(1));
+		assertEquals(Integer.valueOf(12), loaded.get(2));
+		assertNull(loaded.get(3));
+		assertEquals(Integer.valueOf(4), loaded.get(4));
+		assertEquals(3, loaded.size());
+
+		TestMaps.awaitAbsent(loaded, 2);
+		assertEquals(Integer.valueOf(1), loaded.get(1));
+
+		MappedSortedMap<Integer, Integer> mapped = MappedSortedMap.open(path, TestMaps.ints());
+		assertEquals(Integer.valueOf(12), mapped.get(2));
+		assertEquals(4, mapped.size());
+	}
+
+	@Test
+	public void loadsEmptyMap() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("checkpoint");
+		try (var snapshot = new Jiffy<Integer, Integer>().snapshot()) {
+			snapshot.checkpoint(path, TestMaps.ints());
+		}
+		Jiffy<Integer, Integer> loaded = Jiffy.load(path, TestMaps.ints());
+		assertEquals(0, loaded.size());
+		loaded.put(1, 1);
+		assertEquals(Integer.valueOf(1), loaded.get(1));
+	}
+}
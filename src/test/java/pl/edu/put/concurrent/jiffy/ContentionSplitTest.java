@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class ContentionSplitTest {
+	private static final int SPLIT_THRESHOLD = 4;
+
+	@Test
+	public void rejectsInvalidThresholds() {
+		var conf = new NodeAutoScaleConfiguration();
+		try {
+			conf.setContentionScaling(2, 2, Duration.ofMillis(1));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			conf.setContentionScaling(-1, 0, Duration.ofMillis(1));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			conf.setContentionScaling(2, 0, Duration.ZERO);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		conf.setContentionScaling(2, 1, Duration.ofMillis(5));
+		assertEquals(2, conf.getContentionSplitThreshold());
+		assertEquals(1, conf.getContentionMergeThreshold());
+		assertEquals(Duration.ofMillis(5), conf.getContentionHalfLife());
+	}
+
+	@Test
+	public void splitsContendedNodeAndMergesItBack() throws InterruptedException {
+		splitContendedNode(BYTES, TestMaps::bytes);
+	}
+
+	/** The count is halved for every half-life, and the decay is kept. */
+	@Test
+	public void contentionDecaysEveryHalfLife() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		Node<Integer, Integer> node = map.baseHead();
+		long halfLife = 1000;
+		long since = System.nanoTime();
+		ContentionCounter.set(node, 64, since);
+		assertEquals(64, ContentionCounter.get(node, halfLife, since + halfLife - 1));
+		assertEquals(8, ContentionCounter.get(node, halfLife, since + 3 * halfLife));
+		assertEquals(4, ContentionCounter.get(node, halfLife, since + 4 * halfLife + halfLife / 2));
+		ContentionCounter.conflict(node);
+		assertEquals(5, ContentionCounter.get(node, halfLife, since + 4 * halfLife + halfLife / 2));
+		assertEquals(0, ContentionCounter.get(node, halfLife, since + 100 * halfLife));
+	}
+
+	@Test
+	public void reportsMostContendedNodesFirst() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(8, 2);
+		map.setNodeAutoScaleConfiguration(
+				new NodeAutoScaleConfiguration().setContentionScaling(0, 0, Duration.ofMinutes(1)));
+		for (int i = 0; i < 100; i++)
+			map.put(i, i);
+		Node<Integer, Integer> second = map.baseHead().acquireNext();
+		Node<Integer, Integer> third = second.acquireNext();
+		long now = System.nanoTime();
+		ContentionCounter.set(second, 3, now);
+		ContentionCounter.set(third, 7, now);
+
+		Map<Integer, Integer> contended = map.getContendedNodes(10);
+		assertEquals(List.of(third.key, second.key), new ArrayList<>(contended.keySet()));
+		assertEquals(Integer.valueOf(7), contended.get(third.key));
+		assertEquals(List.of(third.key), new ArrayList<>(map.getContendedNodes(1).keySet()));
+	}
+
+	/**
+	 * A node far below the maximum size is split once it has seen enough
+	 * conflicts, and merged back by removes once they decay. The conflicts are
+	 * set directly, as real ones are rare on machines with few processors.
+	 */
+	private <K> void splitContendedNode(Comparator<? super K> comparator, IntFunction<K> key)
+			throws InterruptedException {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(64, 2);
+		Duration halfLife = Duration.ofMillis(10);
+		map.setNodeAutoScaleConfiguration(
+				new NodeAutoScaleConfiguration().setContentionScaling(SPLIT_THRESHOLD, 1, halfLife));
+		TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+		for (int i = 0; i < 32; i++) {
+			map.put(key.apply(i), i);
+			expected.put(key.apply(i), i);
+		}
+		assertEquals(1, nodes(map));
+
+		Node<K, Integer> node = map.baseHead();
+		ContentionCounter.set(node, SPLIT_THRESHOLD, System.nanoTime());
+		map.put(key.apply(0), -1);
+		expected.put(key.apply(0), -1);
+		assertEquals(2, nodes(map));
+		assertTrue(map.getContendedNodes(1).isEmpty());
+		assertContent(expected, map);
+
+		// the halves stay apart while the contention lasts
+		Node<K, Integer> right = map.baseHead().acquireNext();
+		ContentionCounter.set(right, SPLIT_THRESHOLD, System.nanoTime());
+		map.remove(right.key);
+		expected.remove(right.key);
+		assertEquals(2, nodes(map));
+
+		Thread.sleep(halfLife.toMillis() * 4);
+		K last = expected.lastKey();
+		map.remove(last);
+		expected.remove(last);
+		assertEquals(1, nodes(map));
+		assertContent(expected, map);
+	}
+
+	@Test
+	public void disabledThresholdKeepsNodes() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(64, 2);
+		map.setNodeAutoScaleConfiguration(
+				new NodeAutoScaleConfiguration().setContentionScaling(0, 0, Duration.ofMillis(10)));
+		for (int i = 0; i < 32; i++)
+			map.put(i, i);
+		Node<Integer, Integer> node = map.baseHead();
+		ContentionCounter.set(node, 1000, System.nanoTime());
+		map.put(0, -1);
+		assertEquals(1, nodes(map));
+	}
+
+	private static int nodes(Jiffy<?, ?> map) {
+		return (int) map.memoryStats().getNodeCount();
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+import static pl.edu.put.concurrent.jiffy.TestMaps.bytes;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ContentionTest {
+	private static final int THREADS = 8;
+
+	/**
+	 * All threads write to the same few nodes, each to its own keys, so that
+	 * revision installs conflict and are retried after backing off.
+	 */
+	@Test
+	public void keepsContendedUpdates() throws InterruptedException {
+		Jiffy<byte[], Integer> map = new Jiffy<>(BYTES);
+		map.setNodeSizes(64, 2);
+		map.setNodeAutoScaleConfiguration(
+				new NodeAutoScaleConfiguration().setContentionScaling(2, 0, Duration.ofMillis(20)));
+		for (int i = 0; i < 64; i++)
+			map.put(bytes(i), 0);
+
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<TreeMap<byte[], Integer>> copies = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			int id = t;
+			TreeMap<byte[], Integer> copy = new TreeMap<>(BYTES);
+			for (int i = 0; i < 8; i++)
+				copy.put(bytes(i * THREADS + id), 0);
+			copies.add(copy);
+			threads.add(new Thread(() -> {
+				Random random = new Random(id);
+				try {
+					for (int i = 1; i <= 20000; i++) {
+						byte[] k = bytes(random.nextInt(8) * THREADS + id);
+						if (i % 7 == 0) {
+							map.remove(k);
+							copy.remove(k);
+						} else {
+							map.put(k, i);
+							copy.put(k, i);
+						}
+					}
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads)
+			thread.join();
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+
+		// the threads own all the keys
+		TreeMap<byte[], Integer> expected = new TreeMap<>(BYTES);
+		copies.forEach(expected::putAll);
+		assertContent(expected, map);
+	}
+
+	/**
+	 * The conflicts are set directly, as real ones are rare on machines with
+	 * few processors.
+	 */
+	@Test
+	public void reportsMostContendedNodes() {
+		Jiffy<byte[], Integer> map = new Jiffy<>(BYTES);
+		map.setNodeSizes(8, 2);
+		map.setNodeAutoScaleConfiguration(
+				new NodeAutoScaleConfiguration().setContentionScaling(0, 0, Duration.ofMinutes(1)));
+		for (int i = 0; i < 100; i++)
+			map.put(bytes(i), i);
+
+		List<Node<byte[], Integer>> nodes = new ArrayList<>();
+		for (Node<byte[], Integer> n = map.baseHead(); n != null; n = n.acquireNext())
+			nodes.add(n);
+		// simulate conflicts on three of the nodes
+		long now = System.nanoTime();
+		int[] picked = { 0, nodes.size() / 2, nodes.size() - 1 };
+		int[] conflicts = { 5, 9, 7 };
+		for (int i = 0; i < picked.length; i++) {
+			ContentionCounter.set(nodes.get(picked[i]), conflicts[i], now);
+		}
+
+		Map<byte[], Integer> contended = map.getContendedNodes(2);
+		List<Map.Entry<byte[], Integer>> entries = new ArrayList<>(contended.entrySet());
+		assertEquals(2, entries.size());
+		assertEqual(nodes.get(picked[1]).key, entries.get(0).getKey());
+		assertEquals(Integer.valueOf(9), entries.get(0).getValue());
+		assertEqual(nodes.get(picked[2]).key, entries.get(1).getKey());
+		assertEquals(Integer.valueOf(7), entries.get(1).getValue());
+		// the first node has no key
+		assertEquals(3, map.getContendedNodes(10).size());
+		assertEquals(null, nodes.get(0).key);
+		assertEquals(Integer.valueOf(5), map.getContendedNodes(10).get(null));
+	}
+
+	@Test
+	public void halvesConflictsEveryHalfLife() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		Node<Integer, Integer> node = map.baseHead();
+		assertEquals(0, ContentionCounter.get(node, 10, 0));
+
+		ContentionCounter.set(node, 8, 100);
+		assertEquals(8, ContentionCounter.get(node, 10, 109));
+		assertEquals(4, ContentionCounter.get(node, 10, 110));
+		// the decay is stored, counting from the last full half-life
+		assertEquals(1, ContentionCounter.get(node, 10, 139));
+		assertEquals(0, ContentionCounter.get(node, 10, 140));
+
+		// counting starts over after the count drops to zero
+		ContentionCounter.conflict(node);
+		ContentionCounter.conflict(node);
+		assertEquals(2, ContentionCounter.get(node, 1_000_000_000, System.nanoTime()));
+		ContentionCounter.reset(node);
+		assertEquals(0, ContentionCounter.get(node, 1_000_000_000, System.nanoTime()));
+	}
+}
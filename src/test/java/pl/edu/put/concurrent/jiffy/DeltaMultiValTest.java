@@ -0,0 +1,172 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+import static pl.edu.put.concurrent.jiffy.TestMaps.bytes;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import pl.edu.put.concurrent.MultiversionNavigableMapSnapshot;
+
+public class DeltaMultiValTest {
+	@Test
+	public void deltasAgreeWithConsolidatedContent() {
+		TreeMap<Integer, Integer> expected = new TreeMap<>();
+		Object[] keys = new Object[100];
+		Object[] values = new Object[100];
+		for (int i = 0; i < 100; i++) {
+			keys[i] = 2 * i;
+			values[i] = i;
+			expected.put(2 * i, i);
+		}
+		MultiVal<Integer, Integer> mval = SingleMultiVal.fromSortedArrays(null, keys, values);
+
+		Random random = new Random(1);
+		for (int step = 0; step < 1000; step++) {
+			int key = random.nextInt(220);
+			int index = mval.indexOfKeyInMultiVal(key);
+			if (random.nextInt(3) == 0) {
+				if (index < 0)
+					continue;
+				mval = mval instanceof SingleMultiVal<Integer, Integer> single
+						? DeltaMultiVal.remove(single, null, 4, key, index)
+						: mval.remove(key, index);
+				expected.remove(key);
+			} else {
+				mval = mval instanceof SingleMultiVal<Integer, Integer> single
+						? DeltaMultiVal.add(single, null, 4, key, step, index)
+						: mval.add(key, step, index);
+				expected.put(key, step);
+			}
+
+			assertEquals(expected.size(), mval.size());
+			int i = 0;
+			for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+				assertEquals(e.getKey(), mval.getKeyByIndex(i));
+				assertEquals(e.getValue(), mval.getValueByIndex(i));
+				assertEquals(i, mval.indexOfKeyInMultiVal(e.getKey()));
+				i++;
+			}
+			assertEquals(expected.firstKey(), mval.firstKey());
+			assertEquals(expected.lastKey(), mval.lastKey());
+		}
+	}
+
+	@Test
+	public void singleWritesShareTheBaseOfLargeNodes() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(512, 128);
+		map.setDeltaRevisions(4, 64);
+		var batch = new Batch<Integer, Integer>();
+		for (int i = 0; i < 200; i++)
+			batch.put(2 * i, i);
+		map.put(batch);
+		Node<Integer, Integer> node = map.baseHead();
+		MultiVal<Integer, Integer> base = node.acquireRevisionHead().getValue();
+		assertTrue(base instanceof SingleMultiVal);
+
+		// up to four changes are recorded on top of the base
+		map.put(1, -1);
+		map.put(2, -2);
+		map.remove(4);
+		map.put(399, -399);
+		MultiVal<Integer, Integer> mval = node.acquireRevisionHead().getValue();
+		assertSame(base, ((DeltaMultiVal<Integer, Integer>) mval).base);
+		assertEquals(201, mval.size());
+		assertEquals(Integer.valueOf(-2), map.get(2));
+		assertNull(map.get(4));
+
+		// the fifth consolidates them into a new base
+		map.put(3, -3);
+		mval = node.acquireRevisionHead().getValue();
+		MultiVal<Integer, Integer> consolidated = mval instanceof DeltaMultiVal<Integer, Integer> delta ? delta.base
+				: mval;
+		assertNotSame(base, consolidated);
+		assertEquals(202, mval.size());
+
+		// with delta revisions disabled, a write copies the node
+		map.setDeltaRevisions(0, 64);
+		map.put(5, -5);
+		assertTrue(node.acquireRevisionHead().getValue() instanceof SingleMultiVal);
+	}
+
+	@Test
+	public void largeNodesKeepContentAndSnapshots() {
+		TreeMap<byte[], Integer> expected = new TreeMap<>(BYTES);
+		Jiffy<byte[], Integer> map = new Jiffy<>(BYTES);
+		map.setNodeSizes(512, 128);
+		MultiversionNavigableMapSnapshot<byte[], Integer> snapshot = null;
+		TreeMap<byte[], Integer> snapshotContent = null;
+
+		Random random = new Random(1);
+		for (int i = 0; i < 5000; i++) {
+			byte[] key = bytes(random.nextInt(1000));
+			if (random.nextInt(4) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				assertEquals(expected.put(key, i), map.put(key, i));
+			}
+			// a snapshot keeps the revisions of the last 1000 writes
+			if (i % 1000 == 0) {
+				if (snapshot != null) {
+					assertContent(snapshotContent, snapshot);
+					snapshot.close();
+				}
+				snapshot = map.snapshot();
+				snapshotContent = new TreeMap<>(expected);
+			}
+		}
+		assertContent(expected, map);
+		assertContent(expected.descendingMap(), map.descendingMap());
+		assertContent(snapshotContent, snapshot);
+		snapshot.close();
+		for (int key = -1; key <= 1000; key += 7) {
+			assertEqual(expected.ceilingKey(bytes(key)), map.ceilingKey(bytes(key)));
+			assertEqual(expected.floorKey(bytes(key)), map.floorKey(bytes(key)));
+		}
+	}
+}
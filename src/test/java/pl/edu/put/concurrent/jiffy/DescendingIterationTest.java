@@ -0,0 +1,110 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.REVERSE;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class DescendingIterationTest {
+	@Test
+	public void iteratesBackwardsWhileNodesChange() throws InterruptedException {
+		// byte array keys, so that the recorded index path is compared by the
+		// comparator
+		iterateBackwards(BYTES, TestMaps::bytes);
+	}
+
+	private <K> void iterateBackwards(Comparator<? super K> comparator, IntFunction<K> key)
+			throws InterruptedException {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(8, 2);
+		TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+		Random random = new Random(1);
+		for (int i = 0; i < 20000; i++) {
+			int k = random.nextInt(40000);
+			map.put(key.apply(k), i);
+			expected.put(key.apply(k), i);
+		}
+		assertContent(expected.descendingMap(), map.descendingMap());
+
+		List<K> keys = new ArrayList<>(expected.keySet());
+		K from = keys.get(keys.size() / 5);
+		K to = keys.get(keys.size() * 4 / 5);
+		assertContent(expected.subMap(from, true, to, false).descendingMap(),
+				map.subMap(from, true, to, false).descendingMap());
+		assertContent(expected.headMap(to, true).descendingMap(), map.headMap(to, true).descendingMap());
+
+		try (var snapshot = map.snapshot()) {
+			// splits and merges of the nodes while a snapshot is iterated
+			Thread writer = new Thread(() -> {
+				Random r = new Random(2);
+				for (int i = 0; i < 50000; i++) {
+					int k = r.nextInt(40000);
+					if (r.nextBoolean())
+						map.put(key.apply(k), -i);
+					else
+						map.remove(key.apply(k));
+				}
+			});
+			writer.start();
+			for (int round = 0; round < 3; round++) {
+				assertContent(expected.descendingMap(), snapshot.descendingMap());
+				assertContent(expected.subMap(from, true, to, false).descendingMap(),
+						snapshot.subMap(from, true, to, false).descendingMap());
+			}
+			writer.join();
+		}
+	}
+
+	@Test
+	public void iteratesEmptyAndSingleNodeMaps() {
+		Jiffy<Integer, Integer> map = new Jiffy<>(REVERSE);
+		assertEquals(0, map.descendingMap().size());
+		map.put(1, 1);
+		map.put(2, 2);
+		assertEquals(List.of(1, 2), new ArrayList<>(map.descendingMap().keySet()));
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import pl.edu.put.concurrent.MultiversionNavigableMapSnapshot;
+
+public class DiffTest {
+	@Test
+	public void diffsEveryPairOfSnapshots() {
+		diffRandomRounds(BYTES, TestMaps::bytes);
+	}
+
+	private <K> void diffRandomRounds(Comparator<? super K> comparator, IntFunction<K> key) {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(16, 4);
+		TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+		List<MultiversionNavigableMapSnapshot<K, Integer>> snapshots = new ArrayList<>();
+		List<TreeMap<K, Integer>> copies = new ArrayList<>();
+
+		Random random = new Random(3);
+		for (int round = 0; round < 6; round++) {
+			int updates = round == 0 ? 2000 : random.nextInt(200);
+			for (int i = 0; i < updates; i++) {
+				int k = random.nextInt(round % 2 == 0 ? 3000 : 300);
+				int op = random.nextInt(10);
+				if (op < 6) {
+					map.put(key.apply(k), i);
+					expected.put(key.apply(k), i);
+				} else if (op < 9) {
+					map.remove(key.apply(k));
+					expected.remove(key.apply(k));
+				} else {
+					var batch = new Batch<K, Integer>();
+					for (int j = 0; j < 4; j++) {
+						int bk = random.nextInt(3000);
+						batch.put(key.apply(bk), j);
+						expected.put(key.apply(bk), j);
+					}
+					map.put(batch);
+				}
+			}
+			snapshots.add(map.snapshot());
+			copies.add(new TreeMap<>(expected));
+		}
+
+		for (int from = 0; from < snapshots.size(); from++) {
+			for (int to = 0; to < snapshots.size(); to++) {
+				List<DiffEntry<K, Integer>> diff = map.diff(snapshots.get(from), snapshots.get(to))
+						.collect(Collectors.toList());
+				assertDiff(copies.get(from), copies.get(to), diff);
+			}
+		}
+		snapshots.forEach(MultiversionNavigableMapSnapshot::close);
+	}
+
+	private static <K, V> void assertDiff(TreeMap<K, V> from, TreeMap<K, V> to, List<DiffEntry<K, V>> diff) {
+		TreeSet<K> keys = new TreeSet<>(from.comparator());
+		keys.addAll(from.keySet());
+		keys.addAll(to.keySet());
+		Iterator<DiffEntry<K, V>> it = diff.iterator();
+		for (K key : keys) {
+			V oldValue = from.get(key);
+			V newValue = to.get(key);
+			if (oldValue != null && oldValue.equals(newValue))
+				continue;
+			assertTrue("missing difference", it.hasNext());
+			DiffEntry<K, V> entry = it.next();
+			assertEqual(key, entry.getKey());
+			if (oldValue == null)
+				assertEquals(DiffEntry.Type.INSERT, entry.getType());
+			else if (newValue == null)
+				assertEquals(DiffEntry.Type.DELETE, entry.getType());
+			else
+				assertEquals(DiffEntry.Type.UPDATE, entry.getType());
+			assertEquals(oldValue, entry.getOldValue());
+			assertEquals(newValue, entry.getNewValue());
+		}
+		assertTrue("unexpected differences", !it.hasNext());
+	}
+
+	/**
+	 * Nodes split and merged by a concurrent writer are helped along, so the
+	 * diff still sees both snapshots exactly.
+	 */
+	@Test
+	public void diffsWhileWritersSplitAndMergeNodes() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(8, 2);
+		TreeMap<Integer, Integer> before = new TreeMap<>();
+		for (int i = 0; i < 3000; i += 2) {
+			map.put(i, i);
+			before.put(i, i);
+		}
+		var from = map.snapshot();
+		TreeMap<Integer, Integer> after = new TreeMap<>(before);
+		for (int i = 0; i < 3000; i += 5) {
+			map.put(i, -i);
+			after.put(i, -i);
+		}
+		var to = map.snapshot();
+
+		AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread(() -> {
+			Random random = new Random(4);
+			while (!done.get()) {
+				int k = random.nextInt(3000);
+				if (random.nextBoolean())
+					map.put(k, k);
+				else
+					map.remove(k);
+			}
+		});
+		writer.start();
+		try {
+			for (int round = 0; round < 20; round++)
+				assertDiff(before, after, map.diff(from, to).collect(Collectors.toList()));
+		} finally {
+			done.set(true);
+			writer.join();
+			from.close();
+			to.close();
+		}
+	}
+
+	@Test
+	public void diffOfSnapshotWithItselfIsEmpty() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		for (int i = 0; i < 100; i++)
+			map.put(i, i);
+		try (var snapshot = map.snapshot()) {
+			map.put(1000, 1000);
+			assertEquals(0, map.diff(snapshot, snapshot).count());
+		}
+	}
+
+	@Test
+	public void rejectsSnapshotOfAnotherMap() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		Jiffy<Integer, Integer> other = new Jiffy<>();
+		try (var snapshot = map.snapshot(); var foreign = other.snapshot()) {
+			map.diff(snapshot, foreign);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class FlatIndexTest {
+	private static final int KEYS = 20000;
+
+	@Test
+	public void searchesBeforeAndAfterUpdates() {
+		searchAfterUpdates(new Jiffy<>(BYTES, KeyNormalizer.byteArrays()), TestMaps::bytes, BYTES);
+	}
+
+	/**
+	 * The binary search compares prefixes first and keys only on ties, and
+	 * returns the last entry with a smaller key.
+	 */
+	@Test
+	public void findsLastEntryWithSmallerKey() {
+		var cmp = new NormalizedComparator<Integer>(null, key -> key >>> 4);
+		List<Index<Integer, Integer>> level = new ArrayList<>();
+		for (int k = 10; k <= 100; k += 10)
+			level.add(new Index<>(new Node<>(k, null, null, cmp), null, null));
+		FlatIndex<Integer, Integer> flat = new FlatIndex<>(level);
+		assertEquals(10, flat.size());
+
+		for (int k = 0; k <= 110; k++) {
+			Index<Integer, Integer> lower = flat.lower(cmp, cmp.prefix(k), k);
+			Integer expected = k <= 10 ? null : (k - 1) / 10 * 10;
+			assertEquals(expected, lower == null ? null : lower.key);
+		}
+	}
+
+	/** The index is stale after about as many splits and merges as it has entries. */
+	@Test
+	public void becomesStaleAfterAsManyChangesAsEntries() {
+		List<Index<Integer, Integer>> level = new ArrayList<>();
+		for (int k = 0; k < 100; k++)
+			level.add(new Index<>(new Node<>(k, null, null, null), null, null));
+		FlatIndex<Integer, Integer> flat = new FlatIndex<>(level);
+		for (int i = 0; i < 99; i++)
+			flat.countChange();
+		assertFalse(flat.isStale());
+		flat.countChange();
+		assertTrue(flat.isStale());
+
+		// a small index is not rebuilt for every few changes
+		FlatIndex<Integer, Integer> small = new FlatIndex<>(level.subList(0, 2));
+		for (int i = 0; i < Jiffy.MIN_CHECKED_LEVEL_SIZE - 1; i++)
+			small.countChange();
+		assertFalse(small.isStale());
+		small.countChange();
+		assertTrue(small.isStale());
+	}
+
+	private <K> void searchAfterUpdates(Jiffy<K, Integer> map, IntFunction<K> key, Comparator<? super K> comparator) {
+		map.setNodeSizes(8, 2);
+		TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+		for (int i = 0; i < KEYS; i += 2) {
+			map.put(key.apply(i), i);
+			expected.put(key.apply(i), i);
+		}
+		assertEquals(0, map.getFlatIndexSize());
+		map.setFlatIndex(true);
+		assertTrue(map.getFlatIndexSize() > 0);
+		assertSearches(map, expected, key);
+
+		// new keys, removed keys, split and merged nodes, which make the flat
+		// index stale until it is rebuilt
+		Random random = new Random(5);
+		for (int i = 0; i < KEYS; i++) {
+			int k = random.nextInt(KEYS);
+			if (random.nextInt(3) == 0)
+				assertEqual(expected.remove(key.apply(k)), map.remove(key.apply(k)));
+			else
+				assertEqual(expected.put(key.apply(k), i), map.put(key.apply(k), i));
+		}
+		for (int i = KEYS / 4; i < KEYS / 2; i++)
+			assertEqual(expected.remove(key.apply(i)), map.remove(key.apply(i)));
+		assertSearches(map, expected, key);
+		assertContent(expected, map);
+
+		assertTrue(map.rebuildIndex());
+		assertTrue(map.getFlatIndexSize() > 0);
+		assertSearches(map, expected, key);
+
+		map.setFlatIndex(false);
+		assertEquals(0, map.getFlatIndexSize());
+		map.rebuildIndex();
+		assertEquals(0, map.getFlatIndexSize());
+		assertSearches(map, expected, key);
+	}
+
+	@Test
+	public void rebuildsStaleFlatIndex() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(8, 2);
+		TreeMap<Integer, Integer> expected = new TreeMap<>();
+		for (int i = 0; i < KEYS; i += 8) {
+			map.put(i, i);
+			expected.put(i, i);
+		}
+		map.setFlatIndex(true);
+		int size = map.getFlatIndexSize();
+		assertTrue(size > 0);
+		assertFalse(map.rebuildIndexIfSkewed());
+
+		// eight times as many keys split most nodes
+		for (int i = 0; i < KEYS; i++) {
+			map.put(i, -i);
+			expected.put(i, -i);
+		}
+		assertTrue("flat index size " + map.getFlatIndexSize(), map.getFlatIndexSize() > 4 * size);
+		assertSearches(map, expected, i -> i);
+	}
+
+	private <K> void assertSearches(Jiffy<K, Integer> map, TreeMap<K, Integer> expected, IntFunction<K> key) {
+		for (int i = -1; i <= KEYS; i++) {
+			K k = key.apply(i);
+			assertEqual(expected.get(k), map.get(k));
+			assertEqual(expected.lowerKey(k), map.lowerKey(k));
+			assertEqual(expected.ceilingKey(k), map.ceilingKey(k));
+		}
+	}
+
+	@Test
+	public void searchesWhileWritersChangeMap() throws InterruptedException {
+		searchConcurrently(BYTES, TestMaps::bytes);
+	}
+
+	private <K> void searchConcurrently(Comparator<? super K> comparator, IntFunction<K> key)
+			throws InterruptedException {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(8, 2);
+		// even keys are never removed, odd keys come and go
+		for (int i = 0; i < KEYS; i += 2)
+			map.put(key.apply(i), i);
+		map.setFlatIndex(true);
+
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 2; t++) {
+			int seed = t;
+			threads.add(new Thread(() -> {
+				Random random = new Random(seed);
+				for (int i = 0; i < 20000; i++) {
+					int k = random.nextInt(KEYS / 2) * 2 + 1;
+					if (random.nextBoolean())
+						map.put(key.apply(k), k);
+					else
+						map.remove(key.apply(k));
+				}
+			}));
+		}
+		threads.add(new Thread(() -> {
+			for (int i = 0; i < 5; i++)
+				map.rebuildIndex();
+		}));
+		threads.add(new Thread(() -> {
+			try {
+				Random random = new Random(7);
+				for (int i = 0; i < 20000; i++) {
+					int k = random.nextInt(KEYS / 2) * 2;
+					assertEqual(k, map.get(key.apply(k)));
+				}
+			} catch (Throwable e) {
+				error.set(e);
+			}
+		}));
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+		for (int i = 0; i < KEYS; i += 2)
+			assertEqual(i, map.get(key.apply(i)));
+	}
+}
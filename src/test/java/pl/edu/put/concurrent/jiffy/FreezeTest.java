@@ -0,0 +1,193 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class FreezeTest {
+	private static final int KEYS = 20000;
+
+	// the frozen map searches keys in one of three ways: by the keys
+	// themselves, by their prefixes, or by the comparator only
+
+	@Test
+	public void searchesLongKeysDirectly() {
+		freeze(new Jiffy<>(), i -> (long) i * 1000003 - Long.MAX_VALUE / 2, null);
+	}
+
+	@Test
+	public void searchesPrefixesAndComparesKeysOnTies() {
+		// keys sharing their first four characters share prefixes
+		freeze(new Jiffy<>(null, KeyNormalizer.strings()), i -> "key/" + i, null);
+	}
+
+	@Test
+	public void searchesByComparator() {
+		freeze(new Jiffy<>(BYTES), TestMaps::bytes, BYTES);
+	}
+
+	/**
+	 * The chunks are copied in parallel from views of the snapshot, so nodes
+	 * split and merged by writers in the meantime must not tear the copy.
+	 */
+	@Test
+	public void freezesSnapshotWhileWritersChangeNodes() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(8, 2);
+		for (int i = 0; i < KEYS; i++)
+			map.put(i, i);
+
+		AtomicBoolean stop = new AtomicBoolean();
+		Thread writer = new Thread(() -> {
+			Random random = new Random(2);
+			while (!stop.get()) {
+				int k = random.nextInt(KEYS);
+				if (random.nextBoolean())
+					map.put(k, -k);
+				else
+					map.remove(k);
+			}
+		});
+		writer.start();
+		try {
+			for (int round = 0; round < 10; round++) {
+				try (var snapshot = map.snapshot()) {
+					TreeMap<Integer, Integer> expected = new TreeMap<>(snapshot);
+					assertContent(expected, snapshot.freeze());
+				}
+			}
+		} finally {
+			stop.set(true);
+			writer.join();
+		}
+	}
+
+	private <K> void freeze(Jiffy<K, Integer> map, IntFunction<K> key, Comparator<? super K> comparator) {
+		map.setNodeSizes(8, 2);
+		TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+		for (int i = 0; i < KEYS; i += 2) {
+			map.put(key.apply(i), i);
+			expected.put(key.apply(i), i);
+		}
+
+		ImmutableSortedMap<K, Integer> frozen;
+		NavigableMap<K, Integer> frozenRange;
+		NavigableMap<K, Integer> frozenDescending;
+		K from = expected.ceilingKey(key.apply(KEYS / 4));
+		K to = expected.floorKey(key.apply(3 * KEYS / 4));
+		if (Jiffy.cpr(comparator, from, to) > 0) {
+			K t = from;
+			from = to;
+			to = t;
+		}
+		try (var snapshot = map.snapshot()) {
+			// updates after the snapshot do not reach the frozen maps
+			for (int i = 0; i < KEYS; i += 3)
+				map.put(key.apply(i), -i);
+			var view = (Jiffy.SubMap<K, Integer>) snapshot;
+			frozen = view.freeze();
+			frozenRange = view.subMap(from, false, to, true).freeze();
+			frozenDescending = view.descendingMap().freeze();
+		}
+
+		assertEquals(comparator, frozen.comparator());
+		assertContent(expected, frozen);
+		assertContent(expected.subMap(from, false, to, true), frozenRange);
+		assertContent(expected.descendingMap(), frozenDescending);
+		for (int i = -1; i <= KEYS; i++) {
+			K k = key.apply(i);
+			assertEqual(expected.get(k), frozen.get(k));
+			assertEquals(expected.containsKey(k), frozen.containsKey(k));
+			assertEqual(expected.lowerKey(k), frozen.lowerKey(k));
+			assertEqual(expected.floorKey(k), frozen.floorKey(k));
+			assertEqual(expected.ceilingKey(k), frozen.ceilingKey(k));
+			assertEqual(expected.higherKey(k), frozen.higherKey(k));
+			assertEqual(expected.descendingMap().ceilingKey(k), frozenDescending.ceilingKey(k));
+		}
+		Random random = new Random(1);
+		for (int i = 0; i < 1000; i++) {
+			K a = key.apply(random.nextInt(KEYS));
+			K b = key.apply(random.nextInt(KEYS));
+			if (Jiffy.cpr(comparator, a, b) > 0) {
+				K t = a;
+				a = b;
+				b = t;
+			}
+			assertContent(expected.subMap(a, true, b, false), frozen.subMap(a, true, b, false));
+		}
+	}
+
+	@Test
+	public void freezesEmptyMap() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		try (var snapshot = map.snapshot()) {
+			var frozen = snapshot.freeze();
+			assertTrue(frozen.isEmpty());
+			assertEqual(null, frozen.get(1));
+			assertEqual(null, frozen.ceilingKey(1));
+		}
+	}
+
+	@Test
+	public void frozenMapIsReadOnly() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.put(1, 1);
+		ImmutableSortedMap<Integer, Integer> frozen;
+		try (var snapshot = map.snapshot()) {
+			frozen = snapshot.freeze();
+		}
+		try {
+			frozen.put(2, 2);
+			throw new AssertionError("The frozen map accepted a put");
+		} catch (UnsupportedOperationException e) {
+		}
+		assertContent(new TreeMap<>(Map.of(1, 1)), frozen);
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class IndexRebuildTest {
+	@Test
+	public void rebuildsIndexAfterRemovals() {
+		rebuildAfterRemovals(BYTES, TestMaps::bytes);
+	}
+
+	/**
+	 * A rebuilt index has every fourth node on the lowest level and every
+	 * second entry of a level on the level above.
+	 */
+	@Test
+	public void rebuiltLevelsHalveUpwards() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(8, 2);
+		for (int i = 0; i < 100000; i++)
+			map.put(i, i);
+		for (int i = 0; i < 100000; i++)
+			if (i % 10 != 0)
+				map.remove(i);
+		assertTrue(map.rebuildIndex());
+		assertBalanced(map);
+	}
+
+	/** The background rebuilder finds the index skewed by removals and rebuilds it. */
+	@Test(timeout = 60000)
+	public void rebuilderRebalancesSkewedIndex() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(8, 2);
+		for (int i = 0; i < 100000; i++)
+			map.put(i, i);
+		int height = map.getStructureStatistics(0).first;
+		for (int i = 0; i < 100000; i++)
+			if (i % 100 != 0)
+				map.remove(i);
+
+		map.startIndexRebuilder(Duration.ofMillis(10));
+		try {
+			while (map.getStructureStatistics(0).first >= height)
+				Thread.sleep(10);
+		} finally {
+			map.stopIndexRebuilder();
+		}
+		assertBalanced(map);
+		assertFalse(map.rebuildIndexIfSkewed());
+	}
+
+	private static void assertBalanced(Jiffy<?, ?> map) {
+		long nodes = map.memoryStats(1).getNodeCount() - 1; // without the head node
+		// topmost first, each with the head entry
+		List<Integer> levels = map.getStructureStatistics(Integer.MAX_VALUE).second;
+		assertEquals((nodes + 3) / 4, levels.get(levels.size() - 1) - 1);
+		for (int i = 0; i < levels.size() - 1; i++)
+			assertEquals((levels.get(i + 1) - 1) / 2, levels.get(i) - 1);
+	}
+
+	private <K> void rebuildAfterRemovals(Comparator<? super K> comparator, IntFunction<K> key) {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(8, 2);
+		TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+		for (int i = 0; i < 100000; i++)
+			map.put(key.apply(i), i);
+		for (int i = 0; i < 100000; i++) {
+			if (i % 50 == 0 || i % 1000 < 100)
+				expected.put(key.apply(i), i);
+			else
+				map.remove(key.apply(i));
+		}
+
+		assertTrue(map.rebuildIndex());
+		// a freshly built index is balanced
+		assertFalse(map.rebuildIndexIfSkewed());
+		assertContent(expected, map);
+		assertContent(expected.descendingMap(), map.descendingMap());
+		for (int i = 0; i < 100000; i += 37) {
+			assertEqual(expected.get(key.apply(i)), map.get(key.apply(i)));
+			assertEqual(expected.ceilingKey(key.apply(i)), map.ceilingKey(key.apply(i)));
+			assertEqual(expected.lowerKey(key.apply(i)), map.lowerKey(key.apply(i)));
+		}
+	}
+
+	@Test
+	public void rebuildsIndexUnderConcurrentUpdates() throws InterruptedException {
+		rebuildConcurrently(BYTES, TestMaps::bytes);
+	}
+
+	/**
+	 * Writers update disjoint keys and check them against their own copies,
+	 * while the index is rebuilt over and over.
+	 */
+	private <K> void rebuildConcurrently(Comparator<? super K> comparator, IntFunction<K> key)
+			throws InterruptedException {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(8, 2);
+		int writers = 3;
+		AtomicBoolean stop = new AtomicBoolean();
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		Thread rebuilder = new Thread(() -> {
+			while (!stop.get())
+				map.rebuildIndex();
+		});
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < writers; t++) {
+			int id = t;
+			threads.add(new Thread(() -> {
+				TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+				Random random = new Random(id);
+				try {
+					for (int i = 0; i < 20000; i++) {
+						K k = key.apply(random.nextInt(5000) * writers + id);
+						if (random.nextInt(3) == 0) {
+							map.remove(k);
+							expected.remove(k);
+						} else {
+							map.put(k, i);
+							expected.put(k, i);
+						}
+						K q = key.apply(random.nextInt(5000) * writers + id);
+						assertEqual(expected.get(q), map.get(q));
+					}
+					for (var e : expected.entrySet())
+						assertEqual(e.getValue(), map.get(e.getKey()));
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}));
+		}
+		rebuilder.start();
+		threads.forEach(Thread::start);
+		for (Thread thread : threads)
+			thread.join();
+		stop.set(true);
+		rebuilder.join();
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+	}
+}
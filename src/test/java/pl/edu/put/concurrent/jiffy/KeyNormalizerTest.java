@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+public class KeyNormalizerTest {
+	private static final String[] STRING_PREFIXES = { "tenant", "tenant/a", "te", "", "\uffff\uffff", "t\u0000" };
+
+	@Test
+	public void stringPrefixesPreserveOrder() {
+		assertOrderPreserved(KeyNormalizer.strings(), Comparator.naturalOrder(), this::randomString);
+	}
+
+	@Test
+	public void byteArrayPrefixesPreserveOrder() {
+		assertOrderPreserved(KeyNormalizer.byteArrays(), BYTES, this::randomBytes);
+	}
+
+	private <K> void assertOrderPreserved(KeyNormalizer<K> normalizer, Comparator<? super K> comparator,
+			Function<Random, K> keys) {
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++) {
+			K a = keys.apply(random);
+			K b = keys.apply(random);
+			int prefixes = Long.compareUnsigned(normalizer.prefix(a), normalizer.prefix(b));
+			if (prefixes != 0)
+				assertEquals(Integer.signum(prefixes), Integer.signum(comparator.compare(a, b)));
+		}
+	}
+
+	@Test
+	public void mapsStringKeys() {
+		Jiffy<String, Integer> map = new Jiffy<>(null, KeyNormalizer.strings());
+		assertEquals(null, map.comparator());
+		randomUpdates(map, new TreeMap<>(), this::randomString);
+	}
+
+	/**
+	 * The comparator is consulted only for keys with equal prefixes, here
+	 * 256 keys share each prefix.
+	 */
+	@Test
+	public void comparesKeysOnlyOnPrefixTies() {
+		AtomicLong calls = new AtomicLong();
+		AtomicLong untied = new AtomicLong();
+		Comparator<Integer> comparator = (a, b) -> {
+			calls.incrementAndGet();
+			if (a >>> 8 != b >>> 8)
+				untied.incrementAndGet();
+			return Integer.compare(a, b);
+		};
+		Jiffy<Integer, Integer> map = new Jiffy<>(comparator, key -> key >>> 8);
+		randomUpdates(map, new TreeMap<>(), random -> random.nextInt(100000));
+		assertTrue(calls.get() > 0);
+		assertEquals(0, untied.get());
+	}
+
+	/** Keys with distinct prefixes are ordered without calling the comparator. */
+	@Test
+	public void resolvesMostComparisonsOnPrefixes() {
+		AtomicLong plain = new AtomicLong();
+		AtomicLong normalized = new AtomicLong();
+		fillWithLongKeys(new Jiffy<>(counting(plain)));
+		fillWithLongKeys(new Jiffy<>(counting(normalized), KeyNormalizer.byteArrays()));
+		assertTrue(normalized.get() + " of " + plain.get(), normalized.get() * 4 < plain.get());
+	}
+
+	private static Comparator<byte[]> counting(AtomicLong calls) {
+		return (a, b) -> {
+			calls.incrementAndGet();
+			return BYTES.compare(a, b);
+		};
+	}
+
+	private static void fillWithLongKeys(Jiffy<byte[], Integer> map) {
+		map.setNodeSizes(16, 4);
+		Random random = new Random(5);
+		byte[][] keys = new byte[20000][];
+		for (int i = 0; i < keys.length; i++) {
+			// paths with distinct heads, so that prefixes tell them apart
+			keys[i] = new byte[40];
+			random.nextBytes(keys[i]);
+			map.put(keys[i], i);
+		}
+		for (int i = 0; i < keys.length; i++)
+			assertEquals(Integer.valueOf(i), map.get(keys[i]));
+	}
+
+	private <K> void randomUpdates(Jiffy<K, Integer> map, TreeMap<K, Integer> expected, Function<Random, K> keys) {
+		map.setNodeSizes(16, 4);
+		Random random = new Random(3);
+		for (int i = 0; i < 50000; i++) {
+			K key = keys.apply(random);
+			int op = random.nextInt(8);
+			if (op < 2) {
+				assertEqual(expected.remove(key), map.remove(key));
+			} else if (op < 7) {
+				assertEqual(expected.put(key, i), map.put(key, i));
+			} else {
+				var batch = new Batch<K, Integer>();
+				for (int j = 0; j < 5; j++) {
+					K k = keys.apply(random);
+					batch.put(k, -i);
+					expected.put(k, -i);
+				}
+				map.put(batch);
+			}
+			if (i % 500 == 0) {
+				K probe = keys.apply(random);
+				assertEqual(expected.ceilingKey(probe), map.ceilingKey(probe));
+				assertEqual(expected.floorKey(probe), map.floorKey(probe));
+				assertEqual(expected.get(probe), map.get(probe));
+			}
+		}
+		assertContent(expected, map);
+		assertContent(expected.descendingMap(), map.descendingMap());
+		List<K> present = new ArrayList<>(expected.keySet());
+		for (int i = 0; i < present.size(); i += 17)
+			assertEqual(expected.get(present.get(i)), map.get(present.get(i)));
+		assertTrue(map.size() > 0);
+	}
+
+	private String randomString(Random random) {
+		String prefix = STRING_PREFIXES[random.nextInt(STRING_PREFIXES.length)];
+		return random.nextBoolean() ? prefix : prefix + random.nextInt(300);
+	}
+
+	private byte[] randomBytes(Random random) {
+		// few distinct bytes, so that keys share long prefixes, some ending in
+		// zeros
+		byte[] key = new byte[random.nextInt(12)];
+		for (int i = 0; i < key.length; i++)
+			key[i] = (byte) (random.nextInt(4) * 85);
+		return key;
+	}
+}
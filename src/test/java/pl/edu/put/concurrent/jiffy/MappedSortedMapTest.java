@@ -0,0 +1,173 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+import static pl.edu.put.concurrent.jiffy.TestMaps.bytes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pl.edu.put.concurrent.MultiversionNavigableMapException;
+
+public class MappedSortedMapTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Searches and iterations of a mapped checkpoint agree with the map it was
+	 * written from, in the order of its comparator.
+	 */
+	@Test
+	public void searchesMappedCheckpoint() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("checkpoint");
+		TreeMap<byte[], byte[]> expected = new TreeMap<>(BYTES);
+		Jiffy<byte[], byte[]> map = new Jiffy<>(BYTES);
+		for (int i = 0; i < 3000; i += 3) {
+			map.put(bytes(i), bytes(-i));
+			expected.put(bytes(i), bytes(-i));
+		}
+		long version;
+		try (var snapshot = map.snapshot()) {
+			Checkpoint.write(snapshot, path, Codec.byteArrays(), 512);
+			version = snapshot.getSnapshotVersion();
+		}
+
+		MappedSortedMap<byte[], byte[]> mapped = MappedSortedMap.open(path, Codec.byteArrays(), BYTES);
+		mapped.verify();
+		assertEquals(version, mapped.getSnapshotVersion());
+		assertEquals(expected.size(), mapped.size());
+		assertContent(expected, mapped);
+		assertContent(expected.descendingMap(), mapped.descendingMap());
+		for (int i = -1; i <= 3001; i += 7) {
+			byte[] probe = bytes(i);
+			assertEqual(expected.get(probe), mapped.get(probe));
+			assertEqual(expected.ceilingKey(probe), mapped.ceilingKey(probe));
+			assertEqual(expected.floorKey(probe), mapped.floorKey(probe));
+			assertEqual(expected.higherKey(probe), mapped.higherKey(probe));
+			assertEqual(expected.lowerKey(probe), mapped.lowerKey(probe));
+		}
+		List<byte[]> keys = new ArrayList<>(expected.keySet());
+		byte[] from = keys.get(keys.size() / 5);
+		byte[] to = keys.get(keys.size() / 2);
+		NavigableMap<byte[], byte[]> expectedRange = expected.subMap(from, true, to, false);
+		assertContent(expectedRange, mapped.subMap(from, true, to, false));
+		assertContent(expected.headMap(from, false), mapped.headMap(from, false));
+		assertContent(expected.tailMap(to, true), mapped.tailMap(to, true));
+
+		try {
+			mapped.put(bytes(1), bytes(1));
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * A new checkpoint is moved into place, so a mapped one keeps its content
+	 * until it is reopened.
+	 */
+	@Test
+	public void keepsReadingReplacedCheckpoint() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("checkpoint");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		for (int i = 0; i < 1000; i++)
+			map.put(i, i);
+		try (var snapshot = map.snapshot()) {
+			snapshot.checkpoint(path, TestMaps.ints());
+		}
+		MappedSortedMap<Integer, Integer> mapped = MappedSortedMap.open(path, TestMaps.ints());
+
+		for (int i = 0; i < 1000; i++)
+			map.put(i, -i);
+		try (var snapshot = map.snapshot()) {
+			snapshot.checkpoint(path, TestMaps.ints());
+		}
+		for (int i = 0; i < 1000; i += 11)
+			assertEquals(Integer.valueOf(i), mapped.get(i));
+		mapped.verify();
+		assertEquals(Integer.valueOf(-11), MappedSortedMap.open(path, TestMaps.ints()).get(11));
+	}
+
+	@Test
+	public void rejectsOtherFiles() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("other");
+		Files.write(path, new byte[Checkpoint.HEADER_SIZE]);
+		try {
+			MappedSortedMap.open(path, TestMaps.ints());
+			fail();
+		} catch (MultiversionNavigableMapException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void verifyDetectsCorruption() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("checkpoint");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		for (int i = 0; i < 1000; i++)
+			map.put(i, i);
+		try (var snapshot = map.snapshot()) {
+			Checkpoint.write(snapshot, path, TestMaps.ints(), 512);
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 0x55, 0x55 }), Checkpoint.HEADER_SIZE + 100);
+		}
+
+		MappedSortedMap<Integer, Integer> mapped = MappedSortedMap.open(path, TestMaps.ints());
+		try {
+			mapped.verify();
+			fail();
+		} catch (MultiversionNavigableMapException e) {
+			// expected
+		}
+	}
+}
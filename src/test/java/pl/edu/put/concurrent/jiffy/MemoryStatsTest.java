@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+
+import java.util.Comparator;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class MemoryStatsTest {
+	private static final int ENTRIES = 20000;
+	private static final int NODE_SIZE = 64;
+	// more than the number of nodes, so that all are inspected
+	private static final int ALL_NODES = 1_000_000;
+
+	@Test
+	public void accountsBytesRetainedBySnapshots() {
+		accountSnapshots(BYTES, TestMaps::bytes);
+	}
+
+	/**
+	 * Nodes and index entries are counted exactly, and the revisions a
+	 * snapshot pins are counted as well.
+	 */
+	@Test
+	public void countsNodesIndexEntriesAndRevisions() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(NODE_SIZE, NODE_SIZE / 4);
+		for (int i = 0; i < ENTRIES; i++)
+			map.put(i, i);
+
+		int nodes = 0;
+		for (var node = map.baseHead(); node != null; node = node.acquireNext())
+			nodes++;
+		MemoryStats before = map.memoryStats(ALL_NODES);
+		assertEquals(nodes, before.getNodeCount());
+		assertTrue(before.getIndexEntryCount() > 0);
+		assertTrue(before.getIndexEntryCount() < 2 * nodes);
+		assertTrue(before.getRevisionCount() >= nodes);
+
+		try (var snapshot = map.snapshot()) {
+			for (int i = 0; i < ENTRIES; i += 10)
+				map.put(i, -i);
+			MemoryStats pinned = map.memoryStats(ALL_NODES);
+			assertEquals(before.getNodeCount(), pinned.getNodeCount());
+			// every node updated holds on to its revision from before the snapshot
+			assertTrue(pinned.getRevisionCount() >= before.getRevisionCount() + nodes / 2);
+			assertTrue(pinned.getSnapshotBytes() > before.getLiveBytes() / 2);
+		}
+	}
+
+	private <K> void accountSnapshots(Comparator<? super K> comparator, IntFunction<K> key) {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(NODE_SIZE, NODE_SIZE / 4);
+		for (int i = 0; i < ENTRIES; i++)
+			map.put(key.apply(i), i);
+
+		MemoryStats exact = map.memoryStats(ALL_NODES);
+		assertTrue(exact.getNodeCount() >= ENTRIES / NODE_SIZE);
+		assertEquals(exact.getNodeCount(), exact.getSampledNodeCount());
+		assertTrue(exact.getLiveBytes() > ENTRIES * 8L);
+		assertEquals(0, exact.getSnapshotBytes());
+		assertTrue(exact.getBytesBySnapshot().isEmpty());
+
+		// a sample gives an estimate of the same order
+		MemoryStats sampled = map.memoryStats(16);
+		assertTrue(sampled.getSampledNodeCount() <= 16);
+		assertEquals(exact.getNodeCount(), sampled.getNodeCount());
+		assertTrue(Math.abs(sampled.getLiveBytes() - exact.getLiveBytes()) < exact.getLiveBytes() / 2);
+
+		try (var first = map.snapshot()) {
+			for (int i = 0; i < ENTRIES; i++)
+				map.put(key.apply(i), -i);
+			try (var second = map.snapshot()) {
+				for (int i = 0; i < ENTRIES; i += 2)
+					map.put(key.apply(i), i);
+
+				MemoryStats stats = map.memoryStats(ALL_NODES);
+				assertEquals(2, stats.getBytesBySnapshot().size());
+				assertTrue(stats.getHistoryBytes() > exact.getLiveBytes() / 2);
+				assertTrue(stats.getSnapshotBytes() > exact.getLiveBytes() / 2);
+				// the first snapshot alone holds the original values
+				assertTrue(stats.getBytesBySnapshot().get(first.getSnapshotVersion()) > exact.getLiveBytes() / 2);
+				assertTrue(stats.getBytesBySnapshot().containsKey(second.getSnapshotVersion()));
+			}
+		}
+
+		MemoryStats closed = map.memoryStats(ALL_NODES);
+		assertEquals(0, closed.getSnapshotBytes());
+		assertTrue(closed.getBytesBySnapshot().isEmpty());
+	}
+
+	@Test
+	public void emptyMapHasNoEntryBytes() {
+		MemoryStats stats = new Jiffy<Integer, Integer>().memoryStats();
+		assertEquals(0, stats.getHistoryBytes());
+		assertEquals(0, stats.getSnapshotBytes());
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class MergeOperatorTest {
+	private static final MergeOperator<Integer> SUM = (value, operand) -> (value == null ? 0 : value) + operand;
+	private static final int KEYS = 500;
+
+	@Test
+	public void mergesLikeReadModifyWrite() {
+		// a batch tells keys apart by identity, see mergesIntoEqualByteArrays
+		byte[][] keys = new byte[KEYS][];
+		for (int i = 0; i < KEYS; i++)
+			keys[i] = TestMaps.bytes(i);
+		randomMerges(BYTES, i -> keys[i]);
+	}
+
+	/**
+	 * Merges stack operands without reading the value, reads fold them without
+	 * storing the result, and a split of the node folds them for good.
+	 */
+	@Test
+	public void foldsOperandsLazilyUntilNodeSplits() {
+		Jiffy<Integer, Integer> map = newMap(null);
+		map.setNodeSizes(64, 16);
+		map.put(1, 10);
+		try (var snapshot = map.snapshot()) {
+			for (int i = 0; i < 3; i++)
+				map.mergeValue(1, 1);
+			assertTrue(stored(map, 1) instanceof MergeOperands);
+			assertEqual(13, map.get(1));
+			assertTrue(stored(map, 1) instanceof MergeOperands);
+			assertEqual(10, snapshot.get(1));
+		}
+
+		// the node splits once it exceeds its maximum size
+		for (int i = 2; i <= 65; i++)
+			map.put(i, i);
+		assertEquals(2, map.memoryStats().getNodeCount());
+		assertEqual(13, stored(map, 1));
+		assertEqual(13, map.get(1));
+	}
+
+	private static Object stored(Jiffy<Integer, Integer> map, int key) {
+		for (var node = map.baseHead(); node != null; node = node.acquireNext()) {
+			var mval = node.acquireRevisionHead().getValue();
+			Object[] keys = mval.getKeys();
+			for (int i = 0; i < keys.length; i++)
+				if (keys[i].equals(key))
+					return mval.getValues()[i];
+		}
+		return null;
+	}
+
+	@Test
+	public void mergesIntoEqualByteArrays() {
+		Jiffy<byte[], Integer> map = newMap(BYTES);
+		map.put(TestMaps.bytes(1), 10);
+		map.put(TestMaps.bytes(2), 20);
+		var batch = new Batch<byte[], Integer>();
+		batch.merge(TestMaps.bytes(1), 1);
+		batch.merge(TestMaps.bytes(1), 2);
+		batch.put(TestMaps.bytes(2), 5);
+		batch.merge(TestMaps.bytes(2), 1);
+		batch.remove(TestMaps.bytes(3));
+		batch.merge(TestMaps.bytes(3), 4);
+		map.put(batch);
+		assertEqual(13, map.get(TestMaps.bytes(1)));
+		assertEqual(6, map.get(TestMaps.bytes(2)));
+		assertEqual(4, map.get(TestMaps.bytes(3)));
+	}
+
+	private <K> Jiffy<K, Integer> newMap(Comparator<? super K> comparator) {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(8, 2);
+		map.setMergeOperator(SUM);
+		return map;
+	}
+
+	private <K> void randomMerges(Comparator<? super K> comparator, IntFunction<K> key) {
+		Jiffy<K, Integer> map = newMap(comparator);
+		TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+		Random random = new Random(1);
+		for (int i = 0; i < 20000; i++) {
+			K k = key.apply(random.nextInt(KEYS));
+			switch (random.nextInt(5)) {
+			case 0:
+				assertEqual(expected.put(k, i), map.put(k, i));
+				break;
+			case 1:
+				assertEqual(expected.remove(k), map.remove(k));
+				break;
+			case 2:
+				expected.merge(k, 1, Integer::sum);
+				map.mergeValue(k, 1);
+				break;
+			default:
+				// puts, removes and merges of the same keys, applied in order
+				var batch = new Batch<K, Integer>();
+				for (int j = 0; j < 6; j++) {
+					K b = key.apply(random.nextInt(KEYS));
+					int op = random.nextInt(4);
+					if (op == 0) {
+						batch.put(b, j);
+						expected.put(b, j);
+					} else if (op == 1) {
+						batch.remove(b);
+						expected.remove(b);
+					} else {
+						batch.merge(b, j);
+						expected.merge(b, j, Integer::sum);
+					}
+				}
+				assertPlainValues(batch);
+				map.put(batch);
+			}
+		}
+		assertContent(expected, map);
+		assertContent(expected.descendingMap(), map.descendingMap());
+		for (int i = 0; i < KEYS; i++)
+			assertEqual(expected.get(key.apply(i)), map.get(key.apply(i)));
+	}
+
+	private static <K> void assertPlainValues(Batch<K, Integer> batch) {
+		for (Object value : batch.getMap().values())
+			assertFalse(value instanceof MergeOperands);
+	}
+
+	@Test
+	public void batchKeepsOperandsApart() {
+		Jiffy<Integer, Integer> map = newMap(null);
+		map.put(1, 10);
+		map.put(2, 20);
+
+		var batch = new Batch<Integer, Integer>();
+		batch.put(1, 5);
+		batch.merge(1, 3);
+		batch.merge(2, 4);
+		batch.remove(3);
+		batch.merge(3, 7);
+		batch.merge(4, 1);
+		batch.put(5, 5);
+		batch.merge(5, 1);
+		batch.put(5, 2);
+		assertEquals(5, batch.mapSize());
+		assertEquals(3, batch.getMap().size());
+		assertPlainValues(batch);
+		assertEqual(5, batch.getMap().get(1));
+		assertFalse(batch.getMap().containsKey(2));
+
+		map.put(batch);
+		assertEqual(8, map.get(1));
+		assertEqual(24, map.get(2));
+		assertEqual(7, map.get(3));
+		assertEqual(1, map.get(4));
+		assertEqual(2, map.get(5));
+	}
+
+	@Test
+	public void appliesSingleMerge() {
+		Jiffy<byte[], Integer> map = newMap(BYTES);
+		map.put(TestMaps.bytes(1), 10);
+		var batch = new Batch<byte[], Integer>();
+		batch.merge(TestMaps.bytes(1), 5);
+		assertEquals(1, batch.mapSize());
+		assertTrue(batch.getMap().isEmpty());
+		map.put(batch);
+		assertEqual(15, map.get(TestMaps.bytes(1)));
+
+		batch = new Batch<>();
+		batch.merge(TestMaps.bytes(2), 5);
+		map.put(batch);
+		assertEqual(5, map.get(TestMaps.bytes(2)));
+	}
+
+	@Test
+	public void rejectsMergesWithoutOperator() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		var batch = new Batch<Integer, Integer>();
+		batch.merge(1, 1);
+		try {
+			map.put(batch);
+			throw new AssertionError("Merged without an operator");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			map.mergeValue(1, 1);
+			throw new AssertionError("Merged without an operator");
+		} catch (IllegalStateException e) {
+		}
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void mergesAcrossMaps() {
+		VersionDomain domain = new VersionDomain();
+		Jiffy<Integer, Integer> counters = new Jiffy<>(domain);
+		Jiffy<byte[], Integer> totals = new Jiffy<>(BYTES, domain);
+		counters.setMergeOperator(SUM);
+		totals.setMergeOperator(SUM);
+		for (int i = 0; i < 100; i++) {
+			var batch = new MultiBatch();
+			batch.merge(counters, i % 10, 1);
+			batch.merge(counters, i % 10 + 1, 1);
+			batch.merge(totals, TestMaps.bytes(0), 2);
+			domain.put(batch);
+		}
+		int sum = 0;
+		for (int v : counters.values())
+			sum += v;
+		assertEquals(200, sum);
+		assertEqual(200, totals.get(TestMaps.bytes(0)));
+	}
+
+	@Test
+	public void mergesIntoShards() {
+		ShardedJiffy<byte[], Integer> map = new ShardedJiffy<>(BYTES, List.of(TestMaps.bytes(100), TestMaps.bytes(200)));
+		map.setMergeOperator(SUM);
+		TreeMap<byte[], Integer> expected = new TreeMap<>(BYTES);
+		byte[][] keys = new byte[300][];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = TestMaps.bytes(i);
+		Random random = new Random(2);
+		for (int i = 0; i < 1000; i++) {
+			var batch = new Batch<byte[], Integer>();
+			for (int j = 0; j < 4; j++) {
+				byte[] k = keys[random.nextInt(300)];
+				if (random.nextInt(4) == 0) {
+					batch.put(k, i);
+					expected.put(k, i);
+				} else {
+					batch.merge(k, 1);
+					expected.merge(k, 1, Integer::sum);
+				}
+			}
+			map.put(batch);
+		}
+		try (var snapshot = map.snapshot()) {
+			assertContent(expected, snapshot);
+		}
+	}
+
+	@Test
+	public void countsConcurrentMerges() throws InterruptedException {
+		Jiffy<byte[], Integer> map = newMap(BYTES);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			int seed = t;
+			threads.add(new Thread(() -> {
+				try {
+					Random random = new Random(seed);
+					for (int i = 0; i < 5000; i++) {
+						if (i % 2 == 0) {
+							map.mergeValue(TestMaps.bytes(random.nextInt(8)), 1);
+						} else {
+							var batch = new Batch<byte[], Integer>();
+							batch.merge(TestMaps.bytes(random.nextInt(8)), 1);
+							batch.merge(TestMaps.bytes(random.nextInt(8) + 8), 1);
+							map.put(batch);
+						}
+					}
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}));
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+		int sum = 0;
+		for (int v : map.values())
+			sum += v;
+		assertEquals(4 * (2500 + 2 * 2500), sum);
+	}
+}
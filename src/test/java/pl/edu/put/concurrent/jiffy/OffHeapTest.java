@@ -0,0 +1,200 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class OffHeapTest {
+	private static final int KEYS = 5000;
+
+	@Test
+	public void movesAndUpdatesByteArrayKeys() {
+		moveAndUpdate(new Jiffy<>(BYTES, KeyNormalizer.byteArrays()), Codec.byteArrays(), OffHeapTest::key,
+				TestMaps::bytes, BYTES);
+	}
+
+	/** A write decodes only the node it goes to, the others stay off the heap. */
+	@Test
+	public void writeBringsOnlyItsNodeBackToHeap() {
+		Jiffy<byte[], byte[]> map = new Jiffy<>(BYTES);
+		map.setNodeSizes(32, 8);
+		for (int i = 0; i < KEYS; i++)
+			map.put(TestMaps.bytes(i), TestMaps.bytes(-i));
+		map.setOffHeapStorage(Codec.byteArrays());
+		assertEquals(KEYS, map.moveOffHeap(Integer.MAX_VALUE, 0));
+		assertEquals(0, onHeapNodes(map));
+
+		map.put(TestMaps.bytes(KEYS / 2), TestMaps.bytes(0));
+		assertEquals(1, onHeapNodes(map));
+		assertEqual(TestMaps.bytes(0), map.get(TestMaps.bytes(KEYS / 2)));
+		assertEqual(TestMaps.bytes(-1), map.get(TestMaps.bytes(1)));
+	}
+
+	/** Each call moves a bounded number of nodes and the next one resumes after them. */
+	@Test
+	public void movesNodesRoundRobin() {
+		Jiffy<byte[], byte[]> map = new Jiffy<>(BYTES);
+		map.setNodeSizes(32, 8);
+		for (int i = 0; i < KEYS; i++)
+			map.put(TestMaps.bytes(i), TestMaps.bytes(i));
+		map.setOffHeapStorage(Codec.byteArrays());
+		int nodes = onHeapNodes(map);
+
+		int moved = 0;
+		for (int call = 0; call < nodes; call++) {
+			int count = map.moveOffHeap(1, 0);
+			assertTrue(count <= 32);
+			moved += count;
+		}
+		assertEquals(KEYS, moved);
+		assertEquals(0, onHeapNodes(map));
+	}
+
+	private static int onHeapNodes(Jiffy<?, ?> map) {
+		int nodes = 0;
+		for (var node = map.baseHead(); node != null; node = node.acquireNext()) {
+			var mval = node.acquireRevisionHead().getValue();
+			if (mval.size() > 0 && !(mval instanceof OffHeapMultiVal))
+				nodes++;
+		}
+		return nodes;
+	}
+
+	/**
+	 * Returns keys of varying length, most of which share their first eight
+	 * bytes with other keys, so that their prefixes are equal.
+	 */
+	private static byte[] key(int i) {
+		byte[] key = new byte[8 + i % 5];
+		key[7] = (byte) (i / 1000);
+		for (int j = 8; j < key.length; j++)
+			key[j] = (byte) (i >>> (j - 8));
+		return Arrays.copyOf(key, key.length + (i % 3 == 0 ? 1 : 0));
+	}
+
+	private <K, V> void moveAndUpdate(Jiffy<K, V> map, Codec<K, V> codec, IntFunction<K> key, IntFunction<V> value,
+			Comparator<? super K> comparator) {
+		map.setNodeSizes(32, 8);
+		TreeMap<K, V> expected = new TreeMap<>(comparator);
+		for (int i = 0; i < KEYS; i++) {
+			map.put(key.apply(i), value.apply(i));
+			expected.put(key.apply(i), value.apply(i));
+		}
+		map.setOffHeapStorage(codec);
+		assertEquals(expected.size(), map.moveOffHeap(Integer.MAX_VALUE, 0));
+		// everything has been moved already
+		assertEquals(0, map.moveOffHeap(Integer.MAX_VALUE, 0));
+		assertSearches(map, expected, key);
+
+		// writes bring nodes back to the heap, and leave snapshots of the moved
+		// content intact
+		TreeMap<K, V> moved = new TreeMap<>(expected);
+		try (var snapshot = map.snapshot()) {
+			Random random = new Random(1);
+			for (int i = 0; i < 2000; i++) {
+				K k = key.apply(random.nextInt(2 * KEYS));
+				if (random.nextInt(3) == 0) {
+					assertEqual(expected.remove(k), map.remove(k));
+				} else {
+					V v = value.apply(-i);
+					assertEqual(expected.put(k, v), map.put(k, v));
+				}
+			}
+			assertContent(moved, snapshot);
+		}
+		assertSearches(map, expected, key);
+
+		int count = map.moveOffHeap(Integer.MAX_VALUE, 0);
+		assertTrue(count > 0 && count <= expected.size());
+		assertSearches(map, expected, key);
+
+		// nodes with revisions newer than the age allows stay on the heap
+		map.put(key.apply(0), value.apply(0));
+		assertEquals(0, map.moveOffHeap(Integer.MAX_VALUE, 1L << 40));
+		assertEqual(value.apply(0), map.get(key.apply(0)));
+	}
+
+	private <K, V> void assertSearches(Jiffy<K, V> map, TreeMap<K, V> expected, IntFunction<K> key) {
+		assertContent(expected, map);
+		assertContent(expected.descendingMap(), map.descendingMap());
+		for (int i = 0; i < 2 * KEYS; i += 7) {
+			K k = key.apply(i);
+			assertEqual(expected.get(k), map.get(k));
+			assertEqual(expected.lowerKey(k), map.lowerKey(k));
+			assertEqual(expected.ceilingKey(k), map.ceilingKey(k));
+		}
+	}
+
+	@Test
+	public void rejectsInvalidArguments() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.put(1, 1);
+		try {
+			map.moveOffHeap(1, 0);
+			throw new AssertionError("Moved without a codec");
+		} catch (IllegalStateException e) {
+		}
+		map.setOffHeapStorage(TestMaps.ints());
+		try {
+			map.moveOffHeap(0, 0);
+			throw new AssertionError("Accepted no nodes");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			map.moveOffHeap(1, -1);
+			throw new AssertionError("Accepted a negative age");
+		} catch (IllegalArgumentException e) {
+		}
+		map.setOffHeapStorage(null);
+		try {
+			map.moveOffHeap(1, 0);
+			throw new AssertionError("Moved after the codec was unset");
+		} catch (IllegalStateException e) {
+		}
+	}
+}
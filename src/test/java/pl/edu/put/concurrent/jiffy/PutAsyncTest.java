@@ -0,0 +1,187 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class PutAsyncTest {
+	private static final int THREADS = 8;
+	private static final int KEYS = 300;
+
+	@Test
+	public void combinesPutsOfManyThreads() throws Exception {
+		combineConcurrentPuts(BYTES, TestMaps::bytes);
+	}
+
+	/**
+	 * While one thread applies a put, the puts of other threads return at once
+	 * and pile up, to be applied by that thread as one batch.
+	 */
+	@Test(timeout = 60000)
+	public void appliesPutsIssuedDuringCommitAsOneBatch() throws Exception {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		CountDownLatch committing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+		map.addCommitListener(new CommitListener<>() {
+			@Override
+			public void committed(long version, Integer key, Integer value) {
+				committing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			@Override
+			public void committed(long version, Batch<Integer, Integer> batch) {
+				batchSizes.add(batch.size());
+			}
+		});
+
+		CompletableFuture<Integer> first = CompletableFuture.supplyAsync(() -> map.putAsync(0, 0).join());
+		committing.await();
+		List<CompletableFuture<Integer>> futures = new ArrayList<>();
+		for (int k = 1; k <= WriteCombiner.MAX_COMBINED_PUTS; k++) {
+			var future = map.putAsync(k, k);
+			assertFalse(future.isDone());
+			futures.add(future);
+		}
+		release.countDown();
+
+		assertNull(first.get(30, TimeUnit.SECONDS));
+		for (var future : futures)
+			assertNull(future.get(30, TimeUnit.SECONDS));
+		assertEquals(List.of(WriteCombiner.MAX_COMBINED_PUTS), batchSizes);
+		assertEquals(WriteCombiner.MAX_COMBINED_PUTS + 1, map.size());
+	}
+
+	/**
+	 * Each thread puts rounds of values into its own keys, with a fresh key
+	 * object for every put, so that the puts of many threads get combined.
+	 * Each put must return the value of the previous round.
+	 */
+	private <K> void combineConcurrentPuts(Comparator<? super K> comparator, IntFunction<K> key) throws Exception {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(16, 4);
+		int rounds = 20;
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			int id = t;
+			threads.add(new Thread(() -> {
+				try {
+					List<CompletableFuture<Integer>> futures = new ArrayList<>();
+					for (int round = 0; round < rounds; round++)
+						for (int k = id; k < KEYS; k += THREADS)
+							futures.add(map.putAsync(key.apply(k), round));
+					int i = 0;
+					for (int round = 0; round < rounds; round++) {
+						for (int k = id; k < KEYS; k += THREADS) {
+							Integer previous = futures.get(i++).get(30, TimeUnit.SECONDS);
+							assertEquals(round == 0 ? null : Integer.valueOf(round - 1), previous);
+						}
+					}
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads)
+			thread.join();
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+
+		TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+		for (int k = 0; k < KEYS; k++)
+			expected.put(key.apply(k), rounds - 1);
+		assertContent(expected, map);
+	}
+
+	@Test
+	public void appliesPutsOfOneThreadInOrder() throws Exception {
+		Jiffy<byte[], Integer> map = new Jiffy<>(BYTES);
+		List<CompletableFuture<Integer>> futures = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+			futures.add(map.putAsync(TestMaps.bytes(i % 3), i));
+		for (int i = 0; i < 1000; i++)
+			assertEquals(i < 3 ? null : Integer.valueOf(i - 3), futures.get(i).get(30, TimeUnit.SECONDS));
+		assertEquals(3, map.size());
+		assertEquals(Integer.valueOf(999), map.get(TestMaps.bytes(0)));
+	}
+
+	@Test
+	public void completesUnderSteadyLoad() throws Exception {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		List<CompletableFuture<Integer>> futures = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			List<CompletableFuture<Integer>> own = new ArrayList<>();
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 20000; i++)
+					own.add(map.putAsync(i % 1000, i));
+				synchronized (futures) {
+					futures.addAll(own);
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads)
+			thread.join();
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+		assertEquals(1000, map.size());
+		assertNull(map.get(1000));
+	}
+}
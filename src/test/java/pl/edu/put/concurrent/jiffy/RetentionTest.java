@@ -0,0 +1,191 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.REVERSE;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+import pl.edu.put.utils.Pair;
+
+public class RetentionTest {
+	// long enough for both the logical clock and the one in nanoseconds
+	private static final long RETENTION = 1L << 50;
+
+	@Test
+	public void readsRetainedHistory() {
+		// byte[] keys are looked up by content in past revisions as well
+		readRetainedHistory(BYTES, TestMaps::bytes);
+	}
+
+	private <K> void readRetainedHistory(Comparator<? super K> comparator, IntFunction<K> key) {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(16, 4);
+		map.setRetention(RETENTION);
+		TreeMap<Integer, Integer> current = new TreeMap<>();
+		List<Long> versions = new ArrayList<>();
+		List<TreeMap<Integer, Integer>> states = new ArrayList<>();
+
+		Random random = new Random(5);
+		for (int i = 0; i < 3000; i++) {
+			int k = random.nextInt(300);
+			if (random.nextInt(3) > 0) {
+				map.put(key.apply(k), i);
+				current.put(k, i);
+			} else {
+				map.remove(key.apply(k));
+				current.remove(k);
+			}
+			if (i % 100 == 0) {
+				versions.add(map.getCurrentVersion());
+				states.add(new TreeMap<>(current));
+			}
+		}
+
+		for (int s = 0; s < versions.size(); s++)
+			for (int k = 0; k < 300; k++)
+				assertEquals(states.get(s).get(k), map.getAsOf(key.apply(k), versions.get(s)));
+
+		for (int k = 0; k < 300; k++) {
+			List<Pair<Long, Integer>> history = map.historyOf(key.apply(k), versions.get(0));
+			assertEquals(versions.get(0), history.get(0).first);
+			for (int i = 1; i < history.size(); i++) {
+				assertTrue(history.get(i).first > history.get(i - 1).first);
+				assertNotEquals(history.get(i).second, history.get(i - 1).second);
+			}
+			for (int s = 0; s < versions.size(); s++) {
+				Integer value = null;
+				for (Pair<Long, Integer> change : history)
+					if (change.first <= versions.get(s))
+						value = change.second;
+				assertEquals(states.get(s).get(k), value);
+			}
+			assertTrue(Objects.equals(map.get(key.apply(k)), history.get(history.size() - 1).second));
+		}
+	}
+
+	@Test
+	public void openSnapshotKeepsHistory() {
+		Jiffy<Integer, Integer> map = new Jiffy<>(REVERSE);
+		map.put(1, 1);
+		try (var snapshot = map.snapshot()) {
+			long version = snapshot.getSnapshotVersion();
+			for (int i = 2; i < 100; i++)
+				map.put(1, i);
+			assertEquals(Integer.valueOf(1), map.getAsOf(1, version));
+			assertEquals(1 + 98, map.historyOf(1, version).size());
+		}
+	}
+
+	@Test
+	public void rejectsDiscardedAndFutureVersions() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.put(1, 1);
+		long old = map.getCurrentVersion();
+		map.put(1, 2);
+		map.put(2, 2);
+		try {
+			map.getAsOf(1, old - 1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			map.historyOf(1, map.getCurrentVersion() + RETENTION);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void pinsVersionWhileCollectingGarbage() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		// a short window, so that the writer keeps discarding the revisions
+		// the reader asks for
+		long retention = Jiffy.USE_TSC ? 100_000 : 2;
+		map.setRetention(retention);
+		map.put(0, 0);
+		long start = map.getCurrentVersion();
+
+		AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread(() -> {
+			for (int i = 1; !done.get(); i++)
+				map.put(0, i);
+		});
+		writer.start();
+		int read = 0;
+		try {
+			for (int i = 0; i < 100000; i++) {
+				long version = Math.max(start, map.getCurrentVersion() - retention / 2);
+				try {
+					if (i % 2 == 0) {
+						// the key is never absent, so a null value means a cut
+						// revision chain
+						assertNotNull(map.getAsOf(0, version));
+					} else {
+						List<Pair<Long, Integer>> history = map.historyOf(0, version);
+						assertEquals(version, (long) history.get(0).first);
+						for (Pair<Long, Integer> change : history)
+							assertNotNull(change.second);
+					}
+					read++;
+				} catch (IllegalArgumentException e) {
+					// the window moved past the version before it was pinned
+				}
+			}
+		} finally {
+			done.set(true);
+			writer.join();
+		}
+		assertTrue(read > 0);
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+import pl.edu.put.concurrent.MultiversionNavigableMap;
+
+public class ScanTest {
+	@Test
+	public void scansInChunksOfAnySize() {
+		scanInChunks(BYTES, TestMaps::bytes, byte[][]::new);
+	}
+
+	/**
+	 * Each chunk resumes after the last key returned, so keys inserted by a
+	 * concurrent writer never make the scan repeat or skip a stable key.
+	 */
+	@Test
+	public void resumesAfterLastKeyWhileKeysAreInserted() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(16, 4);
+		for (int i = 0; i < 20000; i += 2)
+			map.put(i, i);
+
+		AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread(() -> {
+			Random random = new Random(3);
+			while (!done.get()) {
+				int k = 2 * random.nextInt(10000) + 1;
+				if (random.nextBoolean())
+					map.put(k, k);
+				else
+					map.remove(k);
+			}
+		});
+		writer.start();
+		try {
+			for (int round = 0; round < 10; round++) {
+				Integer[] keys = new Integer[7];
+				Integer[] values = new Integer[7];
+				Integer last = null;
+				int even = 0;
+				while (true) {
+					int n = map.scan(last, false, null, false, keys, values);
+					for (int i = 0; i < n; i++) {
+						if (last != null)
+							assertTrue(keys[i] > last);
+						assertEquals(keys[i], values[i]);
+						if (keys[i] % 2 == 0)
+							assertEquals(even++ * 2, keys[i].intValue());
+						last = keys[i];
+					}
+					if (n < keys.length)
+						break;
+				}
+				assertEquals(10000, even);
+			}
+		} finally {
+			done.set(true);
+			writer.join();
+		}
+	}
+
+	private <K> void scanInChunks(Comparator<? super K> comparator, IntFunction<K> key, IntFunction<K[]> keyArray) {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(16, 4);
+		TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+		Random random = new Random(7);
+		for (int i = 0; i < 5000; i++) {
+			int k = random.nextInt(10000);
+			map.put(key.apply(k), i);
+			expected.put(key.apply(k), i);
+		}
+
+		List<K> keys = new ArrayList<>(expected.keySet());
+		K from = keys.get(keys.size() / 3);
+		K to = keys.get(keys.size() * 2 / 3);
+
+		for (int chunk : new int[] { 1, 7, 100, 10000 }) {
+			assertContent(expected, scanAll(map, null, true, null, false, chunk, keyArray));
+			assertContent(expected.subMap(from, true, to, false), scanAll(map, from, true, to, false, chunk, keyArray));
+			assertContent(expected.subMap(from, false, to, true), scanAll(map, from, false, to, true, chunk, keyArray));
+			assertContent(expected.tailMap(to, true), scanAll(map, to, true, null, false, chunk, keyArray));
+		}
+
+		// the range of a submap bounds the scanned one
+		assertContent(expected.subMap(from, true, to, false),
+				scanAll(map.subMap(from, true, to, false), null, true, null, false, 10, keyArray));
+
+		try (var snapshot = map.snapshot()) {
+			for (int i = 0; i < 2000; i++)
+				map.put(key.apply(random.nextInt(10000)), -i);
+			assertContent(expected, scanAll(snapshot, null, true, null, false, 33, keyArray));
+		}
+
+		// keys only
+		TreeMap<K, Integer> updated = new TreeMap<>(comparator);
+		updated.putAll(map);
+		K[] buffer = keyArray.apply(10);
+		assertEquals(10, map.scan(from, to, buffer, null));
+		int i = 0;
+		for (K k : updated.tailMap(from, true).keySet()) {
+			if (i == 10)
+				break;
+			TestMaps.assertEqual(k, buffer[i++]);
+		}
+	}
+
+	private static <K> TreeMap<K, Integer> scanAll(MultiversionNavigableMap<K, Integer> map, K fromKey,
+			boolean fromInclusive, K toKey, boolean toInclusive, int chunk, IntFunction<K[]> keyArray) {
+		@SuppressWarnings("unchecked")
+		var result = new TreeMap<K, Integer>((Comparator<? super K>) map.comparator());
+		K[] keys = keyArray.apply(chunk);
+		Integer[] values = new Integer[chunk];
+		while (true) {
+			int n = map.scan(fromKey, fromInclusive, toKey, toInclusive, keys, values);
+			for (int i = 0; i < n; i++)
+				assertNull(result.put(keys[i], values[i]));
+			if (n < chunk)
+				return result;
+			fromKey = keys[n - 1];
+			fromInclusive = false;
+		}
+	}
+
+	@Test
+	public void emptyRangeAndBufferCopyNothing() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		for (int i = 0; i < 100; i++)
+			map.put(i, i);
+		assertEquals(0, map.scan(50, 40, new Integer[10], new Integer[10]));
+		assertEquals(0, map.scan(50, 50, new Integer[10], new Integer[10]));
+		assertEquals(0, map.scan(null, null, new Integer[0], new Integer[10]));
+		assertEquals(0, map.scan(200, null, new Integer[10], new Integer[10]));
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class ShardedJiffyTest {
+	private static final int KEYS = 1000;
+	private static final int THREADS = 4;
+
+	@Test
+	public void updatesLikeSortedMap() {
+		randomUpdates(BYTES, TestMaps::bytes);
+	}
+
+	/** A range starting, ending or split at a split key is stitched from the shards in order. */
+	@Test
+	public void iteratesRangesAcrossShards() {
+		ShardedJiffy<Integer, Integer> map = new ShardedJiffy<>(List.of(250, 500, 750));
+		TreeMap<Integer, Integer> expected = new TreeMap<>();
+		for (int i = 0; i < KEYS; i += 5) {
+			map.put(i, i);
+			expected.put(i, i);
+		}
+		int[][] ranges = { { 0, 1000 }, { 100, 900 }, { 250, 500 }, { 249, 251 }, { 500, 500 }, { 740, 760 } };
+		try (var snapshot = map.snapshot()) {
+			for (int[] range : ranges) {
+				for (boolean fromInclusive : new boolean[] { true, false }) {
+					for (boolean toInclusive : new boolean[] { true, false }) {
+						var sub = expected.subMap(range[0], fromInclusive, range[1], toInclusive);
+						assertEquals(new ArrayList<>(sub.entrySet()), entries(
+								map.iterator(range[0], fromInclusive, range[1], toInclusive)));
+						assertEquals(new ArrayList<>(sub.entrySet()), entries(
+								snapshot.iterator(range[0], fromInclusive, range[1], toInclusive)));
+					}
+				}
+			}
+			assertEquals(new ArrayList<>(expected.tailMap(500, false).entrySet()),
+					entries(map.iterator(500, false, null, false)));
+			assertEquals(new ArrayList<>(expected.headMap(500, true).entrySet()),
+					entries(map.iterator(null, false, 500, true)));
+		}
+	}
+
+	private static List<Map.Entry<Integer, Integer>> entries(Iterator<Map.Entry<Integer, Integer>> iterator) {
+		List<Map.Entry<Integer, Integer>> ret = new ArrayList<>();
+		iterator.forEachRemaining(e -> ret.add(new AbstractMap.SimpleImmutableEntry<>(e)));
+		return ret;
+	}
+
+	/**
+	 * Batches move amounts between keys of different shards, and every
+	 * snapshot must see the same total.
+	 */
+	@Test
+	public void snapshotsSeeCrossShardBatchesAtomically() throws InterruptedException {
+		ShardedJiffy<Integer, Integer> map = new ShardedJiffy<>(List.of(250, 500, 750));
+		for (int i = 0; i < KEYS; i++)
+			map.put(i, 100);
+		AtomicBoolean stop = new AtomicBoolean();
+		Thread auditor = new Thread(() -> {
+			while (!stop.get()) {
+				try (var snapshot = map.snapshot()) {
+					int total = 0;
+					for (int v : snapshot.values())
+						total += v;
+					assertEquals(KEYS * 100, total);
+				}
+			}
+		});
+		AtomicReference<Throwable> auditError = new AtomicReference<>();
+		auditor.setUncaughtExceptionHandler((thread, e) -> auditError.set(e));
+		auditor.start();
+		try {
+			run(t -> {
+				Random random = new Random(t);
+				for (int i = 0; i < 2000; i++) {
+					// the thread owns the keys with its residue, one in every shard
+					int residue = random.nextInt(KEYS / 4 / THREADS) * THREADS + t;
+					int from = residue + KEYS / 4 * random.nextInt(4);
+					int to = residue + KEYS / 4 * random.nextInt(4);
+					if (from == to)
+						continue;
+					int amount = random.nextInt(10);
+					var batch = new Batch<Integer, Integer>();
+					batch.put(from, map.get(from) - amount);
+					batch.put(to, map.get(to) + amount);
+					map.put(batch);
+				}
+			});
+		} finally {
+			stop.set(true);
+			auditor.join();
+		}
+		if (auditError.get() != null)
+			throw new AssertionError(auditError.get());
+	}
+
+	private <K> ShardedJiffy<K, Integer> newMap(Comparator<? super K> comparator, IntFunction<K> key) {
+		List<K> sample = new ArrayList<>();
+		for (int i = 0; i < KEYS; i++)
+			sample.add(key.apply(i));
+		return new ShardedJiffy<>(comparator, ShardedJiffy.splitKeys(sample, 4, comparator));
+	}
+
+	private <K> void randomUpdates(Comparator<? super K> comparator, IntFunction<K> key) {
+		ShardedJiffy<K, Integer> map = newMap(comparator, key);
+		assertEquals(4, map.getShards().size());
+		TreeMap<K, Integer> expected = new TreeMap<>(comparator);
+		Random random = new Random(1);
+		for (int i = 0; i < 20000; i++) {
+			// a fresh key object, so byte arrays are only equal by content
+			K k = key.apply(random.nextInt(KEYS));
+			Integer v = random.nextInt(4);
+			switch (random.nextInt(7)) {
+			case 0:
+				assertEqual(expected.put(k, v), map.put(k, v));
+				break;
+			case 1:
+				assertEqual(expected.remove(k), map.remove(k));
+				break;
+			case 2:
+				assertEqual(expected.putIfAbsent(k, v), map.putIfAbsent(k, v));
+				break;
+			case 3:
+				assertEquals(expected.remove(k, v), map.remove(k, v));
+				break;
+			case 4:
+				assertEquals(expected.replace(k, v, i), map.replace(k, v, i));
+				break;
+			case 5:
+				assertEqual(expected.replace(k, v), map.replace(k, v));
+				break;
+			default:
+				var batch = new Batch<K, Integer>();
+				for (int j = 0; j < 4; j++) {
+					K b = key.apply(random.nextInt(KEYS));
+					if (random.nextBoolean()) {
+						batch.put(b, i);
+						expected.put(b, i);
+					} else {
+						batch.remove(b);
+						expected.remove(b);
+					}
+				}
+				map.put(batch);
+			}
+		}
+		try (var snapshot = map.snapshot()) {
+			assertContent(expected, snapshot);
+		}
+		assertEquals(expected.size(), map.size());
+	}
+
+	@Test
+	public void conditionalUpdatesRejectNulls() {
+		ShardedJiffy<Integer, Integer> map = new ShardedJiffy<>(List.of(10));
+		map.put(1, 1);
+		assertFalse(map.remove(1, null));
+		assertEqual(1, map.get(1));
+		assertThrows(() -> map.putIfAbsent(1, null));
+		assertThrows(() -> map.replace(1, null, 2));
+		assertThrows(() -> map.replace(1, 1, null));
+		assertThrows(() -> map.replace(1, null));
+		assertThrows(() -> map.remove(null, 1));
+	}
+
+	private void assertThrows(Runnable update) {
+		try {
+			update.run();
+		} catch (NullPointerException e) {
+			return;
+		}
+		throw new AssertionError("No NullPointerException");
+	}
+
+	@Test
+	public void countsWithConcurrentReplaces() throws InterruptedException {
+		countConcurrently(BYTES, TestMaps::bytes);
+	}
+
+	private <K> void countConcurrently(Comparator<? super K> comparator, IntFunction<K> key)
+			throws InterruptedException {
+		ShardedJiffy<K, Integer> map = newMap(comparator, key);
+		AtomicInteger inserted = new AtomicInteger();
+		run(t -> {
+			Random random = new Random(t);
+			for (int i = 0; i < 2000; i++) {
+				int n = random.nextInt(16) * (KEYS / 16);
+				K k = key.apply(n);
+				if (map.putIfAbsent(k, 1) == null) {
+					inserted.incrementAndGet();
+					continue;
+				}
+				for (;;) {
+					Integer v = map.get(key.apply(n));
+					if (map.replace(k, v, v + 1))
+						break;
+				}
+			}
+		});
+		assertEquals(16, inserted.get());
+		int total = 0;
+		for (Integer v : map.values())
+			total += v;
+		assertEquals(THREADS * 2000, total);
+	}
+
+	@Test
+	public void removesOnlyExpectedValues() throws InterruptedException {
+		ShardedJiffy<byte[], Integer> map = newMap(BYTES, TestMaps::bytes);
+		for (int i = 0; i < KEYS; i++)
+			map.put(TestMaps.bytes(i), i % THREADS);
+		AtomicInteger removed = new AtomicInteger();
+		run(t -> {
+			for (int i = 0; i < KEYS; i++) {
+				// every thread tries to remove every key, but only succeeds
+				// for its own
+				if (map.remove(TestMaps.bytes(i), t))
+					removed.incrementAndGet();
+			}
+		});
+		assertEquals(KEYS, removed.get());
+		assertTrue(map.isEmpty());
+		assertNull(map.get(TestMaps.bytes(0)));
+	}
+
+	private interface Worker {
+		void run(int thread);
+	}
+
+	private void run(Worker worker) throws InterruptedException {
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			int thread = t;
+			threads.add(new Thread(() -> {
+				try {
+					worker.run(thread);
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}));
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Runs maps created for virtual threads, so that many threads share the cells
+ * holding per-thread state.
+ */
+public class SharedThreadCellsTest {
+	private static final int THREADS = 64;
+
+	@Test
+	public void updatesFromManyThreads() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>(null, new VersionDomain(), true);
+		map.setNodeSizes(8, 2);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<TreeMap<Integer, Integer>> copies = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			int id = t;
+			TreeMap<Integer, Integer> copy = new TreeMap<>();
+			copies.add(copy);
+			threads.add(new Thread(() -> {
+				Random random = new Random(id);
+				try {
+					for (int i = 0; i < 2000; i++) {
+						int k = random.nextInt(500) * THREADS + id;
+						int op = random.nextInt(10);
+						if (op < 6) {
+							map.put(k, i);
+							copy.put(k, i);
+						} else if (op < 9) {
+							map.remove(k);
+							copy.remove(k);
+						} else {
+							var batch = new Batch<Integer, Integer>();
+							for (int j = 0; j < 3; j++) {
+								int bk = random.nextInt(500) * THREADS + id;
+								batch.put(bk, -i);
+								copy.put(bk, -i);
+							}
+							map.put(batch);
+						}
+					}
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads)
+			thread.join();
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+
+		TreeMap<Integer, Integer> expected = new TreeMap<>();
+		copies.forEach(expected::putAll);
+		assertContent(expected, map);
+		// the counters are shared, so this thread sees the splits of all others
+		assertTrue(map.getSplitCount() > 0);
+	}
+
+	@Test
+	public void publishesChangesInVersionOrder() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>(null, new VersionDomain(), true);
+		// a small capacity, so that writers wait for the subscriber
+		var publisher = new ChangePublisher<>(map, 32, ForkJoinPool.commonPool());
+		var replica = new ChangePublisherTest.Replica<Integer, Integer>(null);
+		publisher.subscribe(replica);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			int id = t;
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < 50; i++)
+					map.put(i * THREADS + id, i);
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads)
+			thread.join();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (replica.snapshot().size() < 50 * THREADS && System.nanoTime() < deadline)
+			Thread.sleep(10);
+		assertNull(replica.error);
+		assertEquals(new TreeMap<>(map), replica.snapshot());
+		publisher.close();
+	}
+}
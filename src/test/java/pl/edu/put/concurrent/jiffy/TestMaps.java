@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Keys, codecs and checks shared by the tests. Besides integers in their
+ * natural order, the tests use integers in reverse order and big-endian byte
+ * arrays, whose unsigned order agrees with the order of non-negative
+ * integers, but which are not {@link Comparable}.
+ */
+final class TestMaps {
+	static final Comparator<Integer> REVERSE = Comparator.reverseOrder();
+	static final Comparator<byte[]> BYTES = Arrays::compareUnsigned;
+
+	private TestMaps() {
+	}
+
+	static byte[] bytes(int i) {
+		return ByteBuffer.allocate(Integer.BYTES).putInt(i).array();
+	}
+
+	static int fromBytes(byte[] bytes) {
+		return ByteBuffer.wrap(bytes).getInt();
+	}
+
+	static Codec<Integer, Integer> ints() {
+		return Codec.of(TestMaps::intBytes, ByteBuffer::getInt, TestMaps::intBytes, ByteBuffer::getInt);
+	}
+
+	private static byte[] intBytes(Integer i) {
+		return bytes(i);
+	}
+
+	/**
+	 * Checks that the map holds the expected entries, in the same order.
+	 */
+	static <K, V> void assertContent(NavigableMap<K, V> expected, Map<K, V> actual) {
+		Iterator<Map.Entry<K, V>> it = actual.entrySet().iterator();
+		for (Map.Entry<K, V> e : expected.entrySet()) {
+			assertTrue("missing " + describe(e.getKey()), it.hasNext());
+			Map.Entry<K, V> a = it.next();
+			assertEqual(e.getKey(), a.getKey());
+			assertEqual(e.getValue(), a.getValue());
+		}
+		assertFalse("unexpected entries", it.hasNext());
+	}
+
+	static void assertEqual(Object expected, Object actual) {
+		if (expected instanceof byte[] bytes)
+			assertArrayEquals(bytes, (byte[]) actual);
+		else
+			assertEquals(expected, actual);
+	}
+
+	/**
+	 * Waits for the entry of the key, put with a time to live, to expire.
+	 */
+	static <K> void awaitAbsent(Map<K, ?> map, K key) throws InterruptedException {
+		long deadline = System.nanoTime() + 10_000_000_000L;
+		while (map.get(key) != null) {
+			assertTrue("The entry did not expire: " + describe(key), System.nanoTime() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static String describe(Object key) {
+		return key instanceof byte[] bytes ? Arrays.toString(bytes) : String.valueOf(key);
+	}
+}
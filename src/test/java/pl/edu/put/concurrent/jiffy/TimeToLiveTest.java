@@ -0,0 +1,202 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertEqual;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+import org.junit.Test;
+
+public class TimeToLiveTest {
+	private static final Duration TTL = Duration.ofMillis(300);
+
+	@Test
+	public void readsSkipExpiredEntries() throws InterruptedException {
+		expireEveryOtherEntry(BYTES, TestMaps::bytes, byte[][]::new);
+	}
+
+	/** Building the next revision of a node leaves out its expired entries. */
+	@Test
+	public void writeDropsExpiredEntriesOfItsNode() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(64, 16);
+		for (int i = 0; i < 20; i++) {
+			if (i < 10)
+				map.put(i, i, TTL);
+			else
+				map.put(i, i);
+		}
+		assertEquals(20, storedEntries(map));
+
+		Thread.sleep(TTL.toMillis() + 100);
+		// reads do not change the node
+		assertEquals(10, map.size());
+		assertEquals(20, storedEntries(map));
+
+		map.put(20, 20);
+		assertEquals(11, storedEntries(map));
+		assertEquals(11, map.size());
+	}
+
+	/**
+	 * Each sweep visits a bounded number of nodes and the next one resumes
+	 * where it stopped, so repeated sweeps clear the map without a full scan.
+	 */
+	@Test
+	public void sweepsNodesRoundRobin() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(8, 2);
+		for (int i = 0; i < 1000; i++)
+			map.put(i, i, TTL);
+		int nodes = countNodes(map);
+		Thread.sleep(TTL.toMillis() + 100);
+
+		int found = 0;
+		int sweeps = 0;
+		while (storedEntries(map) > 0) {
+			int stored = storedEntries(map);
+			int swept = map.sweepExpired(1);
+			assertTrue(swept <= 8);
+			assertEquals(stored - swept, storedEntries(map));
+			found += swept;
+			sweeps++;
+			assertTrue(sweeps <= nodes);
+		}
+		assertEquals(1000, found);
+		assertTrue(map.isEmpty());
+	}
+
+	private static int storedEntries(Jiffy<?, ?> map) {
+		int stored = 0;
+		for (var node = map.baseHead(); node != null; node = node.acquireNext())
+			stored += node.acquireRevisionHead().getValue().size();
+		return stored;
+	}
+
+	private static int countNodes(Jiffy<?, ?> map) {
+		int nodes = 0;
+		for (var node = map.baseHead(); node != null; node = node.acquireNext())
+			nodes++;
+		return nodes;
+	}
+
+	private <K> void expireEveryOtherEntry(Comparator<? super K> comparator, IntFunction<K> key,
+			IntFunction<K[]> keyArray) throws InterruptedException {
+		Jiffy<K, Integer> map = new Jiffy<>(comparator);
+		map.setNodeSizes(16, 4);
+		TreeMap<K, Integer> lasting = new TreeMap<>(comparator);
+		for (int i = 0; i < 1000; i++) {
+			if (i % 2 == 0) {
+				map.put(key.apply(i), i, TTL);
+			} else {
+				map.put(key.apply(i), i);
+				lasting.put(key.apply(i), i);
+			}
+		}
+		assertEquals(1000, map.size());
+		assertEquals(Integer.valueOf(4), map.get(key.apply(4)));
+
+		Thread.sleep(TTL.toMillis() + 100);
+
+		assertNull(map.get(key.apply(4)));
+		assertFalse(map.containsKey(key.apply(4)));
+		assertEquals(lasting.size(), map.size());
+		assertContent(lasting, map);
+		assertContent(lasting.descendingMap(), map.descendingMap());
+		assertEqual(lasting.firstKey(), map.firstKey());
+		assertEqual(lasting.lastKey(), map.lastKey());
+		for (int i : new int[] { 10, 500, 998 }) {
+			assertEqual(lasting.ceilingKey(key.apply(i)), map.ceilingKey(key.apply(i)));
+			assertEqual(lasting.floorKey(key.apply(i)), map.floorKey(key.apply(i)));
+			assertEqual(lasting.higherKey(key.apply(i)), map.higherKey(key.apply(i)));
+			assertEqual(lasting.lowerKey(key.apply(i)), map.lowerKey(key.apply(i)));
+		}
+
+		K[] keys = keyArray.apply(1000);
+		Integer[] values = new Integer[1000];
+		int n = map.scan(null, null, keys, values);
+		assertEquals(lasting.size(), n);
+		TreeMap<K, Integer> scanned = new TreeMap<>(comparator);
+		for (int i = 0; i < n; i++)
+			scanned.put(keys[i], values[i]);
+		assertContent(lasting, scanned);
+
+		// expired entries are absent for updates as well
+		assertNull(map.put(key.apply(4), 44));
+		assertNull(map.remove(key.apply(6)));
+		lasting.put(key.apply(4), 44);
+
+		map.sweepExpired(Integer.MAX_VALUE);
+		assertContent(lasting, map);
+	}
+
+	@Test
+	public void overwriteClearsTimeToLive() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.put(1, 1, TTL);
+		map.put(1, 2);
+		map.put(2, 2);
+		map.put(2, 3, TTL);
+		Thread.sleep(TTL.toMillis() + 100);
+		assertEquals(Integer.valueOf(2), map.get(1));
+		assertNull(map.get(2));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void transactionKeepsDeadlineOfReadEntries() throws InterruptedException {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.put(1, 1, TTL);
+		try (var tx = map.beginTransaction()) {
+			assertEquals(Integer.valueOf(1), tx.get(1));
+			tx.put(2, 2);
+			tx.commit();
+		}
+		Thread.sleep(TTL.toMillis() + 100);
+		assertNull(map.get(1));
+		assertEquals(Integer.valueOf(2), map.get(2));
+	}
+}
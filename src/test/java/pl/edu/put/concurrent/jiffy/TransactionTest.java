@@ -0,0 +1,328 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.bytes;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pl.edu.put.concurrent.jiffy.WriteAheadLog.SyncPolicy;
+
+public class TransactionTest {
+	private static final int ACCOUNTS = 200;
+	private static final long BALANCE = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void transfersKeepTotal() throws InterruptedException {
+		transferConcurrently(BYTES, TestMaps::bytes);
+	}
+
+	/**
+	 * Transactions move money between the even keys, while plain updates of the
+	 * odd keys split and merge the nodes. Every snapshot must see the same
+	 * total.
+	 */
+	private <K> void transferConcurrently(Comparator<? super K> comparator, IntFunction<K> key)
+			throws InterruptedException {
+		Jiffy<K, Long> map = new Jiffy<>(comparator);
+		map.setNodeSizes(8, 2);
+		for (int i = 0; i < ACCOUNTS; i++)
+			map.put(key.apply(2 * i), BALANCE);
+
+		AtomicBoolean stop = new AtomicBoolean();
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 3; t++) {
+			int id = t;
+			threads.add(new Thread(() -> {
+				Random random = new Random(id);
+				try {
+					for (int i = 0; i < 2000; i++) {
+						int from = 2 * random.nextInt(ACCOUNTS);
+						int to = 2 * random.nextInt(ACCOUNTS);
+						while (true) {
+							try (var tx = map.beginTransaction()) {
+								// fresh key objects, equal only by the comparator
+								long amount = tx.get(key.apply(from)) / 3;
+								tx.put(key.apply(from), tx.get(key.apply(from)) - amount);
+								tx.put(key.apply(to), tx.get(key.apply(to)) + amount);
+								if (tx.commit())
+									break;
+							}
+						}
+					}
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}));
+		}
+		Thread noise = new Thread(() -> {
+			Random random = new Random();
+			while (!stop.get()) {
+				int k = 2 * random.nextInt(ACCOUNTS) + 1;
+				if (random.nextBoolean())
+					map.put(key.apply(k), 0L);
+				else
+					map.remove(key.apply(k));
+			}
+		});
+		Thread auditor = new Thread(() -> {
+			try {
+				while (!stop.get()) {
+					try (var snapshot = map.snapshot()) {
+						assertEquals(ACCOUNTS * BALANCE, total(snapshot));
+					}
+				}
+			} catch (Throwable e) {
+				error.set(e);
+			}
+		});
+		noise.start();
+		auditor.start();
+		threads.forEach(Thread::start);
+		for (Thread thread : threads)
+			thread.join();
+		stop.set(true);
+		noise.join();
+		auditor.join();
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+		assertEquals(ACCOUNTS * BALANCE, total(map));
+	}
+
+	private static long total(Map<?, Long> map) {
+		long total = 0;
+		for (long value : map.values())
+			total += value;
+		return total;
+	}
+
+	@Test
+	public void firstCommitterWins() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.put(1, 0);
+		try (var first = map.beginTransaction(); var second = map.beginTransaction()) {
+			first.put(1, first.get(1) + 1);
+			second.put(1, second.get(1) + 1);
+			second.put(2, 2);
+			assertTrue(first.commit());
+			assertFalse(second.commit());
+			assertTrue(first.getCommitVersion() > first.getStartVersion());
+		}
+		assertEquals(Integer.valueOf(1), map.get(1));
+		assertNull(map.get(2));
+	}
+
+	/** A key only read must not change before the commit, or write skew could follow. */
+	@Test
+	public void abortsWhenReadKeyChanged() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.put(1, 10);
+		map.put(2, 20);
+		try (var tx = map.beginTransaction()) {
+			int sum = tx.get(1) + tx.get(2);
+			tx.put(3, sum);
+			map.put(1, 11);
+			assertFalse(tx.commit());
+		}
+		assertNull(map.get(3));
+		assertEquals(Integer.valueOf(11), map.get(1));
+	}
+
+	/** A key only written must not change before the commit either. */
+	@Test
+	public void abortsWhenWrittenKeyChanged() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.put(1, 10);
+		try (var tx = map.beginTransaction()) {
+			tx.put(1, 12);
+			tx.put(2, 20);
+			map.remove(1);
+			assertFalse(tx.commit());
+		}
+		assertNull(map.get(1));
+		assertNull(map.get(2));
+	}
+
+	/** Updates of other keys, even in the same node, do not abort. */
+	@Test
+	public void commitsDespiteUpdatesOfOtherKeys() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		for (int i = 0; i < 10; i++)
+			map.put(i, i);
+		try (var tx = map.beginTransaction()) {
+			tx.put(5, tx.get(4) + 1);
+			map.put(3, 30);
+			map.put(6, 60);
+			assertTrue(tx.commit());
+		}
+		assertEquals(Integer.valueOf(5), map.get(5));
+		assertEquals(Integer.valueOf(30), map.get(3));
+	}
+
+	@Test
+	public void readsOwnWritesOfByteArrayKeys() {
+		Jiffy<byte[], byte[]> map = new Jiffy<>(BYTES);
+		map.put(bytes(1), bytes(10));
+		map.put(bytes(2), bytes(20));
+		try (var tx = map.beginTransaction()) {
+			assertArrayEquals(bytes(10), tx.get(bytes(1)));
+			tx.put(bytes(1), bytes(11));
+			tx.put(bytes(1), bytes(12));
+			tx.remove(bytes(2));
+			tx.put(bytes(3), bytes(30));
+			assertArrayEquals(bytes(12), tx.get(bytes(1)));
+			assertNull(tx.get(bytes(2)));
+			// the snapshot is not affected by the writes
+			assertArrayEquals(bytes(20), tx.snapshot().get(bytes(2)));
+			assertTrue(tx.commit());
+		}
+		assertEquals(2, map.size());
+		assertArrayEquals(bytes(12), map.get(bytes(1)));
+		assertNull(map.get(bytes(2)));
+		assertArrayEquals(bytes(30), map.get(bytes(3)));
+	}
+
+	@Test
+	public void finishedTransactionRejectsOperations() {
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		var tx = map.beginTransaction();
+		assertTrue(tx.commit());
+		try {
+			tx.put(1, 1);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		tx.close();
+	}
+
+	/**
+	 * The keys only read are written back to validate them, but neither the
+	 * write-ahead log nor the change publisher report them.
+	 */
+	@Test
+	public void reportsOnlyWrittenKeys() throws IOException, InterruptedException {
+		Path path = folder.getRoot().toPath().resolve("wal");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.put(1, 10);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		BlockingQueue<ChangeEvent<Integer, Integer>> events = new LinkedBlockingQueue<>();
+		try (var log = WriteAheadLog.open(path, TestMaps.ints(), SyncPolicy.NONE);
+				var publisher = new ChangePublisher<>(map, 16, executor)) {
+			map.setWriteAheadLog(log);
+			publisher.subscribe(new Flow.Subscriber<>() {
+				@Override
+				public void onSubscribe(Flow.Subscription subscription) {
+					subscription.request(Long.MAX_VALUE);
+				}
+
+				@Override
+				public void onNext(ChangeEvent<Integer, Integer> event) {
+					events.add(event);
+				}
+
+				@Override
+				public void onError(Throwable throwable) {
+				}
+
+				@Override
+				public void onComplete() {
+				}
+			});
+
+			try (var tx = map.beginTransaction()) {
+				assertEquals(10, (int) tx.get(1));
+				tx.put(2, 20);
+				assertTrue(tx.commit());
+			}
+			// the last event, after which no other can come
+			map.put(3, 30);
+
+			List<Integer> reported = new ArrayList<>();
+			while (!reported.contains(3)) {
+				ChangeEvent<Integer, Integer> event = events.poll(10, TimeUnit.SECONDS);
+				assertNotNull(event);
+				for (int i = 0; i < event.size(); i++)
+					reported.add(event.getKey(i));
+			}
+			assertEquals(List.of(2, 3), reported);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// the log holds only the writes, so key 1, put before it was attached,
+		// is not recovered
+		Jiffy<Integer, Integer> recovered = new Jiffy<>();
+		WriteAheadLog.recover(path, TestMaps.ints(), recovered);
+		TreeMap<Integer, Integer> expected = new TreeMap<>();
+		expected.put(2, 20);
+		expected.put(3, 30);
+		assertContent(expected, recovered);
+	}
+}
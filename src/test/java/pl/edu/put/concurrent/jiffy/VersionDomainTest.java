@@ -0,0 +1,172 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class VersionDomainTest {
+	private static final int KEYS = 2000;
+
+	/**
+	 * Writers keep a table and a secondary index on its values in two maps,
+	 * updating both in one multi-map batch. Every domain snapshot must find an
+	 * index entry for each row and nothing else.
+	 */
+	@Test
+	public void snapshotsSeeTableAndIndexUpdatedAtomically() throws InterruptedException {
+		VersionDomain domain = new VersionDomain();
+		Jiffy<Integer, Long> table = new Jiffy<>(domain);
+		Jiffy<byte[], Integer> index = new Jiffy<>(BYTES, domain);
+		table.setNodeSizes(16, 4);
+		index.setNodeSizes(16, 4);
+
+		int writers = 3;
+		AtomicBoolean stop = new AtomicBoolean();
+		AtomicLong counter = new AtomicLong();
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < writers; t++) {
+			int id = t;
+			threads.add(new Thread(() -> {
+				Random random = new Random(id);
+				try {
+					while (!stop.get()) {
+						var batch = new MultiBatch();
+						int base = random.nextInt(KEYS / writers);
+						int size = 1 + random.nextInt(random.nextBoolean() ? 3 : 50);
+						boolean remove = random.nextInt(10) == 0;
+						for (int i = 0; i < size; i++) {
+							// each writer owns its keys, so the old value it reads is stable
+							int k = (base + i) % (KEYS / writers) * writers + id;
+							Long old = table.get(k);
+							if (old != null)
+								batch.remove(index, indexKey(old, k));
+							if (remove) {
+								batch.remove(table, k);
+							} else {
+								long value = counter.incrementAndGet();
+								batch.put(table, k, value).put(index, indexKey(value, k), k);
+							}
+						}
+						domain.put(batch);
+					}
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}));
+		}
+		threads.add(new Thread(() -> {
+			try {
+				for (int round = 0; round < 50; round++) {
+					try (var snapshot = domain.snapshot()) {
+						assertIndexed(snapshot.get(table), snapshot.get(index));
+					}
+				}
+			} catch (Throwable e) {
+				error.set(e);
+			} finally {
+				stop.set(true);
+			}
+		}));
+		threads.forEach(Thread::start);
+		for (Thread thread : threads)
+			thread.join();
+		if (error.get() != null)
+			throw new AssertionError(error.get());
+
+		assertIndexed(table, index);
+	}
+
+	private static byte[] indexKey(long value, int key) {
+		return ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(value).putInt(key).array();
+	}
+
+	private static void assertIndexed(Map<Integer, Long> rows, Map<byte[], Integer> entries) {
+		int size = 0;
+		for (Map.Entry<Integer, Long> row : rows.entrySet()) {
+			assertEquals(row.getKey(), entries.get(indexKey(row.getValue(), row.getKey())));
+			size++;
+		}
+		assertEquals(size, entries.size());
+	}
+
+	@Test
+	public void snapshotHasOneVersionForAllMaps() {
+		VersionDomain domain = new VersionDomain();
+		Jiffy<Integer, Integer> first = new Jiffy<>(domain);
+		Jiffy<Integer, Integer> second = new Jiffy<>(domain);
+		first.put(1, 1);
+		second.put(1, 1);
+		try (var snapshot = domain.snapshot()) {
+			assertEquals(snapshot.getSnapshotVersion(), snapshot.get(first).getSnapshotVersion());
+			assertEquals(snapshot.getSnapshotVersion(), snapshot.get(second).getSnapshotVersion());
+			domain.put(new MultiBatch().put(first, 1, 2).put(second, 1, 2));
+			assertEquals(Integer.valueOf(1), snapshot.get(first).get(1));
+			assertEquals(Integer.valueOf(1), snapshot.get(second).get(1));
+		}
+		assertEquals(Integer.valueOf(2), first.get(1));
+		assertEquals(Integer.valueOf(2), second.get(1));
+	}
+
+	@Test
+	public void rejectsMapsOfAnotherDomain() {
+		VersionDomain domain = new VersionDomain();
+		Jiffy<Integer, Integer> member = new Jiffy<>(domain);
+		Jiffy<Integer, Integer> stranger = new Jiffy<>();
+		try {
+			domain.put(new MultiBatch().put(member, 1, 1).put(stranger, 1, 1));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertNull(member.get(1));
+		assertNull(stranger.get(1));
+	}
+}
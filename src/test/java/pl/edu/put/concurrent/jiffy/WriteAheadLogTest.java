@@ -0,0 +1,330 @@
+/*
+ * Copyright 2021 Poznan University of Technology
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+/*
+ * This file is available under and governed by the MIT license.
+ *
+ * Written by Tadeusz Kobus and Maciej Kokocinski, as a modification
+ * of java.util.concurrent.ConcurrentSkipListMap.
+ *
+ * The original implementation of ConcurrentSkipListMap was written by
+ * Doug Lea with assistance from members of JCP JSR-166 Expert Group
+ * and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package pl.edu.put.concurrent.jiffy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import static pl.edu.put.concurrent.jiffy.TestMaps.BYTES;
+import static pl.edu.put.concurrent.jiffy.TestMaps.assertContent;
+import static pl.edu.put.concurrent.jiffy.TestMaps.bytes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pl.edu.put.concurrent.jiffy.WriteAheadLog.SyncPolicy;
+
+public class WriteAheadLogTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void recoversUpdatesInVersionOrder() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("wal");
+		TreeMap<byte[], byte[]> expected = new TreeMap<>(BYTES);
+		Jiffy<byte[], byte[]> map = new Jiffy<>(BYTES);
+		map.setNodeSizes(8, 2);
+		try (var log = WriteAheadLog.open(path, Codec.byteArrays(), SyncPolicy.NONE)) {
+			map.setWriteAheadLog(log);
+			Random random = new Random(1);
+			// keys are updated many times, so replaying out of order would
+			// leave older values
+			for (int i = 0; i < 2000; i++) {
+				int key = random.nextInt(300);
+				if (random.nextInt(4) == 0) {
+					map.remove(bytes(key));
+					expected.remove(bytes(key));
+				} else if (random.nextInt(4) == 0) {
+					var batch = new Batch<byte[], byte[]>();
+					for (int j = 0; j < 10; j++) {
+						int k = random.nextInt(300);
+						batch.put(bytes(k), bytes(i));
+						expected.put(bytes(k), bytes(i));
+					}
+					map.put(batch);
+				} else {
+					map.put(bytes(key), bytes(i));
+					expected.put(bytes(key), bytes(i));
+				}
+			}
+		}
+
+		Jiffy<byte[], byte[]> recovered = new Jiffy<>(BYTES);
+		WriteAheadLog.recover(path, Codec.byteArrays(), recovered);
+		assertContent(expected, recovered);
+	}
+
+	/**
+	 * Writers share the writes of the group commit, and each one returns only
+	 * once its own record is written, so the log can be replayed before it is
+	 * closed.
+	 */
+	@Test
+	public void concurrentUpdatesAreWrittenBeforeReturning() throws IOException, InterruptedException {
+		Path path = folder.getRoot().toPath().resolve("wal");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setNodeSizes(8, 2);
+		try (var log = WriteAheadLog.open(path, TestMaps.ints(), SyncPolicy.ON_COMMIT)) {
+			map.setWriteAheadLog(log);
+			Thread[] threads = new Thread[4];
+			for (int t = 0; t < threads.length; t++) {
+				int id = t;
+				threads[t] = new Thread(() -> {
+					for (int i = 0; i < 200; i++) {
+						if (i % 10 == 0) {
+							var batch = new Batch<Integer, Integer>();
+							batch.put(id * 1000 + i, i);
+							batch.put(id * 1000 + i + 1, i);
+							map.put(batch);
+						} else {
+							map.put(id * 1000 + i, -i);
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+
+			Jiffy<Integer, Integer> recovered = new Jiffy<>();
+			assertEquals(4 * 200, WriteAheadLog.recover(path, TestMaps.ints(), recovered));
+			assertContent(new TreeMap<>(map), recovered);
+		}
+	}
+
+	@Test
+	public void tornBatchIsDroppedWhole() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("wal");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		try (var log = WriteAheadLog.open(path, TestMaps.ints(), SyncPolicy.NONE)) {
+			map.setWriteAheadLog(log);
+			map.put(1, 1);
+			var batch = new Batch<Integer, Integer>();
+			for (int i = 2; i < 10; i++)
+				batch.put(i, i);
+			map.put(batch);
+		}
+		// a crash in the middle of writing the batch record
+		try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 5);
+		}
+
+		Jiffy<Integer, Integer> recovered = new Jiffy<>();
+		assertEquals(1, WriteAheadLog.recover(path, TestMaps.ints(), recovered));
+		assertEquals(1, recovered.size());
+		assertEquals(Integer.valueOf(1), recovered.get(1));
+	}
+
+	@Test
+	public void tornRecordIsDropped() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("wal");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		try (var log = WriteAheadLog.open(path, TestMaps.ints(), SyncPolicy.NONE)) {
+			map.setWriteAheadLog(log);
+			map.put(1, 1);
+			map.put(2, 2);
+		}
+		long length = Files.size(path);
+		Files.write(path, new byte[] { 0, 0, 0, 40, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+		WriteAheadLog.open(path, TestMaps.ints(), SyncPolicy.NONE).close();
+		assertEquals(length, Files.size(path));
+		Jiffy<Integer, Integer> recovered = new Jiffy<>();
+		assertEquals(2, WriteAheadLog.recover(path, TestMaps.ints(), recovered));
+		assertEquals(Integer.valueOf(2), recovered.get(2));
+	}
+
+	@Test
+	public void replacedLogNoLongerRecords() throws IOException {
+		Path first = folder.getRoot().toPath().resolve("first");
+		Path second = folder.getRoot().toPath().resolve("second");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		try (var log1 = WriteAheadLog.open(first, TestMaps.ints(), SyncPolicy.NONE);
+				var log2 = WriteAheadLog.open(second, TestMaps.ints(), SyncPolicy.NONE)) {
+			map.setWriteAheadLog(log1);
+			map.put(1, 1);
+			map.setWriteAheadLog(log2);
+			map.put(2, 2);
+			map.setWriteAheadLog(null);
+			map.put(3, 3);
+		}
+
+		Jiffy<Integer, Integer> recovered = new Jiffy<>();
+		assertEquals(1, WriteAheadLog.recover(first, TestMaps.ints(), recovered));
+		assertNull(recovered.get(2));
+		recovered = new Jiffy<>();
+		assertEquals(1, WriteAheadLog.recover(second, TestMaps.ints(), recovered));
+		assertEquals(Integer.valueOf(2), recovered.get(2));
+	}
+
+	@Test
+	public void closedLogRejectsUpdatesBeforeCommit() throws IOException {
+		Path path = folder.getRoot().toPath().resolve("wal");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		var log = WriteAheadLog.open(path, TestMaps.ints(), SyncPolicy.NONE);
+		map.setWriteAheadLog(log);
+		map.put(1, 1);
+		log.close();
+
+		try {
+			map.put(2, 2);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			map.remove(1);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		var batch = new Batch<Integer, Integer>();
+		batch.put(3, 3);
+		batch.put(4, 4);
+		try {
+			map.put(batch);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertNull(map.get(2));
+		assertEquals(Integer.valueOf(1), map.get(1));
+		assertNull(map.get(3));
+
+		map.setWriteAheadLog(null);
+		map.put(2, 2);
+		assertEquals(Integer.valueOf(2), map.get(2));
+	}
+
+	/**
+	 * Writes to /dev/full fail, so the first update is committed without being
+	 * durable, and the later ones are refused before they are committed.
+	 */
+	@Test
+	public void failedLogRejectsUpdatesBeforeCommit() throws IOException {
+		Path path = Path.of("/dev/full");
+		assumeTrue(Files.isWritable(path));
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		var log = WriteAheadLog.open(path, TestMaps.ints(), SyncPolicy.NONE);
+		map.setWriteAheadLog(log);
+		try {
+			map.put(1, 1);
+			fail();
+		} catch (UncheckedIOException e) {
+			// expected
+		}
+		assertEquals(Integer.valueOf(1), map.get(1));
+
+		try {
+			map.put(2, 2);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		var batch = new Batch<Integer, Integer>();
+		batch.put(3, 3);
+		try {
+			map.put(batch);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try (var tx = map.beginTransaction()) {
+			tx.put(4, 4);
+			tx.commit();
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(1, map.size());
+
+		try {
+			log.close();
+			fail();
+		} catch (IOException e) {
+			// the record of the first update was not written
+		}
+	}
+
+	/**
+	 * Entries keep their deadlines across recovery, including the ones merged
+	 * into by a single merge or a batch, and the ones that have expired in the
+	 * meantime are not recovered.
+	 */
+	@Test
+	public void recoversTimeToLive() throws IOException, InterruptedException {
+		Path path = folder.getRoot().toPath().resolve("wal");
+		Jiffy<Integer, Integer> map = new Jiffy<>();
+		map.setMergeOperator((value, operand) -> (value == null ? 0 : value) + operand);
+		try (var log = WriteAheadLog.open(path, TestMaps.ints(), SyncPolicy.NONE)) {
+			map.setWriteAheadLog(log);
+			map.put(1, 1, Duration.ofHours(1));
+			map.put(2, 2, Duration.ofMillis(1));
+			map.put(3, 3, Duration.ofSeconds(2));
+			map.mergeValue(3, 10);
+			map.put(4, 4, Duration.ofSeconds(2));
+			var batch = new Batch<Integer, Integer>();
+			batch.merge(4, 10);
+			batch.put(5, 5);
+			map.put(batch);
+		}
+		Thread.sleep(10);
+
+		Jiffy<Integer, Integer> recovered = new Jiffy<>();
+		WriteAheadLog.recover(path, TestMaps.ints(), recovered);
+		assertEquals(Integer.valueOf(1), recovered.get(1));
+		assertNull(recovered.get(2));
+		assertEquals(Integer.valueOf(13), recovered.get(3));
+		assertEquals(Integer.valueOf(14), recovered.get(4));
+		assertEquals(Integer.valueOf(5), recovered.get(5));
+
+		TestMaps.awaitAbsent(recovered, 3);
+		TestMaps.awaitAbsent(recovered, 4);
+		assertEquals(Integer.valueOf(1), recovered.get(1));
+		assertEquals(Integer.valueOf(5), recovered.get(5));
+	}
+}